@@ -0,0 +1,261 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps finished APKs keyed by their SHA-256, within a size budget.
+ *
+ * Entries only ever appear through a rename, so a file in the cache is always complete. When the
+ * budget is exceeded the least recently used entries are evicted. The index (size and last use of
+ * every entry) is written next to the files with the same temp file and rename.
+ */
+public class ApkCache {
+    public static final long DEFAULT_MAX_BYTES = 200L * 1024 * 1024;
+    private static final String INDEX_NAME = "index.json";
+    private static final String SUFFIX = ".apk";
+
+    private final File dir;
+    private long maxBytes;
+    // Access ordered, the first entry is the least recently used one
+    private Map<String, Entry> entries;
+
+    public ApkCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        load();
+        evict(null);
+        saveIndex();
+    }
+
+    /**
+     * Returns the cached APK with this hash, or null.
+     */
+    public synchronized File get(String sha256) {
+        load();
+        Entry entry = entries.get(StreamingVerifier.normalizeHex(sha256));
+        return entry != null ? use(entry) : null;
+    }
+
+    /**
+     * Copies {@code source} into the cache under {@code sha256} and leaves the original where it
+     * is. The hash is taken as given, the caller must have verified it. Returns the cached file.
+     */
+    public synchronized File add(File source, String sha256) throws IOException {
+        load();
+        String key = StreamingVerifier.normalizeHex(sha256);
+        File target = fileFor(key);
+        dir.mkdirs();
+        long length = source.length();
+        // Always copied, a file of the same length under this name says nothing about its bytes
+        File tempFile = new File(target.getPath() + ".tmp");
+        copy(source, tempFile);
+        // A source that changed meanwhile is no longer what the hash describes
+        if (tempFile.length() != length || !tempFile.renameTo(target)) {
+            tempFile.delete();
+            throw new IOException("Unable to copy " + source.getName() + " into the APK cache");
+        }
+
+        entries.remove(key);
+        entries.put(key, new Entry(key, target.length(), System.currentTimeMillis()));
+        evict(key);
+        saveIndex();
+        return target;
+    }
+
+    public synchronized void remove(String sha256) {
+        load();
+        String key = StreamingVerifier.normalizeHex(sha256);
+        entries.remove(key);
+        fileFor(key).delete();
+        saveIndex();
+    }
+
+    public synchronized void clear() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public synchronized long getTotalBytes() {
+        load();
+        long total = 0;
+        for (Entry entry : entries.values()) {
+            total += entry.size;
+        }
+        return total;
+    }
+
+    private File use(Entry entry) {
+        File file = fileFor(entry.sha256);
+        if (!file.exists() || file.length() != entry.size) {
+            // Removed or truncated behind our back
+            entries.remove(entry.sha256);
+            file.delete();
+            saveIndex();
+            return null;
+        }
+        // Moves it to the end of the access order
+        entries.get(entry.sha256);
+        entry.lastUsed = System.currentTimeMillis();
+        saveIndex();
+        return file;
+    }
+
+    // Drops least recently used entries until the rest fits, never the one just stored
+    private void evict(String keep) {
+        long total = 0;
+        for (Entry entry : entries.values()) {
+            total += entry.size;
+        }
+        List<Entry> candidates = new ArrayList<>(entries.values());
+        for (Entry entry : candidates) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (entry.sha256.equals(keep)) {
+                continue;
+            }
+            entries.remove(entry.sha256);
+            fileFor(entry.sha256).delete();
+            total -= entry.size;
+        }
+    }
+
+    private File fileFor(String sha256) {
+        return new File(dir, sha256 + SUFFIX);
+    }
+
+    private void load() {
+        if (entries != null) {
+            return;
+        }
+        List<Entry> loaded = new ArrayList<>();
+        File indexFile = new File(dir, INDEX_NAME);
+        if (indexFile.exists()) {
+            try (InputStream in = new FileInputStream(indexFile)) {
+                JSONArray array = new JSONObject(new String(readFully(in), StandardCharsets.UTF_8)).getJSONArray("entries");
+                for (int i = 0; i < array.length(); i++) {
+                    JSONObject json = array.getJSONObject(i);
+                    loaded.add(new Entry(json.getString("sha256"), json.getLong("size"), json.getLong("lastUsed")));
+                }
+            } catch (IOException | JSONException e) {
+                // A lost index only costs the entries it described
+                loaded.clear();
+            }
+        }
+        Collections.sort(loaded, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(a.lastUsed, b.lastUsed);
+            }
+        });
+
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+        for (Entry entry : loaded) {
+            File file = fileFor(entry.sha256);
+            if (file.exists() && file.length() == entry.size) {
+                entries.put(entry.sha256, entry);
+            }
+        }
+
+        // Leftovers of interrupted copies and files the index doesn't know about
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.equals(INDEX_NAME)) {
+                    continue;
+                }
+                if (!name.endsWith(SUFFIX) || !entries.containsKey(name.substring(0, name.length() - SUFFIX.length()))) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private void saveIndex() {
+        dir.mkdirs();
+        File indexFile = new File(dir, INDEX_NAME);
+        File tempFile = new File(dir, INDEX_NAME + ".tmp");
+        try {
+            JSONArray array = new JSONArray();
+            for (Entry entry : entries.values()) {
+                JSONObject json = new JSONObject();
+                json.put("sha256", entry.sha256);
+                json.put("size", entry.size);
+                json.put("lastUsed", entry.lastUsed);
+                array.put(json);
+            }
+            try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                out.write(new JSONObject().put("entries", array).toString().getBytes(StandardCharsets.UTF_8));
+            }
+            if (!tempFile.renameTo(indexFile)) {
+                tempFile.delete();
+            }
+        } catch (IOException | JSONException e) {
+            // The files are still there, only their order of use is lost
+            tempFile.delete();
+        }
+    }
+
+    private static void copy(File source, File target) throws IOException {
+        try (InputStream in = new FileInputStream(source); OutputStream out = new FileOutputStream(target)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static class Entry {
+        final String sha256;
+        final long size;
+        long lastUsed;
+
+        Entry(String sha256, long size, long lastUsed) {
+            this.sha256 = sha256;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a download to disk through one {@link FileChannel}.
+ *
+ * When the length is known the whole file is reserved before the first byte arrives, so a full
+ * disk fails the download at once instead of near the end, and the file system can lay the file
+ * out in one piece. Bytes are gathered in a direct {@link Block} per connection and written in
+ * large positioned writes, and nothing is synced until {@link #sync()} is called at a checkpoint.
+ *
+ * Has no Android dependency, preallocation goes through {@code android.system.Os} only if it is
+ * there, so the benchmarks can use it on the JVM.
+ */
+public class ApkFileWriter implements Closeable {
+    static final int BLOCK_SIZE = 256 * 1024;
+    // Left free on top of the download, Android itself misbehaves on a completely full disk
+    static final long FREE_SPACE_MARGIN = 16 * 1024 * 1024;
+    static final String NO_SPACE_MESSAGE = "Not enough free space";
+    private static final int ENOSPC = 28;
+
+    private static Method fallocate;
+    private static boolean fallocateChecked = false;
+
+    private final File target;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    public ApkFileWriter(File target) throws IOException {
+        this.target = target;
+        this.file = new RandomAccessFile(target, "rw");
+        this.channel = file.getChannel();
+    }
+
+    public File getTarget() {
+        return target;
+    }
+
+    /**
+     * Sets the file to {@code length} bytes and allocates them, failing if fewer than
+     * {@code missingBytes} (what is still to be written) plus a margin are free.
+     */
+    public void reserve(long length, long missingBytes) throws Exception {
+        checkFreeSpace(missingBytes);
+        file.setLength(length);
+        if (length > 0 && missingBytes > 0) {
+            allocate(length);
+        }
+    }
+
+    /**
+     * Fails if fewer than {@code bytes} plus a margin are free where the target lives.
+     */
+    public void checkFreeSpace(long bytes) throws Exception {
+        File directory = target.getAbsoluteFile().getParentFile();
+        // 0 means the size couldn't be read, not that the disk is full
+        long usable = directory != null ? directory.getUsableSpace() : 0;
+        if (usable > 0 && usable < bytes + FREE_SPACE_MARGIN) {
+            throw new Exception(NO_SPACE_MESSAGE + ": " + bytes + " bytes needed, " + usable + " available");
+        }
+    }
+
+    /**
+     * Empties the file, for a transfer that starts over.
+     */
+    public void truncate() throws IOException {
+        file.setLength(0);
+    }
+
+    /**
+     * Copies {@code length} bytes from {@code source} at {@code sourceOffset} to {@code position},
+     * without passing them through the Java heap where the platform allows.
+     */
+    public void copyFrom(FileChannel source, long sourceOffset, long length, long position) throws IOException {
+        source.position(sourceOffset);
+        long copied = 0;
+        while (copied < length) {
+            long count = channel.transferFrom(source, position + copied, length - copied);
+            if (count <= 0) {
+                throw new IOException("Source ended after " + (sourceOffset + copied) + " bytes");
+            }
+            copied += count;
+        }
+    }
+
+    public Block newBlock() {
+        return new Block(BLOCK_SIZE);
+    }
+
+    /**
+     * Flushes what was written to storage. Blocks must be flushed first.
+     */
+    public void sync() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    // setLength only makes a sparse file, which still runs out of space halfway on a full disk
+    private void allocate(long length) throws Exception {
+        Method method = fallocateMethod();
+        if (method == null) {
+            return;
+        }
+        try {
+            method.invoke(null, file.getFD(), 0L, length);
+        } catch (InvocationTargetException e) {
+            if (isNoSpace(e.getCause())) {
+                throw new Exception(NO_SPACE_MESSAGE + " for " + length + " bytes");
+            }
+            // Not supported by this file system, the sparse file has to do
+        } catch (IllegalAccessException e) {
+            // Same as not having it
+        }
+    }
+
+    private static boolean isNoSpace(Throwable error) {
+        if (error == null) {
+            return false;
+        }
+        try {
+            return error.getClass().getField("errno").getInt(error) == ENOSPC;
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    private static synchronized Method fallocateMethod() {
+        if (!fallocateChecked) {
+            fallocateChecked = true;
+            try {
+                fallocate = Class.forName("android.system.Os").getMethod("posix_fallocate", FileDescriptor.class, long.class, long.class);
+            } catch (ClassNotFoundException | NoSuchMethodException | LinkageError e) {
+                fallocate = null;
+            }
+        }
+        return fallocate;
+    }
+
+    /**
+     * Gathers consecutive bytes for one connection and writes them in one go once the buffer is
+     * full or the next bytes go elsewhere. Reused for every segment the connection fetches, not
+     * thread safe.
+     */
+    public class Block {
+        private final ByteBuffer buffer;
+        // File offset of the first buffered byte
+        private long start = 0;
+
+        Block(int size) {
+            this.buffer = ByteBuffer.allocateDirect(size);
+        }
+
+        public void write(byte[] data, int offset, int length, long position) throws IOException {
+            if (buffer.position() > 0 && position != start + buffer.position()) {
+                flush();
+            }
+            while (length > 0) {
+                if (buffer.position() == 0) {
+                    start = position;
+                }
+                int count = Math.min(length, buffer.remaining());
+                buffer.put(data, offset, count);
+                offset += count;
+                length -= count;
+                position += count;
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+            }
+        }
+
+        /**
+         * Writes out whatever is buffered.
+         */
+        public void flush() throws IOException {
+            int pending = buffer.position();
+            buffer.flip();
+            try {
+                long offset = start;
+                while (buffer.hasRemaining()) {
+                    offset += channel.write(buffer, offset);
+                }
+                buffer.clear();
+            } catch (IOException e) {
+                // Count all of it as unwritten, see discard
+                buffer.limit(buffer.capacity());
+                buffer.position(pending);
+                throw e;
+            }
+        }
+
+        /**
+         * Drops whatever is buffered and returns where the bytes on disk end for a run of writes
+         * that ended at {@code position}.
+         */
+        public long discard(long position) {
+            long pending = buffer.position();
+            buffer.clear();
+            return position - pending;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Rebuilds a new APK from the installed one and a bsdiff patch.
+ *
+ * Patches use the ENDSLEY/BSDIFF43 layout: a 16 byte magic, the 8 byte new file size and then a
+ * stream of control triples (diff length, extra length, seek) each followed by its diff and extra
+ * bytes. The stream after the header may be gzip compressed since the JDK has no bzip2 decoder.
+ */
+public class ApkPatcher {
+    private static final byte[] MAGIC = "ENDSLEY/BSDIFF43".getBytes(StandardCharsets.US_ASCII);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static void applyPatch(File oldFile, File patchFile, File newFile) throws Exception {
+        applyPatch(oldFile, patchFile, newFile, null);
+    }
+
+    /**
+     * Same as {@link #applyPatch(File, File, File)}, also feeding every output byte to
+     * {@code digest} so the result can be verified without reading it back.
+     */
+    public static void applyPatch(File oldFile, File patchFile, File newFile, MessageDigest digest) throws Exception {
+        try (InputStream patchIn = new BufferedInputStream(new FileInputStream(patchFile), BUFFER_SIZE)) {
+            applyPatch(oldFile, patchIn, newFile, digest);
+        }
+    }
+
+    public static void applyPatch(File oldFile, InputStream patchIn, File newFile) throws Exception {
+        applyPatch(oldFile, patchIn, newFile, null);
+    }
+
+    public static void applyPatch(File oldFile, InputStream patchIn, File newFile, MessageDigest digest) throws Exception {
+        DataInputStream header = new DataInputStream(patchIn);
+        byte[] magic = new byte[MAGIC.length];
+        header.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new Exception("Unsupported patch format");
+        }
+        long newSize = readOffset(header);
+        if (newSize < 0) {
+            throw new Exception("Corrupt patch header");
+        }
+
+        DataInputStream body = new DataInputStream(openBody(patchIn));
+        File tempFile = new File(newFile.getPath() + ".tmp");
+
+        OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE);
+        try (RandomAccessFile oldIn = new RandomAccessFile(oldFile, "r");
+             OutputStream out = digest != null ? new DigestOutputStream(fileOut, digest) : fileOut) {
+            long oldSize = oldIn.length();
+            byte[] diffBuffer = new byte[BUFFER_SIZE];
+            byte[] oldBuffer = new byte[BUFFER_SIZE];
+            long oldPos = 0;
+            long newPos = 0;
+
+            while (newPos < newSize) {
+                long diffLength = readOffset(body);
+                long extraLength = readOffset(body);
+                long seek = readOffset(body);
+                if (diffLength < 0 || extraLength < 0 || newPos + diffLength + extraLength > newSize) {
+                    throw new Exception("Corrupt patch control block");
+                }
+
+                // Diff section: new bytes are old bytes plus the patch delta
+                long remaining = diffLength;
+                while (remaining > 0) {
+                    int chunk = (int) Math.min(remaining, BUFFER_SIZE);
+                    body.readFully(diffBuffer, 0, chunk);
+                    readOld(oldIn, oldSize, oldPos, oldBuffer, chunk);
+                    for (int i = 0; i < chunk; i++) {
+                        diffBuffer[i] += oldBuffer[i];
+                    }
+                    out.write(diffBuffer, 0, chunk);
+                    oldPos += chunk;
+                    remaining -= chunk;
+                }
+                newPos += diffLength;
+
+                // Extra section: bytes copied verbatim from the patch
+                copy(body, out, extraLength, diffBuffer);
+                newPos += extraLength;
+                oldPos += seek;
+            }
+        } catch (EOFException e) {
+            tempFile.delete();
+            throw new Exception("Patch ended unexpectedly");
+        } catch (Exception e) {
+            tempFile.delete();
+            throw e;
+        }
+
+        if (tempFile.length() != newSize) {
+            tempFile.delete();
+            throw new Exception("Patched file has unexpected size");
+        }
+        if (newFile.exists() && !newFile.delete()) {
+            tempFile.delete();
+            throw new Exception("Unable to replace " + newFile.getPath());
+        }
+        if (!tempFile.renameTo(newFile)) {
+            tempFile.delete();
+            throw new Exception("Unable to move patched file to " + newFile.getPath());
+        }
+    }
+
+    private static InputStream openBody(InputStream patchIn) throws IOException {
+        InputStream in = patchIn.markSupported() ? patchIn : new BufferedInputStream(patchIn);
+        in.mark(2);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+        if (first == 0x1f && second == 0x8b) {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        return in;
+    }
+
+    // Bytes outside the old file count as zero, byte by byte like bspatch, so a window that starts
+    // before the file or runs past its end still gets the old bytes it overlaps
+    private static void readOld(RandomAccessFile oldIn, long oldSize, long oldPos, byte[] buffer, int length) throws IOException {
+        long start = Math.max(oldPos, 0);
+        long end = Math.min(oldPos + length, oldSize);
+        if (start >= end) {
+            Arrays.fill(buffer, 0, length, (byte) 0);
+            return;
+        }
+        int from = (int) (start - oldPos);
+        int to = (int) (end - oldPos);
+        Arrays.fill(buffer, 0, from, (byte) 0);
+        oldIn.seek(start);
+        oldIn.readFully(buffer, from, to - from);
+        Arrays.fill(buffer, to, length, (byte) 0);
+    }
+
+    private static void copy(InputStream in, OutputStream out, long length, byte[] buffer) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(remaining, buffer.length));
+            if (read < 0) {
+                throw new EOFException();
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    // bsdiff stores offsets as little-endian sign-magnitude 64-bit values
+    static long readOffset(DataInputStream in) throws IOException {
+        byte[] buf = new byte[8];
+        in.readFully(buf);
+        long value = buf[7] & 0x7f;
+        for (int i = 6; i >= 0; i--) {
+            value = (value << 8) | (buf[i] & 0xff);
+        }
+        return (buf[7] & 0x80) != 0 ? -value : value;
+    }
+}
@@ -0,0 +1,317 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * zsync style checksums of every block of an APK. A device uses them to find the blocks its
+ * installed APK already has and downloads only the rest, with no patch built for its version.
+ *
+ * The index is published next to the APK. It starts with an 8 byte magic, the block size, the
+ * file length and the SHA-256 of the whole file, followed by a 4 byte rolling checksum and a 16
+ * byte MD5 per block, all big-endian. The last block is zero padded.
+ *
+ * The rolling checksum is the one rsync uses: it can be moved along the installed APK one byte at
+ * a time, so blocks are found at any offset, not just at multiples of the block size.
+ */
+public class BlockIndex {
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    static final int MIN_BLOCK_SIZE = 512;
+    static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    private static final byte[] MAGIC = "APKBLKS1".getBytes(StandardCharsets.US_ASCII);
+    private static final int STRONG_LENGTH = 16;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+
+    public final int blockSize;
+    public final long length;
+    public final String sha256;
+    private final int[] weak;
+    // STRONG_LENGTH bytes per block
+    private final byte[] strong;
+
+    BlockIndex(int blockSize, long length, String sha256, int[] weak, byte[] strong) {
+        this.blockSize = blockSize;
+        this.length = length;
+        this.sha256 = sha256;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    public static BlockIndex build(File file, int blockSize) throws IOException {
+        checkBlockSize(blockSize);
+        long length = file.length();
+        int count = blockCount(length, blockSize);
+        int[] weak = new int[count];
+        byte[] strong = new byte[count * STRONG_LENGTH];
+        MessageDigest sha = StreamingVerifier.newDigest();
+        MessageDigest md5 = newMd5();
+        byte[] block = new byte[blockSize];
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+            for (int i = 0; i < count; i++) {
+                int size = (int) Math.min(blockSize, length - (long) i * blockSize);
+                in.readFully(block, 0, size);
+                sha.update(block, 0, size);
+                Arrays.fill(block, size, blockSize, (byte) 0);
+                weak[i] = weakChecksum(block, 0, blockSize);
+                md5.update(block, 0, blockSize);
+                System.arraycopy(md5.digest(), 0, strong, i * STRONG_LENGTH, STRONG_LENGTH);
+            }
+        }
+        return new BlockIndex(blockSize, length, StreamingVerifier.toHex(sha.digest()), weak, strong);
+    }
+
+    public static BlockIndex read(InputStream input) throws Exception {
+        DataInputStream in = new DataInputStream(input);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new Exception("Unsupported block index format");
+        }
+        int blockSize = in.readInt();
+        long length = in.readLong();
+        byte[] sha = new byte[32];
+        in.readFully(sha);
+        int count = in.readInt();
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || length < 0 || count != blockCount(length, blockSize)) {
+            throw new Exception("Corrupt block index header");
+        }
+
+        int[] weak = new int[count];
+        byte[] strong = new byte[count * STRONG_LENGTH];
+        for (int i = 0; i < count; i++) {
+            weak[i] = in.readInt();
+            in.readFully(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+        }
+        return new BlockIndex(blockSize, length, StreamingVerifier.toHex(sha), weak, strong);
+    }
+
+    public static BlockIndex fetch(String url) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        try {
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new Exception("Block index request failed with HTTP " + code);
+            }
+            try (InputStream in = new BufferedInputStream(connection.getInputStream())) {
+                return read(in);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    public void write(OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(output);
+        out.write(MAGIC);
+        out.writeInt(blockSize);
+        out.writeLong(length);
+        for (int i = 0; i < sha256.length(); i += 2) {
+            out.write(Integer.parseInt(sha256.substring(i, i + 2), 16));
+        }
+        out.writeInt(weak.length);
+        for (int i = 0; i < weak.length; i++) {
+            out.writeInt(weak[i]);
+            out.write(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+        }
+        out.flush();
+    }
+
+    /**
+     * Finds the blocks of the indexed file that {@code source} already contains, at any offset.
+     * Returns {targetOffset, sourceOffset, length} in target order, with runs of blocks that are
+     * also consecutive in {@code source} merged. A partial last block is always downloaded.
+     */
+    public List<long[]> match(File source) throws IOException {
+        int full = (int) (length / blockSize);
+        // Open addressing on the rolling checksum, looked up once for every byte of the source.
+        // Blocks with the same checksum are chained through next.
+        int capacity = Integer.highestOneBit(Math.max(16, full * 4 - 1)) << 1;
+        int[] keys = new int[capacity];
+        int[] heads = new int[capacity];
+        Arrays.fill(heads, -1);
+        int[] next = new int[full];
+        for (int i = full - 1; i >= 0; i--) {
+            int slot = slot(keys, heads, weak[i]);
+            keys[slot] = weak[i];
+            next[i] = heads[slot];
+            heads[slot] = i;
+        }
+        long[] found = new long[full];
+        Arrays.fill(found, -1);
+        int missing = full;
+
+        MessageDigest md5 = newMd5();
+        byte[] digest = new byte[STRONG_LENGTH];
+        byte[] buffer = new byte[Math.max(BUFFER_SIZE, blockSize * 2)];
+        int start = 0;
+        int end = 0;
+        long offset = 0;
+        int a = 0;
+        int b = 0;
+        boolean rolling = false;
+
+        try (InputStream in = new FileInputStream(source)) {
+            while (missing > 0) {
+                // Rolling on needs the byte after the window as well
+                if (end - start <= blockSize) {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    int read;
+                    while (end < buffer.length && (read = in.read(buffer, end, buffer.length - end)) != -1) {
+                        end += read;
+                    }
+                    if (end < blockSize) {
+                        break;
+                    }
+                }
+                if (!rolling) {
+                    a = 0;
+                    b = 0;
+                    for (int i = 0; i < blockSize; i++) {
+                        int value = buffer[start + i] & 0xff;
+                        a += value;
+                        b += (blockSize - i) * value;
+                    }
+                    rolling = true;
+                }
+
+                int head = heads[slot(keys, heads, (a & 0xffff) | (b << 16))];
+                if (head >= 0) {
+                    md5.update(buffer, start, blockSize);
+                    try {
+                        md5.digest(digest, 0, STRONG_LENGTH);
+                    } catch (DigestException e) {
+                        throw new IOException(e);
+                    }
+                    boolean matched = false;
+                    for (int i = head; i >= 0; i = next[i]) {
+                        if (equalsStrong(i, digest)) {
+                            matched = true;
+                            if (found[i] < 0) {
+                                found[i] = offset;
+                                missing--;
+                            }
+                        }
+                    }
+                    if (matched) {
+                        // Blocks rarely overlap, carry on right after this one
+                        start += blockSize;
+                        offset += blockSize;
+                        rolling = false;
+                        continue;
+                    }
+                }
+
+                if (end - start == blockSize) {
+                    // End of the source
+                    break;
+                }
+                int out = buffer[start] & 0xff;
+                a += (buffer[start + blockSize] & 0xff) - out;
+                b += a - blockSize * out;
+                start++;
+                offset++;
+            }
+        }
+
+        List<long[]> copies = new ArrayList<>();
+        long[] run = null;
+        for (int i = 0; i < full; i++) {
+            if (found[i] < 0) {
+                run = null;
+                continue;
+            }
+            long target = (long) i * blockSize;
+            if (run != null && run[0] + run[2] == target && run[1] + run[2] == found[i]) {
+                run[2] += blockSize;
+            } else {
+                run = new long[] { target, found[i], blockSize };
+                copies.add(run);
+            }
+        }
+        return copies;
+    }
+
+    public static long reusedBytes(List<long[]> copies) {
+        long total = 0;
+        for (long[] copy : copies) {
+            total += copy[2];
+        }
+        return total;
+    }
+
+    static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = data[offset + i] & 0xff;
+            a += value;
+            b += (length - i) * value;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    // The slot holding checksum, or the empty one where it would go
+    private static int slot(int[] keys, int[] heads, int checksum) {
+        int mask = keys.length - 1;
+        int hash = checksum * 0x9e3779b9;
+        int slot = (hash ^ hash >>> 16) & mask;
+        while (heads[slot] >= 0 && keys[slot] != checksum) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean equalsStrong(int block, byte[] digest) {
+        int base = block * STRONG_LENGTH;
+        for (int i = 0; i < STRONG_LENGTH; i++) {
+            if (strong[base + i] != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int blockCount(long length, int blockSize) {
+        return (int) ((length + blockSize - 1) / blockSize);
+    }
+
+    private static void checkBlockSize(int blockSize) {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be between " + MIN_BLOCK_SIZE + " and " + MAX_BLOCK_SIZE);
+        }
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+}
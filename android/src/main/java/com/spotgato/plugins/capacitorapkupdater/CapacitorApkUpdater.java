@@ -5,224 +5,1904 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.Signature;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.LocaleList;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.provider.Settings;
 import androidx.core.content.FileProvider;
 import com.getcapacitor.Logger;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CapacitorApkUpdater {
+    public static final String ENGINE_DOWNLOAD_MANAGER = "downloadManager";
+    public static final String ENGINE_SEGMENTED = "segmented";
+    public static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 3;
+    // Finished downloads are kept this long so their status can still be queried
+    private static final int MAX_FINISHED_DOWNLOADS = 16;
+    private static final long MIN_POLL_INTERVAL = 500;
+    private static final long MAX_POLL_INTERVAL = 5000;
+    // With a ContentObserver delivering changes, polling is only a safety net
+    private static final long OBSERVED_POLL_INTERVAL = 2000;
+    private static final long OBSERVED_MAX_POLL_INTERVAL = 15000;
+    private static final Uri MY_DOWNLOADS_URI = Uri.parse("content://downloads/my_downloads");
+    // Unfinished downloads, so a restarted process can pick them up again
+    private static final String PREFS_NAME = "CapacitorApkUpdaterDownloads";
+    private static final String KEY_ACTIVE = "active";
+    // Rounds of fetching chunks that failed verification again before giving up
+    private static final int MAX_CHUNK_REPAIRS = 2;
+    // Section names for system traces, constants so tracing builds no strings
+    private static final String TRACE_DOWNLOAD = "ApkUpdater.download";
+    private static final String TRACE_POLL = "ApkUpdater.poll";
+    private static final String TRACE_COMPLETE = "ApkUpdater.complete";
+    private static final String TRACE_VERIFY = "ApkUpdater.verify";
+    // Download IDs start over with every updater, a system trace needs cookies unique in the process
+    private static final AtomicInteger traceCookies = new AtomicInteger();
+
+    public static final String INSTALL_MODE_INTENT = "intent";
+    public static final String INSTALL_MODE_SESSION = "session";
+    public static final String ERROR_DOWNLOAD_FAILED = "DOWNLOAD_FAILED";
+    public static final String ERROR_CHECKSUM_MISMATCH = "CHECKSUM_MISMATCH";
+    public static final String ERROR_SIGNATURE_MISMATCH = "SIGNATURE_MISMATCH";
+    public static final String ERROR_INSUFFICIENT_STORAGE = "INSUFFICIENT_STORAGE";
+
     private Context context;
     private DownloadManager downloadManager;
     private BroadcastReceiver downloadReceiver;
-    private DownloadListener downloadListener;
-    private long currentDownloadId = 0;
-    private Handler progressHandler;
-    private Runnable progressRunnable;
-    private boolean isMonitoringProgress = false;
-    private boolean completionHandled = false;
+    private volatile DownloadListener downloadListener;
+    // Polling, DownloadManager queries and the bookkeeping below all run on this thread, so none of
+    // it competes with the WebView for frames. Only listener callbacks go to the main thread.
+    private final HandlerThread updaterThread;
+    private final Handler updaterHandler;
+    private final Handler mainHandler;
+    private final AtomicBoolean isMonitoringProgress = new AtomicBoolean(false);
+    private final ExecutorService workExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService transferExecutor = Executors.newCachedThreadPool();
+    // Every download handed out by ID, in start order. Guarded by itself since callers may be on any thread
+    private final Map<Long, DownloadTask> tasks = new LinkedHashMap<>();
+    private long nextDownloadId = 1;
+    private volatile long lastDownloadId = 0;
+    private volatile int maxConcurrentDownloads = DEFAULT_MAX_CONCURRENT_DOWNLOADS;
+    // Only touched on the updater thread
+    private final ArrayDeque<DownloadTask> queuedTasks = new ArrayDeque<>();
+    private final List<DownloadTask> runningTasks = new ArrayList<>();
+    private SessionInstaller sessionInstaller;
+    private UpdateChecker updateChecker;
+    private ApkCache apkCache;
+    // Peer sharing, guarded by this
+    private PeerServer peerServer;
+    private PeerDiscovery peerDiscovery;
+    private final List<String> configuredPeers = new ArrayList<>();
+    private volatile PackageInfo cachedPackageInfo;
+    private BroadcastReceiver packageReplacedReceiver;
+    private ContentObserver downloadObserver;
+    private long pollInterval;
+    private long lastPollTime;
+    // What saveActiveDownloads last wrote, updater thread only
+    private String savedActive;
+    private final DownloadTrace trace = new DownloadTrace(DownloadTrace.DEFAULT_CAPACITY, SystemClock.elapsedRealtimeNanos(), System.currentTimeMillis());
+    // Text logs of fallbacks and finished downloads, the trace records either way
+    private volatile boolean debugLogging = false;
+    private final Runnable progressRunnable = new Runnable() {
+        @Override
+        public void run() {
+            pollDownloads();
+        }
+    };
+
+    public interface DownloadListener {
+        void onDownloadComplete(long downloadId, DownloadResult result);
+        void onDownloadProgress(long downloadId, ProgressThrottle.Progress progress);
+        void onInstallStatus(boolean success, String message);
+    }
+
+    /**
+     * A {@link DownloadListener} that also hears when a finished transfer starts being verified.
+     */
+    public interface VerificationListener extends DownloadListener {
+        void onVerifying(long downloadId);
+    }
+
+    public interface UpdateCheckListener {
+        void onUpdateChecked(UpdateCheckResult result);
+    }
+
+    public CapacitorApkUpdater(Context context) {
+        this.context = context;
+        this.downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+        this.updaterThread = new HandlerThread("CapacitorApkUpdater");
+        this.updaterThread.start();
+        this.updaterHandler = new Handler(updaterThread.getLooper());
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.sessionInstaller = new SessionInstaller(context);
+        this.updateChecker = new UpdateChecker(context.getCacheDir());
+        this.apkCache = new ApkCache(new File(context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS), "apk-cache"), ApkCache.DEFAULT_MAX_BYTES);
+    }
+
+    public void setDownloadListener(DownloadListener listener) {
+        this.downloadListener = listener;
+    }
+
+    public void setDebugLogging(boolean enabled) {
+        debugLogging = enabled;
+    }
+
+    /**
+     * Exports the recent trace events of all downloads, see {@link DownloadTrace#toJson}.
+     */
+    public JSONObject dumpTrace(boolean clear) throws JSONException {
+        JSONObject json = trace.toJson();
+        if (clear) {
+            trace.clear();
+        }
+        return json;
+    }
+
+    public void setMaxConcurrentDownloads(int max) {
+        maxConcurrentDownloads = Math.max(1, max);
+        updaterHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                startQueuedDownloads();
+            }
+        });
+    }
+
+    public long startDownload(String url, String filename, boolean showNotification, String notificationTitle) throws Exception{
+        DownloadOptions options = new DownloadOptions();
+        options.url = url;
+        options.filename = filename;
+        options.showNotification = showNotification;
+        options.notificationTitle = notificationTitle;
+        return startDownload(options);
+    }
+
+    public long startDownload(DownloadOptions options) throws Exception {
+        return startDownload(options, null);
+    }
+
+    /**
+     * Queues a download and returns its ID. Events for it go to the listener set with
+     * {@link #setDownloadListener}, and to {@code listener} when given. A URL that is already being
+     * downloaded is not fetched again, the caller gets the ID of the running download instead and
+     * its listener is added to the others.
+     */
+    public long startDownload(DownloadOptions options, DownloadListener listener) throws Exception {
+        if (options.url == null || options.url.isEmpty()) {
+            throw new Exception("URL is required for download");
+        }
+
+        DownloadOptions taskOptions = options.copy();
+        if (taskOptions.filename == null) {
+            taskOptions.filename = "update.apk";
+        }
+
+        final DownloadTask task;
+        synchronized (tasks) {
+            for (DownloadTask existing : tasks.values()) {
+                if (existing.isFinished()) {
+                    continue;
+                }
+                if (existing.options.url.equals(taskOptions.url)) {
+                    if (listener != null) {
+                        existing.listeners.add(listener);
+                    }
+                    return existing.id;
+                }
+                if (existing.options.filename.equals(taskOptions.filename)) {
+                    throw new Exception("Another download is already writing " + taskOptions.filename);
+                }
+            }
+            task = new DownloadTask(nextDownloadId++, taskOptions);
+            if (listener != null) {
+                task.listeners.add(listener);
+            }
+            tasks.put(task.id, task);
+            pruneFinishedTasks();
+        }
+        lastDownloadId = task.id;
+        trace(DownloadTrace.EVENT_ENQUEUED, task.id, ENGINE_DOWNLOAD_MANAGER.equals(taskOptions.engine) ? 1 : 0, 0);
+
+        final String stagedPath = takeOverPrefetch(taskOptions);
+        final File cached = stagedPath == null ? findCached(taskOptions) : null;
+        updaterHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (task.cancelled) {
+                    return;
+                }
+                if (stagedPath != null && task.options.expectedSha256 != null) {
+                    // Verified in the background, but the file may have changed since
+                    deliverReused(task, new File(Uri.parse(stagedPath).getPath()), DownloadMetrics.SOURCE_PREFETCH, new Runnable() {
+                        @Override
+                        public void run() {
+                            PrefetchWorker.cancel(context);
+                        }
+                    });
+                    return;
+                }
+                if (stagedPath != null) {
+                    // Nothing to hash it against, the prefetch checked what it could
+                    task.metrics.onSource(DownloadMetrics.SOURCE_PREFETCH);
+                    deliverResult(task, new DownloadResult(true, stagedPath, null, null));
+                    return;
+                }
+                if (cached != null) {
+                    if (debugLogging) {
+                        Logger.info("CapacitorApkUpdater", "Answering download " + task.id + " from the APK cache");
+                    }
+                    // The cache directory can be written to outside the app, so a hit is hashed again
+                    deliverReused(task, cached, DownloadMetrics.SOURCE_CACHE, new Runnable() {
+                        @Override
+                        public void run() {
+                            apkCache.remove(task.options.expectedSha256);
+                        }
+                    });
+                    return;
+                }
+                queuedTasks.add(task);
+                startQueuedDownloads();
+            }
+        });
+        return task.id;
+    }
+
+    /**
+     * Downloads the splits of {@code splitSet} this device needs and installs them together in one
+     * session. Returns the download ID, the completion event reports the committed install.
+     */
+    public long startSplitDownload(List<SplitSelector.Split> splitSet, DownloadOptions options) throws Exception {
+        List<SplitSelector.Split> selected = SplitSelector.select(splitSet, Build.SUPPORTED_ABIS, context.getResources().getDisplayMetrics().densityDpi, getDeviceLanguages());
+        SplitSelector.Split base = null;
+        for (SplitSelector.Split split : selected) {
+            if ("base".equals(split.name)) {
+                base = split;
+            }
+        }
+        if (base == null) {
+            throw new Exception("Split set has no base APK");
+        }
+
+        DownloadOptions splitOptions = options.copy();
+        splitOptions.splits = selected;
+        // The base URL identifies the split set, so starting it twice shares one download
+        splitOptions.url = base.url;
+        splitOptions.filename = "splits";
+        return startDownload(splitOptions);
+    }
+
+    /**
+     * Picks up the downloads an earlier process left unfinished and returns their IDs, which stay
+     * what they were. DownloadManager keeps going while the app is gone, so its downloads are
+     * reattached, or their result is delivered at once if they ended meanwhile. In-process downloads
+     * start again and resume from their journal. Call once, after setting the download listener.
+     */
+    public List<Long> restoreDownloads() {
+        final List<DownloadTask> restored = new ArrayList<>();
+        List<Long> ids = new ArrayList<>();
+        String saved = getPrefs().getString(KEY_ACTIVE, null);
+        if (saved == null) {
+            return ids;
+        }
+        try {
+            JSONArray array = new JSONArray(saved);
+            synchronized (tasks) {
+                for (int i = 0; i < array.length(); i++) {
+                    JSONObject json = array.getJSONObject(i);
+                    long id = json.getLong("id");
+                    if (tasks.containsKey(id)) {
+                        continue;
+                    }
+                    DownloadTask task = new DownloadTask(id, DownloadOptions.fromJson(json.getJSONObject("options")));
+                    task.restored = true;
+                    task.downloadManagerId = json.optLong("managerId", 0);
+                    if (task.downloadManagerId != 0 && json.optBoolean("patch", false)) {
+                        task.pendingDelta = task.options;
+                    }
+                    tasks.put(id, task);
+                    nextDownloadId = Math.max(nextDownloadId, id + 1);
+                    lastDownloadId = id;
+                    restored.add(task);
+                    ids.add(id);
+                }
+            }
+        } catch (JSONException e) {
+            Logger.error("CapacitorApkUpdater", new Exception("Unable to restore downloads: " + e.getMessage()));
+        }
+        updaterHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                reattachDownloads(restored);
+            }
+        });
+        return ids;
+    }
+
+    /**
+     * Whether the download was started by an earlier process and picked up by {@link #restoreDownloads()}.
+     */
+    public boolean isRestored(long downloadId) {
+        synchronized (tasks) {
+            DownloadTask task = tasks.get(downloadId);
+            return task != null && task.restored;
+        }
+    }
+
+    private void reattachDownloads(List<DownloadTask> restored) {
+        List<DownloadTask> managed = new ArrayList<>();
+        for (DownloadTask task : restored) {
+            if (task.downloadManagerId != 0) {
+                managed.add(task);
+            } else {
+                queuedTasks.add(task);
+            }
+        }
+
+        Map<Long, DownloadStatus> statuses = queryDownloadManager(managed);
+        for (DownloadTask task : managed) {
+            runningTasks.add(task);
+            task.metrics.onStarted(SystemClock.elapsedRealtime());
+            beginAsyncTrace(task);
+            resetTransferState(task);
+            if (task.pendingDelta == null && task.options.expectedSha256 != null) {
+                // Catches up on what was written before the restart with the first poll
+                task.verifier = new StreamingVerifier(task.options.expectedSha256);
+            }
+            DownloadStatus status = statuses.get(task.downloadManagerId);
+            if (status == null || status.status == DownloadManager.STATUS_SUCCESSFUL || status.status == DownloadManager.STATUS_FAILED) {
+                // Ended while nobody was listening
+                task.completionHandled.set(true);
+                task.metrics.onCompletionDetected(DownloadMetrics.DETECTED_BY_POLL, SystemClock.elapsedRealtime());
+                trace(DownloadTrace.EVENT_COMPLETION, task.id, DownloadTrace.DETECTED_BY_POLL, 0);
+                if (status == null) {
+                    finishDownload(task, false, null, "Download not found");
+                } else if (status.status == DownloadManager.STATUS_SUCCESSFUL) {
+                    finishDownload(task, true, status.filePath, null);
+                } else {
+                    finishDownload(task, false, null, "Download failed");
+                }
+                continue;
+            }
+            task.lastStatus = status;
+            registerDownloadReceiver();
+        }
+        startQueuedDownloads();
+        startProgressMonitoring();
+    }
+
+    // Updater thread only. Only writes when the set of unfinished downloads changed.
+    private void saveActiveDownloads() {
+        JSONArray array = new JSONArray();
+        try {
+            for (DownloadTask task : runningTasks) {
+                putActive(array, task);
+            }
+            for (DownloadTask task : queuedTasks) {
+                putActive(array, task);
+            }
+        } catch (JSONException e) {
+            Logger.error("CapacitorApkUpdater", new Exception("Unable to save downloads: " + e.getMessage()));
+            return;
+        }
+        String active = array.length() > 0 ? array.toString() : null;
+        if (active == null ? savedActive == null : active.equals(savedActive)) {
+            return;
+        }
+        savedActive = active;
+        SharedPreferences.Editor editor = getPrefs().edit();
+        if (active == null) {
+            editor.remove(KEY_ACTIVE);
+        } else {
+            editor.putString(KEY_ACTIVE, active);
+        }
+        editor.apply();
+    }
+
+    private static void putActive(JSONArray array, DownloadTask task) throws JSONException {
+        // A split set or a stream into an install session can't be picked up again
+        if (task.isFinished() || task.options.splits != null || INSTALL_MODE_SESSION.equals(task.options.installMode)) {
+            return;
+        }
+        JSONObject json = new JSONObject();
+        json.put("id", task.id);
+        json.put("managerId", task.downloadManagerId);
+        json.put("patch", task.pendingDelta != null);
+        json.put("options", task.options.toJson());
+        array.put(json);
+    }
+
+    private SharedPreferences getPrefs() {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    @SuppressWarnings("deprecation")
+    private List<String> getDeviceLanguages() {
+        List<String> languages = new ArrayList<>();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            LocaleList locales = context.getResources().getConfiguration().getLocales();
+            for (int i = 0; i < locales.size(); i++) {
+                languages.add(locales.get(i).getLanguage());
+            }
+        } else {
+            languages.add(context.getResources().getConfiguration().locale.getLanguage());
+        }
+        return languages;
+    }
+
+    // Returns the staged APK if a prefetch already got this URL, otherwise stops the prefetch so
+    // the foreground download doesn't compete with it
+    private String takeOverPrefetch(DownloadOptions options) {
+        if (options.splits != null) {
+            return null;
+        }
+        PrefetchWorker.PrefetchStatus prefetch = PrefetchWorker.getStatus(context);
+        if (!options.url.equals(prefetch.url)) {
+            return null;
+        }
+        if (PrefetchWorker.STATE_STAGED.equals(prefetch.state) && !INSTALL_MODE_SESSION.equals(options.installMode)) {
+            if (prefetch.covers(options.expectedSha256, options.expectedCertSha256)) {
+                return prefetch.filePath;
+            }
+            // Staged for other hashes, the same URL may serve a newer APK by now
+            PrefetchWorker.cancel(context);
+            return null;
+        }
+        if (PrefetchWorker.STATE_SCHEDULED.equals(prefetch.state) || PrefetchWorker.STATE_DOWNLOADING.equals(prefetch.state)) {
+            PrefetchWorker.cancel(context);
+        }
+        return null;
+    }
+
+    // Runs on the updater thread. Delivers an APK kept from an earlier download once it hashes to
+    // the expected value again, otherwise drops it through {@code onStale} and downloads after all.
+    private void deliverReused(final DownloadTask task, File file, String source, final Runnable onStale) {
+        task.metrics.onSource(source);
+        verifyAndDeliver(task, file, new StreamingVerifier(task.options.expectedSha256), task.options, new Runnable() {
+            @Override
+            public void run() {
+                onStale.run();
+                if (task.cancelled) {
+                    return;
+                }
+                if (debugLogging) {
+                    Logger.info("CapacitorApkUpdater", "Kept APK for download " + task.id + " failed verification, downloading it again");
+                }
+                task.metrics.onSource(DownloadMetrics.SOURCE_NETWORK);
+                queuedTasks.add(task);
+                startQueuedDownloads();
+            }
+        });
+    }
+
+    // Only a known hash identifies the content, the same URL may serve a newer APK by now
+    private File findCached(DownloadOptions options) {
+        if (!options.useCache || options.expectedSha256 == null || options.splits != null || INSTALL_MODE_SESSION.equals(options.installMode)) {
+            return null;
+        }
+        return apkCache.get(options.expectedSha256);
+    }
+
+    /**
+     * Serves verified APKs from the cache to other devices on {@code port} (0 picks a free one) and
+     * fetches from them before the origin. Peers are found with NSD when {@code discover} is set,
+     * {@code peers} ("host:port" or "http://host:port") are used either way. Returns the port.
+     */
+    public synchronized int enablePeerSharing(int port, boolean discover, List<String> peers) throws IOException {
+        disablePeerSharing();
+        for (String peer : peers) {
+            configuredPeers.add(peer.contains("://") ? peer : "http://" + peer);
+        }
+        peerServer = new PeerServer(new PeerServer.Source() {
+            @Override
+            public File find(String sha256) {
+                return apkCache.get(sha256);
+            }
+        });
+        InetAddress address = localNetworkAddress();
+        if (address == null) {
+            throw new IOException("Peer sharing needs a Wi-Fi or Ethernet connection");
+        }
+        int bound = peerServer.start(address, port);
+        if (discover) {
+            peerDiscovery = new PeerDiscovery(context);
+            peerDiscovery.start(bound);
+        }
+        return bound;
+    }
+
+    public synchronized void disablePeerSharing() {
+        if (peerDiscovery != null) {
+            peerDiscovery.stop();
+            peerDiscovery = null;
+        }
+        if (peerServer != null) {
+            peerServer.stop();
+            peerServer = null;
+        }
+        configuredPeers.clear();
+    }
+
+    // The IPv4 address of the active network if it's Wi-Fi or Ethernet. The peer server binds to
+    // it alone, so it can't be reached over mobile data or a VPN.
+    private InetAddress localNetworkAddress() {
+        ConnectivityManager connectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        Network network = connectivity.getActiveNetwork();
+        if (network == null) {
+            return null;
+        }
+        NetworkCapabilities capabilities = connectivity.getNetworkCapabilities(network);
+        LinkProperties link = connectivity.getLinkProperties(network);
+        if (capabilities == null || link == null || !(capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI) || capabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET))) {
+            return null;
+        }
+        for (LinkAddress linkAddress : link.getLinkAddresses()) {
+            if (linkAddress.getAddress() instanceof Inet4Address) {
+                return linkAddress.getAddress();
+            }
+        }
+        return null;
+    }
+
+    // Only the full APK with a known hash is fetched from peers, the hash is what they serve it by
+    private synchronized List<String> peerUrls(DownloadTask task, String url) {
+        List<String> urls = new ArrayList<>();
+        DownloadOptions options = task.options;
+        if (peerServer == null || task.peersFailed || options.expectedSha256 == null || options.splits != null || !url.equals(options.url)) {
+            return urls;
+        }
+        List<String> bases = new ArrayList<>(configuredPeers);
+        if (peerDiscovery != null) {
+            bases.addAll(peerDiscovery.getPeers());
+        }
+        for (String base : bases) {
+            urls.add(PeerServer.url(base, options.expectedSha256));
+        }
+        return urls;
+    }
+
+    public void setApkCacheSize(long maxBytes) {
+        apkCache.setMaxBytes(maxBytes);
+    }
+
+    public void clearApkCache() {
+        apkCache.clear();
+    }
+
+    /**
+     * Schedules a background download of {@code options.url} that only runs under the given
+     * constraints. Returns false when a foreground download of the same URL is already running.
+     */
+    public boolean prefetch(DownloadOptions options, boolean requireUnmetered, boolean requireCharging) throws Exception {
+        if (options.url == null || options.url.isEmpty()) {
+            throw new Exception("URL is required for prefetch");
+        }
+        synchronized (tasks) {
+            for (DownloadTask task : tasks.values()) {
+                if (!task.isFinished() && task.options.url.equals(options.url)) {
+                    return false;
+                }
+            }
+        }
+        PrefetchWorker.schedule(context, options, requireUnmetered, requireCharging, debugLogging);
+        return true;
+    }
+
+    public PrefetchWorker.PrefetchStatus getPrefetchStatus() {
+        return PrefetchWorker.getStatus(context);
+    }
+
+    public void cancelPrefetch() {
+        PrefetchWorker.cancel(context);
+    }
+
+    private void pruneFinishedTasks() {
+        int finished = 0;
+        for (DownloadTask task : tasks.values()) {
+            if (task.isFinished()) {
+                finished++;
+            }
+        }
+        Iterator<DownloadTask> iterator = tasks.values().iterator();
+        while (finished > MAX_FINISHED_DOWNLOADS && iterator.hasNext()) {
+            if (iterator.next().isFinished()) {
+                iterator.remove();
+                finished--;
+            }
+        }
+    }
+
+    private void startQueuedDownloads() {
+        while (runningTasks.size() < maxConcurrentDownloads && !queuedTasks.isEmpty()) {
+            DownloadTask task = queuedTasks.poll();
+            runningTasks.add(task);
+            task.metrics.onStarted(SystemClock.elapsedRealtime());
+            beginAsyncTrace(task);
+            DownloadOptions options = task.options;
+            if (options.splits != null) {
+                startSplitDownload(task);
+            } else if (options.patchUrl != null && !options.patchUrl.isEmpty()) {
+                // Fetch the patch first, the full APK is only downloaded if rebuilding fails
+                task.pendingDelta = options;
+                task.verifier = null;
+                enqueueDownload(task, options.patchUrl, options.filename + ".patch");
+            } else {
+                startFullDownload(task);
+            }
+        }
+        saveActiveDownloads();
+    }
+
+    private void startFullDownload(DownloadTask task) {
+        DownloadOptions options = task.options;
+        task.pendingDelta = null;
+        if (options.blockIndexUrl != null && !options.blockIndexUrl.isEmpty() && !task.blockSyncTried && !INSTALL_MODE_SESSION.equals(options.installMode)) {
+            task.blockSyncTried = true;
+            startBlockSync(task);
+            return;
+        }
+        // Hash the APK while it is being written so completion only has the tail left to check
+        task.verifier = options.expectedSha256 != null && !hasChunkManifest(options) ? new StreamingVerifier(options.expectedSha256) : null;
+        enqueueDownload(task, options.url, options.filename);
+    }
+
+    // Fetches the block index and scans the installed APK for its blocks, the full APK is
+    // downloaded instead if either fails or nothing matches
+    private void startBlockSync(final DownloadTask task) {
+        final DownloadOptions options = task.options;
+        final File installed = new File(context.getApplicationInfo().sourceDir);
+        task.downloadManagerId = 0;
+        task.transfer = null;
+
+        transferExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                BlockIndex index = null;
+                List<long[]> copies = null;
+                try {
+                    index = BlockIndex.fetch(options.blockIndexUrl);
+                    if (options.expectedSha256 != null && !StreamingVerifier.normalizeHex(options.expectedSha256).equals(index.sha256)) {
+                        throw new Exception("Block index is for a different APK");
+                    }
+                    copies = index.match(installed);
+                } catch (Exception e) {
+                    if (debugLogging) {
+                        Logger.info("CapacitorApkUpdater", "Block sync unavailable, falling back to full download: " + e.getMessage());
+                    }
+                }
+
+                final BlockIndex found = index;
+                final List<long[]> matched = copies != null && !copies.isEmpty() ? copies : null;
+                updaterHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (task.cancelled) {
+                            return;
+                        }
+                        if (matched != null) {
+                            task.blockIndex = found;
+                            task.blockCopies = matched;
+                            task.verifier = hasChunkManifest(options) ? null : new StreamingVerifier(found.sha256);
+                            enqueueDownload(task, options.url, options.filename);
+                        } else {
+                            startFullDownload(task);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void resetTransferState(DownloadTask task) {
+        DownloadOptions options = task.options;
+        task.completionHandled.set(false);
+        task.lastReportedBytes = -1;
+        task.lastReportedStatus = -1;
+        task.throttle = new ProgressThrottle(options.progressInterval, options.progressMinPercent, options.progressMinBytes);
+    }
+
+    private void enqueueDownload(DownloadTask task, String url, String downloadFilename) {
+        DownloadOptions options = task.options;
+        resetTransferState(task);
+
+        try {
+            if (INSTALL_MODE_SESSION.equals(options.installMode) && task.pendingDelta == null) {
+                startStreamingInstall(task, url);
+            } else if (task.blockCopies != null || !peerUrls(task, url).isEmpty() || (hasChunkManifest(options) && url.equals(options.url)) || ENGINE_SEGMENTED.equals(options.engine) || options.acceptCompressed || PayloadCodec.fromUrl(url) != null || hasMirrors(options, url)) {
+                // DownloadManager would store a compressed payload as is and only knows one URL
+                File target = new File(context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS), downloadFilename);
+                startInProcessDownload(task, url, target, options.connections);
+            } else {
+                DownloadManager.Request request = new DownloadManager.Request(Uri.parse(url));
+                request.setTitle(options.notificationTitle != null ? options.notificationTitle : "Downloading Update...");
+                request.setDescription("Downloading app update");
+                request.setNotificationVisibility(options.showNotification ? DownloadManager.Request.VISIBILITY_VISIBLE_NOTIFY_COMPLETED : DownloadManager.Request.VISIBILITY_HIDDEN);
+
+                File downloadDir = new File(context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS), downloadFilename);
+                request.setDestinationUri(Uri.fromFile(downloadDir));
+                request.setAllowedNetworkTypes(DownloadManager.Request.NETWORK_WIFI | DownloadManager.Request.NETWORK_MOBILE);
+
+                // Start download
+                task.transfer = null;
+                task.downloadManagerId = downloadManager.enqueue(request);
+                registerDownloadReceiver();
+            }
+        } catch (Exception e) {
+            task.completionHandled.set(true);
+            deliverResult(task, new DownloadResult(false, null, "Download failed: " + e.getMessage(), ERROR_DOWNLOAD_FAILED));
+            return;
+        }
+
+        saveActiveDownloads();
+        startProgressMonitoring();
+    }
+
+    // Chunks that fail are fetched again, which needs the in-process engine
+    private static boolean hasChunkManifest(DownloadOptions options) {
+        return options.chunkManifestUrl != null && !options.chunkManifestUrl.isEmpty() && options.splits == null && !INSTALL_MODE_SESSION.equals(options.installMode);
+    }
+
+    // Mirrors serve the full APK, not the patch of a delta update
+    private static boolean hasMirrors(DownloadOptions options, String url) {
+        return options.mirrors != null && !options.mirrors.isEmpty() && url.equals(options.url);
+    }
+
+    // Failures reach here as messages from the transfer threads
+    static String failureCode(String error) {
+        if (error == null) {
+            return ERROR_DOWNLOAD_FAILED;
+        }
+        if (error.startsWith("Checksum mismatch")) {
+            return ERROR_CHECKSUM_MISMATCH;
+        }
+        return error.contains(ApkFileWriter.NO_SPACE_MESSAGE) ? ERROR_INSUFFICIENT_STORAGE : ERROR_DOWNLOAD_FAILED;
+    }
+
+    private void startInProcessDownload(final DownloadTask task, String url, File target, int connections) {
+        final SegmentedDownloader downloader = new SegmentedDownloader(url, target, connections);
+        downloader.setAcceptCompressed(task.options.acceptCompressed);
+        if (hasMirrors(task.options, url)) {
+            downloader.setMirrors(task.options.mirrors, task.options.hedgeDelay);
+        }
+        List<String> peers = peerUrls(task, url);
+        if (!peers.isEmpty()) {
+            downloader.setPeers(peers);
+            task.usedPeers = true;
+        }
+        if (task.blockCopies != null) {
+            downloader.setLocalSource(new File(context.getApplicationInfo().sourceDir), task.blockCopies, task.blockIndex.length);
+        }
+        task.downloadManagerId = 0;
+        task.transfer = downloader;
+        task.transferStatus = DownloadManager.STATUS_RUNNING;
+
+        transferExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String error = null;
+                try {
+                    downloader.downloadOrDiscard();
+                } catch (Exception e) {
+                    error = "Download failed: " + e.getMessage();
+                }
+                task.metrics.onTransferFinished(SystemClock.elapsedRealtime());
+
+                final String transferError = error;
+                updaterHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleInProcessComplete(task, downloader, transferError);
+                    }
+                });
+            }
+        });
+    }
+
+    // Streams the APK straight into an install session, nothing is written to our own storage
+    private void startStreamingInstall(final DownloadTask task, String url) {
+        final SegmentedDownloader downloader = new SegmentedDownloader(url, null, 1);
+        final StreamingVerifier verifier = task.verifier;
+        // Bytes are hashed as they stream through, there is no file for the poller to catch up on
+        task.verifier = null;
+        task.downloadManagerId = 0;
+        task.transfer = downloader;
+        task.transferStatus = DownloadManager.STATUS_RUNNING;
+
+        transferExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final int[] sessionId = { -1 };
+                DownloadResult result;
+                try {
+                    downloader.streamTo(new SegmentedDownloader.StreamTarget() {
+                        @Override
+                        public OutputStream open(long totalSize) throws IOException {
+                            sessionId[0] = sessionInstaller.createSession(totalSize);
+                            return sessionInstaller.openWrite(sessionId[0], "base.apk", totalSize);
+                        }
+                    }, verifier);
+
+                    String actual = verifier != null ? verifier.finish() : null;
+                    if (verifier != null && !verifier.matches(actual)) {
+                        result = new DownloadResult(false, null, "Checksum mismatch: expected " + verifier.getExpectedSha256() + " but got " + actual, ERROR_CHECKSUM_MISMATCH);
+                    } else {
+                        result = new DownloadResult(true, null, null, null, true);
+                    }
+                } catch (Exception e) {
+                    result = new DownloadResult(false, null, "Download failed: " + e.getMessage(), failureCode(e.getMessage()));
+                }
+
+                if (!result.success && sessionId[0] != -1) {
+                    // Abandoning the session guarantees nothing from this download gets installed
+                    sessionInstaller.abandon(sessionId[0]);
+                }
+
+                task.metrics.onTransferFinished(SystemClock.elapsedRealtime());
+                final DownloadResult streamResult = result;
+                updaterHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleStreamingInstallComplete(task, downloader, sessionId[0], streamResult);
+                    }
+                });
+            }
+        });
+    }
+
+    // Fetches all selected splits in parallel, then writes them into one session once the last one lands
+    private void startSplitDownload(final DownloadTask task) {
+        final List<SplitSelector.Split> splits = task.options.splits;
+        final File splitDir = new File(context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS), task.options.filename);
+        splitDir.mkdirs();
+
+        final List<SegmentedDownloader> transfers = new ArrayList<>();
+        for (SplitSelector.Split split : splits) {
+            SegmentedDownloader transfer = new SegmentedDownloader(split.url, new File(splitDir, split.name + ".apk"), task.options.connections);
+            transfer.setAcceptCompressed(task.options.acceptCompressed);
+            transfers.add(transfer);
+        }
+        task.completionHandled.set(false);
+        task.throttle = new ProgressThrottle(task.options.progressInterval, task.options.progressMinPercent, task.options.progressMinBytes);
+        task.downloadManagerId = 0;
+        task.transfer = null;
+        task.splitTransfers = transfers;
+        task.transferStatus = DownloadManager.STATUS_RUNNING;
+
+        final AtomicInteger remaining = new AtomicInteger(splits.size());
+        final String[] firstError = { null };
+        for (int i = 0; i < splits.size(); i++) {
+            final SplitSelector.Split split = splits.get(i);
+            final SegmentedDownloader downloader = transfers.get(i);
+            transferExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        downloader.downloadOrDiscard();
+                        if (split.sha256 != null) {
+                            StreamingVerifier verifier = new StreamingVerifier(split.sha256);
+                            if (!verifier.matches(verifier.finish(downloader.getTarget()))) {
+                                downloader.getTarget().delete();
+                                throw new Exception("Checksum mismatch for split " + split.name);
+                            }
+                        }
+                    } catch (Exception e) {
+                        synchronized (firstError) {
+                            if (firstError[0] == null) {
+                                firstError[0] = e.getMessage();
+                                // One missing split makes the whole set useless
+                                for (SegmentedDownloader other : transfers) {
+                                    other.cancel();
+                                }
+                            }
+                        }
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        task.metrics.onTransferFinished(SystemClock.elapsedRealtime());
+                        installSplits(task, transfers, splits, firstError[0]);
+                    }
+                }
+            });
+        }
+
+        startProgressMonitoring();
+    }
+
+    // Runs on the thread of the last split to finish
+    private void installSplits(final DownloadTask task, final List<SegmentedDownloader> transfers, List<SplitSelector.Split> splits, String error) {
+        int sessionId = -1;
+        DownloadResult result;
+        if (error != null) {
+            result = new DownloadResult(false, null, "Download failed: " + error, failureCode(error));
+        } else {
+            try {
+                long totalSize = 0;
+                for (SegmentedDownloader transfer : transfers) {
+                    totalSize += transfer.getTarget().length();
+                }
+                sessionId = sessionInstaller.createSession(totalSize);
+                for (int i = 0; i < splits.size(); i++) {
+                    sessionInstaller.writeFile(sessionId, splits.get(i).name + ".apk", transfers.get(i).getTarget());
+                }
+                result = new DownloadResult(true, null, null, null, true);
+            } catch (Exception e) {
+                if (sessionId != -1) {
+                    sessionInstaller.abandon(sessionId);
+                }
+                result = new DownloadResult(false, null, "Failed to stage splits: " + e.getMessage(), ERROR_DOWNLOAD_FAILED);
+            }
+        }
+        if (result.success) {
+            // The session holds its own copy now
+            for (SegmentedDownloader transfer : transfers) {
+                transfer.discard();
+            }
+        }
+
+        final int splitSessionId = sessionId;
+        final DownloadResult splitResult = result;
+        updaterHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                boolean current = task.splitTransfers == transfers && !task.cancelled;
+                completeInstallSession(task, current, splitSessionId, splitResult);
+            }
+        });
+    }
+
+    private void handleStreamingInstallComplete(DownloadTask task, SegmentedDownloader downloader, int sessionId, DownloadResult result) {
+        completeInstallSession(task, task.transfer == downloader && !downloader.isCancelled(), sessionId, result);
+    }
+
+    private void completeInstallSession(DownloadTask task, boolean current, int sessionId, DownloadResult result) {
+        if (!current || !task.completionHandled.compareAndSet(false, true)) {
+            if (result.success) {
+                sessionInstaller.abandon(sessionId);
+            }
+            return;
+        }
+        task.transferStatus = result.success ? DownloadManager.STATUS_SUCCESSFUL : DownloadManager.STATUS_FAILED;
+        task.metrics.onCompletionDetected(DownloadMetrics.DETECTED_BY_TRANSFER, SystemClock.elapsedRealtime());
+        trace(DownloadTrace.EVENT_COMPLETION, task.id, DownloadTrace.DETECTED_BY_TRANSFER, 0);
+
+        if (result.success) {
+            try {
+                sessionInstaller.commit(sessionId, installStatusListener);
+            } catch (IOException e) {
+                sessionInstaller.abandon(sessionId);
+                result = new DownloadResult(false, null, "Failed to commit install session: " + e.getMessage(), ERROR_DOWNLOAD_FAILED);
+            }
+        }
+        deliverResult(task, result);
+    }
+
+    private final SessionInstaller.StatusListener installStatusListener = new SessionInstaller.StatusListener() {
+        @Override
+        public void onInstallStatus(boolean success, String message) {
+            if (debugLogging) {
+                Logger.info("CapacitorApkUpdater", "Install session finished, success: " + success + (message != null ? ", " + message : ""));
+            }
+            if (downloadListener != null) {
+                downloadListener.onInstallStatus(success, message);
+            }
+        }
+    };
+
+    private void handleInProcessComplete(DownloadTask task, SegmentedDownloader downloader, String error) {
+        if (task.transfer != downloader || downloader.isCancelled()) {
+            return;
+        }
+        task.transferStatus = error == null ? DownloadManager.STATUS_SUCCESSFUL : DownloadManager.STATUS_FAILED;
+        if (!task.completionHandled.compareAndSet(false, true)) {
+            task.metrics.onDuplicateCompletion();
+            return;
+        }
+        // A transfer that finished between two polls was never sampled
+        task.metrics.onBytes(downloader.getBytesDownloaded(), SystemClock.elapsedRealtime());
+        task.metrics.onCompletionDetected(DownloadMetrics.DETECTED_BY_TRANSFER, SystemClock.elapsedRealtime());
+        trace(DownloadTrace.EVENT_COMPLETION, task.id, DownloadTrace.DETECTED_BY_TRANSFER, 0);
+
+        // On failure the partial file and its journal stay behind so the next attempt resumes
+        if (error == null) {
+            finishDownload(task, true, Uri.fromFile(downloader.getTarget()).toString(), null);
+        } else {
+            finishDownload(task, false, null, error);
+        }
+    }
+
+    private void registerDownloadReceiver() {
+        if (downloadReceiver != null) {
+            return; // Already registered
+        }
+
+        downloadReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                long id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
+                DownloadTask matched = null;
+                for (DownloadTask task : runningTasks) {
+                    if (task.downloadManagerId == id) {
+                        matched = task;
+                        break;
+                    }
+                }
+                trace(DownloadTrace.EVENT_BROADCAST, matched != null ? matched.id : 0, id, 0);
+                if (matched != null) {
+                    handleDownloadComplete(matched);
+                }
+            }
+        };
+
+        IntentFilter filter = new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE);
+
+        // Delivered on the updater thread, where the cursor is read and the poller runs.
+        // For Android 13+ (API 33+), specify the receiver export flag
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            context.registerReceiver(downloadReceiver, filter, null, updaterHandler, Context.RECEIVER_NOT_EXPORTED);
+        } else {
+            context.registerReceiver(downloadReceiver, filter, null, updaterHandler);
+        }
+    }
+
+    private void handleDownloadComplete(DownloadTask task) {
+        // The poller may have claimed this completion already
+        if (!task.completionHandled.compareAndSet(false, true)) {
+            task.metrics.onDuplicateCompletion();
+            return;
+        }
+        task.metrics.onCompletionDetected(DownloadMetrics.DETECTED_BY_RECEIVER, SystemClock.elapsedRealtime());
+        trace(DownloadTrace.EVENT_COMPLETION, task.id, DownloadTrace.DETECTED_BY_RECEIVER, 0);
+        Trace.beginSection(TRACE_COMPLETE);
+        try {
+            queryCompletion(task);
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    private void queryCompletion(DownloadTask task) {
+        DownloadManager.Query query = new DownloadManager.Query();
+        query.setFilterById(task.downloadManagerId);
+        Cursor cursor = downloadManager.query(query);
+
+        boolean success = false;
+        String localUri = null;
+        String error = "Download not found";
+        if (cursor.moveToFirst()) {
+            int statusIndex = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
+            int reasonIndex = cursor.getColumnIndex(DownloadManager.COLUMN_REASON);
+            int localUriIndex = cursor.getColumnIndex(DownloadManager.COLUMN_LOCAL_URI);
+
+            int status = cursor.getInt(statusIndex);
+            if (status == DownloadManager.STATUS_SUCCESSFUL) {
+                success = true;
+                localUri = cursor.getString(localUriIndex);
+                error = null;
+            } else {
+                int reason = cursor.getInt(reasonIndex);
+                error = "Download failed with reason: " + reason;
+            }
+        }
+
+        cursor.close();
+        finishDownload(task, success, localUri, error);
+    }
+
+    private void finishDownload(DownloadTask task, boolean success, String filePath, String error) {
+        updaterHandler.removeCallbacks(task.progressFlush);
+        DownloadOptions delta = task.pendingDelta;
+        if (delta != null) {
+            task.pendingDelta = null;
+            // The patch transfer is done, nothing is left for the poller until the full APK starts
+            task.downloadManagerId = 0;
+            task.transfer = null;
+            if (success) {
+                applyDeltaPatch(task, delta, filePath);
+            } else {
+                if (debugLogging) {
+                    Logger.info("CapacitorApkUpdater", "Patch download failed, falling back to full download");
+                }
+                startFullDownload(task);
+            }
+            return;
+        }
+
+        if (!success && task.blockCopies != null && !failureCode(error).equals(ERROR_INSUFFICIENT_STORAGE)) {
+            // A server without range requests or a stale index, fetch the whole APK like any other
+            if (debugLogging) {
+                Logger.info("CapacitorApkUpdater", "Block sync failed, falling back to full download: " + error);
+            }
+            SegmentedDownloader transfer = task.transfer;
+            if (transfer != null) {
+                transfer.discard();
+            }
+            task.blockIndex = null;
+            task.blockCopies = null;
+            task.transfer = null;
+            startFullDownload(task);
+            return;
+        }
+
+        if (!success) {
+            deliverResult(task, new DownloadResult(false, null, error, failureCode(error)));
+            return;
+        }
+
+        DownloadOptions options = task.options;
+        if (hasChunkManifest(options)) {
+            verifyChunks(task, new File(Uri.parse(filePath).getPath()), 0);
+            return;
+        }
+        StreamingVerifier verifier = task.verifier;
+        task.verifier = null;
+        if (verifier == null && options.expectedCertSha256 == null) {
+            deliverResult(task, new DownloadResult(true, filePath, null, null));
+            return;
+        }
+        verifyAndDeliver(task, new File(Uri.parse(filePath).getPath()), verifier, options);
+    }
+
+    // Updater thread only. Hands the result to everyone waiting on this download and lets the next queued one start
+    private void deliverResult(final DownloadTask task, DownloadResult result) {
+        if (task.cancelled) {
+            return;
+        }
+        SegmentedDownloader transfer = task.transfer;
+        if (!result.success && task.usedPeers && !ERROR_INSUFFICIENT_STORAGE.equals(result.errorCode)) {
+            // A peer may have served something else, the origin alone gets the last word
+            if (debugLogging) {
+                Logger.info("CapacitorApkUpdater", "Download from peers failed, retrying without them: " + result.error);
+            }
+            if (transfer != null) {
+                transfer.discard();
+            }
+            task.usedPeers = false;
+            task.peersFailed = true;
+            task.transfer = null;
+            startFullDownload(task);
+            return;
+        }
+        if (transfer != null && transfer.getMirrors() != null) {
+            result = result.withMirrors(transfer.getMirrors());
+        }
+        if (task.blockIndex != null && result.success) {
+            long reused = transfer != null ? transfer.getBytesCopied() : BlockIndex.reusedBytes(task.blockCopies);
+            result = result.withBlockSync(reused, task.blockIndex.length - reused);
+        }
+        task.result = result;
+        task.metrics.onDelivered(result.success, result.errorCode, SystemClock.elapsedRealtime());
+        trace(DownloadTrace.EVENT_DELIVERED, task.id, result.success ? 1 : 0, 0);
+        if (debugLogging) {
+            Logger.info("CapacitorApkUpdater", "Download " + task.id + " finished: " + describe(task.metrics));
+        }
+        stopTask(task);
+        final List<DownloadListener> listeners = listenersFor(task);
+        final DownloadResult delivered = result;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (DownloadListener listener : listeners) {
+                    listener.onDownloadComplete(task.id, delivered);
+                }
+            }
+        });
+    }
+
+    private static String describe(DownloadMetrics metrics) {
+        try {
+            return metrics.toJson().toString();
+        } catch (JSONException e) {
+            return "{}";
+        }
+    }
+
+    private void stopTask(DownloadTask task) {
+        updaterHandler.removeCallbacks(task.progressFlush);
+        endAsyncTrace(task);
+        runningTasks.remove(task);
+        if (!hasManagerDownloads()) {
+            unregisterDownloadReceiver();
+            unregisterDownloadObserver();
+        }
+        startQueuedDownloads();
+    }
+
+    // The default listener hears every download, whoever else is waiting on it
+    private List<DownloadListener> listenersFor(DownloadTask task) {
+        DownloadListener fallback = downloadListener;
+        if (fallback == null || task.listeners.contains(fallback)) {
+            return task.listeners;
+        }
+        List<DownloadListener> listeners = new ArrayList<>(task.listeners.size() + 1);
+        listeners.add(fallback);
+        listeners.addAll(task.listeners);
+        return listeners;
+    }
+
+    private void trace(int event, long downloadId, long first, long second) {
+        trace.record(event, downloadId, SystemClock.elapsedRealtimeNanos(), first, second);
+    }
+
+    // One slice per download from start to delivery in a system trace, named sections can't span threads
+    private static void beginAsyncTrace(DownloadTask task) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            task.traceCookie = traceCookies.incrementAndGet();
+            Trace.beginAsyncSection(TRACE_DOWNLOAD, task.traceCookie);
+        }
+    }
+
+    private static void endAsyncTrace(DownloadTask task) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && task.traceCookie != 0) {
+            Trace.endAsyncSection(TRACE_DOWNLOAD, task.traceCookie);
+            task.traceCookie = 0;
+        }
+    }
+
+    private void verifyAndDeliver(DownloadTask task, File file, StreamingVerifier verifier, DownloadOptions options) {
+        verifyAndDeliver(task, file, verifier, options, null);
+    }
+
+    // A failed check runs {@code onFailure} on the updater thread instead of being delivered, when given
+    private void verifyAndDeliver(final DownloadTask task, final File file, final StreamingVerifier verifier, final DownloadOptions options, final Runnable onFailure) {
+        workExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                task.metrics.onVerifyStarted(SystemClock.elapsedRealtime());
+                trace(DownloadTrace.EVENT_VERIFY_STARTED, task.id, 0, 0);
+                notifyVerifying(task);
+                DownloadResult verified;
+                Trace.beginSection(TRACE_VERIFY);
+                try {
+                    verified = verifyApk(file, verifier, options);
+                } finally {
+                    Trace.endSection();
+                }
+                task.metrics.onVerifyFinished(SystemClock.elapsedRealtime());
+                trace(DownloadTrace.EVENT_VERIFY_FINISHED, task.id, verified.success ? 1 : 0, 0);
+                final DownloadResult result = verified;
+                updaterHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!result.success && onFailure != null) {
+                            onFailure.run();
+                        } else {
+                            deliverResult(task, result);
+                        }
+                    }
+                });
+                if (result.success && verifier != null) {
+                    storeInCache(file, verifier.getExpectedSha256(), options);
+                }
+            }
+        });
+    }
+
+    // Checks the chunks on all cores and fetches the ones that fail again, a few times at most.
+    // Success needs every chunk, and so the root, to match.
+    private void verifyChunks(final DownloadTask task, final File file, final int repairs) {
+        final DownloadOptions options = task.options;
+        workExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                task.metrics.onVerifyStarted(SystemClock.elapsedRealtime());
+                trace(DownloadTrace.EVENT_VERIFY_STARTED, task.id, 0, 0);
+                notifyVerifying(task);
+                List<long[]> mismatches = null;
+                DownloadResult failure = null;
+                Trace.beginSection(TRACE_VERIFY);
+                try {
+                    if (task.chunkManifest == null) {
+                        ChunkManifest manifest = ChunkManifest.fetch(options.chunkManifestUrl);
+                        if (options.expectedRootHash != null && !manifest.root.equals(StreamingVerifier.normalizeHex(options.expectedRootHash))) {
+                            throw new Exception("Chunk manifest root " + manifest.root + " is not the expected " + options.expectedRootHash);
+                        }
+                        task.chunkManifest = manifest;
+                    }
+                    mismatches = new ChunkVerifier(task.chunkManifest).verify(file);
+                } catch (Exception e) {
+                    failure = new DownloadResult(false, null, "Unable to verify download: " + e.getMessage(), ERROR_DOWNLOAD_FAILED);
+                } finally {
+                    Trace.endSection();
+                }
+                task.metrics.onVerifyFinished(SystemClock.elapsedRealtime());
+                trace(DownloadTrace.EVENT_VERIFY_FINISHED, task.id, failure == null && mismatches.isEmpty() ? 1 : 0, 0);
+
+                final List<long[]> refetch = mismatches != null && !mismatches.isEmpty() && repairs < MAX_CHUNK_REPAIRS && task.transfer != null ? mismatches : null;
+                if (refetch != null) {
+                    updaterHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            refetchChunks(task, file, refetch, repairs + 1);
+                        }
+                    });
+                    return;
+                }
+                if (failure == null && !mismatches.isEmpty()) {
+                    failure = new DownloadResult(false, null, "Checksum mismatch: " + mismatches.size() + " chunks don't match root " + task.chunkManifest.root, ERROR_CHECKSUM_MISMATCH);
+                }
+                DownloadResult result;
+                String verifiedSha256 = null;
+                if (failure != null) {
+                    Logger.error("CapacitorApkUpdater", new Exception(failure.error));
+                    file.delete();
+                    result = failure;
+                } else {
+                    // The root already vouches for every byte, a full hash only if one was asked for too
+                    StreamingVerifier whole = options.expectedSha256 != null ? new StreamingVerifier(options.expectedSha256) : null;
+                    DownloadResult verified = verifyApk(file, whole, options);
+                    result = verified;
+                    verifiedSha256 = verified.success && whole != null ? whole.getExpectedSha256() : null;
+                }
+                ChunkVerifier.stateFor(file).delete();
+                final DownloadResult delivered = result;
+                updaterHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliverResult(task, delivered);
+                    }
+                });
+                if (verifiedSha256 != null) {
+                    storeInCache(file, verifiedSha256, options);
+                }
+            }
+        });
+    }
+
+    private void refetchChunks(final DownloadTask task, final File file, final List<long[]> ranges, final int repairs) {
+        if (task.cancelled) {
+            return;
+        }
+        if (debugLogging) {
+            Logger.info("CapacitorApkUpdater", "Fetching " + ranges.size() + " chunks of download " + task.id + " again");
+        }
+        final SegmentedDownloader transfer = task.transfer;
+        transferExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String error = null;
+                try {
+                    transfer.refetch(ranges);
+                } catch (Exception e) {
+                    error = "Download failed: " + e.getMessage();
+                }
+
+                final String transferError = error;
+                updaterHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (task.cancelled) {
+                            return;
+                        }
+                        if (transferError != null) {
+                            deliverResult(task, new DownloadResult(false, null, transferError, failureCode(transferError)));
+                        } else {
+                            verifyChunks(task, file, repairs);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // Runs on the work executor, a failed check deletes the file so it can never be installed
+    private DownloadResult verifyApk(File file, StreamingVerifier verifier, DownloadOptions options) {
+        DownloadResult failure = null;
+        try {
+            if (verifier != null) {
+                String actual = verifier.finish(file);
+                if (!verifier.matches(actual)) {
+                    failure = new DownloadResult(false, null, "Checksum mismatch: expected " + verifier.getExpectedSha256() + " but got " + actual, ERROR_CHECKSUM_MISMATCH);
+                }
+            }
+            if (failure == null && options != null && options.expectedCertSha256 != null && !hasSigningCertificate(context, file, options.expectedCertSha256)) {
+                failure = new DownloadResult(false, null, "Signing certificate does not match", ERROR_SIGNATURE_MISMATCH);
+            }
+        } catch (IOException e) {
+            failure = new DownloadResult(false, null, "Unable to verify download: " + e.getMessage(), ERROR_DOWNLOAD_FAILED);
+        }
+
+        if (failure != null) {
+            Logger.error("CapacitorApkUpdater", new Exception(failure.error));
+            file.delete();
+            return failure;
+        }
+        return new DownloadResult(true, Uri.fromFile(file).toString(), null, null);
+    }
+
+    // Runs on the work executor once the result is out. Copies an APK whose hash was already checked
+    // into the cache, the delivered file stays where the caller asked for it. Without a checked hash
+    // nothing is cached, the cache would have to read the whole file again to name it.
+    private void storeInCache(File file, String sha256, DownloadOptions options) {
+        if (!options.useCache || sha256 == null || file.getParentFile().equals(apkCache.getDirectory())) {
+            return;
+        }
+        try {
+            apkCache.add(file, sha256);
+        } catch (IOException e) {
+            Logger.error("CapacitorApkUpdater", new Exception("Unable to cache " + file.getName() + ": " + e.getMessage()));
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    static boolean hasSigningCertificate(Context context, File apk, String expectedCertSha256) {
+        PackageManager pm = context.getPackageManager();
+        Signature[] signatures;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            PackageInfo info = pm.getPackageArchiveInfo(apk.getPath(), PackageManager.GET_SIGNING_CERTIFICATES);
+            if (info == null || info.signingInfo == null) {
+                return false;
+            }
+            signatures = info.signingInfo.hasMultipleSigners() ? info.signingInfo.getApkContentsSigners() : info.signingInfo.getSigningCertificateHistory();
+        } else {
+            PackageInfo info = pm.getPackageArchiveInfo(apk.getPath(), PackageManager.GET_SIGNATURES);
+            if (info == null) {
+                return false;
+            }
+            signatures = info.signatures;
+        }
+        if (signatures == null) {
+            return false;
+        }
+
+        String expected = StreamingVerifier.normalizeHex(expectedCertSha256);
+        for (Signature signature : signatures) {
+            MessageDigest digest = StreamingVerifier.newDigest();
+            if (expected.equals(StreamingVerifier.toHex(digest.digest(signature.toByteArray())))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Feeds the newly final part of the file to the verifier off the updater thread
+    private void scheduleVerificationCatchUp(final DownloadTask task, final File file, final long availableBytes) {
+        final StreamingVerifier verifier = task.verifier;
+        if (verifier == null || file == null || !task.verificationQueued.compareAndSet(false, true)) {
+            return;
+        }
+        workExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    verifier.catchUp(file, availableBytes);
+                } catch (IOException e) {
+                    // The final check reads whatever is still missing
+                } finally {
+                    task.verificationQueued.set(false);
+                }
+            }
+        });
+    }
+
+    private void applyDeltaPatch(final DownloadTask task, final DownloadOptions delta, final String patchPath) {
+        workExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File patchFile = new File(Uri.parse(patchPath).getPath());
+                File baseApk = new File(context.getApplicationInfo().sourceDir);
+                final File target = new File(context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS), delta.filename);
+
+                boolean rebuilt = false;
+                MessageDigest digest = delta.expectedSha256 != null ? StreamingVerifier.newDigest() : null;
+                try {
+                    ApkPatcher.applyPatch(baseApk, patchFile, target, digest);
+                    rebuilt = true;
+                    if (digest != null) {
+                        String actual = StreamingVerifier.toHex(digest.digest());
+                        if (!StreamingVerifier.normalizeHex(delta.expectedSha256).equals(actual)) {
+                            throw new Exception("Checksum mismatch on rebuilt APK");
+                        }
+                    }
+                } catch (Exception e) {
+                    Logger.error("CapacitorApkUpdater", new Exception("Failed to apply patch: " + e.getMessage()));
+                    if (rebuilt) {
+                        target.delete();
+                        rebuilt = false;
+                    }
+                }
+                patchFile.delete();
+
+                if (rebuilt && delta.expectedCertSha256 != null) {
+                    final DownloadResult result = verifyApk(target, null, delta);
+                    updaterHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            deliverResult(task, result);
+                        }
+                    });
+                    if (result.success) {
+                        storeInCache(target, delta.expectedSha256, delta);
+                    }
+                    return;
+                }
+
+                final boolean patched = rebuilt;
+                updaterHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (task.cancelled) {
+                            return;
+                        }
+                        if (patched) {
+                            deliverResult(task, new DownloadResult(true, Uri.fromFile(target).toString(), null, null));
+                        } else {
+                            startFullDownload(task);
+                        }
+                    }
+                });
+                if (patched) {
+                    // The digest was taken while the patch was applied
+                    storeInCache(target, delta.expectedSha256, delta);
+                }
+            }
+        });
+    }
+
+    private void startProgressMonitoring() {
+        registerDownloadObserver();
+        pollInterval = basePollInterval();
+        if (!isMonitoringProgress.compareAndSet(false, true)) {
+            // The running poll picks up the new download on its next tick
+            return;
+        }
+        // Start monitoring after a short delay
+        updaterHandler.postDelayed(progressRunnable, 100);
+    }
+
+    private void pollDownloads() {
+        if (!isMonitoringProgress.get()) {
+            return;
+        }
+        lastPollTime = SystemClock.uptimeMillis();
+
+        List<DownloadTask> active = new ArrayList<>();
+        for (DownloadTask task : runningTasks) {
+            // Tasks between transfers, e.g. applying a patch, have nothing to poll
+            if (!task.completionHandled.get() && (task.downloadManagerId != 0 || task.transfer != null || task.splitTransfers != null)) {
+                active.add(task);
+            }
+        }
+        if (active.isEmpty()) {
+            stopProgressMonitoring();
+            return;
+        }
+
+        Trace.beginSection(TRACE_POLL);
+        boolean moved;
+        try {
+            moved = pollActive(active);
+        } finally {
+            Trace.endSection();
+        }
+        trace(DownloadTrace.EVENT_POLL, 0, active.size(), moved ? 1 : 0);
+
+        if (!isMonitoringProgress.get()) {
+            return;
+        }
+        // Nothing moved, back off so stalled downloads cost next to nothing
+        pollInterval = moved ? basePollInterval() : Math.min(pollInterval * 2, maxPollInterval());
+        updaterHandler.removeCallbacks(progressRunnable);
+        updaterHandler.postDelayed(progressRunnable, pollInterval);
+    }
+
+    // Returns whether any download made progress
+    private boolean pollActive(List<DownloadTask> active) {
+        Map<Long, DownloadStatus> managerStatuses = queryDownloadManager(active);
+        boolean moved = false;
+        for (DownloadTask task : active) {
+            if (task.completionHandled.get()) {
+                continue;
+            }
+            DownloadStatus status = task.downloadManagerId != 0 ? managerStatuses.get(task.downloadManagerId) : getTransferStatus(task);
+            if (status == null) {
+                // The row is gone, e.g. the download was removed from the system UI
+                task.completionHandled.set(true);
+                task.metrics.onCompletionDetected(DownloadMetrics.DETECTED_BY_POLL, SystemClock.elapsedRealtime());
+                trace(DownloadTrace.EVENT_COMPLETION, task.id, DownloadTrace.DETECTED_BY_POLL, 0);
+                finishDownload(task, false, null, "Download not found");
+                continue;
+            }
+            task.lastStatus = status;
+
+            if (status.status == DownloadManager.STATUS_RUNNING || status.status == DownloadManager.STATUS_PENDING) {
+                reportProgress(task, status.bytesDownloaded, status.totalSize);
+                if (status.bytesDownloaded != task.lastReportedBytes || status.status != task.lastReportedStatus) {
+                    task.lastReportedBytes = status.bytesDownloaded;
+                    task.lastReportedStatus = status.status;
+                    if (task.transfer != null) {
+                        scheduleVerificationCatchUp(task, task.transfer.getTarget(), task.transfer.getContiguousBytes());
+                    } else if (status.filePath != null) {
+                        // DownloadManager writes sequentially, so everything downloaded so far is final
+                        scheduleVerificationCatchUp(task, new File(Uri.parse(status.filePath).getPath()), status.bytesDownloaded);
+                    }
+                    moved = true;
+                }
+            } else if (status.status == DownloadManager.STATUS_SUCCESSFUL || status.status == DownloadManager.STATUS_FAILED) {
+                // Finished before the completion broadcast arrived
+                if (!task.completionHandled.compareAndSet(false, true)) {
+                    continue;
+                }
+                task.metrics.onCompletionDetected(DownloadMetrics.DETECTED_BY_POLL, SystemClock.elapsedRealtime());
+                trace(DownloadTrace.EVENT_COMPLETION, task.id, DownloadTrace.DETECTED_BY_POLL, 0);
+                if (status.status == DownloadManager.STATUS_SUCCESSFUL) {
+                    finishDownload(task, true, status.filePath, null);
+                } else {
+                    finishDownload(task, false, null, "Download failed");
+                }
+            }
+            // Paused downloads are simply checked less and less often until they move again
+        }
+        return moved;
+    }
+
+    // One cursor for all DownloadManager downloads instead of a query per download
+    private Map<Long, DownloadStatus> queryDownloadManager(List<DownloadTask> active) {
+        Map<Long, DownloadStatus> statuses = new HashMap<>();
+        long[] ids = new long[active.size()];
+        int count = 0;
+        for (DownloadTask task : active) {
+            if (task.downloadManagerId != 0) {
+                ids[count++] = task.downloadManagerId;
+            }
+        }
+        if (count == 0) {
+            return statuses;
+        }
 
-    public interface DownloadListener {
-        void onDownloadComplete(boolean success, String filePath, String error);
-        void onDownloadProgress(long bytesDownloaded, long totalSize, int progress);
+        DownloadManager.Query query = new DownloadManager.Query();
+        query.setFilterById(Arrays.copyOf(ids, count));
+        Cursor cursor = downloadManager.query(query);
+        if (cursor == null) {
+            return statuses;
+        }
+        try {
+            int idIndex = cursor.getColumnIndex(DownloadManager.COLUMN_ID);
+            while (cursor.moveToNext()) {
+                statuses.put(cursor.getLong(idIndex), readStatus(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return statuses;
     }
 
-    public CapacitorApkUpdater(Context context) {
-        this.context = context;
-        this.downloadManager = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
-        this.progressHandler = new Handler(Looper.getMainLooper());
-    }
+    private static DownloadStatus readStatus(Cursor cursor) {
+        int statusIndex = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
+        int bytesDownloadedIndex = cursor.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR);
+        int totalSizeIndex = cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES);
+        int localUriIndex = cursor.getColumnIndex(DownloadManager.COLUMN_LOCAL_URI);
 
-    public void setDownloadListener(DownloadListener listener) {
-        this.downloadListener = listener;
+        int status = cursor.getInt(statusIndex);
+        long bytesDownloaded = cursor.getLong(bytesDownloadedIndex);
+        long totalSize = cursor.getLong(totalSizeIndex);
+        String localUri = cursor.getString(localUriIndex);
+        int progress = totalSize > 0 ? (int) ((bytesDownloaded * 100) / totalSize) : 0;
+        return new DownloadStatus(true, bytesDownloaded, totalSize, progress, status, localUri);
     }
 
-    public boolean startDownload(String url, String filename, boolean showNotification, String notificationTitle) throws Exception{
-        if (url == null || url.isEmpty()) {
-            throw new Exception("URL is required for download");
+    private static DownloadStatus getTransferStatus(DownloadTask task) {
+        List<SegmentedDownloader> splitTransfers = task.splitTransfers;
+        if (splitTransfers != null) {
+            // A split set reports as one download
+            long totalSize = 0;
+            long bytesDownloaded = 0;
+            for (SegmentedDownloader transfer : splitTransfers) {
+                totalSize += Math.max(0, transfer.getTotalSize());
+                bytesDownloaded += transfer.getBytesDownloaded();
+            }
+            int progress = totalSize > 0 ? (int) ((bytesDownloaded * 100) / totalSize) : 0;
+            return new DownloadStatus(true, bytesDownloaded, totalSize, progress, task.transferStatus, null);
         }
 
-        DownloadManager.Request request = new DownloadManager.Request(Uri.parse(url));
-        request.setTitle(notificationTitle != null ? notificationTitle : "Downloading Update...");
-        request.setDescription("Downloading app update");
-        request.setNotificationVisibility(showNotification ? DownloadManager.Request.VISIBILITY_VISIBLE_NOTIFY_COMPLETED : DownloadManager.Request.VISIBILITY_HIDDEN);
+        SegmentedDownloader transfer = task.transfer;
+        long totalSize = Math.max(0, transfer.getTotalSize());
+        long bytesDownloaded = transfer.getBytesDownloaded();
+        int progress = totalSize > 0 ? (int) ((bytesDownloaded * 100) / totalSize) : 0;
+        File target = transfer.getTarget();
+        String filePath = task.transferStatus == DownloadManager.STATUS_SUCCESSFUL && target != null ? Uri.fromFile(target).toString() : null;
+        return new DownloadStatus(true, bytesDownloaded, totalSize, progress, task.transferStatus, filePath);
+    }
 
-        String downloadFilename = filename != null ? filename : "update.apk";
-        File downloadDir = new File(context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS), downloadFilename);
-        request.setDestinationUri(Uri.fromFile(downloadDir));
-        request.setAllowedNetworkTypes(DownloadManager.Request.NETWORK_WIFI | DownloadManager.Request.NETWORK_MOBILE);
+    private boolean hasManagerDownloads() {
+        for (DownloadTask task : runningTasks) {
+            if (task.downloadManagerId != 0 && !task.completionHandled.get()) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        // Start download
-        currentDownloadId = downloadManager.enqueue(request);
+    private boolean hasInProcessTransfers() {
+        for (DownloadTask task : runningTasks) {
+            if ((task.transfer != null || task.splitTransfers != null) && !task.completionHandled.get()) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        // Reset completion flag for new download
-        completionHandled = false;
-        
-        registerDownloadReceiver();
-        startProgressMonitoring();
-        return true;
+    // In-process transfers don't notify anyone, so they need the short interval
+    private long basePollInterval() {
+        return downloadObserver != null && !hasInProcessTransfers() ? OBSERVED_POLL_INTERVAL : MIN_POLL_INTERVAL;
     }
 
-    private void registerDownloadReceiver() {
-        if (downloadReceiver != null) {
-            return; // Already registered
-        }
+    private long maxPollInterval() {
+        return downloadObserver != null && !hasInProcessTransfers() ? OBSERVED_MAX_POLL_INTERVAL : MAX_POLL_INTERVAL;
+    }
 
-        downloadReceiver = new BroadcastReceiver() {
+    // DownloadManager notifies the URI of each row it updates, so progress can follow actual
+    // writes instead of a fixed timer. One observer on the parent covers all our downloads.
+    private void registerDownloadObserver() {
+        if (downloadObserver != null || !hasManagerDownloads()) {
+            return;
+        }
+        downloadObserver = new ContentObserver(updaterHandler) {
             @Override
-            public void onReceive(Context context, Intent intent) {
-                long id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
-                Logger.info("CapacitorApkUpdater", "BroadcastReceiver triggered for download ID: " + id + ", current ID: " + currentDownloadId);
-                if (id == currentDownloadId) {
-                    Logger.info("CapacitorApkUpdater", "Download ID matches, calling handleDownloadComplete");
-                    handleDownloadComplete();
-                }
+            public void onChange(boolean selfChange) {
+                onDownloadChanged();
             }
         };
+        try {
+            context.getContentResolver().registerContentObserver(MY_DOWNLOADS_URI, true, downloadObserver);
+        } catch (SecurityException e) {
+            downloadObserver = null;
+        }
+    }
 
-        IntentFilter filter = new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE);
-        
-        // For Android 13+ (API 33+), specify the receiver export flag
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-            context.registerReceiver(downloadReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
-        } else {
-            context.registerReceiver(downloadReceiver, filter);
+    private void unregisterDownloadObserver() {
+        if (downloadObserver != null) {
+            context.getContentResolver().unregisterContentObserver(downloadObserver);
+            downloadObserver = null;
         }
     }
 
-    private void handleDownloadComplete() {
-        Logger.info("CapacitorApkUpdater", "handleDownloadComplete called, completionHandled: " + completionHandled);
-        
-        // Prevent duplicate completion handling
-        if (completionHandled) {
-            Logger.info("CapacitorApkUpdater", "Download completion already handled, skipping");
+    private void onDownloadChanged() {
+        if (!isMonitoringProgress.get()) {
             return;
         }
-        completionHandled = true;
-
-        DownloadManager.Query query = new DownloadManager.Query();
-        query.setFilterById(currentDownloadId);
-        Cursor cursor = downloadManager.query(query);
-
-        if (cursor.moveToFirst()) {
-            int statusIndex = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
-            int reasonIndex = cursor.getColumnIndex(DownloadManager.COLUMN_REASON);
-            int localUriIndex = cursor.getColumnIndex(DownloadManager.COLUMN_LOCAL_URI);
-
-            int status = cursor.getInt(statusIndex);
-            String localUri = cursor.getString(localUriIndex);
+        // Coalesce bursts of change notifications into at most one query per MIN_POLL_INTERVAL
+        long sinceLastPoll = SystemClock.uptimeMillis() - lastPollTime;
+        updaterHandler.removeCallbacks(progressRunnable);
+        updaterHandler.postDelayed(progressRunnable, Math.max(0, MIN_POLL_INTERVAL - sinceLastPoll));
+    }
 
-            if (status == DownloadManager.STATUS_SUCCESSFUL) {
-                if (downloadListener != null) {
-                    downloadListener.onDownloadComplete(true, localUri, null);
-                }
-            } else {
-                int reason = cursor.getInt(reasonIndex);
-                String error = "Download failed with reason: " + reason;
-                if (downloadListener != null) {
-                    downloadListener.onDownloadComplete(false, null, error);
-                }
-            }
-        } else {
-            if (downloadListener != null) {
-                downloadListener.onDownloadComplete(false, null, "Download not found");
-            }
+    private void stopProgressMonitoring() {
+        isMonitoringProgress.set(false);
+        unregisterDownloadObserver();
+        if (updaterHandler != null) {
+            updaterHandler.removeCallbacks(progressRunnable);
         }
+    }
 
-        cursor.close();
-        unregisterDownloadReceiver();
-        stopProgressMonitoring();
+    // Every poll feeds the rate estimate, only samples the throttle lets through reach the bridge
+    private void reportProgress(DownloadTask task, long bytesDownloaded, long totalSize) {
+        task.metrics.onBytes(bytesDownloaded, SystemClock.elapsedRealtime());
+        trace(DownloadTrace.EVENT_PROGRESS, task.id, bytesDownloaded, totalSize);
+        ProgressThrottle.Progress progress = task.throttle.offer(bytesDownloaded, totalSize, SystemClock.uptimeMillis());
+        updaterHandler.removeCallbacks(task.progressFlush);
+        if (progress != null) {
+            notifyProgress(task, progress);
+        } else if (task.throttle.hasPending()) {
+            // Make sure the latest coalesced value still goes out if no further poll arrives in time
+            updaterHandler.postAtTime(task.progressFlush, task.throttle.getNextEmitTime());
+        }
     }
 
-    private void startProgressMonitoring() {
-        if (isMonitoringProgress || currentDownloadId == 0) {
-            return;
+    private void notifyProgress(final DownloadTask task, ProgressThrottle.Progress progress) {
+        SegmentedDownloader transfer = task.transfer;
+        if (transfer != null && transfer.getEncoding() != null) {
+            // The throttle works on network bytes, what the decoder produced is read at emit time
+            progress = progress.withBytesWritten(transfer.getBytesWritten());
         }
+        final List<DownloadListener> listeners = listenersFor(task);
+        final ProgressThrottle.Progress notified = progress;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (DownloadListener listener : listeners) {
+                    listener.onDownloadProgress(task.id, notified);
+                }
+            }
+        });
+    }
 
-        isMonitoringProgress = true;
-        progressRunnable = new Runnable() {
+    private void notifyVerifying(final DownloadTask task) {
+        final List<DownloadListener> listeners = listenersFor(task);
+        mainHandler.post(new Runnable() {
             @Override
             public void run() {
-                if (currentDownloadId != 0 && isMonitoringProgress) {
-                    DownloadStatus status = getDownloadStatus();
-                    
-                    if (status.success && downloadListener != null) {
-                        // Only notify if we're still downloading
-                        if (status.status == DownloadManager.STATUS_RUNNING || status.status == DownloadManager.STATUS_PENDING) {
-                            downloadListener.onDownloadProgress(status.bytesDownloaded, status.totalSize, status.progress);
-                            
-                            // Schedule next check in 500ms
-                            progressHandler.postDelayed(this, 500);
-                        } else if (status.status == DownloadManager.STATUS_SUCCESSFUL || status.status == DownloadManager.STATUS_FAILED) {
-                            // Download completed or failed, stop monitoring and trigger completion
-                            isMonitoringProgress = false;
-                            
-                            // Trigger completion callback if not already handled
-                            if (!completionHandled && downloadListener != null) {
-                                completionHandled = true;
-                                if (status.status == DownloadManager.STATUS_SUCCESSFUL) {
-                                    downloadListener.onDownloadComplete(true, status.filePath, null);
-                                } else {
-                                    downloadListener.onDownloadComplete(false, null, "Download failed");
-                                }
-                            }
-                        } else {
-                            // Continue monitoring for other statuses
-                            progressHandler.postDelayed(this, 1000);
-                        }
-                    } else {
-                        // Stop monitoring if we can't get status
-                        isMonitoringProgress = false;
+                for (DownloadListener listener : listeners) {
+                    if (listener instanceof VerificationListener) {
+                        ((VerificationListener) listener).onVerifying(task.id);
                     }
                 }
             }
-        };
-        
-        // Start monitoring after a short delay
-        progressHandler.postDelayed(progressRunnable, 100);
+        });
     }
 
-    private void stopProgressMonitoring() {
-        isMonitoringProgress = false;
-        if (progressHandler != null && progressRunnable != null) {
-            progressHandler.removeCallbacks(progressRunnable);
-        }
+    /**
+     * Status of the most recently started download.
+     */
+    public DownloadStatus getDownloadStatus() {
+        return getDownloadStatus(lastDownloadId);
     }
 
-    public DownloadStatus getDownloadStatus() {
-        if (currentDownloadId == 0) {
+    public DownloadStatus getDownloadStatus(long downloadId) {
+        DownloadTask task;
+        synchronized (tasks) {
+            task = tasks.get(downloadId);
+        }
+        if (task == null || task.cancelled) {
             return new DownloadStatus(false, 0, 0, 0, DownloadManager.STATUS_FAILED, "No active download");
         }
 
-        DownloadManager.Query query = new DownloadManager.Query();
-        query.setFilterById(currentDownloadId);
-        Cursor cursor = downloadManager.query(query);
-
-        if (cursor.moveToFirst()) {
-            int statusIndex = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
-            int bytesDownloadedIndex = cursor.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR);
-            int totalSizeIndex = cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES);
-            int localUriIndex = cursor.getColumnIndex(DownloadManager.COLUMN_LOCAL_URI);
-
-            int status = cursor.getInt(statusIndex);
-            long bytesDownloaded = cursor.getLong(bytesDownloadedIndex);
-            long totalSize = cursor.getLong(totalSizeIndex);
-            String localUri = cursor.getString(localUriIndex);
-            int progress = totalSize > 0 ? (int) ((bytesDownloaded * 100) / totalSize) : 0;
-
-            cursor.close();
-            return new DownloadStatus(true, bytesDownloaded, totalSize, progress, status, localUri);
+        DownloadStatus last = task.lastStatus;
+        DownloadResult result = task.result;
+        if (result != null) {
+            if (result.success && result.filePath != null) {
+                long size = new File(Uri.parse(result.filePath).getPath()).length();
+                return new DownloadStatus(true, size, size, 100, DownloadManager.STATUS_SUCCESSFUL, result.filePath);
+            }
+            int status = result.success ? DownloadManager.STATUS_SUCCESSFUL : DownloadManager.STATUS_FAILED;
+            return last != null ? new DownloadStatus(true, last.bytesDownloaded, last.totalSize, last.progress, status, null) : new DownloadStatus(true, 0, 0, 0, status, null);
         }
 
-        cursor.close();
-        return new DownloadStatus(false, 0, 0, 0, DownloadManager.STATUS_FAILED, "Download not found");
+        if (task.transfer != null || task.splitTransfers != null) {
+            return getTransferStatus(task);
+        }
+        long managerId = task.downloadManagerId;
+        if (managerId != 0) {
+            DownloadManager.Query query = new DownloadManager.Query();
+            query.setFilterById(managerId);
+            Cursor cursor = downloadManager.query(query);
+            try {
+                if (cursor.moveToFirst()) {
+                    return readStatus(cursor);
+                }
+            } finally {
+                cursor.close();
+            }
+            return new DownloadStatus(false, 0, 0, 0, DownloadManager.STATUS_FAILED, "Download not found");
+        }
+        // Still queued, or between transfers while a patch is applied
+        return last != null ? new DownloadStatus(true, last.bytesDownloaded, last.totalSize, last.progress, DownloadManager.STATUS_RUNNING, null) : new DownloadStatus(true, 0, 0, 0, DownloadManager.STATUS_PENDING, null);
     }
 
     public InstallPermissionStatus canInstallApks() {
@@ -239,15 +1919,127 @@ public class CapacitorApkUpdater {
         }
     }
 
+    /**
+     * Cancels every download that hasn't finished yet.
+     */
     public boolean cancelDownload() {
-        if (currentDownloadId != 0) {
-            downloadManager.remove(currentDownloadId);
-            currentDownloadId = 0;
-            unregisterDownloadReceiver();
-            stopProgressMonitoring();
+        List<Long> active = new ArrayList<>();
+        synchronized (tasks) {
+            for (DownloadTask task : tasks.values()) {
+                if (!task.isFinished()) {
+                    active.add(task.id);
+                }
+            }
+        }
+        boolean cancelled = false;
+        for (long downloadId : active) {
+            cancelled |= cancelDownload(downloadId);
+        }
+        return cancelled;
+    }
+
+    public boolean cancelDownload(long downloadId) {
+        final DownloadTask task;
+        synchronized (tasks) {
+            task = tasks.get(downloadId);
+        }
+        if (task == null || task.isFinished()) {
+            return false;
+        }
+        task.cancelled = true;
+        updaterHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                cancelTask(task);
+            }
+        });
+        return true;
+    }
+
+    private void cancelTask(DownloadTask task) {
+        trace(DownloadTrace.EVENT_CANCELLED, task.id, 0, 0);
+        task.pendingDelta = null;
+        task.verifier = null;
+        if (queuedTasks.remove(task)) {
+            saveActiveDownloads();
+            return;
+        }
+        if (task.transfer != null) {
+            task.transfer.cancel();
+        }
+        if (task.splitTransfers != null) {
+            for (SegmentedDownloader transfer : task.splitTransfers) {
+                transfer.cancel();
+            }
+        }
+        if (task.downloadManagerId != 0) {
+            downloadManager.remove(task.downloadManagerId);
+        }
+        task.completionHandled.set(true);
+        stopTask(task);
+    }
+
+    /**
+     * Metrics of every download that can still be queried, oldest first.
+     */
+    public List<DownloadMetrics> getMetrics() {
+        List<DownloadMetrics> metrics = new ArrayList<>();
+        synchronized (tasks) {
+            for (DownloadTask task : tasks.values()) {
+                metrics.add(task.metrics);
+            }
+        }
+        return metrics;
+    }
+
+    public DownloadMetrics getMetrics(long downloadId) {
+        synchronized (tasks) {
+            DownloadTask task = tasks.get(downloadId);
+            return task != null ? task.metrics : null;
+        }
+    }
+
+    /**
+     * Installs an APK this plugin downloaded, using the install mode the download was started with.
+     */
+    public boolean installDownloadedApk(long downloadId, String filePath) {
+        DownloadTask task;
+        synchronized (tasks) {
+            task = tasks.get(downloadId);
+        }
+        boolean handedOff;
+        if (task != null && INSTALL_MODE_SESSION.equals(task.options.installMode)) {
+            handedOff = installApkWithSession(filePath);
+        } else {
+            handedOff = installApk(filePath);
+        }
+        if (task != null && handedOff) {
+            task.metrics.onInstallHandoff(SystemClock.elapsedRealtime());
+        }
+        return handedOff;
+    }
+
+    public boolean installApkWithSession(String filePath) {
+        int sessionId = -1;
+        try {
+            File file = new File(Uri.parse(filePath).getPath());
+            if (!file.exists()) {
+                Logger.error("CapacitorApkUpdater", new Exception("APK file not found: " + filePath));
+                return false;
+            }
+
+            sessionId = sessionInstaller.createSession(file.length());
+            sessionInstaller.writeFile(sessionId, "base.apk", file);
+            sessionInstaller.commit(sessionId, installStatusListener);
             return true;
+
+        } catch (Exception e) {
+            if (sessionId != -1) {
+                sessionInstaller.abandon(sessionId);
+            }
+            Logger.error("CapacitorApkUpdater", new Exception("Installation failed: " + e.getMessage()));
+            return false;
         }
-        return false;
     }
 
     public boolean installApk(String filePath) {
@@ -282,18 +2074,15 @@ public class CapacitorApkUpdater {
 
     public AppInfo getAppInfo() {
         try {
-            PackageManager pm = context.getPackageManager();
-            String packageName = context.getPackageName();
-            String versionName = pm.getPackageInfo(packageName, 0).versionName;
-            
+            PackageInfo info = getPackageInfo();
             long versionCode;
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
-                versionCode = pm.getPackageInfo(packageName, 0).getLongVersionCode();
+                versionCode = info.getLongVersionCode();
             } else {
-                versionCode = pm.getPackageInfo(packageName, 0).versionCode;
+                versionCode = info.versionCode;
             }
             
-            return new AppInfo(true, packageName, versionName, versionCode, null);
+            return new AppInfo(true, info.packageName, info.versionName, versionCode, null);
             
         } catch (Exception e) {
             String error = "Failed to get app info: " + e.getMessage();
@@ -302,10 +2091,117 @@ public class CapacitorApkUpdater {
         }
     }
 
+    // Our PackageInfo only changes when the package is replaced, so it's looked up once and kept
+    private PackageInfo getPackageInfo() throws PackageManager.NameNotFoundException {
+        PackageInfo info = cachedPackageInfo;
+        if (info == null) {
+            registerPackageReplacedReceiver();
+            info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+            cachedPackageInfo = info;
+        }
+        return info;
+    }
+
+    private synchronized void registerPackageReplacedReceiver() {
+        if (packageReplacedReceiver != null) {
+            return;
+        }
+
+        packageReplacedReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Uri data = intent.getData();
+                if (data != null && context.getPackageName().equals(data.getSchemeSpecificPart())) {
+                    cachedPackageInfo = null;
+                }
+            }
+        };
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            context.registerReceiver(packageReplacedReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
+        } else {
+            context.registerReceiver(packageReplacedReceiver, filter);
+        }
+    }
+
+    /**
+     * Fetches the update manifest and compares it with the installed version. Runs off the calling
+     * thread, the result is delivered to {@code listener}.
+     */
+    public void checkForUpdate(final String manifestUrl, final UpdateCheckListener listener) {
+        transferExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                UpdateCheckResult result;
+                try {
+                    UpdateChecker.Manifest manifest = updateChecker.fetch(manifestUrl);
+                    AppInfo appInfo = getAppInfo();
+                    if (!appInfo.success) {
+                        throw new Exception(appInfo.error);
+                    }
+                    result = new UpdateCheckResult(true, manifest.versionCode > appInfo.versionCode, appInfo.versionCode, appInfo.versionName, manifest, null);
+                } catch (Exception e) {
+                    String error = "Update check failed: " + e.getMessage();
+                    Logger.error("CapacitorApkUpdater", new Exception(error));
+                    result = new UpdateCheckResult(false, false, 0, null, null, error);
+                }
+                listener.onUpdateChecked(result);
+            }
+        });
+    }
+
     public void cleanup() {
-        unregisterDownloadReceiver();
-        stopProgressMonitoring();
-        currentDownloadId = 0;
+        disablePeerSharing();
+        updaterHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                unregisterDownloadReceiver();
+                stopProgressMonitoring();
+                queuedTasks.clear();
+                for (DownloadTask task : runningTasks) {
+                    endAsyncTrace(task);
+                }
+                runningTasks.clear();
+            }
+        });
+        // Runs what is already queued, including the above, then stops
+        updaterThread.quitSafely();
+        synchronized (tasks) {
+            for (DownloadTask task : tasks.values()) {
+                SegmentedDownloader transfer = task.transfer;
+                if (transfer != null) {
+                    // Keeps the partial file and journal for restoreDownloads
+                    transfer.stop();
+                }
+                List<SegmentedDownloader> splitTransfers = task.splitTransfers;
+                if (splitTransfers != null) {
+                    for (SegmentedDownloader splitTransfer : splitTransfers) {
+                        splitTransfer.cancel();
+                    }
+                }
+                if (!task.isFinished()) {
+                    task.cancelled = true;
+                }
+            }
+        }
+        workExecutor.shutdownNow();
+        // No interrupts, stopped transfers still save their journal on the way out
+        transferExecutor.shutdown();
+        sessionInstaller.cleanup();
+        unregisterPackageReplacedReceiver();
+    }
+
+    private synchronized void unregisterPackageReplacedReceiver() {
+        if (packageReplacedReceiver != null) {
+            try {
+                context.unregisterReceiver(packageReplacedReceiver);
+            } catch (IllegalArgumentException e) {
+                // Receiver not registered
+            }
+            packageReplacedReceiver = null;
+        }
     }
 
     private void unregisterDownloadReceiver() {
@@ -319,7 +2215,184 @@ public class CapacitorApkUpdater {
         }
     }
 
+    // State of one download the caller asked for. The transfer behind it can change, e.g. from the
+    // patch to the full APK, while the ID stays the same. Mutated on the updater thread only.
+    private class DownloadTask {
+        final long id;
+        final DownloadOptions options;
+        final List<DownloadListener> listeners = new CopyOnWriteArrayList<>();
+        final AtomicBoolean verificationQueued = new AtomicBoolean(false);
+        final DownloadMetrics metrics;
+        final Runnable progressFlush = new Runnable() {
+            @Override
+            public void run() {
+                ProgressThrottle.Progress progress = throttle != null ? throttle.flush(SystemClock.uptimeMillis()) : null;
+                if (progress != null && !completionHandled.get()) {
+                    notifyProgress(DownloadTask.this, progress);
+                }
+            }
+        };
+        // Set while the patch of a delta update is being fetched
+        DownloadOptions pendingDelta;
+        // Set while the APK is assembled from blocks of the installed one plus downloaded ranges
+        BlockIndex blockIndex;
+        List<long[]> blockCopies;
+        boolean blockSyncTried = false;
+        // Set once peers were asked for the APK, and once that failed so they aren't asked again
+        boolean usedPeers = false;
+        boolean peersFailed = false;
+        // Fetched once the transfer is done, kept for the chunks fetched again
+        volatile ChunkManifest chunkManifest;
+        volatile long downloadManagerId = 0;
+        volatile SegmentedDownloader transfer;
+        volatile List<SegmentedDownloader> splitTransfers;
+        volatile int transferStatus = DownloadManager.STATUS_PENDING;
+        StreamingVerifier verifier;
+        // Of the download's system trace slice while it runs, updater thread only
+        int traceCookie = 0;
+        // Claimed by whichever of receiver, poller or transfer notices the end first
+        final AtomicBoolean completionHandled = new AtomicBoolean(false);
+        ProgressThrottle throttle;
+        long lastReportedBytes = -1;
+        int lastReportedStatus = -1;
+        volatile DownloadStatus lastStatus;
+        volatile DownloadResult result;
+        volatile boolean cancelled = false;
+        // Started by an earlier process
+        volatile boolean restored = false;
+
+        DownloadTask(long id, DownloadOptions options) {
+            this.id = id;
+            this.options = options;
+            this.metrics = new DownloadMetrics(id, options.url, options.engine, SystemClock.elapsedRealtime(), System.currentTimeMillis());
+        }
+
+        boolean isFinished() {
+            return result != null || cancelled;
+        }
+    }
+
     // Data classes for structured responses
+    public static class DownloadOptions {
+        public String url;
+        public String filename = "update.apk";
+        public boolean showNotification = true;
+        public String notificationTitle = "Downloading Update...";
+        public String patchUrl;
+        // Block checksums of the APK at url, to reuse what the installed APK already has
+        public String blockIndexUrl;
+        // Chunk hashes and Merkle root of the APK at url, verified on all cores
+        public String chunkManifestUrl;
+        public String expectedRootHash;
+        public String engine = ENGINE_DOWNLOAD_MANAGER;
+        public int connections = SegmentedDownloader.DEFAULT_CONNECTIONS;
+        public String expectedSha256;
+        public String expectedCertSha256;
+        public String installMode = INSTALL_MODE_INTENT;
+        public long progressInterval = ProgressThrottle.DEFAULT_MIN_INTERVAL;
+        public int progressMinPercent = ProgressThrottle.DEFAULT_MIN_PERCENT;
+        public long progressMinBytes = 0;
+        // Let the server compress the APK with Content-Encoding, files named .apk.gz/.br/.zst are always decoded
+        public boolean acceptCompressed = false;
+        // Keep the finished APK in the content-addressed cache and answer from it when expectedSha256 matches
+        public boolean useCache = true;
+        // Splits picked for this device, installed together instead of the single APK at url
+        public List<SplitSelector.Split> splits;
+        // Other URLs serving the same APK, ranked after url
+        public List<String> mirrors;
+        public long hedgeDelay = SegmentedDownloader.DEFAULT_HEDGE_DELAY;
+
+        public DownloadOptions copy() {
+            DownloadOptions copy = new DownloadOptions();
+            copy.url = url;
+            copy.filename = filename;
+            copy.showNotification = showNotification;
+            copy.notificationTitle = notificationTitle;
+            copy.patchUrl = patchUrl;
+            copy.blockIndexUrl = blockIndexUrl;
+            copy.chunkManifestUrl = chunkManifestUrl;
+            copy.expectedRootHash = expectedRootHash;
+            copy.engine = engine;
+            copy.connections = connections;
+            copy.expectedSha256 = expectedSha256;
+            copy.expectedCertSha256 = expectedCertSha256;
+            copy.installMode = installMode;
+            copy.progressInterval = progressInterval;
+            copy.progressMinPercent = progressMinPercent;
+            copy.progressMinBytes = progressMinBytes;
+            copy.useCache = useCache;
+            copy.acceptCompressed = acceptCompressed;
+            copy.splits = splits;
+            copy.mirrors = mirrors;
+            copy.hedgeDelay = hedgeDelay;
+            return copy;
+        }
+
+        // Everything but splits, which are never persisted
+        public JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("url", url);
+            json.put("filename", filename);
+            json.put("showNotification", showNotification);
+            json.put("notificationTitle", notificationTitle);
+            json.put("patchUrl", patchUrl);
+            json.put("blockIndexUrl", blockIndexUrl);
+            json.put("chunkManifestUrl", chunkManifestUrl);
+            json.put("expectedRootHash", expectedRootHash);
+            json.put("engine", engine);
+            json.put("connections", connections);
+            json.put("expectedSha256", expectedSha256);
+            json.put("expectedCertSha256", expectedCertSha256);
+            json.put("installMode", installMode);
+            json.put("progressInterval", progressInterval);
+            json.put("progressMinPercent", progressMinPercent);
+            json.put("progressMinBytes", progressMinBytes);
+            json.put("useCache", useCache);
+            json.put("acceptCompressed", acceptCompressed);
+            if (mirrors != null) {
+                json.put("mirrors", new JSONArray(mirrors));
+            }
+            json.put("hedgeDelay", hedgeDelay);
+            return json;
+        }
+
+        public static DownloadOptions fromJson(JSONObject json) throws JSONException {
+            DownloadOptions options = new DownloadOptions();
+            options.url = json.getString("url");
+            options.filename = json.optString("filename", options.filename);
+            options.showNotification = json.optBoolean("showNotification", options.showNotification);
+            options.notificationTitle = optString(json, "notificationTitle");
+            options.patchUrl = optString(json, "patchUrl");
+            options.blockIndexUrl = optString(json, "blockIndexUrl");
+            options.chunkManifestUrl = optString(json, "chunkManifestUrl");
+            options.expectedRootHash = optString(json, "expectedRootHash");
+            options.engine = json.optString("engine", options.engine);
+            options.connections = json.optInt("connections", options.connections);
+            options.expectedSha256 = optString(json, "expectedSha256");
+            options.expectedCertSha256 = optString(json, "expectedCertSha256");
+            options.installMode = json.optString("installMode", options.installMode);
+            options.progressInterval = json.optLong("progressInterval", options.progressInterval);
+            options.progressMinPercent = json.optInt("progressMinPercent", options.progressMinPercent);
+            options.progressMinBytes = json.optLong("progressMinBytes", options.progressMinBytes);
+            options.useCache = json.optBoolean("useCache", options.useCache);
+            options.acceptCompressed = json.optBoolean("acceptCompressed", options.acceptCompressed);
+            JSONArray mirrors = json.optJSONArray("mirrors");
+            if (mirrors != null) {
+                options.mirrors = new ArrayList<>();
+                for (int i = 0; i < mirrors.length(); i++) {
+                    options.mirrors.add(mirrors.getString(i));
+                }
+            }
+            options.hedgeDelay = json.optLong("hedgeDelay", options.hedgeDelay);
+            return options;
+        }
+
+        // optString turns a missing value into "" rather than null
+        private static String optString(JSONObject json, String key) {
+            return json.isNull(key) ? null : json.optString(key, null);
+        }
+    }
+
     public static class DownloadStatus {
         public final boolean success;
         public final long bytesDownloaded;
@@ -338,6 +2411,55 @@ public class CapacitorApkUpdater {
         }
     }
 
+    public static class DownloadResult {
+        public final boolean success;
+        public final String filePath;
+        public final String error;
+        public final String errorCode;
+        // Set when the APK was streamed into an install session that has already been committed
+        public final boolean installCommitted;
+        // Mirror most of the APK came from and what was measured about each, null without mirrors
+        public final String mirrorUsed;
+        public final List<MirrorSet.Timing> mirrorTimings;
+        // Bytes taken from the installed APK and bytes fetched with block sync, -1 without it
+        public final long bytesReused;
+        public final long bytesDownloaded;
+
+        public DownloadResult(boolean success, String filePath, String error, String errorCode) {
+            this(success, filePath, error, errorCode, false);
+        }
+
+        public DownloadResult(boolean success, String filePath, String error, String errorCode, boolean installCommitted) {
+            this(success, filePath, error, errorCode, installCommitted, null, null);
+        }
+
+        public DownloadResult(boolean success, String filePath, String error, String errorCode, boolean installCommitted, String mirrorUsed, List<MirrorSet.Timing> mirrorTimings) {
+            this(success, filePath, error, errorCode, installCommitted, mirrorUsed, mirrorTimings, -1, -1);
+        }
+
+        public DownloadResult(boolean success, String filePath, String error, String errorCode, boolean installCommitted, String mirrorUsed, List<MirrorSet.Timing> mirrorTimings, long bytesReused, long bytesDownloaded) {
+            this.success = success;
+            this.filePath = filePath;
+            this.error = error;
+            this.errorCode = errorCode;
+            this.installCommitted = installCommitted;
+            this.mirrorUsed = mirrorUsed;
+            this.mirrorTimings = mirrorTimings;
+            this.bytesReused = bytesReused;
+            this.bytesDownloaded = bytesDownloaded;
+        }
+
+        public DownloadResult withMirrors(MirrorSet mirrors) {
+            MirrorSet.Mirror used = mirrors.mostUsed();
+            String usedUrl = used != null && success ? used.url : null;
+            return new DownloadResult(success, filePath, error, errorCode, installCommitted, usedUrl, mirrors.getTimings(), bytesReused, bytesDownloaded);
+        }
+
+        public DownloadResult withBlockSync(long reused, long downloaded) {
+            return new DownloadResult(success, filePath, error, errorCode, installCommitted, mirrorUsed, mirrorTimings, reused, downloaded);
+        }
+    }
+
     public static class InstallPermissionStatus {
         public final boolean canInstall;
         public final String reason;
@@ -348,6 +2470,24 @@ public class CapacitorApkUpdater {
         }
     }
 
+    public static class UpdateCheckResult {
+        public final boolean success;
+        public final boolean updateAvailable;
+        public final long currentVersionCode;
+        public final String currentVersionName;
+        public final UpdateChecker.Manifest manifest;
+        public final String error;
+
+        public UpdateCheckResult(boolean success, boolean updateAvailable, long currentVersionCode, String currentVersionName, UpdateChecker.Manifest manifest, String error) {
+            this.success = success;
+            this.updateAvailable = updateAvailable;
+            this.currentVersionCode = currentVersionCode;
+            this.currentVersionName = currentVersionName;
+            this.manifest = manifest;
+            this.error = error;
+        }
+    }
+
     public static class AppInfo {
         public final boolean success;
         public final String packageName;
@@ -5,6 +5,7 @@ import android.net.Uri;
 import android.os.Build;
 import android.provider.Settings;
 
+import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 import com.getcapacitor.Plugin;
 import com.getcapacitor.PluginCall;
@@ -14,40 +15,84 @@ import com.getcapacitor.annotation.CapacitorPlugin;
 import com.getcapacitor.PluginResult;
 import com.getcapacitor.Logger;
 
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.List;
+
 @CapacitorPlugin(name = "CapacitorApkUpdater")
 public class CapacitorApkUpdaterPlugin extends Plugin {
 
     private CapacitorApkUpdater implementation;
+    private UpdateFlow updateFlow;
 
     @Override
     public void load() {
         implementation = new CapacitorApkUpdater(getContext());
         implementation.setDownloadListener(new CapacitorApkUpdater.DownloadListener() {
             @Override
-            public void onDownloadComplete(boolean success, String filePath, String error) {
+            public void onDownloadComplete(long downloadId, CapacitorApkUpdater.DownloadResult download) {
                 JSObject result = new JSObject();
-                result.put("success", success);
-                if (success) {
-                    result.put("filePath", filePath);
-                    boolean installed = implementation.installApk(filePath);
+                result.put("downloadId", downloadId);
+                result.put("success", download.success);
+                if (download.installCommitted) {
+                    result.put("installed", true);
+                } else if (download.success) {
+                    result.put("filePath", download.filePath);
+                    // A download runUpdate waits on is installed by the update, once is enough
+                    UpdateFlow flow = updateFlow;
+                    boolean installed = false;
+                    if (flow == null || !flow.ownsDownload(downloadId)) {
+                        installed = implementation.installDownloadedApk(downloadId, download.filePath);
+                    }
                     result.put("installed", installed);
                 } else {
-                    result.put("error", error);
+                    result.put("error", download.error);
+                    result.put("errorCode", download.errorCode);
+                }
+                if (download.mirrorTimings != null) {
+                    result.put("mirror", download.mirrorUsed);
+                    JSArray mirrors = new JSArray();
+                    for (MirrorSet.Timing timing : download.mirrorTimings) {
+                        JSObject mirror = new JSObject();
+                        mirror.put("url", timing.url);
+                        mirror.put("firstByteMillis", timing.firstByteMillis);
+                        mirror.put("bytesPerSecond", timing.bytesPerSecond);
+                        mirror.put("bytesDownloaded", timing.bytesDownloaded);
+                        mirror.put("failures", timing.failures);
+                        mirror.put("hedges", timing.hedges);
+                        mirror.put("error", timing.error);
+                        mirrors.put(mirror);
+                    }
+                    result.put("mirrorTimings", mirrors);
+                }
+                if (download.bytesReused >= 0) {
+                    result.put("bytesReused", download.bytesReused);
+                    result.put("bytesDownloaded", download.bytesDownloaded);
+                }
+                // The page may not have added its listeners yet when a restored download ends
+                boolean restored = implementation.isRestored(downloadId);
+                if (restored) {
+                    result.put("restored", true);
                 }
                 
                 try {
-                    notifyListeners("downloadComplete", result);
+                    notifyListeners("downloadComplete", result, restored);
                 } catch (Exception e) {
                     Logger.error("CapacitorApkUpdater", new Exception("Error notifying downloadComplete listeners: " + e.getMessage()));
                 }
             }
 
             @Override
-            public void onDownloadProgress(long bytesDownloaded, long totalSize, int progress) {
+            public void onDownloadProgress(long downloadId, ProgressThrottle.Progress progress) {
                 JSObject result = new JSObject();
-                result.put("progress", progress);
-                result.put("bytesDownloaded", bytesDownloaded);
-                result.put("totalSize", totalSize);
+                result.put("downloadId", downloadId);
+                result.put("progress", progress.progress);
+                result.put("bytesDownloaded", progress.bytesDownloaded);
+                result.put("totalSize", progress.totalSize);
+                result.put("bytesPerSecond", progress.bytesPerSecond);
+                result.put("etaSeconds", progress.etaSeconds);
+                result.put("bytesWritten", progress.bytesWritten);
                 
                 try {
                     notifyListeners("downloadProgress", result);
@@ -55,7 +100,55 @@ public class CapacitorApkUpdaterPlugin extends Plugin {
                     Logger.error("CapacitorApkUpdater", new Exception("Error notifying downloadProgress listeners: " + e.getMessage()));
                 }
             }
+
+            @Override
+            public void onInstallStatus(boolean success, String message) {
+                JSObject result = new JSObject();
+                result.put("success", success);
+                if (message != null) {
+                    result.put("message", message);
+                }
+
+                UpdateFlow flow = updateFlow;
+                if (flow != null) {
+                    flow.onInstallStatus(success, message);
+                }
+
+                try {
+                    notifyListeners("installStatus", result);
+                } catch (Exception e) {
+                    Logger.error("CapacitorApkUpdater", new Exception("Error notifying installStatus listeners: " + e.getMessage()));
+                }
+            }
+        });
+        // Downloads that were running when the app was killed carry on under their old IDs
+        implementation.restoreDownloads();
+
+        updateFlow = new UpdateFlow(getContext(), implementation);
+        updateFlow.setStateListener(new UpdateFlow.StateListener() {
+            @Override
+            public void onStateChanged(UpdateFlow.State state) {
+                if (UpdateFlow.STATE_WAITING_FOR_PERMISSION.equals(state.state) && !state.restored) {
+                    openInstallPermissionSettings();
+                }
+                try {
+                    // The page may not have added its listeners yet when a restored update moves on
+                    notifyListeners("updateState", toJs(state), state.restored);
+                } catch (Exception e) {
+                    Logger.error("CapacitorApkUpdater", new Exception("Error notifying updateState listeners: " + e.getMessage()));
+                }
+            }
         });
+        // After the restored downloads, so a running update joins its download again
+        updateFlow.restore();
+    }
+
+    @Override
+    protected void handleOnResume() {
+        super.handleOnResume();
+        if (updateFlow != null) {
+            updateFlow.onResume();
+        }
     }
 
     @Override
@@ -77,13 +170,21 @@ public class CapacitorApkUpdaterPlugin extends Plugin {
                 return;
             }
 
-            String filename = call.getString("filename", "update.apk");
-            boolean showNotification = call.getBoolean("showNotification", true);
-            String notificationTitle = call.getString("notificationTitle", "Downloading Update...");
+            CapacitorApkUpdater.DownloadOptions options = readDownloadOptions(call);
+            options.url = url;
+            if (!CapacitorApkUpdater.ENGINE_DOWNLOAD_MANAGER.equals(options.engine) && !CapacitorApkUpdater.ENGINE_SEGMENTED.equals(options.engine)) {
+                call.reject("Unknown download engine: " + options.engine);
+                return;
+            }
+            if (!isKnownInstallMode(options.installMode)) {
+                call.reject("Unknown install mode: " + options.installMode);
+                return;
+            }
 
-            implementation.startDownload(url, filename, showNotification, notificationTitle);
+            long downloadId = implementation.startDownload(options);
 
             result.put("success", true);
+            result.put("downloadId", downloadId);
             result.put("message", "Download started");
             call.resolve(result);
         } catch (Exception exception) {
@@ -96,9 +197,185 @@ public class CapacitorApkUpdaterPlugin extends Plugin {
         call.resolve(result);
     }
 
+    @PluginMethod
+    public void startSplitApkDownload(PluginCall call) {
+        JSObject result = new JSObject();
+
+        try {
+            JSArray splits = call.getArray("splits");
+            if (splits == null || splits.length() == 0) {
+                call.reject("splits are required");
+                return;
+            }
+
+            long downloadId = implementation.startSplitDownload(SplitSelector.parse(splits), readDownloadOptions(call));
+
+            result.put("success", true);
+            result.put("message", "Download started");
+            result.put("downloadId", downloadId);
+        } catch (Exception exception) {
+            String errorMsg = "Download failed: " + exception.getMessage();
+            Logger.error("CapacitorApkUpdater", new Exception(errorMsg));
+            result.put("success", false);
+            result.put("error", errorMsg);
+        }
+
+        call.resolve(result);
+    }
+
+    @PluginMethod
+    public void prefetchApk(PluginCall call) {
+        String url = call.getString("url");
+        if (url == null || url.isEmpty()) {
+            call.reject("URL is required");
+            return;
+        }
+
+        JSObject result = new JSObject();
+        try {
+            CapacitorApkUpdater.DownloadOptions options = readDownloadOptions(call);
+            options.url = url;
+            boolean scheduled = implementation.prefetch(options, call.getBoolean("requireUnmetered", true), call.getBoolean("requireCharging", true));
+            result.put("scheduled", scheduled);
+            if (!scheduled) {
+                result.put("message", "A download of this URL is already running");
+            }
+        } catch (Exception exception) {
+            String errorMsg = "Prefetch failed: " + exception.getMessage();
+            Logger.error("CapacitorApkUpdater", new Exception(errorMsg));
+            result.put("scheduled", false);
+            result.put("error", errorMsg);
+        }
+        call.resolve(result);
+    }
+
+    @PluginMethod
+    public void getPrefetchStatus(PluginCall call) {
+        PrefetchWorker.PrefetchStatus status = implementation.getPrefetchStatus();
+
+        JSObject result = new JSObject();
+        result.put("state", status.state);
+        if (status.url != null) {
+            result.put("url", status.url);
+        }
+        if (status.filePath != null) {
+            result.put("filePath", status.filePath);
+        }
+        if (status.error != null) {
+            result.put("error", status.error);
+        }
+        call.resolve(result);
+    }
+
+    @PluginMethod
+    public void cancelPrefetch(PluginCall call) {
+        implementation.cancelPrefetch();
+        call.resolve();
+    }
+
+    private CapacitorApkUpdater.DownloadOptions readDownloadOptions(PluginCall call) {
+        CapacitorApkUpdater.DownloadOptions options = new CapacitorApkUpdater.DownloadOptions();
+        options.filename = call.getString("filename", "update.apk");
+        options.showNotification = call.getBoolean("showNotification", true);
+        options.notificationTitle = call.getString("notificationTitle", "Downloading Update...");
+        options.patchUrl = call.getString("patchUrl");
+        options.blockIndexUrl = call.getString("blockIndexUrl");
+        options.chunkManifestUrl = call.getString("chunkManifestUrl");
+        options.expectedRootHash = call.getString("expectedRootHash");
+        options.engine = call.getString("engine", CapacitorApkUpdater.ENGINE_DOWNLOAD_MANAGER);
+        options.connections = call.getInt("connections", SegmentedDownloader.DEFAULT_CONNECTIONS);
+        options.expectedSha256 = call.getString("expectedSha256");
+        options.expectedCertSha256 = call.getString("expectedCertSha256");
+        options.installMode = call.getString("installMode", CapacitorApkUpdater.INSTALL_MODE_INTENT);
+        options.progressInterval = call.getInt("progressInterval", (int) ProgressThrottle.DEFAULT_MIN_INTERVAL);
+        options.progressMinPercent = call.getInt("progressMinPercent", ProgressThrottle.DEFAULT_MIN_PERCENT);
+        options.progressMinBytes = call.getInt("progressMinBytes", 0);
+        options.useCache = call.getBoolean("useCache", true);
+        options.acceptCompressed = call.getBoolean("acceptCompressed", false);
+        JSArray mirrors = call.getArray("mirrors");
+        if (mirrors != null) {
+            options.mirrors = new ArrayList<>();
+            for (int i = 0; i < mirrors.length(); i++) {
+                String mirror = mirrors.optString(i, null);
+                if (mirror != null && !mirror.isEmpty()) {
+                    options.mirrors.add(mirror);
+                }
+            }
+        }
+        options.hedgeDelay = call.getInt("hedgeDelay", (int) SegmentedDownloader.DEFAULT_HEDGE_DELAY);
+        return options;
+    }
+
+    private static boolean isKnownInstallMode(String installMode) {
+        return CapacitorApkUpdater.INSTALL_MODE_INTENT.equals(installMode) || CapacitorApkUpdater.INSTALL_MODE_SESSION.equals(installMode);
+    }
+
+    @PluginMethod
+    public void runUpdate(PluginCall call) {
+        String manifestUrl = call.getString("manifestUrl");
+        if (manifestUrl == null || manifestUrl.isEmpty()) {
+            call.reject("manifestUrl is required");
+            return;
+        }
+
+        CapacitorApkUpdater.DownloadOptions options = readDownloadOptions(call);
+        if (!CapacitorApkUpdater.ENGINE_DOWNLOAD_MANAGER.equals(options.engine) && !CapacitorApkUpdater.ENGINE_SEGMENTED.equals(options.engine)) {
+            call.reject("Unknown download engine: " + options.engine);
+            return;
+        }
+        if (!isKnownInstallMode(options.installMode)) {
+            call.reject("Unknown install mode: " + options.installMode);
+            return;
+        }
+        try {
+            call.resolve(toJs(updateFlow.run(manifestUrl, options)));
+        } catch (Exception e) {
+            call.reject(e.getMessage());
+        }
+    }
+
+    @PluginMethod
+    public void getUpdateState(PluginCall call) {
+        call.resolve(toJs(updateFlow.getState()));
+    }
+
+    @PluginMethod
+    public void cancelUpdate(PluginCall call) {
+        JSObject result = new JSObject();
+        result.put("cancelled", updateFlow.cancel());
+        call.resolve(result);
+    }
+
+    private static JSObject toJs(UpdateFlow.State state) {
+        JSObject result = new JSObject();
+        result.put("state", state.state);
+        if (state.versionCode != 0) {
+            result.put("versionCode", state.versionCode);
+        }
+        if (state.versionName != null) {
+            result.put("versionName", state.versionName);
+        }
+        if (state.downloadId != 0) {
+            result.put("downloadId", state.downloadId);
+            result.put("progress", state.progress);
+        }
+        if (state.filePath != null) {
+            result.put("filePath", state.filePath);
+        }
+        if (state.error != null) {
+            result.put("error", state.error);
+            result.put("errorCode", state.errorCode);
+        }
+        if (state.restored) {
+            result.put("restored", true);
+        }
+        return result;
+    }
+
     @PluginMethod
     public void getDownloadStatus(PluginCall call) {
-        CapacitorApkUpdater.DownloadStatus status = implementation.getDownloadStatus();
+        Long downloadId = call.getLong("downloadId");
+        CapacitorApkUpdater.DownloadStatus status = downloadId != null ? implementation.getDownloadStatus(downloadId) : implementation.getDownloadStatus();
         
         JSObject result = new JSObject();
         result.put("success", status.success);
@@ -131,9 +408,7 @@ public class CapacitorApkUpdaterPlugin extends Plugin {
     public void requestInstallPermission(PluginCall call) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             if (!getContext().getPackageManager().canRequestPackageInstalls()) {
-                Intent intent = new Intent(Settings.ACTION_MANAGE_UNKNOWN_APP_SOURCES)
-                    .setData(Uri.parse(String.format("package:%s", getContext().getPackageName())));
-                startActivityForResult(call, intent, "installPermissionResult");
+                startActivityForResult(call, installPermissionIntent(), "installPermissionResult");
                 return;
             }
         }
@@ -143,15 +418,135 @@ public class CapacitorApkUpdaterPlugin extends Plugin {
         call.resolve(result);
     }
 
+    private Intent installPermissionIntent() {
+        return new Intent(Settings.ACTION_MANAGE_UNKNOWN_APP_SOURCES)
+            .setData(Uri.parse(String.format("package:%s", getContext().getPackageName())));
+    }
+
+    // For runUpdate, which continues by itself once the app is back in the foreground
+    private void openInstallPermissionSettings() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || getActivity() == null) {
+            return;
+        }
+        try {
+            getActivity().startActivity(installPermissionIntent());
+        } catch (Exception e) {
+            Logger.error("CapacitorApkUpdater", new Exception("Unable to open install permission settings: " + e.getMessage()));
+        }
+    }
+
     @PluginMethod
     public void cancelDownload(PluginCall call) {
-        boolean cancelled = implementation.cancelDownload();
+        Long downloadId = call.getLong("downloadId");
+        boolean cancelled = downloadId != null ? implementation.cancelDownload(downloadId) : implementation.cancelDownload();
         
         JSObject result = new JSObject();
         result.put("cancelled", cancelled);
         call.resolve(result);
     }
 
+    @PluginMethod
+    public void getMetrics(PluginCall call) {
+        Long downloadId = call.getLong("downloadId");
+        List<DownloadMetrics> metrics = new ArrayList<>();
+        if (downloadId != null) {
+            DownloadMetrics download = implementation.getMetrics(downloadId);
+            if (download != null) {
+                metrics.add(download);
+            }
+        } else {
+            metrics = implementation.getMetrics();
+        }
+
+        JSArray downloads = new JSArray();
+        try {
+            for (DownloadMetrics download : metrics) {
+                downloads.put(download.toJson());
+            }
+        } catch (JSONException e) {
+            call.reject("Unable to export metrics: " + e.getMessage());
+            return;
+        }
+        JSObject result = new JSObject();
+        result.put("downloads", downloads);
+        call.resolve(result);
+    }
+
+    @PluginMethod
+    public void dumpTrace(PluginCall call) {
+        try {
+            call.resolve(JSObject.fromJSONObject(implementation.dumpTrace(call.getBoolean("clear", false))));
+        } catch (JSONException e) {
+            call.reject("Unable to export trace: " + e.getMessage());
+        }
+    }
+
+    @PluginMethod
+    public void setDebugLogging(PluginCall call) {
+        implementation.setDebugLogging(call.getBoolean("enabled", false));
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void setMaxConcurrentDownloads(PluginCall call) {
+        Integer max = call.getInt("max");
+        if (max == null || max < 1) {
+            call.reject("max must be at least 1");
+            return;
+        }
+
+        implementation.setMaxConcurrentDownloads(max);
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void setApkCacheSize(PluginCall call) {
+        Long maxBytes = call.getLong("maxBytes");
+        if (maxBytes == null || maxBytes < 0) {
+            call.reject("maxBytes must not be negative");
+            return;
+        }
+
+        implementation.setApkCacheSize(maxBytes);
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void clearApkCache(PluginCall call) {
+        implementation.clearApkCache();
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void enablePeerSharing(PluginCall call) {
+        int port = call.getInt("port", 0);
+        boolean discover = call.getBoolean("discover", true);
+        List<String> peers = new ArrayList<>();
+        JSArray configured = call.getArray("peers");
+        if (configured != null) {
+            for (int i = 0; i < configured.length(); i++) {
+                String peer = configured.optString(i, null);
+                if (peer != null && !peer.isEmpty()) {
+                    peers.add(peer);
+                }
+            }
+        }
+
+        try {
+            JSObject result = new JSObject();
+            result.put("port", implementation.enablePeerSharing(port, discover, peers));
+            call.resolve(result);
+        } catch (Exception e) {
+            call.reject("Unable to start peer sharing: " + e.getMessage());
+        }
+    }
+
+    @PluginMethod
+    public void disablePeerSharing(PluginCall call) {
+        implementation.disablePeerSharing();
+        call.resolve();
+    }
+
     @PluginMethod
     public void installApk(PluginCall call) {
         String filePath = call.getString("filePath");
@@ -160,7 +555,12 @@ public class CapacitorApkUpdaterPlugin extends Plugin {
             return;
         }
 
-        boolean success = implementation.installApk(filePath);
+        String installMode = call.getString("installMode", CapacitorApkUpdater.INSTALL_MODE_INTENT);
+        if (!isKnownInstallMode(installMode)) {
+            call.reject("Unknown install mode: " + installMode);
+            return;
+        }
+        boolean success = CapacitorApkUpdater.INSTALL_MODE_SESSION.equals(installMode) ? implementation.installApkWithSession(filePath) : implementation.installApk(filePath);
         
         JSObject result = new JSObject();
         result.put("success", success);
@@ -191,6 +591,39 @@ public class CapacitorApkUpdaterPlugin extends Plugin {
         call.resolve(result);
     }
 
+    @PluginMethod
+    public void checkForUpdate(final PluginCall call) {
+        String url = call.getString("url");
+        if (url == null || url.isEmpty()) {
+            call.reject("URL is required");
+            return;
+        }
+
+        implementation.checkForUpdate(url, new CapacitorApkUpdater.UpdateCheckListener() {
+            @Override
+            public void onUpdateChecked(CapacitorApkUpdater.UpdateCheckResult check) {
+                JSObject result = new JSObject();
+                result.put("success", check.success);
+
+                if (check.success) {
+                    result.put("updateAvailable", check.updateAvailable);
+                    result.put("currentVersionCode", check.currentVersionCode);
+                    result.put("currentVersionName", check.currentVersionName);
+                    result.put("availableVersionCode", check.manifest.versionCode);
+                    if (check.manifest.versionName != null) {
+                        result.put("availableVersionName", check.manifest.versionName);
+                    }
+                    result.put("fromCache", check.manifest.fromCache);
+                    result.put("manifest", check.manifest.json);
+                } else {
+                    result.put("error", check.error);
+                }
+
+                call.resolve(result);
+            }
+        });
+    }
+
     @ActivityCallback
     private void installPermissionResult(PluginCall call, PluginResult result) {
         JSObject jsResult = new JSObject();
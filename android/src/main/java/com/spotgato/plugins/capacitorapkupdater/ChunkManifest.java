@@ -0,0 +1,193 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * SHA-256 of every chunk of an APK and the Merkle root over them, published next to the APK.
+ *
+ * Chunks can be checked independently, so verification spreads over all cores and a corrupt byte
+ * costs one chunk instead of the whole file. The manifest is JSON:
+ * {@code {"chunkSize": 1048576, "length": 157286400, "root": "<hex>", "chunks": ["<hex>", ...]}}.
+ * A leaf is SHA-256(0x00 || chunk), a node SHA-256(0x01 || left || right), and a node without a
+ * sibling moves up a level as it is.
+ */
+public class ChunkManifest {
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    static final int MIN_CHUNK_SIZE = 64 * 1024;
+    private static final int HASH_LENGTH = 32;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+    static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    public final int chunkSize;
+    public final long length;
+    public final String root;
+    private final byte[][] leaves;
+
+    ChunkManifest(int chunkSize, long length, byte[][] leaves) {
+        this.chunkSize = chunkSize;
+        this.length = length;
+        this.leaves = leaves;
+        this.root = StreamingVerifier.toHex(computeRoot(leaves));
+    }
+
+    public int getChunkCount() {
+        return leaves.length;
+    }
+
+    /**
+     * {start, endExclusive} of a chunk.
+     */
+    public long[] range(int chunk) {
+        long start = (long) chunk * chunkSize;
+        return new long[] { start, Math.min(length, start + chunkSize) };
+    }
+
+    byte[] leaf(int chunk) {
+        return leaves[chunk];
+    }
+
+    public static ChunkManifest parse(String body) throws Exception {
+        JSONObject json = new JSONObject(body);
+        int chunkSize = json.getInt("chunkSize");
+        long length = json.getLong("length");
+        JSONArray chunks = json.getJSONArray("chunks");
+        if (chunkSize < MIN_CHUNK_SIZE || length < 0 || chunks.length() != chunkCount(length, chunkSize)) {
+            throw new Exception("Corrupt chunk manifest");
+        }
+        byte[][] leaves = new byte[chunks.length()][];
+        for (int i = 0; i < leaves.length; i++) {
+            leaves[i] = fromHex(chunks.getString(i));
+        }
+        ChunkManifest manifest = new ChunkManifest(chunkSize, length, leaves);
+        if (!manifest.root.equals(StreamingVerifier.normalizeHex(json.getString("root")))) {
+            throw new Exception("Chunk manifest root does not match its chunks");
+        }
+        return manifest;
+    }
+
+    public static ChunkManifest fetch(String url) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        try {
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new Exception("Chunk manifest request failed with HTTP " + code);
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = connection.getInputStream()) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    body.write(buffer, 0, read);
+                }
+            }
+            return parse(body.toString("UTF-8"));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    public static ChunkManifest build(File file, int chunkSize) throws IOException {
+        if (chunkSize < MIN_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be at least " + MIN_CHUNK_SIZE);
+        }
+        long length = file.length();
+        byte[][] leaves = new byte[chunkCount(length, chunkSize)][];
+        MessageDigest digest = StreamingVerifier.newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            for (int i = 0; i < leaves.length; i++) {
+                long start = (long) i * chunkSize;
+                leaves[i] = hashChunk(in, start, Math.min(length, start + chunkSize), digest, buffer);
+            }
+        }
+        return new ChunkManifest(chunkSize, length, leaves);
+    }
+
+    public String toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("chunkSize", chunkSize);
+        json.put("length", length);
+        json.put("root", root);
+        JSONArray chunks = new JSONArray();
+        for (byte[] leaf : leaves) {
+            chunks.put(StreamingVerifier.toHex(leaf));
+        }
+        json.put("chunks", chunks);
+        return json.toString();
+    }
+
+    static byte[] hashChunk(RandomAccessFile in, long start, long end, MessageDigest digest, byte[] buffer) throws IOException {
+        digest.reset();
+        digest.update(LEAF);
+        in.seek(start);
+        long remaining = end - start;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1) {
+                throw new IOException("File ended at " + (end - remaining));
+            }
+            digest.update(buffer, 0, read);
+            remaining -= read;
+        }
+        return digest.digest();
+    }
+
+    static byte[] computeRoot(byte[][] leaves) {
+        MessageDigest digest = StreamingVerifier.newDigest();
+        if (leaves.length == 0) {
+            return digest.digest(new byte[] { LEAF });
+        }
+        byte[][] level = leaves;
+        while (level.length > 1) {
+            byte[][] parents = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parents.length; i++) {
+                if (2 * i + 1 == level.length) {
+                    parents[i] = level[2 * i];
+                    continue;
+                }
+                digest.update(NODE);
+                digest.update(level[2 * i]);
+                digest.update(level[2 * i + 1]);
+                parents[i] = digest.digest();
+            }
+            level = parents;
+        }
+        return level[0];
+    }
+
+    private static int chunkCount(long length, int chunkSize) {
+        return (int) ((length + chunkSize - 1) / chunkSize);
+    }
+
+    private static byte[] fromHex(String hex) throws Exception {
+        String normalized = StreamingVerifier.normalizeHex(hex);
+        if (normalized.length() != HASH_LENGTH * 2) {
+            throw new Exception("Corrupt chunk manifest");
+        }
+        byte[] bytes = new byte[HASH_LENGTH];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(normalized.charAt(2 * i), 16);
+            int low = Character.digit(normalized.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new Exception("Corrupt chunk manifest");
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,198 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks a file against a {@link ChunkManifest} with a fork-join split over its chunks, so every
+ * core hashes a different region.
+ *
+ * Which chunks already matched is kept next to the file, so checking it again after some chunks
+ * were fetched anew, or after a restart, only hashes what wasn't verified yet. Whoever rewrites
+ * the file from scratch has to delete that state with it, see {@link #stateFor}.
+ */
+public class ChunkVerifier {
+    private static final int STATE_MAGIC = 0x41504b56; // "APKV"
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // ForkJoinPool.commonPool() needs API 24
+    private static ForkJoinPool sharedPool;
+
+    private final ChunkManifest manifest;
+    private final ForkJoinPool pool;
+    private final AtomicInteger chunksHashed = new AtomicInteger();
+
+    public ChunkVerifier(ChunkManifest manifest) {
+        this(manifest, sharedPool());
+    }
+
+    public ChunkVerifier(ChunkManifest manifest, ForkJoinPool pool) {
+        this.manifest = manifest;
+        this.pool = pool;
+    }
+
+    private static synchronized ForkJoinPool sharedPool() {
+        if (sharedPool == null) {
+            sharedPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sharedPool;
+    }
+
+    public static File stateFor(File target) {
+        return new File(target.getPath() + ".verified");
+    }
+
+    /**
+     * Chunks hashed by the last {@link #verify}, the rest were known to match.
+     */
+    public int getChunksHashed() {
+        return chunksHashed.get();
+    }
+
+    /**
+     * Returns the {start, endExclusive} ranges of the chunks that don't match, empty once the
+     * whole file hashes to the manifest's root.
+     */
+    public List<long[]> verify(File file) throws IOException {
+        if (file.length() != manifest.length) {
+            throw new IOException("File is " + file.length() + " bytes, expected " + manifest.length);
+        }
+        final BitSet verified = loadState(file);
+        final BitSet failed = new BitSet(manifest.getChunkCount());
+        chunksHashed.set(0);
+        try (final RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            pool.invoke(new VerifyTask(in.getChannel(), 0, manifest.getChunkCount(), verified, failed));
+        } catch (RuntimeException e) {
+            // Fork-join may wrap the task's exception once more
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw e;
+        }
+        saveState(file, verified);
+
+        List<long[]> mismatches = new ArrayList<>();
+        for (int chunk = failed.nextSetBit(0); chunk >= 0; chunk = failed.nextSetBit(chunk + 1)) {
+            mismatches.add(manifest.range(chunk));
+        }
+        return mismatches;
+    }
+
+    // Splits the chunk range in halves until one chunk is left, which is hashed on its own
+    private class VerifyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final int from;
+        private final int to;
+        private final BitSet verified;
+        private final BitSet failed;
+
+        VerifyTask(FileChannel channel, int from, int to, BitSet verified, BitSet failed) {
+            this.channel = channel;
+            this.from = from;
+            this.to = to;
+            this.verified = verified;
+            this.failed = failed;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new VerifyTask(channel, from, middle, verified, failed), new VerifyTask(channel, middle, to, verified, failed));
+                return;
+            }
+            synchronized (verified) {
+                if (from == to || verified.get(from)) {
+                    return;
+                }
+            }
+            boolean matches;
+            try {
+                matches = Arrays.equals(hash(from), manifest.leaf(from));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            chunksHashed.incrementAndGet();
+            BitSet result = matches ? verified : failed;
+            synchronized (result) {
+                result.set(from);
+            }
+        }
+
+        // Positional reads, the channel is shared by every task
+        private byte[] hash(int chunk) throws IOException {
+            long[] range = manifest.range(chunk);
+            MessageDigest digest = StreamingVerifier.newDigest();
+            digest.update(ChunkManifest.LEAF);
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = range[0];
+            while (position < range[1]) {
+                buffer.clear();
+                buffer.limit((int) Math.min(BUFFER_SIZE, range[1] - position));
+                int read = channel.read(buffer, position);
+                if (read == -1) {
+                    throw new IOException("File ended at " + position);
+                }
+                digest.update(buffer.array(), 0, read);
+                position += read;
+            }
+            return digest.digest();
+        }
+    }
+
+    // Verified chunks of this file, if the state was written for the same manifest
+    private BitSet loadState(File file) {
+        File state = stateFor(file);
+        if (!state.exists()) {
+            return new BitSet(manifest.getChunkCount());
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(state)))) {
+            if (in.readInt() == STATE_MAGIC && in.readUTF().equals(manifest.root) && in.readLong() == manifest.length) {
+                long[] words = new long[in.readInt()];
+                for (int i = 0; i < words.length; i++) {
+                    words[i] = in.readLong();
+                }
+                return BitSet.valueOf(words);
+            }
+        } catch (IOException e) {
+            // Unreadable, hash everything
+        }
+        return new BitSet(manifest.getChunkCount());
+    }
+
+    private void saveState(File file, BitSet verified) {
+        long[] words = verified.toLongArray();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(stateFor(file))))) {
+            out.writeInt(STATE_MAGIC);
+            out.writeUTF(manifest.root);
+            out.writeLong(manifest.length);
+            out.writeInt(words.length);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+        } catch (IOException e) {
+            // Only costs hashing again next time
+        }
+    }
+}
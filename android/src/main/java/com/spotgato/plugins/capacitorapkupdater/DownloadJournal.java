@@ -0,0 +1,197 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persistent checkpoint for an in-process download: the source URL, the validators the server
+ * gave us and the byte ranges that are already safely on disk.
+ */
+public class DownloadJournal {
+    private static final int MAGIC = 0x41504b4a; // "APKJ"
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final String url;
+    private final String etag;
+    private final String lastModified;
+    private final long totalSize;
+    // Sorted, non-overlapping {start, endExclusive} ranges
+    private final List<long[]> completed = new ArrayList<>();
+
+    public DownloadJournal(File file, String url, String etag, String lastModified, long totalSize) {
+        this.file = file;
+        this.url = url;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.totalSize = totalSize;
+    }
+
+    public static File journalFor(File target) {
+        return new File(target.getPath() + ".journal");
+    }
+
+    /**
+     * Reads a journal back, returning null when there is none or it can't be trusted.
+     */
+    public static DownloadJournal load(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            String url = in.readUTF();
+            String etag = readNullable(in);
+            String lastModified = readNullable(in);
+            long totalSize = in.readLong();
+            DownloadJournal journal = new DownloadJournal(file, url, etag, lastModified, totalSize);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                journal.markCompleted(in.readLong(), in.readLong());
+            }
+            return journal;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Whether the journal describes the same remote file. Without any validator we can't tell
+     * if the file changed, so such a journal is never resumed.
+     */
+    public boolean matches(String url, String etag, String lastModified, long totalSize) {
+        if (!this.url.equals(url) || this.totalSize != totalSize) {
+            return false;
+        }
+        if (this.etag != null || etag != null) {
+            return this.etag != null && this.etag.equals(etag);
+        }
+        return this.lastModified != null && this.lastModified.equals(lastModified);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public synchronized void markCompleted(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+        long newStart = start;
+        long newEnd = end;
+        int insertAt = 0;
+        for (int i = 0; i < completed.size(); ) {
+            long[] range = completed.get(i);
+            if (range[1] < newStart) {
+                insertAt = ++i;
+            } else if (range[0] > newEnd) {
+                break;
+            } else {
+                // Overlapping or touching, merge it in
+                newStart = Math.min(newStart, range[0]);
+                newEnd = Math.max(newEnd, range[1]);
+                completed.remove(i);
+            }
+        }
+        completed.add(insertAt, new long[] { newStart, newEnd });
+    }
+
+    public synchronized long getBytesCompleted() {
+        long total = 0;
+        for (long[] range : completed) {
+            total += range[1] - range[0];
+        }
+        return total;
+    }
+
+    public synchronized boolean isComplete() {
+        return completed.size() == 1 && completed.get(0)[0] == 0 && completed.get(0)[1] >= totalSize;
+    }
+
+    public synchronized List<long[]> getCompletedRanges() {
+        List<long[]> copy = new ArrayList<>();
+        for (long[] range : completed) {
+            copy.add(new long[] { range[0], range[1] });
+        }
+        return copy;
+    }
+
+    public synchronized List<long[]> getMissingRanges() {
+        List<long[]> missing = new ArrayList<>();
+        long position = 0;
+        for (long[] range : completed) {
+            if (range[0] > position) {
+                missing.add(new long[] { position, range[0] });
+            }
+            position = Math.max(position, range[1]);
+        }
+        if (position < totalSize) {
+            missing.add(new long[] { position, totalSize });
+        }
+        return missing;
+    }
+
+    /**
+     * Writes the journal through a temp file so a crash never leaves a half-written checkpoint.
+     */
+    public synchronized void save() throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(url);
+            writeNullable(out, etag);
+            writeNullable(out, lastModified);
+            out.writeLong(totalSize);
+            out.writeInt(completed.size());
+            for (long[] range : completed) {
+                out.writeLong(range[0]);
+                out.writeLong(range[1]);
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to write download journal");
+        }
+    }
+
+    public void delete() {
+        file.delete();
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Where the time of one download went, from the moment it was requested until the installer had
+ * the APK.
+ *
+ * Progress is only seen as often as the downloads are polled, so first byte, throughput and stalls
+ * have the resolution of the poll interval. Times are milliseconds on a monotonic clock passed in
+ * by the caller, -1 stands for something that didn't happen (yet).
+ */
+public class DownloadMetrics {
+    public static final String SOURCE_NETWORK = "network";
+    public static final String SOURCE_CACHE = "cache";
+    public static final String SOURCE_PREFETCH = "prefetch";
+    // How the end of the transfer was noticed
+    public static final String DETECTED_BY_RECEIVER = "receiver";
+    public static final String DETECTED_BY_POLL = "poll";
+    public static final String DETECTED_BY_TRANSFER = "transfer";
+    // A gap this long without new bytes counts as a stall
+    static final long STALL_THRESHOLD = 2000;
+    // Peak throughput is measured over windows at least this long so a single burst doesn't count
+    static final long PEAK_WINDOW = 1000;
+
+    private final long downloadId;
+    private final String url;
+    private final String engine;
+    private final long createdAt;
+    private final long createdAtEpochMillis;
+    private String source = SOURCE_NETWORK;
+    private long startedAt = -1;
+    private long firstByteAt = -1;
+    private long lastByteAt = -1;
+    private long lastBytes = 0;
+    private long bytesTransferred = 0;
+    // Already there when the first byte was seen, so not part of the measured interval
+    private long firstSampleBytes = 0;
+    private long windowStart = -1;
+    private long windowBytes = 0;
+    private long peakBytesPerSecond = -1;
+    private long stallMillis = 0;
+    private int stalls = 0;
+    private long transferFinishedAt = -1;
+    private long completionDetectedAt = -1;
+    private String detectedBy;
+    private int duplicateCompletions = 0;
+    private long verifyStartedAt = -1;
+    private long verifyMillis = -1;
+    private long deliveredAt = -1;
+    private boolean success = false;
+    private String errorCode;
+    private long installHandoffMillis = -1;
+
+    public DownloadMetrics(long downloadId, String url, String engine, long now, long nowEpochMillis) {
+        this.downloadId = downloadId;
+        this.url = url;
+        this.engine = engine;
+        this.createdAt = now;
+        this.createdAtEpochMillis = nowEpochMillis;
+    }
+
+    public long getDownloadId() {
+        return downloadId;
+    }
+
+    /**
+     * The download left the queue and its first transfer was handed to the engine.
+     */
+    public synchronized void onStarted(long now) {
+        if (startedAt < 0) {
+            startedAt = now;
+        }
+    }
+
+    public synchronized void onSource(String source) {
+        this.source = source;
+    }
+
+    /**
+     * Bytes downloaded so far by the current transfer. A smaller value than last time means a new
+     * transfer started, e.g. the full APK after a failed patch.
+     */
+    public synchronized void onBytes(long bytes, long now) {
+        if (bytes < lastBytes) {
+            lastBytes = 0;
+            windowStart = now;
+            windowBytes = 0;
+        }
+        if (bytes == lastBytes) {
+            return;
+        }
+        if (firstByteAt < 0) {
+            firstByteAt = now;
+            firstSampleBytes = bytes;
+            windowStart = now;
+            windowBytes = bytes;
+        } else if (now - lastByteAt > STALL_THRESHOLD) {
+            stallMillis += now - lastByteAt;
+            stalls++;
+        }
+        bytesTransferred += bytes - lastBytes;
+        lastBytes = bytes;
+        lastByteAt = now;
+
+        if (now - windowStart >= PEAK_WINDOW) {
+            long rate = (bytes - windowBytes) * 1000 / (now - windowStart);
+            peakBytesPerSecond = Math.max(peakBytesPerSecond, rate);
+            windowStart = now;
+            windowBytes = bytes;
+        }
+    }
+
+    /**
+     * An in-process transfer returned, the updater thread notices it a moment later.
+     */
+    public synchronized void onTransferFinished(long now) {
+        transferFinishedAt = now;
+    }
+
+    /**
+     * The end of a transfer was noticed. A delta update has two transfers, the later one counts.
+     */
+    public synchronized void onCompletionDetected(String detectedBy, long now) {
+        this.detectedBy = detectedBy;
+        completionDetectedAt = now;
+    }
+
+    /**
+     * A completion signal that arrived after the download was already handled.
+     */
+    public synchronized void onDuplicateCompletion() {
+        duplicateCompletions++;
+    }
+
+    public synchronized void onVerifyStarted(long now) {
+        verifyStartedAt = now;
+    }
+
+    public synchronized void onVerifyFinished(long now) {
+        if (verifyStartedAt >= 0) {
+            verifyMillis = Math.max(0, verifyMillis) + now - verifyStartedAt;
+            verifyStartedAt = -1;
+        }
+    }
+
+    public synchronized void onDelivered(boolean success, String errorCode, long now) {
+        this.success = success;
+        this.errorCode = errorCode;
+        deliveredAt = now;
+    }
+
+    /**
+     * The installer has the APK, {@code now} being when the intent was sent or the session committed.
+     */
+    public synchronized void onInstallHandoff(long now) {
+        if (deliveredAt >= 0) {
+            installHandoffMillis = now - deliveredAt;
+        }
+    }
+
+    public synchronized long getAverageBytesPerSecond() {
+        long elapsed = lastByteAt - firstByteAt;
+        return firstByteAt >= 0 && elapsed > 0 ? (bytesTransferred - firstSampleBytes) * 1000 / elapsed : -1;
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("downloadId", downloadId);
+        json.put("url", url);
+        json.put("engine", engine);
+        json.put("source", source);
+        json.put("startedAt", createdAtEpochMillis);
+        json.put("queueMillis", since(createdAt, startedAt));
+        json.put("timeToFirstByteMillis", since(startedAt, firstByteAt));
+        json.put("bytesTransferred", bytesTransferred);
+        json.put("averageBytesPerSecond", getAverageBytesPerSecond());
+        json.put("peakBytesPerSecond", peakBytesPerSecond);
+        json.put("stallMillis", stallMillis);
+        json.put("stalls", stalls);
+        json.put("completionDetectedBy", detectedBy != null ? detectedBy : JSONObject.NULL);
+        // From the end of the transfer, or the last progress seen when the engine doesn't say
+        json.put("completionDetectMillis", since(transferFinishedAt >= 0 ? transferFinishedAt : lastByteAt, completionDetectedAt));
+        json.put("duplicateCompletions", duplicateCompletions);
+        json.put("verifyMillis", verifyMillis);
+        json.put("installHandoffMillis", installHandoffMillis);
+        json.put("totalMillis", since(createdAt, deliveredAt));
+        json.put("finished", deliveredAt >= 0);
+        json.put("success", success);
+        json.put("errorCode", errorCode != null ? errorCode : JSONObject.NULL);
+        return json;
+    }
+
+    private static long since(long from, long to) {
+        return from >= 0 && to >= 0 ? Math.max(0, to - from) : -1;
+    }
+}
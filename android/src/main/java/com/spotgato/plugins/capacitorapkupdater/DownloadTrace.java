@@ -0,0 +1,123 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The last few thousand things that happened to downloads, kept in preallocated arrays so
+ * recording one allocates nothing and builds no string. Text is only produced when the trace is
+ * exported with {@link #toJson}.
+ *
+ * An event is a type, a download ID, a time in nanoseconds on a monotonic clock passed in by the
+ * caller, and up to two numbers whose meaning depends on the type, see {@link #FIELDS}. Once the
+ * ring is full the oldest events are overwritten.
+ */
+public class DownloadTrace {
+    public static final int DEFAULT_CAPACITY = 2048;
+
+    public static final int EVENT_ENQUEUED = 0;
+    public static final int EVENT_POLL = 1;
+    public static final int EVENT_PROGRESS = 2;
+    public static final int EVENT_BROADCAST = 3;
+    public static final int EVENT_COMPLETION = 4;
+    public static final int EVENT_VERIFY_STARTED = 5;
+    public static final int EVENT_VERIFY_FINISHED = 6;
+    public static final int EVENT_DELIVERED = 7;
+    public static final int EVENT_CANCELLED = 8;
+    // How a completion was noticed, see DownloadMetrics
+    public static final long DETECTED_BY_RECEIVER = 0;
+    public static final long DETECTED_BY_POLL = 1;
+    public static final long DETECTED_BY_TRANSFER = 2;
+
+    static final String[] NAMES = {
+        "enqueued", "poll", "progress", "broadcast", "completion", "verifyStarted", "verifyFinished", "delivered", "cancelled"
+    };
+    // What the two numbers of each event type stand for, null where unused
+    static final String[][] FIELDS = {
+        { "engine", null }, // 1 if DownloadManager was requested, 0 for the in-process engine
+        { "active", "moved" }, // download ID is 0, a poll covers every download
+        { "bytesDownloaded", "totalSize" },
+        { "managerId", null }, // download ID is 0 if no running download matched
+        { "detectedBy", null },
+        { null, null },
+        { "success", null },
+        { "success", null },
+        { null, null }
+    };
+
+    private final int[] types;
+    private final long[] downloadIds;
+    private final long[] times;
+    private final long[] firstValues;
+    private final long[] secondValues;
+    private final long startedAtNanos;
+    private final long startedAtEpochMillis;
+    // Events recorded since the start or the last clear, the newest is at (count - 1) % capacity
+    private long count = 0;
+
+    public DownloadTrace(int capacity, long nowNanos, long nowEpochMillis) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        types = new int[capacity];
+        downloadIds = new long[capacity];
+        times = new long[capacity];
+        firstValues = new long[capacity];
+        secondValues = new long[capacity];
+        startedAtNanos = nowNanos;
+        startedAtEpochMillis = nowEpochMillis;
+    }
+
+    public synchronized void record(int type, long downloadId, long nowNanos, long first, long second) {
+        int slot = (int) (count % types.length);
+        types[slot] = type;
+        downloadIds[slot] = downloadId;
+        times[slot] = nowNanos;
+        firstValues[slot] = first;
+        secondValues[slot] = second;
+        count++;
+    }
+
+    public int getCapacity() {
+        return types.length;
+    }
+
+    public synchronized long getRecorded() {
+        return count;
+    }
+
+    public synchronized void clear() {
+        count = 0;
+    }
+
+    /**
+     * The events still in the ring, oldest first. Times are nanoseconds since the trace was
+     * created, at {@code startedAt} milliseconds since the epoch.
+     */
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("startedAt", startedAtEpochMillis);
+        json.put("capacity", types.length);
+        json.put("recorded", count);
+        json.put("dropped", Math.max(0, count - types.length));
+        JSONArray events = new JSONArray();
+        for (long i = Math.max(0, count - types.length); i < count; i++) {
+            int slot = (int) (i % types.length);
+            int type = types[slot];
+            JSONObject event = new JSONObject();
+            event.put("type", NAMES[type]);
+            event.put("downloadId", downloadIds[slot]);
+            event.put("atNanos", times[slot] - startedAtNanos);
+            if (FIELDS[type][0] != null) {
+                event.put(FIELDS[type][0], firstValues[slot]);
+            }
+            if (FIELDS[type][1] != null) {
+                event.put(FIELDS[type][1], secondValues[slot]);
+            }
+            events.put(event);
+        }
+        json.put("events", events);
+        return json;
+    }
+}
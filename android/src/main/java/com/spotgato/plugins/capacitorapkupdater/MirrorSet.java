@@ -0,0 +1,212 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ranked list of URLs serving the same APK, with what has been measured about each of them.
+ *
+ * The best mirror is the fastest one that still works. Rank only breaks near-ties, so a mirror
+ * lower in the list has to be clearly faster before it is preferred. A mirror that fails too often
+ * or turns out to serve a different file is dropped for the rest of the download.
+ */
+public class MirrorSet {
+    static final int MAX_FAILURES = 3;
+    // A lower ranked mirror must be this much faster to be preferred
+    private static final double PREFERENCE_MARGIN = 1.25;
+    // A transfer this much slower than the best mirror is worth moving
+    static final double SLOW_FACTOR = 3.0;
+    // Weight of a new throughput sample in the running estimate
+    private static final double RATE_WEIGHT = 0.3;
+
+    private final List<Mirror> mirrors = new ArrayList<>();
+
+    public MirrorSet(List<String> urls) {
+        for (String url : urls) {
+            if (url != null && !url.isEmpty() && find(url) == null) {
+                mirrors.add(new Mirror(url, mirrors.size()));
+            }
+        }
+    }
+
+    public List<Mirror> getMirrors() {
+        return mirrors;
+    }
+
+    public synchronized Mirror best() {
+        return bestExcept(null);
+    }
+
+    /**
+     * Best working mirror other than {@code excluded}, or null if there is none.
+     */
+    public synchronized Mirror bestExcept(Mirror excluded) {
+        Mirror best = null;
+        for (Mirror mirror : mirrors) {
+            if (mirror == excluded || mirror.disabled) {
+                continue;
+            }
+            if (best == null || isBetter(mirror, best)) {
+                best = mirror;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns a mirror clearly faster than what {@code current} is doing at {@code bytesPerSecond},
+     * or null when staying is fine.
+     */
+    public synchronized Mirror fasterThan(Mirror current, double bytesPerSecond) {
+        Mirror best = bestExcept(current);
+        if (best == null || best.bytesPerSecond <= 0) {
+            return null;
+        }
+        return best.bytesPerSecond > bytesPerSecond * SLOW_FACTOR ? best : null;
+    }
+
+    private static boolean isBetter(Mirror candidate, Mirror current) {
+        if (candidate.bytesPerSecond <= 0 || current.bytesPerSecond <= 0) {
+            // Unmeasured mirrors keep their rank, measured ones beat them
+            if (candidate.bytesPerSecond > 0 != current.bytesPerSecond > 0) {
+                return candidate.bytesPerSecond > 0;
+            }
+            return candidate.rank < current.rank;
+        }
+        double margin = candidate.rank < current.rank ? 1 / PREFERENCE_MARGIN : PREFERENCE_MARGIN;
+        return candidate.bytesPerSecond > current.bytesPerSecond * margin;
+    }
+
+    public synchronized void recordProbe(Mirror mirror, long firstByteMillis, long bytes, long millis) {
+        mirror.firstByteMillis = firstByteMillis;
+        if (bytes > 0) {
+            mirror.bytesPerSecond = bytes * 1000.0 / Math.max(1, millis);
+        }
+    }
+
+    public synchronized void recordTransfer(Mirror mirror, long bytes, long millis) {
+        mirror.bytesDownloaded += bytes;
+        if (bytes <= 0) {
+            return;
+        }
+        double rate = bytes * 1000.0 / Math.max(1, millis);
+        mirror.bytesPerSecond = mirror.bytesPerSecond <= 0 ? rate : mirror.bytesPerSecond + RATE_WEIGHT * (rate - mirror.bytesPerSecond);
+    }
+
+    public synchronized void recordFailure(Mirror mirror, String error) {
+        mirror.failures++;
+        mirror.error = error;
+        if (mirror.failures >= MAX_FAILURES) {
+            mirror.disabled = true;
+        }
+    }
+
+    public synchronized void recordHedge(Mirror mirror) {
+        mirror.hedges++;
+    }
+
+    public synchronized void disable(Mirror mirror, String error) {
+        mirror.disabled = true;
+        mirror.error = error;
+    }
+
+    /**
+     * Drops the mirrors that report a different length than {@code reference}, they can't be
+     * serving the same file.
+     */
+    public synchronized void retainSameLength(Mirror reference) {
+        for (Mirror mirror : mirrors) {
+            if (!mirror.disabled && mirror.totalSize != reference.totalSize) {
+                mirror.disabled = true;
+                mirror.error = "Serves a different file";
+            }
+        }
+    }
+
+    /**
+     * The mirror most of the APK came from.
+     */
+    public synchronized Mirror mostUsed() {
+        Mirror used = null;
+        for (Mirror mirror : mirrors) {
+            if (used == null || mirror.bytesDownloaded > used.bytesDownloaded) {
+                used = mirror;
+            }
+        }
+        return used;
+    }
+
+    public synchronized List<Timing> getTimings() {
+        List<Timing> timings = new ArrayList<>();
+        for (Mirror mirror : mirrors) {
+            timings.add(new Timing(mirror.url, mirror.firstByteMillis, Math.round(mirror.bytesPerSecond), mirror.bytesDownloaded, mirror.failures, mirror.hedges, mirror.error));
+        }
+        return timings;
+    }
+
+    /**
+     * Summary of all failures, for when no mirror is left.
+     */
+    public synchronized String describeFailures() {
+        StringBuilder description = new StringBuilder();
+        for (Mirror mirror : mirrors) {
+            if (description.length() > 0) {
+                description.append(", ");
+            }
+            description.append(mirror.url).append(" (").append(mirror.error != null ? mirror.error : "not tried").append(')');
+        }
+        return description.toString();
+    }
+
+    private Mirror find(String url) {
+        for (Mirror mirror : mirrors) {
+            if (mirror.url.equals(url)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    public static class Mirror {
+        public final String url;
+        final int rank;
+        // Validators and length as this mirror reported them, mirrors rarely share ETags
+        volatile String etag;
+        volatile String lastModified;
+        volatile long totalSize = -1;
+        long firstByteMillis = -1;
+        double bytesPerSecond = 0;
+        long bytesDownloaded = 0;
+        int failures = 0;
+        int hedges = 0;
+        String error;
+        boolean disabled = false;
+
+        Mirror(String url, int rank) {
+            this.url = url;
+            this.rank = rank;
+        }
+    }
+
+    public static class Timing {
+        public final String url;
+        // Time to the first byte of the probe, -1 if it never arrived
+        public final long firstByteMillis;
+        public final long bytesPerSecond;
+        public final long bytesDownloaded;
+        public final int failures;
+        // Requests to this mirror that were slow enough to hedge on another one
+        public final int hedges;
+        public final String error;
+
+        public Timing(String url, long firstByteMillis, long bytesPerSecond, long bytesDownloaded, int failures, int hedges, String error) {
+            this.url = url;
+            this.firstByteMillis = firstByteMillis;
+            this.bytesPerSecond = bytesPerSecond;
+            this.bytesDownloaded = bytesDownloaded;
+            this.failures = failures;
+            this.hedges = hedges;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import org.brotli.dec.BrotliInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decoders for APKs that travel compressed, either as a compressed file (".apk.gz", ".apk.br",
+ * ".apk.zst") or through HTTP Content-Encoding.
+ *
+ * gzip and deflate come with the platform and brotli with the bundled decoder. zstd needs native
+ * code, so it is only available when the app adds com.github.luben:zstd-jni itself.
+ */
+public class PayloadCodec {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    public static final String BROTLI = "br";
+    public static final String ZSTD = "zstd";
+    public static final String IDENTITY = "identity";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static Boolean zstdAvailable;
+
+    /**
+     * Returns the encoding implied by the file extension of {@code url}, or null for a plain file.
+     */
+    public static String fromUrl(String url) {
+        String path = url;
+        int end = path.length();
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            end = query;
+        }
+        int fragment = path.indexOf('#');
+        if (fragment >= 0 && fragment < end) {
+            end = fragment;
+        }
+        path = path.substring(0, end).toLowerCase(Locale.US);
+        if (path.endsWith(".gz")) {
+            return GZIP;
+        }
+        if (path.endsWith(".br")) {
+            return BROTLI;
+        }
+        if (path.endsWith(".zst")) {
+            return ZSTD;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the Content-Encoding value of a response, or null when the body is not encoded.
+     */
+    public static String fromContentEncoding(String header) {
+        if (header == null) {
+            return null;
+        }
+        String encoding = header.trim().toLowerCase(Locale.US);
+        if (encoding.isEmpty() || encoding.equals(IDENTITY)) {
+            return null;
+        }
+        return encoding.equals("x-gzip") ? GZIP : encoding;
+    }
+
+    public static boolean isSupported(String encoding) {
+        if (GZIP.equals(encoding) || DEFLATE.equals(encoding) || BROTLI.equals(encoding)) {
+            return true;
+        }
+        return ZSTD.equals(encoding) && isZstdAvailable();
+    }
+
+    /**
+     * Accept-Encoding header listing what can be decoded, best ratio first.
+     */
+    public static String acceptEncoding() {
+        return isZstdAvailable() ? "zstd, br, gzip, deflate" : "br, gzip, deflate";
+    }
+
+    public static InputStream decode(String encoding, InputStream in) throws IOException {
+        if (GZIP.equals(encoding)) {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        if (DEFLATE.equals(encoding)) {
+            // HTTP deflate is the zlib format, not raw deflate
+            return new InflaterInputStream(in);
+        }
+        if (BROTLI.equals(encoding)) {
+            return new BrotliInputStream(in, BUFFER_SIZE);
+        }
+        if (ZSTD.equals(encoding)) {
+            if (!isZstdAvailable()) {
+                throw new IOException("zstd needs com.github.luben:zstd-jni in the app");
+            }
+            return Zstd.decode(in);
+        }
+        throw new IOException("Unsupported encoding " + encoding);
+    }
+
+    private static synchronized boolean isZstdAvailable() {
+        if (zstdAvailable == null) {
+            try {
+                Class.forName("com.github.luben.zstd.ZstdInputStream");
+                zstdAvailable = true;
+            } catch (ClassNotFoundException | LinkageError e) {
+                zstdAvailable = false;
+            }
+        }
+        return zstdAvailable;
+    }
+
+    // Kept in its own class so zstd-jni is only loaded when a zstd payload actually arrives
+    private static class Zstd {
+        static InputStream decode(InputStream in) throws IOException {
+            return new com.github.luben.zstd.ZstdInputStream(in);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.net.nsd.NsdManager;
+import android.net.nsd.NsdServiceInfo;
+import android.os.Build;
+import com.getcapacitor.Logger;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Announces this device's {@link PeerServer} with NSD (mDNS/DNS-SD) and keeps track of the ones
+ * other devices on the network announce.
+ */
+class PeerDiscovery {
+    static final String SERVICE_TYPE = "_apkupdater._tcp.";
+    // NSD callbacks only touch concurrent maps, they can run on its own thread
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final NsdManager nsd;
+    // Service name -> "http://host:port"
+    private final Map<String, String> peers = new ConcurrentHashMap<>();
+    private final LinkedList<NsdServiceInfo> pendingResolves = new LinkedList<>();
+    private boolean resolving = false;
+    private final String requestedName = "ApkUpdater-" + UUID.randomUUID().toString().substring(0, 8);
+    // NSD renames the service if the name is taken
+    private volatile String serviceName = requestedName;
+    private NsdManager.RegistrationListener registrationListener;
+    private NsdManager.DiscoveryListener discoveryListener;
+    // Service name -> callback following it, from API 34
+    private final Map<String, NsdManager.ServiceInfoCallback> watchers = new ConcurrentHashMap<>();
+
+    PeerDiscovery(Context context) {
+        this.nsd = (NsdManager) context.getSystemService(Context.NSD_SERVICE);
+    }
+
+    void start(int port) {
+        NsdServiceInfo info = new NsdServiceInfo();
+        info.setServiceName(requestedName);
+        info.setServiceType(SERVICE_TYPE);
+        info.setPort(port);
+        registrationListener = new NsdManager.RegistrationListener() {
+            @Override
+            public void onServiceRegistered(NsdServiceInfo registered) {
+                serviceName = registered.getServiceName();
+            }
+
+            @Override
+            public void onRegistrationFailed(NsdServiceInfo failed, int errorCode) {
+                Logger.error("CapacitorApkUpdater", new Exception("Peer announcement failed with error " + errorCode));
+            }
+
+            @Override
+            public void onServiceUnregistered(NsdServiceInfo unregistered) {}
+
+            @Override
+            public void onUnregistrationFailed(NsdServiceInfo failed, int errorCode) {}
+        };
+        nsd.registerService(info, NsdManager.PROTOCOL_DNS_SD, registrationListener);
+
+        discoveryListener = new NsdManager.DiscoveryListener() {
+            @Override
+            public void onServiceFound(NsdServiceInfo service) {
+                if (isOwn(service)) {
+                    return;
+                }
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+                    watch(service);
+                } else {
+                    resolve(service);
+                }
+            }
+
+            @Override
+            public void onServiceLost(NsdServiceInfo service) {
+                unwatch(service.getServiceName());
+                peers.remove(service.getServiceName());
+            }
+
+            @Override
+            public void onStartDiscoveryFailed(String serviceType, int errorCode) {
+                Logger.error("CapacitorApkUpdater", new Exception("Peer discovery failed with error " + errorCode));
+            }
+
+            @Override
+            public void onStopDiscoveryFailed(String serviceType, int errorCode) {}
+
+            @Override
+            public void onDiscoveryStarted(String serviceType) {}
+
+            @Override
+            public void onDiscoveryStopped(String serviceType) {}
+        };
+        nsd.discoverServices(SERVICE_TYPE, NsdManager.PROTOCOL_DNS_SD, discoveryListener);
+    }
+
+    void stop() {
+        try {
+            nsd.unregisterService(registrationListener);
+        } catch (IllegalArgumentException e) {
+            // Registration never went through
+        }
+        try {
+            nsd.stopServiceDiscovery(discoveryListener);
+        } catch (IllegalArgumentException e) {
+            // Discovery never started
+        }
+        synchronized (this) {
+            pendingResolves.clear();
+        }
+        for (String name : new ArrayList<>(watchers.keySet())) {
+            unwatch(name);
+        }
+        peers.clear();
+    }
+
+    /**
+     * Base URLs of the peers found so far.
+     */
+    List<String> getPeers() {
+        return new ArrayList<>(peers.values());
+    }
+
+    private boolean isOwn(NsdServiceInfo service) {
+        String name = service.getServiceName();
+        return name.equals(serviceName) || name.equals(requestedName);
+    }
+
+    // From API 34 a service is followed until it's lost, with every address it has
+    @TargetApi(Build.VERSION_CODES.UPSIDE_DOWN_CAKE)
+    private void watch(final NsdServiceInfo service) {
+        final String name = service.getServiceName();
+        NsdManager.ServiceInfoCallback callback = new NsdManager.ServiceInfoCallback() {
+            @Override
+            public void onServiceInfoCallbackRegistrationFailed(int errorCode) {
+                watchers.remove(name);
+            }
+
+            @Override
+            public void onServiceUpdated(NsdServiceInfo updated) {
+                InetAddress host = pickHost(updated.getHostAddresses());
+                if (host != null) {
+                    peers.put(name, baseUrl(host, updated.getPort()));
+                }
+            }
+
+            @Override
+            public void onServiceLost() {
+                peers.remove(name);
+            }
+
+            @Override
+            public void onServiceInfoCallbackUnregistered() {}
+        };
+        // Found again on another interface, it's already watched
+        if (watchers.putIfAbsent(name, callback) != null) {
+            return;
+        }
+        nsd.registerServiceInfoCallback(service, DIRECT, callback);
+    }
+
+    private void unwatch(String name) {
+        NsdManager.ServiceInfoCallback callback = watchers.remove(name);
+        if (callback == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+            return;
+        }
+        try {
+            nsd.unregisterServiceInfoCallback(callback);
+        } catch (IllegalArgumentException e) {
+            // Registration failed or never went through
+        }
+    }
+
+    // Before API 34 NsdManager refuses to resolve a second service while one is pending
+    private synchronized void resolve(NsdServiceInfo service) {
+        pendingResolves.add(service);
+        if (!resolving) {
+            resolveNext();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private synchronized void resolveNext() {
+        NsdServiceInfo next = pendingResolves.poll();
+        resolving = next != null;
+        if (next == null) {
+            return;
+        }
+        nsd.resolveService(next, new NsdManager.ResolveListener() {
+            @Override
+            public void onResolveFailed(NsdServiceInfo service, int errorCode) {
+                resolveNext();
+            }
+
+            @Override
+            public void onServiceResolved(NsdServiceInfo service) {
+                InetAddress host = service.getHost();
+                if (host != null && !isOwn(service)) {
+                    peers.put(service.getServiceName(), baseUrl(host, service.getPort()));
+                }
+                resolveNext();
+            }
+        });
+    }
+
+    // IPv4 first, an IPv6 link-local address would also need its scope in the URL
+    static InetAddress pickHost(List<InetAddress> addresses) {
+        InetAddress fallback = null;
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet4Address) {
+                return address;
+            }
+            if (fallback == null && !address.isLinkLocalAddress()) {
+                fallback = address;
+            }
+        }
+        return fallback;
+    }
+
+    static String baseUrl(InetAddress host, int port) {
+        String address = host.getHostAddress();
+        if (host instanceof Inet6Address) {
+            address = "[" + address + "]";
+        }
+        return "http://" + address + ":" + port;
+    }
+}
@@ -0,0 +1,300 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves verified APKs to other devices on the local network, so a site full of devices pulls an
+ * update over its uplink once instead of once per device.
+ *
+ * An APK is requested by its hash as {@code GET /apk/<sha256>} and only what {@link Source} holds
+ * under that hash is served. Range requests are supported, so other devices use it like any
+ * mirror, and they check what they got against the hash anyway. Deliberately minimal HTTP/1.1:
+ * one request per connection and nothing but GET and HEAD.
+ */
+public class PeerServer {
+    public static final String PATH_PREFIX = "/apk/";
+    static final int MAX_CONNECTIONS = 4;
+    private static final int SOCKET_TIMEOUT = 30000;
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public interface Source {
+        /**
+         * A verified APK with this hash, or null.
+         */
+        File find(String sha256);
+    }
+
+    private final Source source;
+    private final AtomicLong bytesServed = new AtomicLong();
+    private ServerSocket socket;
+    private ExecutorService workers;
+
+    public PeerServer(Source source) {
+        this.source = source;
+    }
+
+    /**
+     * Starts listening on {@code port} on every interface, 0 picks a free port. Returns the port.
+     */
+    public int start(int port) throws IOException {
+        return start(null, port);
+    }
+
+    /**
+     * Starts listening on {@code port} on {@code address} only, or on every interface when it is
+     * null. 0 picks a free port. Returns the port.
+     */
+    public synchronized int start(InetAddress address, int port) throws IOException {
+        if (socket != null) {
+            return socket.getLocalPort();
+        }
+        final ServerSocket server = new ServerSocket(port, 0, address);
+        final ExecutorService pool = Executors.newFixedThreadPool(MAX_CONNECTIONS);
+        socket = server;
+        workers = pool;
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept(server, pool);
+            }
+        }, "ApkPeerServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server.getLocalPort();
+    }
+
+    public synchronized void stop() {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Closed anyway
+        }
+        workers.shutdownNow();
+        socket = null;
+        workers = null;
+    }
+
+    public synchronized int getPort() {
+        return socket != null ? socket.getLocalPort() : -1;
+    }
+
+    public long getBytesServed() {
+        return bytesServed.get();
+    }
+
+    /**
+     * Where a peer at {@code baseUrl} ("http://host:port") serves the APK with this hash.
+     */
+    public static String url(String baseUrl, String sha256) {
+        return baseUrl + PATH_PREFIX + StreamingVerifier.normalizeHex(sha256);
+    }
+
+    private void accept(ServerSocket server, ExecutorService pool) {
+        while (!server.isClosed()) {
+            final Socket client;
+            try {
+                client = server.accept();
+            } catch (IOException e) {
+                // Closed by stop
+                return;
+            }
+            try {
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(client);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                close(client);
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        try {
+            client.setSoTimeout(SOCKET_TIMEOUT);
+            InputStream in = new BufferedInputStream(client.getInputStream());
+            OutputStream out = new BufferedOutputStream(client.getOutputStream(), BUFFER_SIZE);
+            String request = readLine(in);
+            if (request == null) {
+                return;
+            }
+            String range = null;
+            String header;
+            while ((header = readLine(in)) != null && !header.isEmpty()) {
+                int colon = header.indexOf(':');
+                if (colon > 0 && header.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                    range = header.substring(colon + 1).trim();
+                }
+            }
+            respond(request, range, out);
+            out.flush();
+        } catch (IOException e) {
+            // The other device went away
+        } finally {
+            close(client);
+        }
+    }
+
+    private void respond(String request, String range, OutputStream out) throws IOException {
+        String[] parts = request.split(" ");
+        boolean head = parts[0].equals("HEAD");
+        if (parts.length < 2 || !(head || parts[0].equals("GET"))) {
+            writeHeaders(out, 405, "Method Not Allowed", 0, null);
+            return;
+        }
+        String sha256 = parts[1].startsWith(PATH_PREFIX) ? parts[1].substring(PATH_PREFIX.length()).toLowerCase(Locale.US) : null;
+        File file = sha256 != null && isHash(sha256) ? source.find(sha256) : null;
+        FileInputStream input = null;
+        try {
+            // Opened before anything is sent, so a cache eviction meanwhile can't cut it short
+            input = file != null ? new FileInputStream(file) : null;
+        } catch (IOException e) {
+            // Gone since it was looked up
+        }
+        if (input == null) {
+            writeHeaders(out, 404, "Not Found", 0, null);
+            return;
+        }
+
+        try {
+            long length = input.getChannel().size();
+            long[] bytes = range != null ? parseRange(range, length) : null;
+            if (bytes != null && bytes[0] >= length) {
+                writeHeaders(out, 416, "Range Not Satisfiable", 0, "Content-Range: bytes */" + length + "\r\n");
+                return;
+            }
+            long start = bytes != null ? bytes[0] : 0;
+            long end = bytes != null ? bytes[1] : length - 1;
+            String extra = "Accept-Ranges: bytes\r\nETag: \"" + sha256 + "\"\r\nContent-Type: application/vnd.android.package-archive\r\n";
+            if (bytes != null) {
+                writeHeaders(out, 206, "Partial Content", end - start + 1, extra + "Content-Range: bytes " + start + "-" + end + "/" + length + "\r\n");
+            } else {
+                writeHeaders(out, 200, "OK", length, extra);
+            }
+            if (!head) {
+                input.getChannel().position(start);
+                copy(input, out, end - start + 1);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private void copy(InputStream in, OutputStream out, long count) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (count > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (read == -1) {
+                throw new IOException("File ended early");
+            }
+            out.write(buffer, 0, read);
+            bytesServed.addAndGet(read);
+            count -= read;
+        }
+    }
+
+    private static void writeHeaders(OutputStream out, int code, String reason, long contentLength, String extra) throws IOException {
+        String headers = "HTTP/1.1 " + code + " " + reason + "\r\n"
+            + "Content-Length: " + contentLength + "\r\n"
+            + "Connection: close\r\n"
+            + (extra != null ? extra : "")
+            + "\r\n";
+        out.write(headers.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * First and last byte of a single range header, {length, length - 1} if it can't be satisfied
+     * and null if it should be ignored, e.g. several ranges at once.
+     */
+    static long[] parseRange(String header, long length) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            if (dash == 0) {
+                // Suffix: the last n bytes
+                long suffix = Long.parseLong(spec.substring(1));
+                return suffix > 0 ? new long[] { Math.max(0, length - suffix), length - 1 } : new long[] { length, length - 1 };
+            }
+            long start = Long.parseLong(spec.substring(0, dash));
+            long end = dash == spec.length() - 1 ? length - 1 : Long.parseLong(spec.substring(dash + 1));
+            if (start >= length) {
+                return new long[] { length, length - 1 };
+            }
+            if (end < start) {
+                return null;
+            }
+            return new long[] { start, Math.min(end, length - 1) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean isHash(String value) {
+        if (value.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.digit(value.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Request and header lines, without the line break. Null at the end of the stream.
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Header line too long");
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        String value = line.toString("US-ASCII");
+        return value.endsWith("\r") ? value.substring(0, value.length() - 1) : value;
+    }
+
+    private static void close(Socket client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            // Nothing left to do
+        }
+    }
+}
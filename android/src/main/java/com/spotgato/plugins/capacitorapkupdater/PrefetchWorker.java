@@ -0,0 +1,236 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Environment;
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+import com.getcapacitor.Logger;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads an update in the background before the user asks for it, and keeps the verified APK
+ * staged so installing it later needs no network at all.
+ *
+ * The work only runs while its constraints hold. When they stop holding mid-transfer the
+ * download is stopped and later resumed from its journal. The staged state lives in shared
+ * preferences so it survives the process.
+ */
+public class PrefetchWorker extends Worker {
+    public static final String STATE_NONE = "none";
+    public static final String STATE_SCHEDULED = "scheduled";
+    public static final String STATE_DOWNLOADING = "downloading";
+    public static final String STATE_STAGED = "staged";
+    public static final String STATE_FAILED = "failed";
+
+    private static final String WORK_NAME = "capacitor-apk-updater-prefetch";
+    private static final String PREFS_NAME = "CapacitorApkUpdaterPrefetch";
+    private static final String KEY_URL = "url";
+    private static final String KEY_FILENAME = "filename";
+    private static final String KEY_CONNECTIONS = "connections";
+    private static final String KEY_SHA256 = "expectedSha256";
+    private static final String KEY_CERT_SHA256 = "expectedCertSha256";
+    private static final String KEY_ACCEPT_COMPRESSED = "acceptCompressed";
+    private static final String KEY_DEBUG_LOGGING = "debugLogging";
+    private static final String KEY_STATE = "state";
+    private static final String KEY_FILE_PATH = "filePath";
+    private static final String KEY_ERROR = "error";
+    private static final int MAX_ATTEMPTS = 10;
+
+    private volatile SegmentedDownloader downloader;
+
+    public PrefetchWorker(Context context, WorkerParameters params) {
+        super(context, params);
+    }
+
+    // The work runs without the updater, debugLogging travels with its input
+    public static void schedule(Context context, CapacitorApkUpdater.DownloadOptions options, boolean requireUnmetered, boolean requireCharging, boolean debugLogging) {
+        PrefetchStatus current = getStatus(context);
+        Data input = new Data.Builder()
+            .putString(KEY_URL, options.url)
+            .putString(KEY_FILENAME, options.filename != null ? options.filename : "update.apk")
+            .putInt(KEY_CONNECTIONS, options.connections)
+            .putString(KEY_SHA256, options.expectedSha256)
+            .putString(KEY_CERT_SHA256, options.expectedCertSha256)
+            .putBoolean(KEY_ACCEPT_COMPRESSED, options.acceptCompressed)
+            .putBoolean(KEY_DEBUG_LOGGING, debugLogging)
+            .build();
+        Constraints constraints = new Constraints.Builder()
+            .setRequiredNetworkType(requireUnmetered ? NetworkType.UNMETERED : NetworkType.CONNECTED)
+            .setRequiresCharging(requireCharging)
+            .setRequiresStorageNotLow(true)
+            .build();
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(PrefetchWorker.class)
+            .setConstraints(constraints)
+            .setInputData(input)
+            .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, 30, TimeUnit.SECONDS)
+            .build();
+
+        // Asking again for the same URL leaves the pending work alone, a new URL replaces it
+        boolean sameUrl = options.url.equals(current.url) && !STATE_FAILED.equals(current.state) && !STATE_NONE.equals(current.state);
+        if (sameUrl && STATE_STAGED.equals(current.state)) {
+            return;
+        }
+        if (!sameUrl) {
+            clearStagingDir(context);
+            getPrefs(context).edit().clear().putString(KEY_URL, options.url).putString(KEY_STATE, STATE_SCHEDULED).apply();
+        }
+        WorkManager.getInstance(context).enqueueUniqueWork(WORK_NAME, sameUrl ? ExistingWorkPolicy.KEEP : ExistingWorkPolicy.REPLACE, request);
+    }
+
+    /**
+     * Cancels pending work and removes anything staged or partially downloaded.
+     */
+    public static void cancel(Context context) {
+        WorkManager.getInstance(context).cancelUniqueWork(WORK_NAME);
+        clearStagingDir(context);
+        getPrefs(context).edit().clear().apply();
+    }
+
+    public static PrefetchStatus getStatus(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        String state = prefs.getString(KEY_STATE, STATE_NONE);
+        String filePath = prefs.getString(KEY_FILE_PATH, null);
+        if (STATE_STAGED.equals(state) && (filePath == null || !new File(Uri.parse(filePath).getPath()).exists())) {
+            // Someone removed the file behind our back
+            state = STATE_NONE;
+            filePath = null;
+        }
+        return new PrefetchStatus(state, prefs.getString(KEY_URL, null), filePath, prefs.getString(KEY_ERROR, null), prefs.getString(KEY_SHA256, null), prefs.getString(KEY_CERT_SHA256, null));
+    }
+
+    public static File getStagingDir(Context context) {
+        return new File(context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS), "prefetch");
+    }
+
+    // Removes staged APKs as well as partial downloads and their journals
+    private static void clearStagingDir(Context context) {
+        File[] files = getStagingDir(context).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+        Data input = getInputData();
+        String url = input.getString(KEY_URL);
+        File stagingDir = getStagingDir(context);
+        stagingDir.mkdirs();
+        File target = new File(stagingDir, input.getString(KEY_FILENAME));
+        SharedPreferences prefs = getPrefs(context);
+        if (!url.equals(prefs.getString(KEY_URL, null))) {
+            // Superseded or cancelled while this run was pending
+            return Result.failure();
+        }
+        prefs.edit().putString(KEY_STATE, STATE_DOWNLOADING).remove(KEY_ERROR).apply();
+
+        SegmentedDownloader transfer = new SegmentedDownloader(url, target, input.getInt(KEY_CONNECTIONS, SegmentedDownloader.DEFAULT_CONNECTIONS));
+        transfer.setAcceptCompressed(input.getBoolean(KEY_ACCEPT_COMPRESSED, false));
+        downloader = transfer;
+        try {
+            // Partial data and its journal stay on failure, the next attempt resumes from there
+            transfer.download();
+        } catch (Exception e) {
+            if (isStopped() || getRunAttemptCount() + 1 < MAX_ATTEMPTS) {
+                prefs.edit().putString(KEY_STATE, STATE_SCHEDULED).putString(KEY_ERROR, e.getMessage()).apply();
+                return Result.retry();
+            }
+            return fail(prefs, transfer, "Prefetch failed: " + e.getMessage());
+        }
+
+        try {
+            String expectedSha256 = input.getString(KEY_SHA256);
+            if (expectedSha256 != null) {
+                StreamingVerifier verifier = new StreamingVerifier(expectedSha256);
+                String actual = verifier.finish(target);
+                if (!verifier.matches(actual)) {
+                    return fail(prefs, transfer, "Checksum mismatch: expected " + verifier.getExpectedSha256() + " but got " + actual);
+                }
+            }
+            String expectedCertSha256 = input.getString(KEY_CERT_SHA256);
+            if (expectedCertSha256 != null && !CapacitorApkUpdater.hasSigningCertificate(context, target, expectedCertSha256)) {
+                return fail(prefs, transfer, "Signing certificate does not match");
+            }
+        } catch (Exception e) {
+            return fail(prefs, transfer, "Unable to verify prefetched APK: " + e.getMessage());
+        }
+
+        if (input.getBoolean(KEY_DEBUG_LOGGING, false)) {
+            Logger.info("CapacitorApkUpdater", "Prefetched update staged at " + target.getPath());
+        }
+        // What the staged file was checked against, a later download only takes it over if that covers its own hashes
+        prefs
+            .edit()
+            .putString(KEY_STATE, STATE_STAGED)
+            .putString(KEY_FILE_PATH, Uri.fromFile(target).toString())
+            .putString(KEY_SHA256, StreamingVerifier.normalizeHex(input.getString(KEY_SHA256)))
+            .putString(KEY_CERT_SHA256, StreamingVerifier.normalizeHex(input.getString(KEY_CERT_SHA256)))
+            .remove(KEY_ERROR)
+            .apply();
+        return Result.success();
+    }
+
+    private static Result fail(SharedPreferences prefs, SegmentedDownloader transfer, String error) {
+        Logger.error("CapacitorApkUpdater", new Exception(error));
+        transfer.discard();
+        prefs.edit().putString(KEY_STATE, STATE_FAILED).putString(KEY_ERROR, error).remove(KEY_FILE_PATH).apply();
+        return Result.failure();
+    }
+
+    @Override
+    public void onStopped() {
+        SegmentedDownloader transfer = downloader;
+        if (transfer != null) {
+            transfer.cancel();
+        }
+    }
+
+    public static class PrefetchStatus {
+        public final String state;
+        public final String url;
+        public final String filePath;
+        public final String error;
+        // Hashes the staged file was verified against, null if it was not checked for one
+        public final String verifiedSha256;
+        public final String verifiedCertSha256;
+
+        public PrefetchStatus(String state, String url, String filePath, String error, String verifiedSha256, String verifiedCertSha256) {
+            this.state = state;
+            this.url = url;
+            this.filePath = filePath;
+            this.error = error;
+            this.verifiedSha256 = verifiedSha256;
+            this.verifiedCertSha256 = verifiedCertSha256;
+        }
+
+        /**
+         * Whether the staged file was checked against every hash a download asks for, a hash the
+         * download leaves out needs no match.
+         */
+        public boolean covers(String expectedSha256, String expectedCertSha256) {
+            return matches(verifiedSha256, expectedSha256) && matches(verifiedCertSha256, expectedCertSha256);
+        }
+
+        private static boolean matches(String verified, String expected) {
+            return expected == null || StreamingVerifier.normalizeHex(expected).equals(verified);
+        }
+    }
+}
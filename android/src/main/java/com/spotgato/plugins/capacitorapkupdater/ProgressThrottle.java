@@ -0,0 +1,168 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+/**
+ * Decides which progress samples are worth sending across the bridge and estimates throughput.
+ *
+ * Every raw sample feeds the rate estimate, but a sample is only emitted once the minimum interval
+ * has passed and it moved by at least the configured percent or byte delta. Suppressed samples are
+ * coalesced so that only the latest one is left pending for {@link #flush}.
+ */
+public class ProgressThrottle {
+    public static final long DEFAULT_MIN_INTERVAL = 250;
+    public static final int DEFAULT_MIN_PERCENT = 1;
+    // Time constant of the rate average, so a single slow poll doesn't swing the ETA
+    private static final double RATE_TIME_CONSTANT = 3000.0;
+
+    private final long minIntervalMillis;
+    private final int minPercentDelta;
+    private final long minBytesDelta;
+
+    private long lastSampleTime = -1;
+    private long lastSampleBytes;
+    private double bytesPerSecond;
+    private Progress lastEmitted;
+    private long lastEmitTime;
+    private Progress pending;
+
+    public ProgressThrottle(long minIntervalMillis, int minPercentDelta, long minBytesDelta) {
+        this.minIntervalMillis = Math.max(0, minIntervalMillis);
+        this.minPercentDelta = Math.max(0, minPercentDelta);
+        this.minBytesDelta = Math.max(0, minBytesDelta);
+    }
+
+    /**
+     * Records a sample and returns it if it should be emitted now, otherwise null. A null return
+     * with {@link #hasPending()} means the sample is waiting for the interval to pass.
+     */
+    public synchronized Progress offer(long bytesDownloaded, long totalSize, long nowMillis) {
+        updateRate(bytesDownloaded, nowMillis);
+        Progress progress = new Progress(bytesDownloaded, totalSize, percent(bytesDownloaded, totalSize), Math.round(bytesPerSecond), eta(bytesDownloaded, totalSize));
+
+        if (lastEmitted != null && !movedEnough(lastEmitted, progress)) {
+            return null;
+        }
+        boolean finished = totalSize > 0 && bytesDownloaded >= totalSize;
+        if (lastEmitted != null && !finished && nowMillis - lastEmitTime < minIntervalMillis) {
+            pending = progress;
+            return null;
+        }
+        return emit(progress, nowMillis);
+    }
+
+    /**
+     * Returns the pending sample once its interval has passed, otherwise null.
+     */
+    public synchronized Progress flush(long nowMillis) {
+        if (pending == null || nowMillis < getNextEmitTime()) {
+            return null;
+        }
+        return emit(pending, nowMillis);
+    }
+
+    public synchronized boolean hasPending() {
+        return pending != null;
+    }
+
+    public synchronized long getNextEmitTime() {
+        return lastEmitTime + minIntervalMillis;
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return Math.round(bytesPerSecond);
+    }
+
+    public synchronized void reset() {
+        lastSampleTime = -1;
+        lastSampleBytes = 0;
+        bytesPerSecond = 0;
+        lastEmitted = null;
+        lastEmitTime = 0;
+        pending = null;
+    }
+
+    private Progress emit(Progress progress, long nowMillis) {
+        lastEmitted = progress;
+        lastEmitTime = nowMillis;
+        pending = null;
+        return progress;
+    }
+
+    private boolean movedEnough(Progress last, Progress current) {
+        long bytesDelta = Math.abs(current.bytesDownloaded - last.bytesDownloaded);
+        if (bytesDelta == 0 && current.totalSize == last.totalSize) {
+            return false;
+        }
+        if (current.totalSize > 0 && current.bytesDownloaded >= current.totalSize) {
+            return true;
+        }
+        boolean percentApplies = minPercentDelta > 0 && current.totalSize > 0;
+        if (!percentApplies && minBytesDelta == 0) {
+            return true;
+        }
+        return (percentApplies && Math.abs(current.progress - last.progress) >= minPercentDelta)
+            || (minBytesDelta > 0 && bytesDelta >= minBytesDelta);
+    }
+
+    private void updateRate(long bytesDownloaded, long nowMillis) {
+        if (lastSampleTime < 0 || bytesDownloaded < lastSampleBytes) {
+            // First sample, or the download started over
+            lastSampleTime = nowMillis;
+            lastSampleBytes = bytesDownloaded;
+            bytesPerSecond = 0;
+            return;
+        }
+        long elapsed = nowMillis - lastSampleTime;
+        if (elapsed <= 0) {
+            return;
+        }
+        double instant = (bytesDownloaded - lastSampleBytes) * 1000.0 / elapsed;
+        // Time-weighted EWMA, so irregular poll intervals still average over the same window
+        double alpha = bytesPerSecond == 0 ? 1.0 : 1.0 - Math.exp(-elapsed / RATE_TIME_CONSTANT);
+        bytesPerSecond += alpha * (instant - bytesPerSecond);
+        lastSampleTime = nowMillis;
+        lastSampleBytes = bytesDownloaded;
+    }
+
+    private long eta(long bytesDownloaded, long totalSize) {
+        if (totalSize <= 0 || bytesPerSecond < 1) {
+            return -1;
+        }
+        long remaining = Math.max(0, totalSize - bytesDownloaded);
+        return (long) Math.ceil(remaining / bytesPerSecond);
+    }
+
+    static int percent(long bytesDownloaded, long totalSize) {
+        if (totalSize <= 0) {
+            return 0;
+        }
+        return (int) Math.min(100, bytesDownloaded * 100 / totalSize);
+    }
+
+    public static class Progress {
+        public final long bytesDownloaded;
+        public final long totalSize;
+        public final int progress;
+        public final long bytesPerSecond;
+        // Seconds left at the current rate, -1 while unknown
+        public final long etaSeconds;
+        // Bytes on disk after decompression, the same as bytesDownloaded when nothing is decoded
+        public final long bytesWritten;
+
+        public Progress(long bytesDownloaded, long totalSize, int progress, long bytesPerSecond, long etaSeconds) {
+            this(bytesDownloaded, totalSize, progress, bytesPerSecond, etaSeconds, bytesDownloaded);
+        }
+
+        public Progress(long bytesDownloaded, long totalSize, int progress, long bytesPerSecond, long etaSeconds, long bytesWritten) {
+            this.bytesDownloaded = bytesDownloaded;
+            this.totalSize = totalSize;
+            this.progress = progress;
+            this.bytesPerSecond = bytesPerSecond;
+            this.etaSeconds = etaSeconds;
+            this.bytesWritten = bytesWritten;
+        }
+
+        public Progress withBytesWritten(long bytesWritten) {
+            return new Progress(bytesDownloaded, totalSize, progress, bytesPerSecond, etaSeconds, bytesWritten);
+        }
+    }
+}
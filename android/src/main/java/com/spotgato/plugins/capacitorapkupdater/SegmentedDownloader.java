@@ -0,0 +1,1114 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process HTTP downloader that fetches byte ranges over several connections in parallel and
+ * writes every segment straight to its offset in the target file.
+ *
+ * Segments are claimed from the ranges still missing. Each connection sizes its next segment from
+ * the throughput it measured on the previous one, so fast connections take bigger bites and the
+ * tail of the file is split evenly between whoever is still working.
+ *
+ * Completed ranges are checkpointed to a {@link DownloadJournal} next to the target, so a transfer
+ * interrupted by a crash or network loss picks up where it stopped as long as the server still
+ * reports the same ETag or Last-Modified.
+ *
+ * Bytes reach the disk through an {@link ApkFileWriter}: the file is reserved up front, each
+ * connection writes in large blocks, and the file is only synced when the journal is saved, which
+ * happens every few megabytes or seconds rather than after every segment.
+ *
+ * A compressed payload (see {@link PayloadCodec}) can't be split into ranges, so it comes over one
+ * connection and is decoded on its way to the target.
+ *
+ * With {@link #setLocalSource} parts of the file are copied from a local file instead, e.g. blocks
+ * the installed APK shares with the new one, and only the rest is fetched.
+ *
+ * With {@link #setMirrors} the same file can come from several URLs. A small ranged probe to each
+ * picks the fastest, a request whose first byte is slow is hedged on the next best mirror, and a
+ * segment running far below another mirror's speed hands its remainder back to be fetched there.
+ */
+public class SegmentedDownloader {
+    static final int DEFAULT_CONNECTIONS = 4;
+    static final long MIN_SEGMENT_SIZE = 256 * 1024;
+    static final long MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+    static final long INITIAL_SEGMENT_SIZE = 1024 * 1024;
+    // Aim for segments that take about this long at the measured speed
+    private static final long TARGET_SEGMENT_MILLIS = 2000;
+    static final int MAX_ATTEMPTS = 5;
+    static final long BASE_RETRY_DELAY = 1000;
+    static final long MAX_RETRY_DELAY = 60000;
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    static final long DEFAULT_HEDGE_DELAY = 1000;
+    static final int PROBE_BYTES = 64 * 1024;
+    private static final int PROBE_TIMEOUT = 5000;
+    // How often a segment compares its speed with the other mirrors
+    private static final long SLOW_CHECK_NANOS = 1000000000L;
+    // A checkpoint syncs the file, which stalls every connection on slow storage, so they are spaced
+    static final long CHECKPOINT_BYTES = 8 * 1024 * 1024;
+    private static final long CHECKPOINT_NANOS = 5000000000L;
+
+    private final String url;
+    // Where the single-connection paths fetch from, the best mirror once they are probed
+    private volatile String sourceUrl;
+    private MirrorSet.Mirror sourceMirror;
+    private final File target;
+    private final int connections;
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    // Bytes after decoding, only counted while a compressed payload is being decoded
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final Random jitter = new Random();
+    private volatile long totalSize = -1;
+    private volatile boolean cancelled = false;
+    // Set by stop(), the partial file stays behind for a later run to resume
+    private volatile boolean keepPartial = false;
+    private volatile boolean failed = false;
+    private volatile boolean remoteChanged = false;
+    private final LinkedList<long[]> pendingRanges = new LinkedList<>();
+    private long unclaimedBytes = 0;
+    private volatile DownloadJournal journal;
+    private volatile String encoding;
+    private boolean acceptCompressed = false;
+    private String etag;
+    private String lastModified;
+    private MirrorSet mirrors;
+    private List<String> peerUrls = new ArrayList<>();
+    private List<String> mirrorUrls = new ArrayList<>();
+    private long hedgeDelayMillis = DEFAULT_HEDGE_DELAY;
+    private ExecutorService hedgePool;
+    private File localSource;
+    // {targetOffset, sourceOffset, length}
+    private List<long[]> localCopies;
+    private long localLength = -1;
+    private volatile long bytesCopied = 0;
+    // Guarded by the journal
+    private long checkpointedBytes;
+    private long checkpointedAt;
+
+    /**
+     * Destination for {@link #streamTo}, opened once the total length is known (-1 if it isn't).
+     */
+    public interface StreamTarget {
+        OutputStream open(long totalSize) throws IOException;
+    }
+
+    public SegmentedDownloader(String url, File target, int connections) {
+        this.url = url;
+        this.sourceUrl = url;
+        this.target = target;
+        this.connections = Math.max(1, connections);
+    }
+
+    /**
+     * Lets the server send the APK with Content-Encoding. This gives up parallel ranges and
+     * resuming, so it only pays off where compression saves more than those.
+     */
+    public void setAcceptCompressed(boolean acceptCompressed) {
+        this.acceptCompressed = acceptCompressed;
+    }
+
+    /**
+     * Also fetches from {@code mirrorUrls}, ranked after the main URL. A request that hasn't
+     * answered within {@code hedgeDelayMillis} is repeated on the next best mirror, 0 turns hedging
+     * off.
+     */
+    public void setMirrors(List<String> mirrorUrls, long hedgeDelayMillis) {
+        this.mirrorUrls = mirrorUrls;
+        this.hedgeDelayMillis = Math.max(0, hedgeDelayMillis);
+        rankMirrors();
+    }
+
+    /**
+     * Also fetches from {@code peerUrls}, other devices on the local network serving the same APK,
+     * ranked before the main URL and its mirrors. The main URL is still probed so a download
+     * carries on from it when the peers fail.
+     */
+    public void setPeers(List<String> peerUrls) {
+        this.peerUrls = peerUrls;
+        rankMirrors();
+    }
+
+    private void rankMirrors() {
+        List<String> urls = new ArrayList<>(peerUrls);
+        urls.add(url);
+        urls.addAll(mirrorUrls);
+        this.mirrors = new MirrorSet(urls);
+    }
+
+    /**
+     * Copies the given ranges from {@code source} rather than fetching them, each one as
+     * {targetOffset, sourceOffset, length}. The remote file must be {@code length} bytes and
+     * support range requests, otherwise the download fails.
+     */
+    public void setLocalSource(File source, List<long[]> copies, long length) {
+        this.localSource = source;
+        this.localCopies = copies;
+        this.localLength = length;
+    }
+
+    /**
+     * Bytes of the target that came from the local source, in this run or the one it resumed.
+     */
+    public long getBytesCopied() {
+        return bytesCopied;
+    }
+
+    /**
+     * What was measured about each mirror, null without mirrors.
+     */
+    public MirrorSet getMirrors() {
+        return mirrors;
+    }
+
+    /**
+     * Bytes received from the network, compressed or not.
+     */
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    /**
+     * Bytes written to the target after decoding, the same as {@link #getBytesDownloaded()} for
+     * plain transfers.
+     */
+    public long getBytesWritten() {
+        return encoding != null ? bytesWritten.get() : bytesDownloaded.get();
+    }
+
+    /**
+     * Encoding of the payload being decoded, null while the APK is sent as is.
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Length of the prefix of the target that is fully written and won't change any more.
+     */
+    public long getContiguousBytes() {
+        DownloadJournal current = journal;
+        if (current == null) {
+            // Single stream, written strictly in order
+            return getBytesWritten();
+        }
+        List<long[]> completed = current.getCompletedRanges();
+        return !completed.isEmpty() && completed.get(0)[0] == 0 ? completed.get(0)[1] : 0;
+    }
+
+    public File getTarget() {
+        return target;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Stops like {@link #cancel()}, but {@link #downloadOrDiscard()} keeps what was written so the
+     * transfer can be resumed later, e.g. after the app restarts.
+     */
+    public void stop() {
+        keepPartial = true;
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Removes the partial file and its journal, e.g. after the user cancelled.
+     */
+    public void discard() {
+        target.delete();
+        DownloadJournal.journalFor(target).delete();
+        ChunkVerifier.stateFor(target).delete();
+    }
+
+    /**
+     * Fetches {start, endExclusive} {@code ranges} of the finished file again, e.g. chunks that
+     * failed verification, and keeps the rest. A transfer that can't resume fetches everything.
+     */
+    public void refetch(List<long[]> ranges) throws Exception {
+        // A local source could hold the same bad bytes
+        localSource = null;
+        if (totalSize > 0 && encoding == null) {
+            DownloadJournal journal = new DownloadJournal(DownloadJournal.journalFor(target), sourceUrl, etag, lastModified, totalSize);
+            long start = 0;
+            for (long[] range : ranges) {
+                if (range[0] > start) {
+                    journal.markCompleted(start, range[0]);
+                }
+                start = Math.max(start, range[1]);
+            }
+            if (start < totalSize) {
+                journal.markCompleted(start, totalSize);
+            }
+            journal.save();
+        }
+        download();
+    }
+
+    /**
+     * Runs the transfer on the calling thread and returns once the file is complete.
+     */
+    public void download() throws Exception {
+        long length = mirrors != null ? probeMirrors() : -1;
+        long started = System.nanoTime();
+        String fileEncoding = PayloadCodec.fromUrl(sourceUrl);
+        if (localSource == null && (fileEncoding != null || acceptCompressed)) {
+            DownloadJournal.journalFor(target).delete();
+            downloadDecoded(fileEncoding);
+            recordSingleSource(started);
+            return;
+        }
+
+        if (mirrors == null) {
+            length = probe();
+        }
+        if (localSource != null && length != localLength) {
+            throw new Exception(length < 0 ? "Server does not support range requests" : "Remote file is " + length + " bytes, expected " + localLength);
+        }
+        if (length < 0) {
+            // No usable Content-Length or range support, stream the whole body on one connection
+            DownloadJournal.journalFor(target).delete();
+            downloadSingle();
+            recordSingleSource(started);
+            return;
+        }
+
+        totalSize = length;
+        journal = openJournal(length);
+        checkpointedBytes = journal.getBytesCompleted();
+        checkpointedAt = System.nanoTime();
+        try (final ApkFileWriter writer = new ApkFileWriter(target)) {
+            writer.reserve(length, length - journal.getBytesCompleted());
+            if (localSource != null) {
+                copyLocal(writer);
+            }
+            bytesDownloaded.set(journal.getBytesCompleted());
+            for (long[] range : journal.getMissingRanges()) {
+                pendingRanges.add(range);
+                unclaimedBytes += range[1] - range[0];
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(connections);
+            if (mirrors != null) {
+                hedgePool = Executors.newCachedThreadPool();
+            }
+            List<Future<Void>> workers = new ArrayList<>();
+            try {
+                for (int i = 0; i < connections; i++) {
+                    workers.add(pool.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            runWorker(writer);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> worker : workers) {
+                    try {
+                        worker.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        throw cause instanceof Exception ? (Exception) cause : new Exception(cause);
+                    }
+                }
+            } finally {
+                pool.shutdownNow();
+                if (hedgePool != null) {
+                    hedgePool.shutdownNow();
+                }
+                checkpoint(writer, true);
+            }
+        }
+
+        if (cancelled) {
+            throw new Exception("Download cancelled");
+        }
+        journal.delete();
+    }
+
+    /**
+     * Runs {@link #download()} and, if the user cancelled meanwhile, removes what was written.
+     */
+    public void downloadOrDiscard() throws Exception {
+        try {
+            download();
+        } finally {
+            if (cancelled && !keepPartial) {
+                discard();
+            }
+        }
+    }
+
+    /**
+     * Downloads sequentially over one connection into a stream rather than a file, feeding every
+     * byte to {@code verifier} on the way. A dropped connection resumes with a range request, which
+     * is possible because the stream only ever needs the bytes that come next. A compressed file is
+     * decoded on the way, but then can't be resumed.
+     */
+    public void streamTo(StreamTarget streamTarget, StreamingVerifier verifier) throws Exception {
+        String fileEncoding = PayloadCodec.fromUrl(url);
+        if (fileEncoding != null && !PayloadCodec.isSupported(fileEncoding)) {
+            throw new Exception("Unsupported encoding " + fileEncoding);
+        }
+        long length = probe();
+        totalSize = length;
+        encoding = fileEncoding;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int attempt = 0;
+
+        // The decoded size of a compressed file isn't known up front
+        try (OutputStream out = streamTarget.open(fileEncoding != null ? -1 : length)) {
+            boolean finished = false;
+            while (!finished && !cancelled) {
+                long position = bytesDownloaded.get();
+                HttpURLConnection connection = openConnection();
+                try {
+                    int expected = HttpURLConnection.HTTP_OK;
+                    if (position > 0) {
+                        if (fileEncoding != null) {
+                            throw new Exception("Connection lost and a compressed download can't resume");
+                        }
+                        if (length < 0) {
+                            throw new Exception("Connection lost and server does not support resuming");
+                        }
+                        connection.setRequestProperty("Range", "bytes=" + position + "-");
+                        String validator = etag != null ? etag : lastModified;
+                        if (validator != null) {
+                            connection.setRequestProperty("If-Range", validator);
+                        }
+                        expected = HttpURLConnection.HTTP_PARTIAL;
+                    }
+                    int code = connection.getResponseCode();
+                    if (position > 0 && code == HttpURLConnection.HTTP_OK) {
+                        throw new Exception("Remote file changed during download");
+                    }
+                    checkResponse(connection, code, expected);
+
+                    InputStream wire = new CountingInputStream(connection.getInputStream(), bytesDownloaded);
+                    try (InputStream in = fileEncoding != null ? PayloadCodec.decode(fileEncoding, wire) : wire) {
+                        int read;
+                        while (!cancelled && (read = in.read(buffer)) != -1) {
+                            out.write(buffer, 0, read);
+                            if (verifier != null) {
+                                verifier.update(buffer, 0, read);
+                            }
+                            bytesWritten.addAndGet(read);
+                        }
+                    }
+                    if (!cancelled && length >= 0 && bytesDownloaded.get() < length) {
+                        throw new IOException("Connection closed early");
+                    }
+                    finished = true;
+                } catch (IOException e) {
+                    backoff(++attempt, e);
+                } finally {
+                    connection.disconnect();
+                }
+            }
+        }
+
+        if (cancelled) {
+            throw new Exception("Download cancelled");
+        }
+        totalSize = bytesDownloaded.get();
+    }
+
+    private DownloadJournal openJournal(long length) throws IOException {
+        File journalFile = DownloadJournal.journalFor(target);
+        DownloadJournal existing = DownloadJournal.load(journalFile);
+        if (existing != null && target.exists() && canResume(existing, length)) {
+            return existing;
+        }
+        // Nothing to resume, or the remote file changed since the journal was written
+        target.delete();
+        ChunkVerifier.stateFor(target).delete();
+        DownloadJournal fresh = new DownloadJournal(journalFile, sourceUrl, etag, lastModified, length);
+        fresh.save();
+        return fresh;
+    }
+
+    // Recorded in the journal like downloaded ranges, so a resumed download doesn't copy them again
+    private void copyLocal(ApkFileWriter writer) throws IOException {
+        List<long[]> completed = journal.getCompletedRanges();
+        try (FileInputStream in = new FileInputStream(localSource)) {
+            FileChannel source = in.getChannel();
+            for (long[] copy : localCopies) {
+                if (cancelled) {
+                    break;
+                }
+                if (!isCovered(completed, copy[0], copy[0] + copy[2])) {
+                    writer.copyFrom(source, copy[1], copy[2], copy[0]);
+                    journal.markCompleted(copy[0], copy[0] + copy[2]);
+                }
+                bytesCopied += copy[2];
+            }
+        }
+        checkpoint(writer, true);
+    }
+
+    private static boolean isCovered(List<long[]> ranges, long start, long end) {
+        for (long[] range : ranges) {
+            if (range[0] <= start && range[1] >= end) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void recordSingleSource(long started) {
+        if (mirrors != null) {
+            mirrors.recordTransfer(sourceMirror, bytesDownloaded.get(), (System.nanoTime() - started) / 1000000);
+        }
+    }
+
+    // A journal written while fetching from any of the mirrors still describes the same file
+    private boolean canResume(DownloadJournal existing, long length) {
+        if (mirrors == null) {
+            return existing.matches(url, etag, lastModified, length);
+        }
+        for (MirrorSet.Mirror mirror : mirrors.getMirrors()) {
+            if (existing.matches(mirror.url, mirror.etag, mirror.lastModified, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Unless forced, only saves once enough was written or enough time passed since the last one
+    private void checkpoint(ApkFileWriter writer, boolean force) {
+        if (remoteChanged) {
+            return;
+        }
+        try {
+            // Ranges only count as done once their bytes are durable, hold the journal so no
+            // range is marked between the sync and the save
+            synchronized (journal) {
+                long completed = journal.getBytesCompleted();
+                long now = System.nanoTime();
+                if (!force && completed - checkpointedBytes < CHECKPOINT_BYTES && now - checkpointedAt < CHECKPOINT_NANOS) {
+                    return;
+                }
+                writer.sync();
+                journal.save();
+                checkpointedBytes = completed;
+                checkpointedAt = now;
+            }
+        } catch (IOException e) {
+            // Losing a checkpoint only costs re-downloading those ranges
+        }
+    }
+
+    private void runWorker(ApkFileWriter writer) throws Exception {
+        long segmentSize = INITIAL_SEGMENT_SIZE;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        ApkFileWriter.Block block = writer.newBlock();
+        // The mirror this connection fetches from, moved by fetchSegment when another does better
+        MirrorSet.Mirror[] source = { mirrors != null ? mirrors.best() : null };
+
+        try {
+            while (!isStopped()) {
+                long[] segment = claimSegment(segmentSize);
+                if (segment == null) {
+                    return;
+                }
+
+                long started = System.nanoTime();
+                long reached = fetchSegment(block, segment[0], segment[1], buffer, source);
+                long elapsedMillis = Math.max(1, (System.nanoTime() - started) / 1000000);
+                long bytesPerSecond = (reached - segment[0]) * 1000 / elapsedMillis;
+                segmentSize = nextSegmentSize(bytesPerSecond);
+                if (reached < segment[1] && !isStopped()) {
+                    // Left behind for a faster mirror
+                    returnRange(reached, segment[1]);
+                }
+                checkpoint(writer, false);
+            }
+        } catch (Exception e) {
+            // Stop the other connections, one failed segment fails the download
+            failed = true;
+            throw e;
+        }
+    }
+
+    private boolean isStopped() {
+        return cancelled || failed;
+    }
+
+    static long nextSegmentSize(long bytesPerSecond) {
+        long size = bytesPerSecond * TARGET_SEGMENT_MILLIS / 1000;
+        return Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, size));
+    }
+
+    // Returns {start, endExclusive} or null once every missing range has been handed out
+    private synchronized long[] claimSegment(long preferredSize) {
+        if (pendingRanges.isEmpty()) {
+            return null;
+        }
+        // Near the end, split what's left evenly so no single connection holds up completion
+        long fairShare = (unclaimedBytes + connections - 1) / connections;
+        long size = Math.max(Math.min(preferredSize, fairShare), MIN_SEGMENT_SIZE);
+
+        long[] range = pendingRanges.getFirst();
+        long end = Math.min(range[1], range[0] + size);
+        long[] segment = { range[0], end };
+        if (end == range[1]) {
+            pendingRanges.removeFirst();
+        } else {
+            range[0] = end;
+        }
+        unclaimedBytes -= end - segment[0];
+        return segment;
+    }
+
+    private synchronized void returnRange(long start, long end) {
+        pendingRanges.addFirst(new long[] { start, end });
+        unclaimedBytes += end - start;
+    }
+
+    // Returns how far the segment got, short of its end only if it was stopped or moved to a faster mirror
+    private long fetchSegment(ApkFileWriter.Block block, long start, long end, byte[] buffer, MirrorSet.Mirror[] source) throws Exception {
+        long position = start;
+        int attempt = 0;
+        try {
+            while (position < end) {
+                if (isStopped()) {
+                    return position;
+                }
+                MirrorSet.Mirror mirror = source[0];
+                HttpURLConnection connection = null;
+                long opened = System.nanoTime();
+                long connectionStart = position;
+                try {
+                    if (mirror != null) {
+                        Response response = openHedged(mirror, position, end);
+                        mirror = source[0] = response.mirror;
+                        connection = response.connection;
+                    } else {
+                        connection = openRange(null, position, end);
+                    }
+                    try (InputStream in = connection.getInputStream()) {
+                        long lastCheck = opened;
+                        int read;
+                        while (position < end && !isStopped() && (read = in.read(buffer, 0, (int) Math.min(buffer.length, end - position))) != -1) {
+                            block.write(buffer, 0, read, position);
+                            position += read;
+                            bytesDownloaded.addAndGet(read);
+
+                            long now = System.nanoTime();
+                            if (mirror != null && now - lastCheck >= SLOW_CHECK_NANOS && end - position >= MIN_SEGMENT_SIZE) {
+                                lastCheck = now;
+                                double rate = (position - connectionStart) * 1e9 / (now - opened);
+                                MirrorSet.Mirror faster = mirrors.fasterThan(mirror, rate);
+                                if (faster != null) {
+                                    source[0] = faster;
+                                    block.flush();
+                                    return position;
+                                }
+                            }
+                        }
+                    }
+                    if (position < end && !isStopped()) {
+                        throw new IOException("Connection closed early");
+                    }
+                } catch (IOException e) {
+                    // Retry from where the segment stopped, on another mirror if there is one
+                    if (!switchMirror(source, mirror, e, false)) {
+                        backoff(++attempt, e);
+                    }
+                } catch (Exception e) {
+                    if (mirror == null) {
+                        throw e;
+                    }
+                    switchMirror(source, mirror, e, true);
+                } finally {
+                    if (connection != null) {
+                        connection.disconnect();
+                    }
+                    if (mirror != null) {
+                        mirrors.recordTransfer(mirror, position - connectionStart, (System.nanoTime() - opened) / 1000000);
+                    }
+                }
+            }
+            block.flush();
+            return position;
+        } finally {
+            // Keep whatever made it to disk, even if this segment is abandoned, what is still
+            // buffered is fetched again
+            journal.markCompleted(start, block.discard(position));
+        }
+    }
+
+    // Opens a range request and checks the answer, mirror is null when there is only one URL
+    private HttpURLConnection openRange(MirrorSet.Mirror mirror, long position, long end) throws Exception {
+        HttpURLConnection connection = openConnection(mirror != null ? mirror.url : sourceUrl);
+        try {
+            connection.setRequestProperty("Range", "bytes=" + position + "-" + (end - 1));
+            // If the file changed the server answers 200 with the whole new body instead
+            String validator = mirror != null ? (mirror.etag != null ? mirror.etag : mirror.lastModified) : (etag != null ? etag : lastModified);
+            if (validator != null) {
+                connection.setRequestProperty("If-Range", validator);
+            }
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_OK && validator != null) {
+                if (mirror == null) {
+                    remoteChanged = true;
+                    journal.delete();
+                }
+                throw new Exception("Remote file changed during download");
+            }
+            checkResponse(connection, code, HttpURLConnection.HTTP_PARTIAL);
+            return connection;
+        } catch (Exception e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a range on {@code primary}, and if no answer came within the hedge delay, the same range
+     * on the next best mirror. The first to answer is used and the other one is closed.
+     */
+    private Response openHedged(final MirrorSet.Mirror primary, final long position, final long end) throws Exception {
+        MirrorSet.Mirror backup = hedgeDelayMillis > 0 ? mirrors.bestExcept(primary) : null;
+        if (backup == null) {
+            return new Response(primary, openRange(primary, position, end));
+        }
+
+        CompletionService<Response> race = new ExecutorCompletionService<>(hedgePool);
+        List<Future<Response>> requests = new ArrayList<>();
+        requests.add(race.submit(openRangeTask(primary, position, end)));
+        Future<Response> answered = race.poll(hedgeDelayMillis, TimeUnit.MILLISECONDS);
+        if (answered == null) {
+            mirrors.recordHedge(primary);
+            requests.add(race.submit(openRangeTask(backup, position, end)));
+        }
+
+        Exception primaryError = null;
+        int pending = requests.size();
+        while (pending > 0) {
+            Future<Response> done = answered != null ? answered : race.take();
+            answered = null;
+            pending--;
+            MirrorSet.Mirror mirror = done == requests.get(0) ? primary : backup;
+            try {
+                Response winner = done.get();
+                if (pending > 0) {
+                    closeLoser(requests.get(done == requests.get(0) ? 1 : 0));
+                }
+                if (primaryError != null) {
+                    // The caller only hears about the backup, so account for the primary here
+                    mirrors.recordFailure(primary, primaryError.getMessage());
+                }
+                return winner;
+            } catch (ExecutionException e) {
+                Exception error = e.getCause() instanceof Exception ? (Exception) e.getCause() : new Exception(e.getCause());
+                if (mirror == primary) {
+                    primaryError = error;
+                } else {
+                    mirrors.recordFailure(backup, error.getMessage());
+                }
+            }
+        }
+        // Both failed, the caller accounts for the primary
+        throw primaryError != null ? primaryError : new IOException("No mirror answered");
+    }
+
+    private Callable<Response> openRangeTask(final MirrorSet.Mirror mirror, final long position, final long end) {
+        return new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                return new Response(mirror, openRange(mirror, position, end));
+            }
+        };
+    }
+
+    private void closeLoser(final Future<Response> loser) {
+        hedgePool.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loser.get().connection.disconnect();
+                } catch (Exception e) {
+                    // It failed on its own, nothing to close
+                }
+            }
+        });
+    }
+
+    // Moves the connection off a failing mirror, returns false when it should retry the same one
+    private boolean switchMirror(MirrorSet.Mirror[] source, MirrorSet.Mirror mirror, Exception error, boolean fatal) throws Exception {
+        if (mirror == null) {
+            return false;
+        }
+        if (fatal) {
+            mirrors.disable(mirror, error.getMessage());
+        } else {
+            mirrors.recordFailure(mirror, error.getMessage());
+        }
+        MirrorSet.Mirror next = mirrors.best();
+        if (next == null) {
+            throw new Exception("All mirrors failed: " + mirrors.describeFailures());
+        }
+        source[0] = next;
+        return next != mirror;
+    }
+
+    private void backoff(int attempt, IOException error) throws IOException {
+        if (attempt >= MAX_ATTEMPTS || isStopped()) {
+            throw error;
+        }
+        String retryAfter = error instanceof RetryableHttpException ? ((RetryableHttpException) error).retryAfter : null;
+        long delay = retryDelayMillis(attempt, retryAfter, System.currentTimeMillis());
+        // Spread retries from parallel connections so they don't hit the server in lockstep
+        delay += jitter.nextInt((int) Math.min(Integer.MAX_VALUE, delay / 4 + 1));
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw error;
+        }
+    }
+
+    /**
+     * Exponential backoff, unless the server told us how long to wait through Retry-After
+     * (either delta-seconds or an HTTP date).
+     */
+    static long retryDelayMillis(int attempt, String retryAfter, long nowMillis) {
+        if (retryAfter != null) {
+            String value = retryAfter.trim();
+            try {
+                return Math.min(MAX_RETRY_DELAY, Math.max(0, Long.parseLong(value) * 1000));
+            } catch (NumberFormatException e) {
+                try {
+                    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+                    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                    Date date = format.parse(value);
+                    return Math.min(MAX_RETRY_DELAY, Math.max(0, date.getTime() - nowMillis));
+                } catch (ParseException ignored) {
+                    // Fall through to exponential backoff
+                }
+            }
+        }
+        long delay = BASE_RETRY_DELAY << Math.min(attempt - 1, 16);
+        return Math.min(MAX_RETRY_DELAY, delay);
+    }
+
+    private static void checkResponse(HttpURLConnection connection, int code, int expected) throws Exception {
+        if (code == expected) {
+            return;
+        }
+        if (code == 408 || code == 429 || code >= 500) {
+            throw new RetryableHttpException(code, connection.getHeaderField("Retry-After"));
+        }
+        if (expected == HttpURLConnection.HTTP_PARTIAL && code == HttpURLConnection.HTTP_OK) {
+            throw new Exception("Server ignored range request: HTTP " + code);
+        }
+        throw new Exception("Download failed with HTTP " + code);
+    }
+
+    // Learns the total length and validators, returns -1 if ranges aren't supported
+    private long probe() throws Exception {
+        int attempt = 0;
+        while (true) {
+            HttpURLConnection connection = openConnection();
+            try {
+                connection.setRequestProperty("Range", "bytes=0-0");
+                int code = connection.getResponseCode();
+                if (code == HttpURLConnection.HTTP_OK) {
+                    return -1;
+                }
+                checkResponse(connection, code, HttpURLConnection.HTTP_PARTIAL);
+                etag = connection.getHeaderField("ETag");
+                lastModified = connection.getHeaderField("Last-Modified");
+                return parseTotalLength(connection.getHeaderField("Content-Range"));
+            } catch (IOException e) {
+                backoff(++attempt, e);
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    // Probes every mirror in parallel and settles on the fastest, returns -1 if it has no range support
+    private long probeMirrors() throws Exception {
+        final List<MirrorSet.Mirror> all = mirrors.getMirrors();
+        ExecutorService pool = Executors.newFixedThreadPool(all.size());
+        List<Future<Void>> probes = new ArrayList<>();
+        try {
+            for (final MirrorSet.Mirror mirror : all) {
+                probes.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        probeMirror(mirror);
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < probes.size(); i++) {
+                try {
+                    probes.get(i).get();
+                } catch (ExecutionException e) {
+                    mirrors.disable(all.get(i), e.getCause().getMessage());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        MirrorSet.Mirror best = mirrors.best();
+        if (best == null) {
+            throw new Exception("All mirrors failed: " + mirrors.describeFailures());
+        }
+        mirrors.retainSameLength(best);
+        sourceMirror = best;
+        sourceUrl = best.url;
+        etag = best.etag;
+        lastModified = best.lastModified;
+        return best.totalSize;
+    }
+
+    private void probeMirror(MirrorSet.Mirror mirror) throws Exception {
+        HttpURLConnection connection = openConnection(mirror.url);
+        connection.setConnectTimeout(PROBE_TIMEOUT);
+        connection.setReadTimeout(PROBE_TIMEOUT);
+        try {
+            connection.setRequestProperty("Range", "bytes=0-" + (PROBE_BYTES - 1));
+            long started = System.nanoTime();
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                checkResponse(connection, code, HttpURLConnection.HTTP_PARTIAL);
+            }
+            mirror.etag = connection.getHeaderField("ETag");
+            mirror.lastModified = connection.getHeaderField("Last-Modified");
+            mirror.totalSize = code == HttpURLConnection.HTTP_PARTIAL ? parseTotalLength(connection.getHeaderField("Content-Range")) : -1;
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long firstByteMillis = -1;
+            long received = 0;
+            try (InputStream in = connection.getInputStream()) {
+                int read;
+                while (received < PROBE_BYTES && (read = in.read(buffer, 0, (int) Math.min(buffer.length, PROBE_BYTES - received))) != -1) {
+                    if (firstByteMillis < 0) {
+                        firstByteMillis = (System.nanoTime() - started) / 1000000;
+                    }
+                    received += read;
+                }
+            }
+            mirrors.recordProbe(mirror, firstByteMillis, received, (System.nanoTime() - started) / 1000000);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    // "bytes 0-0/12345" -> 12345
+    static long parseTotalLength(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0 || slash == contentRange.length() - 1) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            // "*" when the length is unknown
+            return -1;
+        }
+    }
+
+    private void downloadSingle() throws Exception {
+        HttpURLConnection connection = openConnection();
+        try {
+            checkResponse(connection, connection.getResponseCode(), HttpURLConnection.HTTP_OK);
+            long contentLength = connection.getContentLength();
+            totalSize = contentLength;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (InputStream in = connection.getInputStream();
+                 ApkFileWriter writer = new ApkFileWriter(target)) {
+                writer.truncate();
+                if (contentLength > 0) {
+                    writer.reserve(contentLength, contentLength);
+                }
+                ApkFileWriter.Block block = writer.newBlock();
+                long position = 0;
+                int read;
+                while (!cancelled && (read = in.read(buffer)) != -1) {
+                    block.write(buffer, 0, read, position);
+                    position += read;
+                    bytesDownloaded.addAndGet(read);
+                }
+                block.flush();
+                if (!cancelled && contentLength >= 0 && position < contentLength) {
+                    throw new IOException("Connection closed early");
+                }
+                writer.sync();
+                totalSize = position;
+            }
+        } finally {
+            connection.disconnect();
+        }
+        if (cancelled) {
+            throw new Exception("Download cancelled");
+        }
+    }
+
+    // Compressed bodies can't be split into ranges or resumed midway, so a lost connection starts over
+    private void downloadDecoded(String fileEncoding) throws Exception {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int attempt = 0;
+        while (true) {
+            HttpURLConnection connection = openConnection();
+            try {
+                // A file that is already compressed must not be compressed a second time
+                connection.setRequestProperty("Accept-Encoding", fileEncoding != null ? PayloadCodec.IDENTITY : PayloadCodec.acceptEncoding());
+                checkResponse(connection, connection.getResponseCode(), HttpURLConnection.HTTP_OK);
+                String contentEncoding = PayloadCodec.fromContentEncoding(connection.getHeaderField("Content-Encoding"));
+                String decoding = contentEncoding != null ? contentEncoding : fileEncoding;
+                if (decoding != null && !PayloadCodec.isSupported(decoding)) {
+                    throw new Exception("Unsupported encoding " + decoding);
+                }
+
+                long contentLength = connection.getContentLength();
+                totalSize = contentLength;
+                encoding = decoding;
+                bytesDownloaded.set(0);
+                bytesWritten.set(0);
+                InputStream wire = new CountingInputStream(connection.getInputStream(), bytesDownloaded);
+                try (InputStream in = decoding != null ? PayloadCodec.decode(decoding, wire) : wire;
+                     ApkFileWriter writer = new ApkFileWriter(target)) {
+                    writer.truncate();
+                    // The decoded size isn't known, but it is at least what comes over the wire
+                    writer.checkFreeSpace(Math.max(0, contentLength));
+                    ApkFileWriter.Block block = writer.newBlock();
+                    long position = 0;
+                    int read;
+                    while (!cancelled && (read = in.read(buffer)) != -1) {
+                        block.write(buffer, 0, read, position);
+                        position += read;
+                        bytesWritten.addAndGet(read);
+                    }
+                    block.flush();
+                    if (!cancelled && contentLength >= 0 && bytesDownloaded.get() < contentLength) {
+                        throw new IOException("Connection closed early");
+                    }
+                    writer.sync();
+                }
+                totalSize = bytesDownloaded.get();
+                break;
+            } catch (IOException e) {
+                backoff(++attempt, e);
+            } finally {
+                connection.disconnect();
+            }
+        }
+        if (cancelled) {
+            throw new Exception("Download cancelled");
+        }
+    }
+
+    private HttpURLConnection openConnection() throws IOException {
+        return openConnection(sourceUrl);
+    }
+
+    private HttpURLConnection openConnection(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        // Android adds gzip transparently otherwise, which breaks byte ranges and Content-Length
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        return connection;
+    }
+
+    // Counts what comes off the wire, before any decoding
+    private static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong count;
+
+        CountingInputStream(InputStream in, AtomicLong count) {
+            super(in);
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value != -1) {
+                count.incrementAndGet();
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count.addAndGet(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count.addAndGet(skipped);
+            return skipped;
+        }
+    }
+
+    private static class Response {
+        final MirrorSet.Mirror mirror;
+        final HttpURLConnection connection;
+
+        Response(MirrorSet.Mirror mirror, HttpURLConnection connection) {
+            this.mirror = mirror;
+            this.connection = connection;
+        }
+    }
+
+    static class RetryableHttpException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final String retryAfter;
+
+        RetryableHttpException(int code, String retryAfter) {
+            super("Server returned HTTP " + code);
+            this.retryAfter = retryAfter;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInstaller;
+import android.os.Build;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Installs APKs through a {@link PackageInstaller} session. Bytes are written straight into the
+ * session, so the APK never has to exist as a separate file that the system installer copies
+ * again, and the outcome comes back through a status broadcast instead of an activity result.
+ */
+public class SessionInstaller {
+    private static final String ACTION_INSTALL_STATUS = ".CAPACITOR_APK_UPDATER_INSTALL_STATUS";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Context context;
+    private final PackageInstaller packageInstaller;
+    // One receiver per committed session until its final status arrives, guarded by itself
+    private final Map<Integer, BroadcastReceiver> statusReceivers = new HashMap<>();
+
+    public interface StatusListener {
+        void onInstallStatus(boolean success, String message);
+    }
+
+    public SessionInstaller(Context context) {
+        this.context = context;
+        this.packageInstaller = context.getPackageManager().getPackageInstaller();
+    }
+
+    public int createSession(long totalSize) throws IOException {
+        PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+        params.setAppPackageName(context.getPackageName());
+        if (totalSize > 0) {
+            // Lets the system check for and reserve space before we start writing
+            params.setSize(totalSize);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            // Updating ourselves can skip the confirmation dialog on Android 12+ when allowed
+            params.setRequireUserAction(PackageInstaller.SessionParams.USER_ACTION_NOT_REQUIRED);
+        }
+        return packageInstaller.createSession(params);
+    }
+
+    /**
+     * Opens a stream into the session. Closing it syncs the written bytes, after which the session
+     * can be committed. Pass -1 as the length when it isn't known up front.
+     */
+    public OutputStream openWrite(int sessionId, String name, long length) throws IOException {
+        PackageInstaller.Session session = packageInstaller.openSession(sessionId);
+        try {
+            return new SessionOutputStream(session, session.openWrite(name, 0, length));
+        } catch (IOException | RuntimeException e) {
+            session.close();
+            throw e;
+        }
+    }
+
+    public void writeFile(int sessionId, String name, File file) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file);
+             OutputStream out = openWrite(sessionId, name, file.length())) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    public void commit(int sessionId, final StatusListener listener) throws IOException {
+        registerStatusReceiver(sessionId, listener);
+
+        Intent intent = new Intent(statusAction(sessionId));
+        intent.setPackage(context.getPackageName());
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            // The installer fills in the status extras, so the intent has to stay mutable
+            flags |= PendingIntent.FLAG_MUTABLE;
+        }
+        PendingIntent statusIntent = PendingIntent.getBroadcast(context, sessionId, intent, flags);
+
+        try (PackageInstaller.Session session = packageInstaller.openSession(sessionId)) {
+            session.commit(statusIntent.getIntentSender());
+        } catch (IOException | RuntimeException e) {
+            unregisterStatusReceiver(sessionId);
+            throw e;
+        }
+    }
+
+    public void abandon(int sessionId) {
+        try {
+            packageInstaller.abandonSession(sessionId);
+        } catch (SecurityException e) {
+            // Session already gone
+        }
+    }
+
+    public void cleanup() {
+        synchronized (statusReceivers) {
+            for (BroadcastReceiver receiver : statusReceivers.values()) {
+                unregister(receiver);
+            }
+            statusReceivers.clear();
+        }
+    }
+
+    // Each session has its own action, so overlapping commits each hear their own outcome
+    String statusAction(int sessionId) {
+        return context.getPackageName() + ACTION_INSTALL_STATUS + "." + sessionId;
+    }
+
+    private void unregisterStatusReceiver(int sessionId) {
+        BroadcastReceiver receiver;
+        synchronized (statusReceivers) {
+            receiver = statusReceivers.remove(sessionId);
+        }
+        if (receiver != null) {
+            unregister(receiver);
+        }
+    }
+
+    private void unregister(BroadcastReceiver receiver) {
+        try {
+            context.unregisterReceiver(receiver);
+        } catch (IllegalArgumentException e) {
+            // Receiver not registered
+        }
+    }
+
+    void registerStatusReceiver(final int sessionId, final StatusListener listener) {
+        // A retried commit of the same session replaces the earlier receiver
+        unregisterStatusReceiver(sessionId);
+        BroadcastReceiver statusReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                int status = intent.getIntExtra(PackageInstaller.EXTRA_STATUS, PackageInstaller.STATUS_FAILURE);
+                if (status == PackageInstaller.STATUS_PENDING_USER_ACTION) {
+                    Intent confirmIntent = getConfirmIntent(intent);
+                    if (confirmIntent != null) {
+                        confirmIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                        context.startActivity(confirmIntent);
+                        return;
+                    }
+                }
+
+                String message = intent.getStringExtra(PackageInstaller.EXTRA_STATUS_MESSAGE);
+                unregisterStatusReceiver(sessionId);
+                if (listener != null) {
+                    listener.onInstallStatus(status == PackageInstaller.STATUS_SUCCESS, message);
+                }
+            }
+        };
+
+        synchronized (statusReceivers) {
+            statusReceivers.put(sessionId, statusReceiver);
+        }
+        IntentFilter filter = new IntentFilter(statusAction(sessionId));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            context.registerReceiver(statusReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
+        } else {
+            context.registerReceiver(statusReceiver, filter);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Intent getConfirmIntent(Intent intent) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            return intent.getParcelableExtra(Intent.EXTRA_INTENT, Intent.class);
+        }
+        return intent.getParcelableExtra(Intent.EXTRA_INTENT);
+    }
+
+    private static class SessionOutputStream extends OutputStream {
+        private final PackageInstaller.Session session;
+        private final OutputStream out;
+
+        SessionOutputStream(PackageInstaller.Session session, OutputStream out) {
+            this.session = session;
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                session.fsync(out);
+                out.close();
+            } finally {
+                session.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Picks the APKs of a split set that a device actually needs.
+ *
+ * Splits without a qualifier (the base and any feature splits) are always installed. Of the ABI
+ * splits only the one for the most preferred supported ABI is taken, of the density splits the
+ * closest bucket at or above the screen density, and of the language splits those matching one of
+ * the device languages.
+ */
+public class SplitSelector {
+    private static final String[] DENSITY_NAMES = { "ldpi", "mdpi", "tvdpi", "hdpi", "xhdpi", "xxhdpi", "xxxhdpi" };
+    private static final int[] DENSITY_VALUES = { 120, 160, 213, 240, 320, 480, 640 };
+
+    public static List<Split> parse(JSONArray array) throws Exception {
+        List<Split> splits = new ArrayList<>();
+        try {
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject json = array.getJSONObject(i);
+                if (!json.has("name") || !json.has("url")) {
+                    throw new Exception("Every split needs a name and a url");
+                }
+                splits.add(new Split(
+                    json.getString("name"),
+                    json.getString("url"),
+                    json.optString("abi", null),
+                    json.optString("density", null),
+                    json.optString("locale", null),
+                    json.optString("sha256", null)
+                ));
+            }
+        } catch (JSONException e) {
+            throw new Exception("Invalid split set: " + e.getMessage());
+        }
+        return splits;
+    }
+
+    public static List<Split> select(List<Split> splits, String[] supportedAbis, int densityDpi, List<String> languages) {
+        String abi = null;
+        for (String deviceAbi : supportedAbis) {
+            for (Split split : splits) {
+                if (split.abi != null && normalizeAbi(split.abi).equals(normalizeAbi(deviceAbi))) {
+                    abi = deviceAbi;
+                    break;
+                }
+            }
+            if (abi != null) {
+                break;
+            }
+        }
+
+        int density = -1;
+        int largest = -1;
+        for (Split split : splits) {
+            int value = split.density != null ? densityValue(split.density) : -1;
+            if (value >= densityDpi && (density == -1 || value < density)) {
+                density = value;
+            }
+            largest = Math.max(largest, value);
+        }
+        if (density == -1) {
+            density = largest;
+        }
+
+        List<String> deviceLanguages = new ArrayList<>();
+        for (String language : languages) {
+            deviceLanguages.add(language(language));
+        }
+
+        List<Split> selected = new ArrayList<>();
+        for (Split split : splits) {
+            if (split.abi != null) {
+                if (abi != null && normalizeAbi(split.abi).equals(normalizeAbi(abi))) {
+                    selected.add(split);
+                }
+            } else if (split.density != null) {
+                if (densityValue(split.density) == density) {
+                    selected.add(split);
+                }
+            } else if (split.locale != null) {
+                if (deviceLanguages.contains(language(split.locale))) {
+                    selected.add(split);
+                }
+            } else {
+                selected.add(split);
+            }
+        }
+        return selected;
+    }
+
+    // Density buckets may be given by name ("xxhdpi") or in dpi ("480")
+    static int densityValue(String density) {
+        String name = density.trim().toLowerCase(Locale.US);
+        for (int i = 0; i < DENSITY_NAMES.length; i++) {
+            if (DENSITY_NAMES[i].equals(name)) {
+                return DENSITY_VALUES[i];
+            }
+        }
+        try {
+            return Integer.parseInt(name);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Split names use underscores where Build.SUPPORTED_ABIS uses dashes
+    private static String normalizeAbi(String abi) {
+        return abi.trim().toLowerCase(Locale.US).replace('_', '-');
+    }
+
+    private static String language(String locale) {
+        String tag = locale.trim().toLowerCase(Locale.US).replace('_', '-');
+        int separator = tag.indexOf('-');
+        return separator > 0 ? tag.substring(0, separator) : tag;
+    }
+
+    public static class Split {
+        public final String name;
+        public final String url;
+        public final String abi;
+        public final String density;
+        public final String locale;
+        public final String sha256;
+
+        public Split(String name, String url, String abi, String density, String locale, String sha256) {
+            this.name = name;
+            this.url = url;
+            this.abi = abi;
+            this.density = density;
+            this.locale = locale;
+            this.sha256 = sha256;
+        }
+    }
+}
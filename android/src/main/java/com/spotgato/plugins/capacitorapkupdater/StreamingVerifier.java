@@ -0,0 +1,113 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * Incremental SHA-256 over a file that is still being written.
+ *
+ * Bytes are either fed in directly as they are produced, or read back from the file each time
+ * more of its prefix becomes final, while they are still in the page cache. Either way only the
+ * last few bytes are left to hash once the download completes.
+ */
+public class StreamingVerifier {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String expectedSha256;
+    private final MessageDigest digest;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private long hashedBytes = 0;
+
+    public StreamingVerifier(String expectedSha256) {
+        this.expectedSha256 = normalizeHex(expectedSha256);
+        this.digest = newDigest();
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java and Android runtime ships SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized long getHashedBytes() {
+        return hashedBytes;
+    }
+
+    public synchronized void update(byte[] data, int offset, int length) {
+        digest.update(data, offset, length);
+        hashedBytes += length;
+    }
+
+    /**
+     * Hashes the file from where we stopped up to {@code availableBytes}, the length of the prefix
+     * that will no longer change. If the writer started over, so does the hash.
+     */
+    public synchronized void catchUp(File file, long availableBytes) throws IOException {
+        if (availableBytes < hashedBytes) {
+            digest.reset();
+            hashedBytes = 0;
+        }
+        if (availableBytes == hashedBytes || !file.exists()) {
+            return;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long end = Math.min(availableBytes, in.length());
+            in.seek(hashedBytes);
+            while (hashedBytes < end) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, end - hashedBytes));
+                if (read < 0) {
+                    break;
+                }
+                digest.update(buffer, 0, read);
+                hashedBytes += read;
+            }
+        }
+    }
+
+    /**
+     * Hashes whatever is left of the finished file and returns the hex digest.
+     */
+    public synchronized String finish(File file) throws IOException {
+        catchUp(file, file.length());
+        return finish();
+    }
+
+    /**
+     * Completes the hash over the bytes fed in through {@link #update}.
+     */
+    public synchronized String finish() {
+        return toHex(digest.digest());
+    }
+
+    public boolean matches(String actualSha256) {
+        return expectedSha256.equals(normalizeHex(actualSha256));
+    }
+
+    public String getExpectedSha256() {
+        return expectedSha256;
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    // Accepts "AB:CD:..." as printed by keytool as well as plain hex
+    public static String normalizeHex(String hex) {
+        if (hex == null) {
+            return null;
+        }
+        return hex.replace(":", "").replace(" ", "").trim().toLowerCase(Locale.US);
+    }
+}
@@ -0,0 +1,160 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fetches the JSON release manifest with HTTP conditional requests.
+ *
+ * The last manifest is kept on disk together with its ETag and Last-Modified validators, so asking
+ * again for an unchanged manifest costs a 304 with no body. If the server can't be reached the
+ * cached copy is returned instead.
+ */
+public class UpdateChecker {
+    private static final int TIMEOUT = 15000;
+
+    private final File cacheFile;
+
+    public UpdateChecker(File cacheDir) {
+        this.cacheFile = new File(cacheDir, "update-manifest.json");
+    }
+
+    public synchronized Manifest fetch(String url) throws Exception {
+        JSONObject cached = loadCache(url);
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setUseCaches(false);
+            connection.setRequestProperty("Accept", "application/json");
+            if (cached != null) {
+                if (cached.has("etag")) {
+                    connection.setRequestProperty("If-None-Match", cached.getString("etag"));
+                }
+                if (cached.has("lastModified")) {
+                    connection.setRequestProperty("If-Modified-Since", cached.getString("lastModified"));
+                }
+            }
+
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                return parse(cached.getString("body"), true);
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new Exception("Unexpected response code " + code + " for " + url);
+            }
+
+            String body = readBody(connection);
+            Manifest manifest = parse(body, false);
+            saveCache(url, connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"), body);
+            return manifest;
+        } catch (IOException e) {
+            if (cached != null) {
+                // Offline, the last manifest we saw is better than nothing
+                return parse(cached.getString("body"), true);
+            }
+            throw new Exception("Unable to fetch update manifest: " + e.getMessage());
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        cacheFile.delete();
+    }
+
+    static Manifest parse(String body, boolean fromCache) throws Exception {
+        JSONObject json;
+        try {
+            json = new JSONObject(body);
+        } catch (JSONException e) {
+            throw new Exception("Update manifest is not valid JSON");
+        }
+        if (!json.has("versionCode")) {
+            throw new Exception("Update manifest has no versionCode");
+        }
+        return new Manifest(json, json.getLong("versionCode"), json.optString("versionName", null), fromCache);
+    }
+
+    private JSONObject loadCache(String url) {
+        if (!cacheFile.exists()) {
+            return null;
+        }
+        try (InputStream in = new FileInputStream(cacheFile)) {
+            JSONObject cached = new JSONObject(new String(readFully(in), StandardCharsets.UTF_8));
+            // A manifest cached for a different URL tells us nothing about this one
+            return url.equals(cached.optString("url")) ? cached : null;
+        } catch (IOException | JSONException e) {
+            cacheFile.delete();
+            return null;
+        }
+    }
+
+    private void saveCache(String url, String etag, String lastModified, String body) {
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        try {
+            JSONObject cached = new JSONObject();
+            cached.put("url", url);
+            cached.put("body", body);
+            if (etag != null) {
+                cached.put("etag", etag);
+            }
+            if (lastModified != null) {
+                cached.put("lastModified", lastModified);
+            }
+            try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                out.write(cached.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            if (!tempFile.renameTo(cacheFile)) {
+                tempFile.delete();
+            }
+        } catch (IOException | JSONException e) {
+            // Only costs a full download next time
+            tempFile.delete();
+        }
+    }
+
+    private static String readBody(HttpURLConnection connection) throws IOException {
+        try (InputStream in = connection.getInputStream()) {
+            return new String(readFully(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    public static class Manifest {
+        public final JSONObject json;
+        public final long versionCode;
+        public final String versionName;
+        // Served from the on-disk copy, either because it was unchanged or the server was unreachable
+        public final boolean fromCache;
+
+        public Manifest(JSONObject json, long versionCode, String versionName, boolean fromCache) {
+            this.json = json;
+            this.versionCode = versionCode;
+            this.versionName = versionName;
+            this.fromCache = fromCache;
+        }
+    }
+}
@@ -0,0 +1,435 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import com.getcapacitor.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Runs a whole update natively: checks the release manifest, waits for the install permission,
+ * downloads and verifies the APK and hands it to the installer, with no round trip through
+ * JavaScript between the steps. The installer is an activity, so a download that finishes while
+ * the app is in the background waits in readyToInstall until {@link #onResume}.
+ *
+ * The current step is saved with every transition. After the app was killed, {@link #restore}
+ * carries on from there, and once the update replaced the app it reports that it was installed.
+ * The {@link StateListener} only hears transitions and download progress, on the main thread.
+ */
+public class UpdateFlow {
+    public static final String STATE_IDLE = "idle";
+    public static final String STATE_CHECKING = "checking";
+    public static final String STATE_UP_TO_DATE = "upToDate";
+    public static final String STATE_WAITING_FOR_PERMISSION = "waitingForPermission";
+    public static final String STATE_DOWNLOADING = "downloading";
+    public static final String STATE_VERIFYING = "verifying";
+    public static final String STATE_READY_TO_INSTALL = "readyToInstall";
+    public static final String STATE_INSTALLING = "installing";
+    public static final String STATE_INSTALLED = "installed";
+    public static final String STATE_FAILED = "failed";
+    public static final String STATE_CANCELLED = "cancelled";
+    public static final String ERROR_CHECK_FAILED = "CHECK_FAILED";
+    public static final String ERROR_INSTALL_FAILED = "INSTALL_FAILED";
+    public static final String ERROR_INSTALL_ABORTED = "INSTALL_ABORTED";
+    private static final String PREFS_NAME = "CapacitorApkUpdaterUpdate";
+    private static final String KEY_FLOW = "flow";
+
+    public interface StateListener {
+        void onStateChanged(State state);
+    }
+
+    private final Context context;
+    private final CapacitorApkUpdater updater;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile StateListener stateListener;
+    // Everything below is guarded by this
+    private String state = STATE_IDLE;
+    private String manifestUrl;
+    private CapacitorApkUpdater.DownloadOptions options;
+    private long versionCode;
+    private String versionName;
+    private long downloadId;
+    private int progress;
+    private String filePath;
+    private String error;
+    private String errorCode;
+    private boolean restored;
+    // Bumped by every run, restore and cancel, so callbacks of an earlier run are ignored
+    private int generation;
+
+    public UpdateFlow(Context context, CapacitorApkUpdater updater) {
+        this.context = context;
+        this.updater = updater;
+    }
+
+    public void setStateListener(StateListener listener) {
+        this.stateListener = listener;
+    }
+
+    /**
+     * Starts an update from the manifest at {@code manifestUrl}. The manifest's {@code url}, and
+     * {@code sha256}, {@code blockIndexUrl} and {@code chunkManifestUrl} where given, fill in
+     * {@code options}.
+     */
+    public synchronized State run(String manifestUrl, CapacitorApkUpdater.DownloadOptions options) throws Exception {
+        if (isActive()) {
+            throw new Exception("An update is already running");
+        }
+        this.manifestUrl = manifestUrl;
+        this.options = options.copy();
+        versionCode = 0;
+        versionName = null;
+        downloadId = 0;
+        progress = 0;
+        filePath = null;
+        error = null;
+        errorCode = null;
+        restored = false;
+        generation++;
+        check();
+        return snapshot();
+    }
+
+    /**
+     * Picks up the update an earlier process left unfinished. Call once, after
+     * {@link CapacitorApkUpdater#restoreDownloads()}, so a running download is joined instead of
+     * started again.
+     */
+    public synchronized void restore() {
+        String saved = getPrefs().getString(KEY_FLOW, null);
+        if (saved == null || isActive()) {
+            return;
+        }
+        try {
+            JSONObject json = new JSONObject(saved);
+            manifestUrl = json.getString("manifestUrl");
+            options = CapacitorApkUpdater.DownloadOptions.fromJson(json.getJSONObject("options"));
+            versionCode = json.optLong("versionCode", 0);
+            versionName = json.has("versionName") ? json.getString("versionName") : null;
+            downloadId = json.optLong("downloadId", 0);
+            filePath = json.has("filePath") ? json.getString("filePath") : null;
+            state = json.getString("state");
+        } catch (JSONException e) {
+            Logger.error("CapacitorApkUpdater", new Exception("Unable to restore update: " + e.getMessage()));
+            getPrefs().edit().remove(KEY_FLOW).apply();
+            return;
+        }
+        restored = true;
+        generation++;
+
+        if (STATE_CHECKING.equals(state)) {
+            check();
+        } else if (STATE_WAITING_FOR_PERMISSION.equals(state)) {
+            notifyState();
+            requirePermission();
+        } else if (STATE_DOWNLOADING.equals(state) || STATE_VERIFYING.equals(state)) {
+            download();
+        } else if (STATE_READY_TO_INSTALL.equals(state)) {
+            notifyState();
+            if (isInForeground()) {
+                handOff();
+            }
+        } else if (STATE_INSTALLING.equals(state)) {
+            // A successful install replaces the app, so ending up here means either that or nothing
+            if (installedVersionCode() >= versionCode) {
+                enter(STATE_INSTALLED);
+            } else {
+                fail("Installation was not completed", ERROR_INSTALL_ABORTED);
+            }
+        } else {
+            getPrefs().edit().remove(KEY_FLOW).apply();
+            state = STATE_IDLE;
+        }
+    }
+
+    /**
+     * Call when the app comes back to the foreground: continues once the install permission was
+     * granted, starts an install that was waiting for the app, and notices when the system
+     * installer was left without installing.
+     */
+    public synchronized void onResume() {
+        if (STATE_WAITING_FOR_PERMISSION.equals(state)) {
+            requirePermission();
+        } else if (STATE_READY_TO_INSTALL.equals(state)) {
+            handOff();
+        } else if (STATE_INSTALLING.equals(state) && !CapacitorApkUpdater.INSTALL_MODE_SESSION.equals(options.installMode)) {
+            if (installedVersionCode() >= versionCode) {
+                enter(STATE_INSTALLED);
+            } else {
+                fail("Installation was not completed", ERROR_INSTALL_ABORTED);
+            }
+        }
+    }
+
+    /**
+     * Outcome of an install session, as reported to {@link CapacitorApkUpdater.DownloadListener#onInstallStatus}.
+     */
+    public synchronized void onInstallStatus(boolean success, String message) {
+        if (!STATE_INSTALLING.equals(state)) {
+            return;
+        }
+        if (success) {
+            enter(STATE_INSTALLED);
+        } else {
+            fail(message != null ? message : "Installation failed", ERROR_INSTALL_FAILED);
+        }
+    }
+
+    public synchronized boolean cancel() {
+        if (!isActive()) {
+            return false;
+        }
+        generation++;
+        if (downloadId != 0 && (STATE_DOWNLOADING.equals(state) || STATE_VERIFYING.equals(state))) {
+            updater.cancelDownload(downloadId);
+        }
+        enter(STATE_CANCELLED);
+        return true;
+    }
+
+    public synchronized State getState() {
+        return snapshot();
+    }
+
+    /**
+     * Whether this update is waiting on the download, and so installs it itself.
+     */
+    public synchronized boolean ownsDownload(long id) {
+        return id != 0 && id == downloadId && (STATE_DOWNLOADING.equals(state) || STATE_VERIFYING.equals(state));
+    }
+
+    private void check() {
+        enter(STATE_CHECKING);
+        final int run = generation;
+        updater.checkForUpdate(manifestUrl, new CapacitorApkUpdater.UpdateCheckListener() {
+            @Override
+            public void onUpdateChecked(CapacitorApkUpdater.UpdateCheckResult result) {
+                onChecked(run, result);
+            }
+        });
+    }
+
+    private synchronized void onChecked(int run, CapacitorApkUpdater.UpdateCheckResult result) {
+        if (run != generation) {
+            return;
+        }
+        if (!result.success) {
+            fail(result.error, ERROR_CHECK_FAILED);
+            return;
+        }
+        versionCode = result.manifest.versionCode;
+        versionName = result.manifest.versionName;
+        if (!result.updateAvailable) {
+            enter(STATE_UP_TO_DATE);
+            return;
+        }
+        JSONObject manifest = result.manifest.json;
+        String url = manifest.optString("url", null);
+        if (url == null || url.isEmpty()) {
+            fail("Update manifest has no url", ERROR_CHECK_FAILED);
+            return;
+        }
+        options.url = url;
+        if (options.expectedSha256 == null) {
+            options.expectedSha256 = manifest.optString("sha256", null);
+        }
+        if (options.blockIndexUrl == null) {
+            options.blockIndexUrl = manifest.optString("blockIndexUrl", null);
+        }
+        if (options.chunkManifestUrl == null) {
+            options.chunkManifestUrl = manifest.optString("chunkManifestUrl", null);
+        }
+        requirePermission();
+    }
+
+    private void requirePermission() {
+        // Before Android 8 the system installer asks for unknown sources itself
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || updater.canInstallApks().canInstall) {
+            download();
+        } else {
+            enter(STATE_WAITING_FOR_PERMISSION);
+        }
+    }
+
+    private void download() {
+        final int run = generation;
+        progress = 0;
+        enter(STATE_DOWNLOADING);
+        try {
+            downloadId = updater.startDownload(options, new CapacitorApkUpdater.VerificationListener() {
+                @Override
+                public void onVerifying(long id) {
+                    synchronized (UpdateFlow.this) {
+                        if (run == generation && STATE_DOWNLOADING.equals(state)) {
+                            enter(STATE_VERIFYING);
+                        }
+                    }
+                }
+
+                @Override
+                public void onDownloadProgress(long id, ProgressThrottle.Progress update) {
+                    synchronized (UpdateFlow.this) {
+                        if (run == generation && STATE_DOWNLOADING.equals(state)) {
+                            progress = update.progress;
+                            notifyState();
+                        }
+                    }
+                }
+
+                @Override
+                public void onDownloadComplete(long id, CapacitorApkUpdater.DownloadResult result) {
+                    onDownloaded(run, result);
+                }
+
+                @Override
+                public void onInstallStatus(boolean success, String message) {}
+            });
+        } catch (Exception e) {
+            fail("Download failed: " + e.getMessage(), CapacitorApkUpdater.ERROR_DOWNLOAD_FAILED);
+            return;
+        }
+        // The ID is only known now, save it with the state
+        save();
+    }
+
+    private synchronized void onDownloaded(int run, CapacitorApkUpdater.DownloadResult result) {
+        if (run != generation) {
+            return;
+        }
+        if (!result.success) {
+            fail(result.error, result.errorCode);
+            return;
+        }
+        progress = 100;
+        if (result.installCommitted) {
+            // Streamed straight into an install session, the session reports the rest
+            enter(STATE_INSTALLING);
+            return;
+        }
+        filePath = result.filePath;
+        enter(STATE_READY_TO_INSTALL);
+        // Starting the installer from the background is blocked or lost behind other apps
+        if (isInForeground()) {
+            handOff();
+        }
+    }
+
+    private void handOff() {
+        // Saved before the handoff, a successful install ends this process
+        enter(STATE_INSTALLING);
+        if (!updater.installDownloadedApk(downloadId, filePath)) {
+            fail("Failed to launch installation", ERROR_INSTALL_FAILED);
+        }
+    }
+
+    private static boolean isInForeground() {
+        ActivityManager.RunningAppProcessInfo info = new ActivityManager.RunningAppProcessInfo();
+        ActivityManager.getMyMemoryState(info);
+        return info.importance == ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND;
+    }
+
+    private void fail(String message, String code) {
+        error = message;
+        errorCode = code;
+        Logger.error("CapacitorApkUpdater", new Exception("Update failed: " + message));
+        enter(STATE_FAILED);
+    }
+
+    private void enter(String next) {
+        if (next.equals(state)) {
+            return;
+        }
+        state = next;
+        save();
+        notifyState();
+    }
+
+    private boolean isActive() {
+        return !(STATE_IDLE.equals(state) || isFinal(state));
+    }
+
+    private static boolean isFinal(String state) {
+        return STATE_UP_TO_DATE.equals(state) || STATE_INSTALLED.equals(state) || STATE_FAILED.equals(state) || STATE_CANCELLED.equals(state);
+    }
+
+    // Only unfinished updates are kept, there is nothing to pick up after the others
+    private void save() {
+        SharedPreferences.Editor editor = getPrefs().edit();
+        if (isFinal(state)) {
+            editor.remove(KEY_FLOW);
+        } else {
+            try {
+                JSONObject json = new JSONObject();
+                json.put("state", state);
+                json.put("manifestUrl", manifestUrl);
+                json.put("options", options.toJson());
+                json.put("versionCode", versionCode);
+                json.put("versionName", versionName);
+                json.put("downloadId", downloadId);
+                json.put("filePath", filePath);
+                editor.putString(KEY_FLOW, json.toString());
+            } catch (JSONException e) {
+                Logger.error("CapacitorApkUpdater", new Exception("Unable to save update: " + e.getMessage()));
+                return;
+            }
+        }
+        editor.apply();
+    }
+
+    private void notifyState() {
+        final StateListener listener = stateListener;
+        if (listener == null) {
+            return;
+        }
+        final State current = snapshot();
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onStateChanged(current);
+            }
+        });
+    }
+
+    private State snapshot() {
+        return new State(state, versionCode, versionName, downloadId, progress, filePath, error, errorCode, restored);
+    }
+
+    private long installedVersionCode() {
+        CapacitorApkUpdater.AppInfo appInfo = updater.getAppInfo();
+        return appInfo.success ? appInfo.versionCode : 0;
+    }
+
+    private SharedPreferences getPrefs() {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public static class State {
+        public final String state;
+        // Of the update, 0 until the manifest was read
+        public final long versionCode;
+        public final String versionName;
+        public final long downloadId;
+        public final int progress;
+        public final String filePath;
+        public final String error;
+        public final String errorCode;
+        // Picked up from an earlier process
+        public final boolean restored;
+
+        public State(String state, long versionCode, String versionName, long downloadId, int progress, String filePath, String error, String errorCode, boolean restored) {
+            this.state = state;
+            this.versionCode = versionCode;
+            this.versionName = versionName;
+            this.downloadId = downloadId;
+            this.progress = progress;
+            this.filePath = filePath;
+            this.error = error;
+            this.errorCode = errorCode;
+            this.restored = restored;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ApkCacheTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    // Writes a verified download to {@code name} and returns its SHA-256
+    private String download(String name, int size, int seed) throws IOException {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        try (FileOutputStream out = new FileOutputStream(new File(temp.getRoot(), name))) {
+            out.write(data);
+        }
+        return StreamingVerifier.toHex(StreamingVerifier.newDigest().digest(data));
+    }
+
+    private File file(String name) {
+        return new File(temp.getRoot(), name);
+    }
+
+    @Test
+    public void add_copiesFileUnderItsHashAndLeavesTheOriginal() throws Exception {
+        ApkCache cache = new ApkCache(new File(temp.getRoot(), "cache"), 1024 * 1024);
+        String sha256 = download("update.apk", 1000, 1);
+
+        File cached = cache.add(file("update.apk"), sha256.toUpperCase());
+
+        assertTrue(file("update.apk").exists());
+        assertEquals(sha256 + ".apk", cached.getName());
+        assertEquals(1000, cached.length());
+        assertEquals(cached, cache.get(sha256));
+        assertNull(cache.get("00" + sha256.substring(2)));
+    }
+
+    @Test
+    public void add_replacesChangedFileOfTheSameLength() throws Exception {
+        ApkCache cache = new ApkCache(new File(temp.getRoot(), "cache"), 1024 * 1024);
+        String sha256 = download("update.apk", 1000, 1);
+        File cached = cache.add(file("update.apk"), sha256);
+        try (FileOutputStream out = new FileOutputStream(cached)) {
+            out.write(new byte[1000]);
+        }
+
+        cache.add(file("update.apk"), sha256);
+
+        StreamingVerifier verifier = new StreamingVerifier(sha256);
+        assertTrue(verifier.matches(verifier.finish(cached)));
+    }
+
+    @Test
+    public void add_evictsLeastRecentlyUsed() throws Exception {
+        ApkCache cache = new ApkCache(new File(temp.getRoot(), "cache"), 2500);
+        String first = download("a.apk", 1000, 1);
+        cache.add(file("a.apk"), first);
+        String second = download("b.apk", 1000, 2);
+        cache.add(file("b.apk"), second);
+
+        // Using the first one makes the second the eviction candidate
+        assertNotNull(cache.get(first));
+        String third = download("c.apk", 1000, 3);
+        cache.add(file("c.apk"), third);
+
+        assertNotNull(cache.get(first));
+        assertNull(cache.get(second));
+        assertNotNull(cache.get(third));
+        assertEquals(2000, cache.getTotalBytes());
+    }
+
+    @Test
+    public void add_keepsNewEntryLargerThanBudget() throws Exception {
+        ApkCache cache = new ApkCache(new File(temp.getRoot(), "cache"), 500);
+        String sha256 = download("big.apk", 1000, 4);
+        cache.add(file("big.apk"), sha256);
+
+        assertNotNull(cache.get(sha256));
+    }
+
+    @Test
+    public void remove_dropsEntryAndFile() throws Exception {
+        ApkCache cache = new ApkCache(new File(temp.getRoot(), "cache"), 1024 * 1024);
+        String sha256 = download("update.apk", 1000, 5);
+        File cached = cache.add(file("update.apk"), sha256);
+
+        cache.remove(sha256.toUpperCase());
+
+        assertNull(cache.get(sha256));
+        assertFalse(cached.exists());
+        assertEquals(0, cache.getTotalBytes());
+    }
+
+    @Test
+    public void load_restoresIndexAndDropsLeftovers() throws Exception {
+        File dir = new File(temp.getRoot(), "cache");
+        ApkCache cache = new ApkCache(dir, 1024 * 1024);
+        String sha256 = download("update.apk", 1000, 5);
+        cache.add(file("update.apk"), sha256);
+        File leftover = new File(dir, "0123.apk.tmp");
+        assertTrue(leftover.createNewFile());
+
+        ApkCache reopened = new ApkCache(dir, 1024 * 1024);
+        assertNotNull(reopened.get(sha256));
+        assertFalse(leftover.exists());
+    }
+
+    @Test
+    public void get_forgetsTruncatedEntry() throws Exception {
+        ApkCache cache = new ApkCache(new File(temp.getRoot(), "cache"), 1024 * 1024);
+        String sha256 = download("update.apk", 1000, 6);
+        File cached = cache.add(file("update.apk"), sha256);
+        try (FileOutputStream out = new FileOutputStream(cached)) {
+            out.write(1);
+        }
+
+        assertNull(cache.get(sha256));
+        assertFalse(cached.exists());
+    }
+}
@@ -0,0 +1,69 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ApkFileWriterTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void blocks_writeInterleavedSegmentsToTheirOffsets() throws Exception {
+        byte[] payload = TestHttpServer.randomPayload(ApkFileWriter.BLOCK_SIZE * 3 + 77, 3);
+        File target = new File(temp.getRoot(), "update.apk");
+        int half = payload.length / 2;
+
+        try (ApkFileWriter writer = new ApkFileWriter(target)) {
+            writer.reserve(payload.length, payload.length);
+            ApkFileWriter.Block first = writer.newBlock();
+            ApkFileWriter.Block second = writer.newBlock();
+            // Two connections taking turns with reads that don't line up with the block size
+            for (int offset = 0; offset < half; offset += 1000) {
+                first.write(payload, offset, Math.min(1000, half - offset), offset);
+                int other = half + offset;
+                second.write(payload, other, Math.min(1000, payload.length - other), other);
+            }
+            first.flush();
+            second.flush();
+            writer.sync();
+        }
+
+        assertArrayEquals(payload, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void block_flushesWhenTheNextWriteIsNotContiguous() throws Exception {
+        byte[] data = { 1, 2, 3, 4 };
+        File target = new File(temp.getRoot(), "update.apk");
+
+        try (ApkFileWriter writer = new ApkFileWriter(target)) {
+            writer.reserve(8, 8);
+            ApkFileWriter.Block block = writer.newBlock();
+            block.write(data, 0, 2, 6);
+            block.write(data, 2, 2, 0);
+            // Only the second write is still buffered
+            assertEquals(0, block.discard(2));
+        }
+
+        assertArrayEquals(new byte[] { 0, 0, 0, 0, 0, 0, 1, 2 }, Files.readAllBytes(target.toPath()));
+    }
+
+    @Test
+    public void reserve_failsFastWithoutEnoughFreeSpace() throws Exception {
+        File target = new File(temp.getRoot(), "update.apk");
+
+        try (ApkFileWriter writer = new ApkFileWriter(target)) {
+            writer.reserve(1024, Long.MAX_VALUE / 2);
+            fail("Expected the reservation to fail");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(ApkFileWriter.NO_SPACE_MESSAGE));
+        }
+        assertEquals(0, target.length());
+    }
+}
@@ -0,0 +1,105 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ApkPatcherTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void applyPatch_rebuildsExpectedApk() throws Exception {
+        File base = copyFixture("delta/base.apk");
+        File patch = copyFixture("delta/update.patch");
+        File output = new File(temp.getRoot(), "update.apk");
+
+        ApkPatcher.applyPatch(base, patch, output);
+
+        assertArrayEquals(readFixture("delta/expected.apk"), readFile(output));
+    }
+
+    @Test
+    public void applyPatch_seekBeforeTheOldFileStillAddsTheBytesItOverlaps() throws Exception {
+        File base = copyFixture("delta/base.apk");
+        // Seeks to -50 and then diffs 200 bytes, 150 of them inside the old file
+        File patch = copyFixture("delta/negative-seek.patch");
+        File output = new File(temp.getRoot(), "update.apk");
+
+        ApkPatcher.applyPatch(base, patch, output);
+
+        assertArrayEquals(readFixture("delta/negative-seek.apk"), readFile(output));
+    }
+
+    @Test
+    public void applyPatch_rejectsUnknownFormat() throws Exception {
+        File base = copyFixture("delta/base.apk");
+        File output = new File(temp.getRoot(), "update.apk");
+
+        try {
+            ApkPatcher.applyPatch(base, new ByteArrayInputStream(new byte[32]), output);
+            fail("Expected patch to be rejected");
+        } catch (Exception e) {
+            assertEquals("Unsupported patch format", e.getMessage());
+        }
+        assertFalse(output.exists());
+    }
+
+    @Test
+    public void applyPatch_truncatedPatchLeavesNoOutput() throws Exception {
+        File base = copyFixture("delta/base.apk");
+        byte[] patch = readFixture("delta/update.patch");
+        byte[] truncated = new byte[patch.length / 2];
+        System.arraycopy(patch, 0, truncated, 0, truncated.length);
+        File output = new File(temp.getRoot(), "update.apk");
+
+        try {
+            ApkPatcher.applyPatch(base, new ByteArrayInputStream(truncated), output);
+            fail("Expected truncated patch to fail");
+        } catch (Exception e) {
+            // expected
+        }
+        assertFalse(output.exists());
+        assertFalse(new File(output.getPath() + ".tmp").exists());
+    }
+
+    private File copyFixture(String name) throws Exception {
+        File file = new File(temp.getRoot(), new File(name).getName());
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(readFixture(name));
+        }
+        return file;
+    }
+
+    private byte[] readFixture(String name) throws Exception {
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(name)) {
+            assertNotNull("Missing fixture " + name, in);
+            return readAll(in);
+        }
+    }
+
+    private static byte[] readFile(File file) throws Exception {
+        try (InputStream in = new FileInputStream(file)) {
+            return readAll(in);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
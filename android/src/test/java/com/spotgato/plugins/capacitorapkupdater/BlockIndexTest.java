@@ -0,0 +1,123 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BlockIndexTest {
+    private static final int BLOCK = 1024;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void read_returnsWhatWasWritten() throws Exception {
+        byte[] apk = TestHttpServer.randomPayload(BLOCK * 10 + 300, 1);
+        BlockIndex index = BlockIndex.build(write("update.apk", apk), BLOCK);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.write(out);
+
+        BlockIndex read = BlockIndex.read(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(BLOCK, read.blockSize);
+        assertEquals(apk.length, read.length);
+        assertEquals(11, read.getBlockCount());
+        assertEquals(index.sha256, read.sha256);
+        assertEquals(StreamingVerifier.toHex(StreamingVerifier.newDigest().digest(apk)), read.sha256);
+    }
+
+    @Test
+    public void match_findsShiftedAndMovedBlocks() throws Exception {
+        byte[] installed = TestHttpServer.randomPayload(BLOCK * 8, 2);
+        // New APK: 3 new bytes up front, the first half unchanged, 2 new blocks, the second half,
+        // and a partial last block
+        byte[] apk = new byte[BLOCK * 10 + 3 + 100];
+        byte[] fresh = TestHttpServer.randomPayload(apk.length, 3);
+        System.arraycopy(fresh, 0, apk, 0, apk.length);
+        System.arraycopy(installed, 0, apk, 3, BLOCK * 4);
+        System.arraycopy(installed, BLOCK * 4, apk, 3 + BLOCK * 6, BLOCK * 4);
+        BlockIndex index = BlockIndex.build(write("update.apk", apk), BLOCK);
+
+        List<long[]> copies = index.match(write("installed.apk", installed));
+
+        byte[] rebuilt = new byte[apk.length];
+        for (long[] copy : copies) {
+            System.arraycopy(installed, (int) copy[1], rebuilt, (int) copy[0], (int) copy[2]);
+            for (int i = 0; i < copy[2]; i++) {
+                assertEquals(apk[(int) copy[0] + i], rebuilt[(int) copy[0] + i]);
+            }
+        }
+        // Blocks straddling the inserted bytes can't be reused, all others can
+        assertEquals(BLOCK * 6, BlockIndex.reusedBytes(copies));
+    }
+
+    @Test
+    public void match_ignoresThePartialLastBlock() throws Exception {
+        byte[] apk = TestHttpServer.randomPayload(BLOCK * 2 + 10, 4);
+        BlockIndex index = BlockIndex.build(write("update.apk", apk), BLOCK);
+
+        List<long[]> copies = index.match(write("installed.apk", apk));
+
+        assertEquals(1, copies.size());
+        assertArrayEquals(new long[] { 0, 0, BLOCK * 2 }, copies.get(0));
+    }
+
+    @Test
+    public void download_fetchesOnlyWhatTheLocalSourceLacks() throws Exception {
+        byte[] installed = TestHttpServer.randomPayload(1024 * 1024, 5);
+        byte[] apk = TestHttpServer.randomPayload(1024 * 1024 + 64 * 1024, 6);
+        System.arraycopy(installed, 0, apk, 64 * 1024, installed.length);
+        BlockIndex index = BlockIndex.build(write("update.apk", apk), BlockIndex.DEFAULT_BLOCK_SIZE);
+        File source = write("installed.apk", installed);
+        List<long[]> copies = index.match(source);
+        TestHttpServer server = new TestHttpServer(apk);
+        try {
+            File target = new File(temp.getRoot(), "assembled.apk");
+            SegmentedDownloader downloader = new SegmentedDownloader(server.url("/update.apk"), target, 4);
+            downloader.setLocalSource(source, copies, index.length);
+
+            downloader.download();
+
+            assertArrayEquals(apk, SegmentedDownloaderTest.readFile(target));
+            assertEquals(installed.length, downloader.getBytesCopied());
+            assertTrue("Served " + server.getBytesServed(), server.getBytesServed() < 128 * 1024);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void download_failsWithoutRangeSupport() throws Exception {
+        byte[] apk = TestHttpServer.randomPayload(64 * 1024, 7);
+        File source = write("installed.apk", apk);
+        BlockIndex index = BlockIndex.build(source, BlockIndex.DEFAULT_BLOCK_SIZE);
+        TestHttpServer server = new TestHttpServer(apk);
+        server.supportRanges = false;
+        try {
+            SegmentedDownloader downloader = new SegmentedDownloader(server.url("/update.apk"), new File(temp.getRoot(), "assembled.apk"), 4);
+            downloader.setLocalSource(source, index.match(source), index.length);
+            downloader.download();
+            fail("Expected the download to fail");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("range requests"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private File write(String name, byte[] data) throws Exception {
+        File file = new File(temp.getRoot(), name);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,120 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChunkVerifierTest {
+    private static final int CHUNK = ChunkManifest.MIN_CHUNK_SIZE;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void parse_returnsWhatWasBuilt() throws Exception {
+        byte[] apk = TestHttpServer.randomPayload(CHUNK * 5 + 100, 1);
+        ChunkManifest manifest = ChunkManifest.build(write("update.apk", apk), CHUNK);
+
+        ChunkManifest parsed = ChunkManifest.parse(manifest.toJson());
+
+        assertEquals(CHUNK, parsed.chunkSize);
+        assertEquals(apk.length, parsed.length);
+        assertEquals(6, parsed.getChunkCount());
+        assertEquals(manifest.root, parsed.root);
+        assertArrayEquals(new long[] { CHUNK * 5, apk.length }, parsed.range(5));
+    }
+
+    @Test
+    public void parse_rejectsChunksThatDontMatchTheRoot() throws Exception {
+        byte[] apk = TestHttpServer.randomPayload(CHUNK * 3, 2);
+        ChunkManifest manifest = ChunkManifest.build(write("update.apk", apk), CHUNK);
+        String json = manifest.toJson().replace(StreamingVerifier.toHex(manifest.leaf(1)), StreamingVerifier.toHex(manifest.leaf(0)));
+
+        try {
+            ChunkManifest.parse(json);
+            fail("Expected the manifest to be rejected");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("root"));
+        }
+    }
+
+    @Test
+    public void verify_findsCorruptChunksAndOnlyHashesThemAgain() throws Exception {
+        byte[] apk = TestHttpServer.randomPayload(CHUNK * 16 + 7, 3);
+        ChunkManifest manifest = ChunkManifest.build(write("update.apk", apk), CHUNK);
+        File download = write("download.apk", apk);
+        corrupt(download, CHUNK * 9 + 5);
+
+        ChunkVerifier verifier = new ChunkVerifier(manifest);
+        List<long[]> mismatches = verifier.verify(download);
+
+        assertEquals(1, mismatches.size());
+        assertArrayEquals(new long[] { CHUNK * 9, CHUNK * 10 }, mismatches.get(0));
+        assertEquals(17, verifier.getChunksHashed());
+
+        corrupt(download, CHUNK * 9 + 5);
+        assertTrue(verifier.verify(download).isEmpty());
+        assertEquals(1, verifier.getChunksHashed());
+    }
+
+    @Test
+    public void verify_hashesEverythingForAnotherManifest() throws Exception {
+        byte[] apk = TestHttpServer.randomPayload(CHUNK * 4, 4);
+        File download = write("download.apk", apk);
+        new ChunkVerifier(ChunkManifest.build(download, CHUNK)).verify(download);
+
+        ChunkVerifier verifier = new ChunkVerifier(ChunkManifest.build(download, CHUNK * 2));
+        assertTrue(verifier.verify(download).isEmpty());
+        assertEquals(2, verifier.getChunksHashed());
+    }
+
+    @Test
+    public void refetch_downloadsOnlyTheFailedChunks() throws Exception {
+        byte[] apk = TestHttpServer.randomPayload(CHUNK * 32, 5);
+        ChunkManifest manifest = ChunkManifest.build(write("update.apk", apk), CHUNK);
+        TestHttpServer server = new TestHttpServer(apk);
+        server.corruptOffset.set(CHUNK * 20 + 1);
+        try {
+            File target = new File(temp.getRoot(), "download.apk");
+            SegmentedDownloader downloader = new SegmentedDownloader(server.url("/update.apk"), target, 4);
+            downloader.download();
+            ChunkVerifier verifier = new ChunkVerifier(manifest);
+            List<long[]> mismatches = verifier.verify(target);
+            assertEquals(1, mismatches.size());
+            long served = server.getBytesServed();
+
+            downloader.refetch(mismatches);
+
+            assertTrue(verifier.verify(target).isEmpty());
+            assertArrayEquals(apk, SegmentedDownloaderTest.readFile(target));
+            // The failed chunk and the probe's single byte
+            assertEquals(CHUNK + 1, server.getBytesServed() - served);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private void corrupt(File file, long offset) throws Exception {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(offset);
+            int value = out.read();
+            out.seek(offset);
+            out.write(value ^ 0xff);
+        }
+    }
+
+    private File write(String name, byte[] data) throws Exception {
+        File file = new File(temp.getRoot(), name);
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+}
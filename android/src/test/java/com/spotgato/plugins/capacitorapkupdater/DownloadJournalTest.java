@@ -0,0 +1,67 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DownloadJournalTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void markCompleted_mergesAdjacentAndOverlappingRanges() {
+        DownloadJournal journal = new DownloadJournal(new File(temp.getRoot(), "j"), "http://x", "\"a\"", null, 100);
+        journal.markCompleted(50, 60);
+        journal.markCompleted(0, 10);
+        journal.markCompleted(10, 20);
+        journal.markCompleted(55, 70);
+
+        List<long[]> completed = journal.getCompletedRanges();
+        assertEquals(2, completed.size());
+        assertArrayEquals(new long[] { 0, 20 }, completed.get(0));
+        assertArrayEquals(new long[] { 50, 70 }, completed.get(1));
+        assertEquals(40, journal.getBytesCompleted());
+
+        List<long[]> missing = journal.getMissingRanges();
+        assertEquals(2, missing.size());
+        assertArrayEquals(new long[] { 20, 50 }, missing.get(0));
+        assertArrayEquals(new long[] { 70, 100 }, missing.get(1));
+
+        journal.markCompleted(15, 100);
+        assertTrue(journal.isComplete());
+    }
+
+    @Test
+    public void save_roundTripsThroughLoad() throws Exception {
+        File file = new File(temp.getRoot(), "update.apk.journal");
+        DownloadJournal journal = new DownloadJournal(file, "http://x/update.apk", null, "Wed, 21 Oct 2015 07:28:00 GMT", 1000);
+        journal.markCompleted(0, 400);
+        journal.markCompleted(600, 700);
+        journal.save();
+
+        DownloadJournal loaded = DownloadJournal.load(file);
+        assertNotNull(loaded);
+        assertEquals(500, loaded.getBytesCompleted());
+        assertTrue(loaded.matches("http://x/update.apk", null, "Wed, 21 Oct 2015 07:28:00 GMT", 1000));
+        assertFalse(loaded.matches("http://x/update.apk", null, "Thu, 22 Oct 2015 07:28:00 GMT", 1000));
+        assertFalse(loaded.matches("http://x/update.apk", "\"etag\"", "Wed, 21 Oct 2015 07:28:00 GMT", 1000));
+    }
+
+    @Test
+    public void matches_requiresAValidator() {
+        DownloadJournal journal = new DownloadJournal(new File(temp.getRoot(), "j"), "http://x", null, null, 10);
+        assertFalse(journal.matches("http://x", null, null, 10));
+    }
+
+    @Test
+    public void load_ignoresCorruptJournal() throws Exception {
+        File file = temp.newFile("broken.journal");
+        assertNull(DownloadJournal.load(file));
+        assertNull(DownloadJournal.load(new File(temp.getRoot(), "missing.journal")));
+    }
+}
@@ -0,0 +1,260 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+
+/**
+ * Drives {@link CapacitorApkUpdater} through whole downloads on Robolectric's main looper and
+ * records what a user of the plugin would notice: how long it took, how many progress events
+ * arrived and how far apart, whether completion was reported more than once, and how much heap
+ * the download held on to.
+ *
+ * The main looper is paused, so its clock is moved along with real time while the updater and
+ * transfer threads do their work. Progress spacing is measured on that clock, the one the throttle
+ * uses. Listener callbacks are expected on the main thread.
+ */
+class DownloadLoadHarness {
+    private static final long STEP_MILLIS = 20;
+    // Live heap is measured after a GC, which is too slow to do every step
+    private static final long HEAP_SAMPLE_MILLIS = 250;
+    // Kept running after completion so a late second completion is still seen
+    private static final long SETTLE_MILLIS = 1000;
+
+    private final CapacitorApkUpdater updater;
+    private final Recorder recorder = new Recorder();
+    private long startedNanos;
+    // How far the main looper clock has been moved since start
+    private long advancedMillis;
+    private long baselineHeap;
+    private long peakHeap;
+    private long nextHeapSample;
+
+    DownloadLoadHarness(CapacitorApkUpdater updater) {
+        this.updater = updater;
+    }
+
+    long start(CapacitorApkUpdater.DownloadOptions options) throws Exception {
+        begin();
+        return updater.startDownload(options, recorder);
+    }
+
+    /**
+     * Picks up what an earlier updater left unfinished, events arrive through the default listener.
+     */
+    List<Long> restore() {
+        begin();
+        updater.setDownloadListener(recorder);
+        return updater.restoreDownloads();
+    }
+
+    private void begin() {
+        baselineHeap = liveHeap();
+        peakHeap = 0;
+        nextHeapSample = 0;
+        startedNanos = System.nanoTime();
+        advancedMillis = 0;
+    }
+
+    /**
+     * Lets the main looper and real time advance by {@code millis}.
+     */
+    void advance(long millis) throws InterruptedException {
+        long until = elapsedMillis() + millis;
+        while (elapsedMillis() < until) {
+            step();
+        }
+    }
+
+    /**
+     * Steps until the download reported completion, then a little longer to catch duplicates.
+     */
+    Report await(long downloadId, long timeoutMillis) throws Exception {
+        while (recorder.completionCount() == 0) {
+            if (elapsedMillis() > timeoutMillis) {
+                fail("Download " + downloadId + " did not finish within " + timeoutMillis + " ms");
+            }
+            step();
+        }
+        long totalMillis = recorder.firstCompletionMillis(startedNanos);
+        advance(SETTLE_MILLIS);
+
+        DownloadMetrics metrics = updater.getMetrics(downloadId);
+        JSONObject json = metrics != null ? metrics.toJson() : new JSONObject();
+        return new Report(totalMillis, recorder, Math.max(0, peakHeap - baselineHeap), json);
+    }
+
+    private void step() throws InterruptedException {
+        // Catch up with real time, GC and slow callbacks make steps longer than STEP_MILLIS
+        long now = elapsedMillis();
+        shadowOf(Looper.getMainLooper()).idleFor(Math.max(0, now - advancedMillis), TimeUnit.MILLISECONDS);
+        advancedMillis = Math.max(advancedMillis, now);
+        if (now >= nextHeapSample) {
+            peakHeap = Math.max(peakHeap, liveHeap());
+            nextHeapSample = now + HEAP_SAMPLE_MILLIS;
+        }
+        Thread.sleep(STEP_MILLIS);
+    }
+
+    private long elapsedMillis() {
+        return (System.nanoTime() - startedNanos) / 1000000;
+    }
+
+    private static long liveHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static class Limits {
+        long maxMillis = 30000;
+        long maxHeapBytes = 32L * 1024 * 1024;
+        int minProgressEvents = 1;
+        int maxProgressEvents = Integer.MAX_VALUE;
+        // Between intermediate events, the final 100% event may follow the previous one at once
+        long minProgressSpacingMillis = 0;
+        long maxProgressGapMillis = Long.MAX_VALUE;
+        boolean expectSuccess = true;
+    }
+
+    static class Report {
+        final long totalMillis;
+        final int progressEvents;
+        final long minProgressSpacingMillis;
+        final long maxProgressGapMillis;
+        final int completions;
+        final int offMainThreadCallbacks;
+        final CapacitorApkUpdater.DownloadResult result;
+        final long heapBytes;
+        final JSONObject metrics;
+
+        Report(long totalMillis, Recorder recorder, long heapBytes, JSONObject metrics) {
+            this.totalMillis = totalMillis;
+            this.progressEvents = recorder.progressTimes.size();
+            this.minProgressSpacingMillis = recorder.minSpacing();
+            this.maxProgressGapMillis = recorder.maxGap();
+            this.completions = recorder.completionCount();
+            this.offMainThreadCallbacks = recorder.offMainThread;
+            this.result = recorder.firstResult();
+            this.heapBytes = heapBytes;
+            this.metrics = metrics;
+        }
+
+        /**
+         * Fails with every limit that was exceeded, not just the first.
+         */
+        void assertWithin(Limits limits) {
+            List<String> violations = new ArrayList<>();
+            if (completions != 1) {
+                violations.add(completions + " completion events instead of one");
+            }
+            if (offMainThreadCallbacks > 0) {
+                violations.add(offMainThreadCallbacks + " listener callbacks off the main thread");
+            }
+            if (limits.expectSuccess && (result == null || !result.success)) {
+                violations.add("failed: " + (result != null ? result.error : "no result"));
+            }
+            if (!limits.expectSuccess && result != null && result.success) {
+                violations.add("succeeded although it should have failed");
+            }
+            if (totalMillis > limits.maxMillis) {
+                violations.add("took " + totalMillis + " ms, limit " + limits.maxMillis);
+            }
+            if (heapBytes > limits.maxHeapBytes) {
+                violations.add("held " + heapBytes + " heap bytes, limit " + limits.maxHeapBytes);
+            }
+            if (progressEvents < limits.minProgressEvents || progressEvents > limits.maxProgressEvents) {
+                violations.add(progressEvents + " progress events, expected " + limits.minProgressEvents + " to " + limits.maxProgressEvents);
+            }
+            if (minProgressSpacingMillis >= 0 && minProgressSpacingMillis < limits.minProgressSpacingMillis) {
+                violations.add("progress events " + minProgressSpacingMillis + " ms apart, limit " + limits.minProgressSpacingMillis);
+            }
+            if (maxProgressGapMillis > limits.maxProgressGapMillis) {
+                violations.add("no progress for " + maxProgressGapMillis + " ms, limit " + limits.maxProgressGapMillis);
+            }
+            if (!violations.isEmpty()) {
+                fail(String.join(", ", violations) + " (" + this + ")");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d ms, %d progress events %d-%d ms apart, %d completions, %d KB heap, metrics %s",
+                totalMillis, progressEvents, minProgressSpacingMillis, maxProgressGapMillis, completions, heapBytes / 1024, metrics);
+        }
+    }
+
+    // Callbacks arriving on the main looper only run inside step(), others are counted as violations
+    private static class Recorder implements CapacitorApkUpdater.DownloadListener {
+        final List<Long> progressTimes = new ArrayList<>();
+        final List<Boolean> progressFinal = new ArrayList<>();
+        final List<CapacitorApkUpdater.DownloadResult> results = new ArrayList<>();
+        long firstCompletionNanos;
+        int offMainThread;
+
+        @Override
+        public void onDownloadComplete(long downloadId, CapacitorApkUpdater.DownloadResult result) {
+            checkThread();
+            if (results.isEmpty()) {
+                firstCompletionNanos = System.nanoTime();
+            }
+            results.add(result);
+        }
+
+        @Override
+        public void onDownloadProgress(long downloadId, ProgressThrottle.Progress progress) {
+            checkThread();
+            progressTimes.add(SystemClock.uptimeMillis());
+            progressFinal.add(progress.totalSize > 0 && progress.bytesDownloaded >= progress.totalSize);
+        }
+
+        @Override
+        public void onInstallStatus(boolean success, String message) {
+        }
+
+        private void checkThread() {
+            if (Looper.myLooper() != Looper.getMainLooper()) {
+                offMainThread++;
+            }
+        }
+
+        int completionCount() {
+            return results.size();
+        }
+
+        CapacitorApkUpdater.DownloadResult firstResult() {
+            return results.isEmpty() ? null : results.get(0);
+        }
+
+        long firstCompletionMillis(long startedNanos) {
+            return (firstCompletionNanos - startedNanos) / 1000000;
+        }
+
+        long minSpacing() {
+            long min = -1;
+            for (int i = 1; i < progressTimes.size(); i++) {
+                if (progressFinal.get(i)) {
+                    continue;
+                }
+                long spacing = progressTimes.get(i) - progressTimes.get(i - 1);
+                min = min < 0 ? spacing : Math.min(min, spacing);
+            }
+            return min;
+        }
+
+        long maxGap() {
+            long max = 0;
+            for (int i = 1; i < progressTimes.size(); i++) {
+                max = Math.max(max, progressTimes.get(i) - progressTimes.get(i - 1));
+            }
+            return max;
+        }
+    }
+}
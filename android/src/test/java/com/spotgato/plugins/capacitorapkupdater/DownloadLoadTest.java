@@ -0,0 +1,515 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.Application;
+import android.app.DownloadManager;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.Uri;
+import android.os.Environment;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowDownloadManager;
+import org.robolectric.shadows.ShadowNetworkCapabilities;
+
+@RunWith(RobolectricTestRunner.class)
+public class DownloadLoadTest {
+
+    private Application context;
+    private CapacitorApkUpdater updater;
+    private DownloadLoadHarness harness;
+    private TestHttpServer server;
+    private byte[] payload;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        updater = new CapacitorApkUpdater(context);
+        harness = new DownloadLoadHarness(updater);
+    }
+
+    @After
+    public void tearDown() {
+        updater.cleanup();
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void largeFile_streamsToDiskWithoutHoldingItInMemory() throws Exception {
+        serve(48 * 1024 * 1024);
+
+        DownloadLoadHarness.Report report = harness.await(harness.start(segmented(4)), 60000);
+
+        DownloadLoadHarness.Limits limits = new DownloadLoadHarness.Limits();
+        limits.maxMillis = 30000;
+        limits.maxHeapBytes = 16L * 1024 * 1024;
+        limits.maxProgressEvents = 101;
+        limits.minProgressSpacingMillis = ProgressThrottle.DEFAULT_MIN_INTERVAL;
+        report.assertWithin(limits);
+        assertDelivered(report);
+    }
+
+    @Test
+    public void throttled_progressArrivesSteadilyAndNoFasterThanTheInterval() throws Exception {
+        serve(3 * 1024 * 1024);
+        server.bytesPerSecond = 256 * 1024;
+
+        DownloadLoadHarness.Report report = harness.await(harness.start(segmented(2)), 30000);
+
+        DownloadLoadHarness.Limits limits = new DownloadLoadHarness.Limits();
+        limits.maxMillis = 15000;
+        limits.minProgressEvents = 8;
+        limits.minProgressSpacingMillis = ProgressThrottle.DEFAULT_MIN_INTERVAL;
+        limits.maxProgressGapMillis = 1500;
+        report.assertWithin(limits);
+        assertTrue(report.toString(), report.metrics.getLong("averageBytesPerSecond") < 3 * server.bytesPerSecond);
+        assertDelivered(report);
+    }
+
+    @Test
+    public void droppedConnections_resumeAndCompleteOnce() throws Exception {
+        serve(6 * 1024 * 1024);
+        server.bytesPerSecond = 2 * 1024 * 1024;
+        server.dropAfterBytes = 300 * 1024;
+        server.droppedRequests.set(3);
+
+        DownloadLoadHarness.Report report = harness.await(harness.start(segmented(4)), 60000);
+
+        DownloadLoadHarness.Limits limits = new DownloadLoadHarness.Limits();
+        // Each drop costs one retry delay on top of the transfer
+        limits.maxMillis = 15000;
+        limits.minProgressSpacingMillis = ProgressThrottle.DEFAULT_MIN_INTERVAL;
+        report.assertWithin(limits);
+        assertTrue("every drop happened", server.droppedRequests.get() <= 0);
+        assertDelivered(report);
+    }
+
+    @Test
+    public void missingContentLength_stillCompletes() throws Exception {
+        serve(4 * 1024 * 1024);
+        server.supportRanges = false;
+        server.omitContentLength = true;
+        server.bytesPerSecond = 2 * 1024 * 1024;
+
+        DownloadLoadHarness.Report report = harness.await(harness.start(segmented(4)), 30000);
+
+        DownloadLoadHarness.Limits limits = new DownloadLoadHarness.Limits();
+        limits.maxMillis = 10000;
+        limits.minProgressEvents = 2;
+        limits.minProgressSpacingMillis = ProgressThrottle.DEFAULT_MIN_INTERVAL;
+        report.assertWithin(limits);
+        assertDelivered(report);
+    }
+
+    @Test
+    public void slowFirstByte_isReportedInMetrics() throws Exception {
+        serve(1024 * 1024);
+        server.firstByteDelayMillis = 1500;
+
+        DownloadLoadHarness.Report report = harness.await(harness.start(segmented(1)), 30000);
+
+        DownloadLoadHarness.Limits limits = new DownloadLoadHarness.Limits();
+        limits.maxMillis = 10000;
+        report.assertWithin(limits);
+        assertTrue(report.toString(), report.totalMillis >= 1500);
+        assertTrue(report.toString(), report.metrics.getLong("timeToFirstByteMillis") >= 1000);
+        assertDelivered(report);
+    }
+
+    @Test
+    public void defaultListener_hearsDownloadsThatHaveTheirOwnListener() throws Exception {
+        serve(1024 * 1024);
+        final List<Long> completed = new CopyOnWriteArrayList<>();
+        updater.setDownloadListener(new CapacitorApkUpdater.DownloadListener() {
+            @Override
+            public void onDownloadComplete(long downloadId, CapacitorApkUpdater.DownloadResult result) {
+                completed.add(downloadId);
+            }
+
+            @Override
+            public void onDownloadProgress(long downloadId, ProgressThrottle.Progress progress) {}
+
+            @Override
+            public void onInstallStatus(boolean success, String message) {}
+        });
+
+        long downloadId = harness.start(segmented(2));
+        assertDelivered(harness.await(downloadId, 30000));
+
+        assertEquals(Arrays.asList(downloadId), completed);
+    }
+
+    @Test
+    public void trace_recordsEachStepInOrder() throws Exception {
+        serve(2 * 1024 * 1024);
+        server.bytesPerSecond = 2 * 1024 * 1024;
+
+        long downloadId = harness.start(segmented(2));
+        DownloadLoadHarness.Report report = harness.await(downloadId, 30000);
+        assertDelivered(report);
+
+        List<String> steps = new ArrayList<>();
+        JSONArray events = updater.dumpTrace(true).getJSONArray("events");
+        for (int i = 0; i < events.length(); i++) {
+            JSONObject event = events.getJSONObject(i);
+            if (event.getLong("downloadId") == downloadId && (steps.isEmpty() || !steps.get(steps.size() - 1).equals(event.getString("type")))) {
+                steps.add(event.getString("type"));
+            }
+        }
+        assertEquals(Arrays.asList("enqueued", "progress", "completion", "verifyStarted", "verifyFinished", "delivered"), steps);
+        assertEquals(0, updater.dumpTrace(false).getLong("recorded"));
+    }
+
+    @Test
+    public void downloadManager_receiverAfterPollerCompletesOnce() throws Exception {
+        DownloadLoadHarness.Report report = runManagerDownload(true);
+
+        assertEquals(DownloadMetrics.DETECTED_BY_POLL, report.metrics.getString("completionDetectedBy"));
+        assertDelivered(report);
+    }
+
+    @Test
+    public void downloadManager_pollerAfterReceiverCompletesOnce() throws Exception {
+        DownloadLoadHarness.Report report = runManagerDownload(false);
+
+        assertEquals(DownloadMetrics.DETECTED_BY_RECEIVER, report.metrics.getString("completionDetectedBy"));
+        assertDelivered(report);
+    }
+
+    @Test
+    public void restart_reattachesToRunningManagerDownload() throws Exception {
+        CapacitorApkUpdater.DownloadOptions options = managerOptions();
+        long downloadId = harness.start(options);
+        harness.advance(100);
+        long managerId = lastEnqueuedId(downloadManager());
+
+        restartUpdater();
+        assertEquals(Arrays.asList(downloadId), harness.restore());
+        // The page asking again gets the restored download instead of a second one
+        assertEquals(downloadId, updater.startDownload(options));
+        harness.advance(100);
+        assertEquals(2, shadowOf(downloadManager()).getRequestCount());
+
+        finishManagerDownload(managerId, options.url);
+        broadcastComplete(managerId);
+        DownloadLoadHarness.Report report = harness.await(downloadId, 30000);
+
+        DownloadLoadHarness.Limits limits = new DownloadLoadHarness.Limits();
+        limits.maxMillis = 10000;
+        limits.minProgressEvents = 0;
+        report.assertWithin(limits);
+        assertTrue(updater.isRestored(downloadId));
+        assertDelivered(report);
+    }
+
+    @Test
+    public void restart_reportsManagerDownloadThatFinishedMeanwhile() throws Exception {
+        CapacitorApkUpdater.DownloadOptions options = managerOptions();
+        long downloadId = harness.start(options);
+        harness.advance(100);
+        long managerId = lastEnqueuedId(downloadManager());
+
+        restartUpdater();
+        finishManagerDownload(managerId, options.url);
+        harness.restore();
+        DownloadLoadHarness.Report report = harness.await(downloadId, 30000);
+
+        DownloadLoadHarness.Limits limits = new DownloadLoadHarness.Limits();
+        limits.maxMillis = 10000;
+        limits.minProgressEvents = 0;
+        report.assertWithin(limits);
+        assertEquals(2, shadowOf(downloadManager()).getRequestCount());
+        assertDelivered(report);
+    }
+
+    @Test
+    public void restart_resumesSegmentedDownloadFromJournal() throws Exception {
+        serve(8 * 1024 * 1024);
+        server.bytesPerSecond = 256 * 1024;
+        long downloadId = harness.start(segmented(4));
+        harness.advance(3000);
+
+        restartUpdater();
+        // Stopped transfers save their journal on the way out
+        Thread.sleep(1000);
+        long servedBefore = server.getBytesServed();
+        server.bytesPerSecond = 0;
+        assertEquals(Arrays.asList(downloadId), harness.restore());
+        DownloadLoadHarness.Report report = harness.await(downloadId, 30000);
+
+        DownloadLoadHarness.Limits limits = new DownloadLoadHarness.Limits();
+        limits.maxMillis = 10000;
+        limits.minProgressEvents = 0;
+        report.assertWithin(limits);
+        long servedAfter = server.getBytesServed() - servedBefore;
+        assertTrue("Resume should skip bytes already on disk, fetched " + servedAfter, servedAfter < payload.length - 1024 * 1024);
+        assertDelivered(report);
+    }
+
+    @Test
+    public void peers_secondDeviceFetchesFromTheFirstInsteadOfTheOrigin() throws Exception {
+        serve(8 * 1024 * 1024);
+        server.bytesPerSecond = 1024 * 1024;
+        DownloadLoadHarness.Report seeded = harness.await(harness.start(segmented(4)), 30000);
+        assertTrue(seeded.result.success);
+        connectWifi();
+        int port = updater.enablePeerSharing(0, false, Collections.<String>emptyList());
+
+        CapacitorApkUpdater peer = new CapacitorApkUpdater(context);
+        try {
+            peer.enablePeerSharing(0, false, Arrays.asList("127.0.0.1:" + port));
+            DownloadLoadHarness peerHarness = new DownloadLoadHarness(peer);
+            CapacitorApkUpdater.DownloadOptions options = segmented(4);
+            options.filename = "peer.apk";
+            // Both updaters share one app's storage here, the second must not answer from the cache
+            options.useCache = false;
+            long servedBefore = server.getBytesServed();
+            DownloadLoadHarness.Report report = peerHarness.await(peerHarness.start(options), 30000);
+
+            DownloadLoadHarness.Limits limits = new DownloadLoadHarness.Limits();
+            limits.maxMillis = 10000;
+            limits.minProgressEvents = 0;
+            report.assertWithin(limits);
+            assertDelivered(report);
+            assertTrue(report.result.mirrorUsed, report.result.mirrorUsed.contains(":" + port + PeerServer.PATH_PREFIX));
+            long fromOrigin = server.getBytesServed() - servedBefore;
+            assertTrue("Origin served " + fromOrigin, fromOrigin < payload.length / 4);
+        } finally {
+            peer.cleanup();
+        }
+    }
+
+    @Test
+    public void chunkManifest_refetchesOnlyTheCorruptChunk() throws Exception {
+        serve(8 * 1024 * 1024);
+        File apk = new File(context.getCacheDir(), "served.apk");
+        try (OutputStream out = new FileOutputStream(apk)) {
+            out.write(payload);
+        }
+        ChunkManifest manifest = ChunkManifest.build(apk, ChunkManifest.DEFAULT_CHUNK_SIZE);
+        TestHttpServer manifestServer = new TestHttpServer(manifest.toJson().getBytes("UTF-8"));
+        server.corruptOffset.set(5 * ChunkManifest.DEFAULT_CHUNK_SIZE + 123);
+        try {
+            CapacitorApkUpdater.DownloadOptions options = segmented(4);
+            options.expectedSha256 = null;
+            options.chunkManifestUrl = manifestServer.url("/update.apk.chunks");
+            options.expectedRootHash = manifest.root;
+            DownloadLoadHarness.Report report = harness.await(harness.start(options), 30000);
+
+            assertTrue(report.result.error, report.result.success);
+            assertDelivered(report);
+            long extra = server.getBytesServed() - payload.length;
+            // The corrupt chunk once more, and a byte for each probe
+            assertEquals(ChunkManifest.DEFAULT_CHUNK_SIZE + 2, extra);
+        } finally {
+            manifestServer.stop();
+        }
+    }
+
+    @Test
+    public void cache_copiesTheApkAndLeavesTheDeliveredFileUnderItsName() throws Exception {
+        serve(1024 * 1024);
+        CapacitorApkUpdater.DownloadOptions options = segmented(2);
+        options.filename = "named.apk";
+
+        DownloadLoadHarness.Report report = harness.await(harness.start(options), 30000);
+
+        DownloadLoadHarness.Limits limits = new DownloadLoadHarness.Limits();
+        // Small enough to finish between two progress samples
+        limits.minProgressEvents = 0;
+        report.assertWithin(limits);
+        assertDelivered(report);
+        assertEquals("named.apk", new File(Uri.parse(report.result.filePath).getPath()).getName());
+        // The copy is made once the result is out
+        File cached = new File(new File(context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS), "apk-cache"), sha256(payload) + ".apk");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cached.length() != payload.length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(payload.length, cached.length());
+    }
+
+    @Test
+    public void cache_downloadsAgainWhenTheCachedCopyWasChanged() throws Exception {
+        serve(1024 * 1024);
+        CapacitorApkUpdater.DownloadOptions options = segmented(2);
+        assertDelivered(harness.await(harness.start(options), 30000));
+        File cached = new File(new File(context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS), "apk-cache"), sha256(payload) + ".apk");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cached.length() != payload.length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        // Same length, other bytes, the way another app with storage access could leave it
+        try (OutputStream out = new FileOutputStream(cached)) {
+            out.write(TestHttpServer.randomPayload(payload.length, 7));
+        }
+        int requests = server.getRequestCount();
+
+        DownloadLoadHarness.Report report = harness.await(harness.start(options), 30000);
+
+        assertDelivered(report);
+        assertEquals(DownloadMetrics.SOURCE_NETWORK, report.metrics.getString("source"));
+        assertTrue(server.getRequestCount() > requests);
+    }
+
+    // Plays DownloadManager: fetches the APK from the server into the requested file, then reports
+    // the end through the content observer and the completion broadcast in the given order
+    private DownloadLoadHarness.Report runManagerDownload(boolean pollerFirst) throws Exception {
+        CapacitorApkUpdater.DownloadOptions options = managerOptions();
+        long downloadId = harness.start(options);
+        harness.advance(100);
+        assertEquals(2, shadowOf(downloadManager()).getRequestCount());
+        long managerId = lastEnqueuedId(downloadManager());
+
+        finishManagerDownload(managerId, options.url);
+        Uri row = ContentUris.withAppendedId(Uri.parse("content://downloads/my_downloads"), managerId);
+        if (pollerFirst) {
+            context.getContentResolver().notifyChange(row, null);
+            harness.advance(1000);
+        }
+        // DownloadManager sometimes sends the broadcast twice
+        broadcastComplete(managerId);
+        broadcastComplete(managerId);
+        if (!pollerFirst) {
+            context.getContentResolver().notifyChange(row, null);
+        }
+
+        DownloadLoadHarness.Report report = harness.await(downloadId, 30000);
+
+        DownloadLoadHarness.Limits limits = new DownloadLoadHarness.Limits();
+        limits.maxMillis = 10000;
+        limits.minProgressEvents = 0;
+        report.assertWithin(limits);
+        return report;
+    }
+
+    private CapacitorApkUpdater.DownloadOptions managerOptions() throws Exception {
+        serve(2 * 1024 * 1024);
+        CapacitorApkUpdater.DownloadOptions options = new CapacitorApkUpdater.DownloadOptions();
+        options.url = server.url("/update.apk");
+        options.expectedSha256 = sha256(payload);
+        // Robolectric numbers rows from 0, which the updater reads as no download, real rows start at 1
+        downloadManager().enqueue(new DownloadManager.Request(Uri.parse(server.url("/unused.apk"))));
+        return options;
+    }
+
+    private void finishManagerDownload(long managerId, String url) throws Exception {
+        ShadowDownloadManager.ShadowRequest request = shadowOf(shadowOf(downloadManager()).getRequest(managerId));
+        fetchInto(url, new File(request.getDestination().getPath()));
+        request.setTotalSize(payload.length);
+        request.setBytesSoFar(payload.length);
+        request.setStatus(DownloadManager.STATUS_SUCCESSFUL);
+    }
+
+    // What the plugin sees when the app was killed and started again, DownloadManager carries on
+    private void restartUpdater() {
+        updater.cleanup();
+        updater = new CapacitorApkUpdater(context);
+        harness = new DownloadLoadHarness(updater);
+    }
+
+    private DownloadManager downloadManager() {
+        return (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
+    }
+
+    // The peer server only binds to the Wi-Fi address, loopback stands in for it here
+    private void connectWifi() {
+        ConnectivityManager connectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        Network network = connectivity.getActiveNetwork();
+        NetworkCapabilities capabilities = ShadowNetworkCapabilities.newInstance();
+        shadowOf(capabilities).addTransportType(NetworkCapabilities.TRANSPORT_WIFI);
+        shadowOf(connectivity).setNetworkCapabilities(network, capabilities);
+        LinkProperties link = new LinkProperties();
+        link.addLinkAddress(new LinkAddress(InetAddress.getLoopbackAddress(), 8));
+        shadowOf(connectivity).setLinkProperties(network, link);
+    }
+
+    private void serve(int size) throws Exception {
+        payload = TestHttpServer.randomPayload(size, size);
+        server = new TestHttpServer(payload);
+    }
+
+    private CapacitorApkUpdater.DownloadOptions segmented(int connections) throws Exception {
+        CapacitorApkUpdater.DownloadOptions options = new CapacitorApkUpdater.DownloadOptions();
+        options.url = server.url("/update.apk");
+        options.engine = CapacitorApkUpdater.ENGINE_SEGMENTED;
+        options.connections = connections;
+        options.expectedSha256 = sha256(payload);
+        return options;
+    }
+
+    private void assertDelivered(DownloadLoadHarness.Report report) throws Exception {
+        File file = new File(Uri.parse(report.result.filePath).getPath());
+        assertEquals(payload.length, file.length());
+        StreamingVerifier verifier = new StreamingVerifier(sha256(payload));
+        assertTrue(verifier.matches(verifier.finish(file)));
+    }
+
+    private static long lastEnqueuedId(DownloadManager downloadManager) {
+        Cursor cursor = downloadManager.query(new DownloadManager.Query());
+        try {
+            long id = -1;
+            while (cursor.moveToNext()) {
+                id = Math.max(id, cursor.getLong(cursor.getColumnIndex(DownloadManager.COLUMN_ID)));
+            }
+            return id;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void broadcastComplete(long managerId) {
+        Intent intent = new Intent(DownloadManager.ACTION_DOWNLOAD_COMPLETE);
+        intent.setPackage(context.getPackageName());
+        intent.putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, managerId);
+        context.sendBroadcast(intent);
+    }
+
+    private static void fetchInto(String url, File target) throws Exception {
+        target.getParentFile().mkdirs();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new URL(url).openStream(); OutputStream out = new FileOutputStream(target)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,62 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class DownloadMetricsTest {
+
+    @Test
+    public void toJson_reportsTimingsAlongTheWay() throws Exception {
+        DownloadMetrics metrics = new DownloadMetrics(3, "https://example.com/app.apk", "segmented", 1000, 1700000000000L);
+        metrics.onStarted(1200);
+        metrics.onBytes(0, 1300);
+        metrics.onBytes(100000, 1700);
+        metrics.onBytes(300000, 2700);
+        metrics.onBytes(400000, 3700);
+        metrics.onTransferFinished(3750);
+        metrics.onCompletionDetected(DownloadMetrics.DETECTED_BY_TRANSFER, 3800);
+        metrics.onVerifyStarted(3800);
+        metrics.onVerifyFinished(3900);
+        metrics.onDelivered(true, null, 3950);
+        metrics.onInstallHandoff(4000);
+
+        JSONObject json = metrics.toJson();
+        assertEquals(200, json.getLong("queueMillis"));
+        assertEquals(500, json.getLong("timeToFirstByteMillis"));
+        assertEquals(400000, json.getLong("bytesTransferred"));
+        assertEquals(150000, json.getLong("averageBytesPerSecond"));
+        assertEquals(200000, json.getLong("peakBytesPerSecond"));
+        assertEquals(0, json.getLong("stallMillis"));
+        assertEquals("transfer", json.getString("completionDetectedBy"));
+        assertEquals(50, json.getLong("completionDetectMillis"));
+        assertEquals(100, json.getLong("verifyMillis"));
+        assertEquals(50, json.getLong("installHandoffMillis"));
+        assertEquals(2950, json.getLong("totalMillis"));
+        assertTrue(json.getBoolean("success"));
+    }
+
+    @Test
+    public void onBytes_countsStallsAndRestartedTransfers() throws Exception {
+        DownloadMetrics metrics = new DownloadMetrics(1, "https://example.com/app.apk", "downloadManager", 0, 0);
+        metrics.onStarted(0);
+        metrics.onBytes(1000, 500);
+        metrics.onBytes(2000, 1000);
+        // Nothing new for five seconds
+        metrics.onBytes(3000, 6000);
+        // Patch failed, the full APK starts from zero
+        metrics.onBytes(500, 6500);
+        metrics.onCompletionDetected(DownloadMetrics.DETECTED_BY_RECEIVER, 7000);
+        metrics.onDuplicateCompletion();
+
+        JSONObject json = metrics.toJson();
+        assertEquals(5000, json.getLong("stallMillis"));
+        assertEquals(1, json.getInt("stalls"));
+        assertEquals(3500, json.getLong("bytesTransferred"));
+        assertEquals(500, json.getLong("completionDetectMillis"));
+        assertEquals(1, json.getInt("duplicateCompletions"));
+        assertFalse(json.getBoolean("finished"));
+        assertEquals(-1, json.getLong("verifyMillis"));
+    }
+}
@@ -0,0 +1,67 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class DownloadTraceTest {
+
+    @Test
+    public void toJson_namesTheFieldsOfEachEvent() throws Exception {
+        DownloadTrace trace = new DownloadTrace(16, 1000, 1700000000000L);
+        trace.record(DownloadTrace.EVENT_ENQUEUED, 1, 1500, 0, 0);
+        trace.record(DownloadTrace.EVENT_PROGRESS, 1, 2000, 4096, 8192);
+        trace.record(DownloadTrace.EVENT_COMPLETION, 1, 3000, DownloadTrace.DETECTED_BY_RECEIVER, 0);
+        trace.record(DownloadTrace.EVENT_DELIVERED, 1, 4000, 1, 0);
+
+        JSONObject json = trace.toJson();
+        assertEquals(1700000000000L, json.getLong("startedAt"));
+        assertEquals(4, json.getLong("recorded"));
+        assertEquals(0, json.getLong("dropped"));
+        JSONArray events = json.getJSONArray("events");
+        assertEquals(4, events.length());
+        JSONObject progress = events.getJSONObject(1);
+        assertEquals("progress", progress.getString("type"));
+        assertEquals(1, progress.getLong("downloadId"));
+        assertEquals(1000, progress.getLong("atNanos"));
+        assertEquals(4096, progress.getLong("bytesDownloaded"));
+        assertEquals(8192, progress.getLong("totalSize"));
+        assertEquals(0, events.getJSONObject(2).getLong("detectedBy"));
+        assertEquals(1, events.getJSONObject(3).getLong("success"));
+        // Unused numbers are left out
+        assertEquals(3, events.getJSONObject(3).length() - 1);
+    }
+
+    @Test
+    public void record_overwritesTheOldestOnceFull() throws Exception {
+        DownloadTrace trace = new DownloadTrace(4, 0, 0);
+        for (int i = 0; i < 10; i++) {
+            trace.record(DownloadTrace.EVENT_PROGRESS, 1, i, i * 100, 1000);
+        }
+
+        JSONObject json = trace.toJson();
+        assertEquals(10, json.getLong("recorded"));
+        assertEquals(6, json.getLong("dropped"));
+        JSONArray events = json.getJSONArray("events");
+        assertEquals(4, events.length());
+        for (int i = 0; i < 4; i++) {
+            assertEquals((6 + i) * 100, events.getJSONObject(i).getLong("bytesDownloaded"));
+        }
+    }
+
+    @Test
+    public void clear_startsOver() throws Exception {
+        DownloadTrace trace = new DownloadTrace(4, 0, 0);
+        trace.record(DownloadTrace.EVENT_CANCELLED, 2, 10, 0, 0);
+        trace.clear();
+        trace.record(DownloadTrace.EVENT_ENQUEUED, 3, 20, 1, 0);
+
+        JSONArray events = trace.toJson().getJSONArray("events");
+        assertEquals(1, events.length());
+        assertEquals("enqueued", events.getJSONObject(0).getString("type"));
+        assertEquals(3, events.getJSONObject(0).getLong("downloadId"));
+        assertEquals(1, events.getJSONObject(0).getLong("engine"));
+    }
+}
@@ -0,0 +1,123 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MirrorSetTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private byte[] payload;
+    private TestHttpServer primary;
+    private TestHttpServer mirror;
+
+    @Before
+    public void setUp() throws Exception {
+        payload = TestHttpServer.randomPayload(2 * 1024 * 1024 + 321, 11);
+        primary = new TestHttpServer(payload);
+        mirror = new TestHttpServer(payload);
+        mirror.etag = "\"cdn2-v1\"";
+    }
+
+    @After
+    public void tearDown() {
+        primary.stop();
+        mirror.stop();
+    }
+
+    @Test
+    public void best_keepsRankUnlessClearlyFaster() {
+        MirrorSet mirrors = new MirrorSet(Arrays.asList("https://a/app.apk", "https://b/app.apk", "https://a/app.apk"));
+        List<MirrorSet.Mirror> all = mirrors.getMirrors();
+        assertEquals(2, all.size());
+        assertSame(all.get(0), mirrors.best());
+
+        mirrors.recordProbe(all.get(0), 50, 1000, 1000);
+        mirrors.recordProbe(all.get(1), 50, 1100, 1000);
+        assertSame(all.get(0), mirrors.best());
+
+        mirrors.recordProbe(all.get(1), 50, 2000, 1000);
+        assertSame(all.get(1), mirrors.best());
+
+        mirrors.disable(all.get(1), "gone");
+        assertSame(all.get(0), mirrors.best());
+        assertNull(mirrors.bestExcept(all.get(0)));
+    }
+
+    @Test
+    public void download_prefersFasterMirror() throws Exception {
+        primary.bytesPerSecond = 128 * 1024;
+        File target = temp.newFile("update.apk");
+        SegmentedDownloader downloader = new SegmentedDownloader(primary.url("/update.apk"), target, 2);
+        downloader.setMirrors(Collections.singletonList(mirror.url("/update.apk")), 0);
+
+        downloader.download();
+
+        assertArrayEquals(payload, Files.readAllBytes(target.toPath()));
+        assertEquals(mirror.url("/update.apk"), downloader.getMirrors().mostUsed().url);
+        assertTrue(primary.getBytesServed() < payload.length / 4);
+    }
+
+    @Test
+    public void download_hedgesSlowFirstByte() throws Exception {
+        // Looks fine when probed, then stops answering promptly
+        primary.firstByteDelayMillis = 5000;
+        primary.delayAfterRequests = 1;
+        mirror.bytesPerSecond = 4 * 1024 * 1024;
+        File target = temp.newFile("update.apk");
+        SegmentedDownloader downloader = new SegmentedDownloader(primary.url("/update.apk"), target, 1);
+        downloader.setMirrors(Collections.singletonList(mirror.url("/update.apk")), 200);
+
+        long started = System.nanoTime();
+        downloader.download();
+        long elapsedMillis = (System.nanoTime() - started) / 1000000;
+
+        assertArrayEquals(payload, Files.readAllBytes(target.toPath()));
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis < 5000);
+        MirrorSet.Timing primaryTiming = downloader.getMirrors().getTimings().get(0);
+        assertTrue(primaryTiming.hedges >= 1);
+        assertEquals(mirror.url("/update.apk"), downloader.getMirrors().mostUsed().url);
+    }
+
+    @Test
+    public void download_skipsUnreachableMirror() throws Exception {
+        String deadUrl = primary.url("/update.apk");
+        primary.stop();
+        File target = temp.newFile("update.apk");
+        SegmentedDownloader downloader = new SegmentedDownloader(deadUrl, target, 2);
+        downloader.setMirrors(Collections.singletonList(mirror.url("/update.apk")), 200);
+
+        downloader.download();
+
+        assertArrayEquals(payload, Files.readAllBytes(target.toPath()));
+        List<MirrorSet.Timing> timings = downloader.getMirrors().getTimings();
+        assertNotNull(timings.get(0).error);
+        assertEquals(payload.length, timings.get(1).bytesDownloaded);
+    }
+
+    @Test
+    public void download_failsWhenEveryMirrorFails() throws Exception {
+        primary.stop();
+        mirror.stop();
+        SegmentedDownloader downloader = new SegmentedDownloader(primary.url("/update.apk"), temp.newFile("update.apk"), 2);
+        downloader.setMirrors(Collections.singletonList(mirror.url("/update.apk")), 200);
+
+        try {
+            downloader.download();
+            fail("Expected the download to fail");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("All mirrors failed"));
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.*;
+
+import com.github.luben.zstd.Zstd;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PayloadCodecTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    // Repetitive like the stored resources that make APKs worth compressing
+    private static byte[] compressiblePayload(int size) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int line = 0;
+        while (out.size() < size) {
+            byte[] text = ("<string name=\"label_" + line + "\">Update " + (line % 97) + "</string>\n").getBytes(StandardCharsets.UTF_8);
+            out.write(text, 0, text.length);
+            line++;
+        }
+        byte[] data = out.toByteArray();
+        byte[] sized = new byte[size];
+        System.arraycopy(data, 0, sized, 0, size);
+        return sized;
+    }
+
+    private static byte[] gzip(byte[] data) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] readFile(File file) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void download_decodesCompressedFileBySuffix() throws Exception {
+        byte[] apk = compressiblePayload(2 * 1024 * 1024);
+        byte[] compressed = gzip(apk);
+        TestHttpServer server = new TestHttpServer(compressed);
+        try {
+            File target = new File(temp.getRoot(), "update.apk");
+            SegmentedDownloader downloader = new SegmentedDownloader(server.url("/update.apk.gz?v=2"), target, 4);
+            downloader.download();
+
+            assertArrayEquals(apk, readFile(target));
+            assertEquals(PayloadCodec.GZIP, downloader.getEncoding());
+            assertEquals(compressed.length, downloader.getBytesDownloaded());
+            assertEquals(apk.length, downloader.getBytesWritten());
+            assertEquals(apk.length, downloader.getContiguousBytes());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void download_negotiatesContentEncoding() throws Exception {
+        byte[] apk = compressiblePayload(2 * 1024 * 1024);
+        TestHttpServer server = new TestHttpServer(apk);
+        server.contentEncoding = PayloadCodec.ZSTD;
+        server.encodedPayload = Zstd.compress(apk);
+        try {
+            File target = new File(temp.getRoot(), "update.apk");
+            SegmentedDownloader downloader = new SegmentedDownloader(server.url("/update.apk"), target, 4);
+            downloader.setAcceptCompressed(true);
+            downloader.download();
+
+            assertArrayEquals(apk, readFile(target));
+            assertEquals(server.encodedPayload.length, server.getBytesServed());
+            assertTrue(server.getBytesServed() < apk.length / 10);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void download_startsCompressedTransferOverAfterDrop() throws Exception {
+        byte[] apk = compressiblePayload(1024 * 1024);
+        TestHttpServer server = new TestHttpServer(gzip(apk));
+        server.dropAfterBytes = 4096;
+        server.droppedRequests.set(1);
+        try {
+            File target = new File(temp.getRoot(), "update.apk");
+            new SegmentedDownloader(server.url("/update.apk.gz"), target, 1).download();
+
+            assertArrayEquals(apk, readFile(target));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void fromUrl_readsExtensionBeforeQuery() {
+        assertEquals(PayloadCodec.ZSTD, PayloadCodec.fromUrl("https://cdn.example.com/app-1.2.apk.zst?token=a.gz"));
+        assertEquals(PayloadCodec.BROTLI, PayloadCodec.fromUrl("https://cdn.example.com/APP.APK.BR"));
+        assertNull(PayloadCodec.fromUrl("https://cdn.example.com/app.apk?name=app.apk.gz"));
+        assertNull(PayloadCodec.fromContentEncoding("identity"));
+        assertEquals(PayloadCodec.GZIP, PayloadCodec.fromContentEncoding("x-gzip"));
+    }
+}
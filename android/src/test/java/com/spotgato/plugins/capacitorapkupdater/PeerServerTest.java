@@ -0,0 +1,110 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PeerServerTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private byte[] payload;
+    private String sha256;
+    private PeerServer server;
+    private String baseUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        payload = TestHttpServer.randomPayload(2 * 1024 * 1024 + 17, 11);
+        sha256 = StreamingVerifier.toHex(StreamingVerifier.newDigest().digest(payload));
+        final File apk = temp.newFile("cached.apk");
+        try (OutputStream out = new FileOutputStream(apk)) {
+            out.write(payload);
+        }
+        server = new PeerServer(new PeerServer.Source() {
+            @Override
+            public File find(String hash) {
+                return hash.equals(sha256) ? apk : null;
+            }
+        });
+        baseUrl = "http://127.0.0.1:" + server.start(0);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void serve_answersRangesOfAKnownHash() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(PeerServer.url(baseUrl, sha256)).openConnection();
+        connection.setRequestProperty("Range", "bytes=100-199");
+
+        assertEquals(206, connection.getResponseCode());
+        assertEquals("bytes 100-199/" + payload.length, connection.getHeaderField("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(payload, 100, 200), readAll(connection));
+    }
+
+    @Test
+    public void serve_answersUnknownHashesWithNotFound() throws Exception {
+        String other = StreamingVerifier.toHex(StreamingVerifier.newDigest().digest(new byte[1]));
+        HttpURLConnection connection = (HttpURLConnection) new URL(PeerServer.url(baseUrl, other)).openConnection();
+
+        assertEquals(404, connection.getResponseCode());
+        assertEquals(0, server.getBytesServed());
+    }
+
+    @Test
+    public void download_prefersThePeerOverTheOrigin() throws Exception {
+        TestHttpServer origin = new TestHttpServer(payload);
+        origin.bytesPerSecond = 512 * 1024;
+        try {
+            File target = new File(temp.getRoot(), "update.apk");
+            SegmentedDownloader downloader = new SegmentedDownloader(origin.url("/update.apk"), target, 4);
+            downloader.setPeers(Arrays.asList(PeerServer.url(baseUrl, sha256)));
+
+            downloader.download();
+
+            assertArrayEquals(payload, SegmentedDownloaderTest.readFile(target));
+            assertTrue("Origin served " + origin.getBytesServed(), origin.getBytesServed() < payload.length / 4);
+        } finally {
+            origin.stop();
+        }
+    }
+
+    @Test
+    public void parseRange_handlesTheSingleRangeForms() {
+        assertArrayEquals(new long[] { 10, 19 }, PeerServer.parseRange("bytes=10-19", 100));
+        assertArrayEquals(new long[] { 10, 99 }, PeerServer.parseRange("bytes=10-", 100));
+        assertArrayEquals(new long[] { 90, 99 }, PeerServer.parseRange("bytes=-10", 100));
+        assertArrayEquals(new long[] { 50, 99 }, PeerServer.parseRange("bytes=50-500", 100));
+        assertEquals(100, PeerServer.parseRange("bytes=100-", 100)[0]);
+        assertNull(PeerServer.parseRange("bytes=0-1,5-6", 100));
+        assertNull(PeerServer.parseRange("items=0-1", 100));
+    }
+
+    private static byte[] readAll(HttpURLConnection connection) throws Exception {
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class PrefetchWorkerTest {
+    private static final String SHA256 = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+    private static final String CERT_SHA256 = "2c26b46b68ffc68ff99b453c1d30413413422d706483bfa0f98a5e886266e7ae";
+
+    private static PrefetchWorker.PrefetchStatus staged(String sha256, String certSha256) {
+        return new PrefetchWorker.PrefetchStatus(PrefetchWorker.STATE_STAGED, "https://example.com/app.apk", "file:///app.apk", null, sha256, certSha256);
+    }
+
+    @Test
+    public void covers_acceptsHashesTheStagedFileWasCheckedAgainst() {
+        PrefetchWorker.PrefetchStatus status = staged(SHA256, CERT_SHA256);
+        assertTrue(status.covers(SHA256.toUpperCase(), null));
+        assertTrue(status.covers(null, CERT_SHA256));
+        assertTrue(status.covers(null, null));
+    }
+
+    @Test
+    public void covers_rejectsHashesTheStagedFileWasNotCheckedAgainst() {
+        assertFalse(staged(SHA256, null).covers(CERT_SHA256, null));
+        assertFalse(staged(SHA256, null).covers(SHA256, CERT_SHA256));
+        assertFalse(staged(null, null).covers(SHA256, null));
+    }
+}
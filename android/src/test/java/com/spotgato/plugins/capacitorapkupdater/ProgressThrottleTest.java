@@ -0,0 +1,75 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ProgressThrottleTest {
+
+    @Test
+    public void offer_dropsSamplesThatDidNotMove() {
+        ProgressThrottle throttle = new ProgressThrottle(0, 1, 0);
+
+        assertNotNull(throttle.offer(0, 1000, 0));
+        assertNull(throttle.offer(0, 1000, 500));
+        assertNull(throttle.offer(5, 1000, 1000));
+        assertFalse(throttle.hasPending());
+        assertEquals(1, throttle.offer(10, 1000, 1500).progress);
+    }
+
+    @Test
+    public void offer_coalescesWithinIntervalAndFlushesLatest() {
+        ProgressThrottle throttle = new ProgressThrottle(1000, 1, 0);
+
+        assertNotNull(throttle.offer(0, 100, 0));
+        assertNull(throttle.offer(10, 100, 200));
+        assertNull(throttle.offer(20, 100, 400));
+        assertTrue(throttle.hasPending());
+        assertEquals(1000, throttle.getNextEmitTime());
+
+        assertNull(throttle.flush(900));
+        ProgressThrottle.Progress flushed = throttle.flush(1000);
+        assertEquals(20, flushed.bytesDownloaded);
+        assertFalse(throttle.hasPending());
+    }
+
+    @Test
+    public void offer_alwaysEmitsCompletion() {
+        ProgressThrottle throttle = new ProgressThrottle(10000, 50, 0);
+
+        assertNotNull(throttle.offer(0, 100, 0));
+        assertNull(throttle.offer(40, 100, 10));
+        ProgressThrottle.Progress done = throttle.offer(100, 100, 20);
+        assertNotNull(done);
+        assertEquals(100, done.progress);
+        assertEquals(0, done.etaSeconds);
+    }
+
+    @Test
+    public void offer_usesByteDeltaWhenTotalUnknown() {
+        ProgressThrottle throttle = new ProgressThrottle(0, 1, 1000);
+
+        assertNotNull(throttle.offer(0, -1, 0));
+        assertNull(throttle.offer(500, -1, 100));
+        assertNotNull(throttle.offer(1000, -1, 200));
+        assertEquals(-1, throttle.offer(5000, -1, 300).etaSeconds);
+    }
+
+    @Test
+    public void offer_smoothsRateAndEstimatesEta() {
+        ProgressThrottle throttle = new ProgressThrottle(0, 0, 0);
+
+        throttle.offer(0, 10000000, 0);
+        ProgressThrottle.Progress progress = null;
+        // Steady 1 MB/s with one hiccup, the average should barely notice it
+        long bytes = 0;
+        for (int tick = 1; tick <= 10; tick++) {
+            bytes += tick == 5 ? 100000 : 500000;
+            progress = throttle.offer(bytes, 10000000, tick * 500L);
+        }
+
+        assertTrue(progress.bytesPerSecond > 850000 && progress.bytesPerSecond < 1000000);
+        long remaining = 10000000 - bytes;
+        assertEquals((long) Math.ceil(remaining / (double) progress.bytesPerSecond), progress.etaSeconds, 1);
+    }
+}
@@ -0,0 +1,197 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentedDownloaderTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private byte[] payload;
+    private TestHttpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        payload = TestHttpServer.randomPayload(3 * 1024 * 1024 + 123, 7);
+        server = new TestHttpServer(payload);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void download_parallelSegmentsMatchPayload() throws Exception {
+        File target = temp.newFile("update.apk");
+        SegmentedDownloader downloader = new SegmentedDownloader(server.url("/update.apk"), target, 4);
+
+        downloader.download();
+
+        assertArrayEquals(payload, readFile(target));
+        assertEquals(payload.length, downloader.getBytesDownloaded());
+        assertEquals(payload.length, downloader.getTotalSize());
+    }
+
+    @Test
+    public void download_fallsBackToSingleStreamWithoutRanges() throws Exception {
+        server.supportRanges = false;
+        File target = temp.newFile("update.apk");
+        SegmentedDownloader downloader = new SegmentedDownloader(server.url("/update.apk"), target, 4);
+
+        downloader.download();
+
+        assertArrayEquals(payload, readFile(target));
+    }
+
+    @Test
+    public void download_parallelIsFasterOnThrottledConnections() throws Exception {
+        server.bytesPerSecond = 2 * 1024 * 1024;
+
+        long single = timeDownload(1);
+        long parallel = timeDownload(4);
+
+        assertTrue("Expected speedup, single=" + single + "ms parallel=" + parallel + "ms", parallel * 3 < single * 2);
+    }
+
+    @Test
+    public void download_resumesFromJournalAfterInterruption() throws Exception {
+        server.bytesPerSecond = 1024 * 1024;
+        File target = new File(temp.getRoot(), "update.apk");
+        interruptHalfway(target);
+        assertTrue(DownloadJournal.journalFor(target).exists());
+
+        server.bytesPerSecond = 0;
+        long servedBefore = server.getBytesServed();
+        SegmentedDownloader resumed = new SegmentedDownloader(server.url("/update.apk"), target, 4);
+        resumed.download();
+
+        assertArrayEquals(payload, readFile(target));
+        assertTrue("Resume should skip bytes already on disk", server.getBytesServed() - servedBefore < payload.length * 3 / 4);
+        assertFalse(DownloadJournal.journalFor(target).exists());
+    }
+
+    @Test
+    public void download_restartsWhenRemoteFileChanged() throws Exception {
+        server.bytesPerSecond = 1024 * 1024;
+        File target = new File(temp.getRoot(), "update.apk");
+        interruptHalfway(target);
+
+        server.bytesPerSecond = 0;
+        server.etag = "\"v2\"";
+        long servedBefore = server.getBytesServed();
+        new SegmentedDownloader(server.url("/update.apk"), target, 4).download();
+
+        assertArrayEquals(payload, readFile(target));
+        assertTrue(server.getBytesServed() - servedBefore >= payload.length);
+    }
+
+    @Test
+    public void download_retriesUnavailableServer() throws Exception {
+        server.unavailableRequests.set(2);
+        server.retryAfter = "0";
+        File target = new File(temp.getRoot(), "update.apk");
+
+        new SegmentedDownloader(server.url("/update.apk"), target, 2).download();
+
+        assertArrayEquals(payload, readFile(target));
+    }
+
+    @Test
+    public void streamTo_resumesAfterDroppedConnectionAndHashesEveryByte() throws Exception {
+        server.dropAfterBytes = 1024 * 1024;
+        server.droppedRequests.set(1);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long[] announcedSize = { 0 };
+        StreamingVerifier verifier = new StreamingVerifier(StreamingVerifier.toHex(MessageDigest.getInstance("SHA-256").digest(payload)));
+
+        new SegmentedDownloader(server.url("/update.apk"), null, 1).streamTo(new SegmentedDownloader.StreamTarget() {
+            @Override
+            public OutputStream open(long totalSize) {
+                announcedSize[0] = totalSize;
+                return out;
+            }
+        }, verifier);
+
+        assertEquals(payload.length, announcedSize[0]);
+        assertArrayEquals(payload, out.toByteArray());
+        assertTrue(verifier.matches(verifier.finish()));
+    }
+
+    @Test
+    public void retryDelayMillis_honoursRetryAfter() {
+        assertEquals(3000, SegmentedDownloader.retryDelayMillis(1, "3", 0));
+        assertEquals(SegmentedDownloader.MAX_RETRY_DELAY, SegmentedDownloader.retryDelayMillis(1, "86400", 0));
+        assertEquals(5000, SegmentedDownloader.retryDelayMillis(1, "Thu, 01 Jan 1970 00:00:10 GMT", 5000));
+        assertEquals(SegmentedDownloader.BASE_RETRY_DELAY, SegmentedDownloader.retryDelayMillis(1, null, 0));
+        assertEquals(SegmentedDownloader.BASE_RETRY_DELAY * 4, SegmentedDownloader.retryDelayMillis(3, "soon", 0));
+    }
+
+    @Test
+    public void nextSegmentSize_followsThroughput() {
+        assertEquals(SegmentedDownloader.MIN_SEGMENT_SIZE, SegmentedDownloader.nextSegmentSize(1024));
+        assertEquals(8 * 1024 * 1024, SegmentedDownloader.nextSegmentSize(4 * 1024 * 1024));
+        assertEquals(SegmentedDownloader.MAX_SEGMENT_SIZE, SegmentedDownloader.nextSegmentSize(Long.MAX_VALUE / 4000));
+    }
+
+    @Test
+    public void parseTotalLength_handlesUnknownLength() {
+        assertEquals(12345, SegmentedDownloader.parseTotalLength("bytes 0-0/12345"));
+        assertEquals(-1, SegmentedDownloader.parseTotalLength("bytes 0-0/*"));
+        assertEquals(-1, SegmentedDownloader.parseTotalLength(null));
+    }
+
+    private void interruptHalfway(File target) throws Exception {
+        final SegmentedDownloader downloader = new SegmentedDownloader(server.url("/update.apk"), target, 4);
+        Thread transfer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    downloader.download();
+                } catch (Exception e) {
+                    // Expected once cancelled
+                }
+            }
+        });
+        transfer.start();
+        while (downloader.getBytesDownloaded() < payload.length / 2 && transfer.isAlive()) {
+            Thread.sleep(10);
+        }
+        downloader.cancel();
+        transfer.join();
+    }
+
+    private long timeDownload(int connections) throws Exception {
+        File target = new File(temp.getRoot(), "timed-" + connections + ".apk");
+        SegmentedDownloader downloader = new SegmentedDownloader(server.url("/update.apk"), target, connections);
+        long started = System.nanoTime();
+        downloader.download();
+        long elapsed = (System.nanoTime() - started) / 1000000;
+        assertArrayEquals(payload, readFile(target));
+        return elapsed;
+    }
+
+    static byte[] readFile(File file) throws Exception {
+        byte[] data = new byte[(int) file.length()];
+        try (InputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            int read;
+            while (offset < data.length && (read = in.read(data, offset, data.length - offset)) != -1) {
+                offset += read;
+            }
+        }
+        return data;
+    }
+}
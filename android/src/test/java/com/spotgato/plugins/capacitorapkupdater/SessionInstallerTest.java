@@ -0,0 +1,84 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.Application;
+import android.content.Intent;
+import android.content.pm.PackageInstaller;
+import android.os.Looper;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class SessionInstallerTest {
+    private Application context;
+    private SessionInstaller installer;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        installer = new SessionInstaller(context);
+    }
+
+    @After
+    public void tearDown() {
+        installer.cleanup();
+    }
+
+    @Test
+    public void overlappingSessionsEachHearTheirOwnStatus() throws Exception {
+        List<String> first = new ArrayList<>();
+        List<String> second = new ArrayList<>();
+        // What commit registers, without Robolectric reporting the commit right away
+        installer.registerStatusReceiver(1, recorder(first));
+        installer.registerStatusReceiver(2, recorder(second));
+
+        sendStatus(2, PackageInstaller.STATUS_FAILURE, "second");
+        sendStatus(1, PackageInstaller.STATUS_SUCCESS, "first");
+
+        assertEquals(Arrays.asList("true first"), first);
+        assertEquals(Arrays.asList("false second"), second);
+
+        // Each receiver is gone once its session finished
+        sendStatus(1, PackageInstaller.STATUS_SUCCESS, "again");
+        assertEquals(1, first.size());
+    }
+
+    @Test
+    public void commit_reportsTheOutcome() throws Exception {
+        List<String> statuses = new ArrayList<>();
+        int sessionId = installer.createSession(1024);
+
+        installer.commit(sessionId, recorder(statuses));
+        shadowOf(Looper.getMainLooper()).idle();
+
+        // Robolectric reports every commit at once and without status extras, which reads as a failure
+        assertEquals(Arrays.asList("false null"), statuses);
+    }
+
+    private void sendStatus(int sessionId, int status, String message) {
+        Intent intent = new Intent(installer.statusAction(sessionId));
+        intent.setPackage(context.getPackageName());
+        intent.putExtra(PackageInstaller.EXTRA_STATUS, status);
+        intent.putExtra(PackageInstaller.EXTRA_STATUS_MESSAGE, message);
+        context.sendBroadcast(intent);
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+    private static SessionInstaller.StatusListener recorder(final List<String> statuses) {
+        return new SessionInstaller.StatusListener() {
+            @Override
+            public void onInstallStatus(boolean success, String message) {
+                statuses.add(success + " " + message);
+            }
+        };
+    }
+}
@@ -0,0 +1,63 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.json.JSONArray;
+import org.junit.Test;
+
+public class SplitSelectorTest {
+
+    private static List<SplitSelector.Split> splitSet() throws Exception {
+        return SplitSelector.parse(new JSONArray(
+            "[{\"name\":\"base\",\"url\":\"https://example.com/base.apk\"},"
+                + "{\"name\":\"config.arm64_v8a\",\"url\":\"https://example.com/arm64.apk\",\"abi\":\"arm64_v8a\"},"
+                + "{\"name\":\"config.armeabi_v7a\",\"url\":\"https://example.com/arm.apk\",\"abi\":\"armeabi-v7a\"},"
+                + "{\"name\":\"config.x86_64\",\"url\":\"https://example.com/x86_64.apk\",\"abi\":\"x86_64\"},"
+                + "{\"name\":\"config.hdpi\",\"url\":\"https://example.com/hdpi.apk\",\"density\":\"hdpi\"},"
+                + "{\"name\":\"config.xxhdpi\",\"url\":\"https://example.com/xxhdpi.apk\",\"density\":\"xxhdpi\"},"
+                + "{\"name\":\"config.xxxhdpi\",\"url\":\"https://example.com/xxxhdpi.apk\",\"density\":\"640\"},"
+                + "{\"name\":\"config.en\",\"url\":\"https://example.com/en.apk\",\"locale\":\"en\"},"
+                + "{\"name\":\"config.de\",\"url\":\"https://example.com/de.apk\",\"locale\":\"de\"}]"
+        ));
+    }
+
+    private static List<String> names(List<SplitSelector.Split> splits) {
+        List<String> names = new ArrayList<>();
+        for (SplitSelector.Split split : splits) {
+            names.add(split.name);
+        }
+        return names;
+    }
+
+    @Test
+    public void select_picksPreferredAbiClosestDensityAndDeviceLanguages() throws Exception {
+        List<SplitSelector.Split> selected = SplitSelector.select(splitSet(), new String[] { "arm64-v8a", "armeabi-v7a", "armeabi" }, 420, Arrays.asList("de-DE", "fr"));
+
+        assertEquals(Arrays.asList("base", "config.arm64_v8a", "config.xxhdpi", "config.de"), names(selected));
+    }
+
+    @Test
+    public void select_fallsBackToNextAbiAndLargestDensity() throws Exception {
+        List<SplitSelector.Split> selected = SplitSelector.select(splitSet(), new String[] { "riscv64", "armeabi-v7a" }, 800, Arrays.asList("ja"));
+
+        assertEquals(Arrays.asList("base", "config.armeabi_v7a", "config.xxxhdpi"), names(selected));
+    }
+
+    @Test
+    public void select_keepsUnqualifiedSplits() throws Exception {
+        List<SplitSelector.Split> splits = new ArrayList<>(splitSet());
+        splits.add(new SplitSelector.Split("feature_camera", "https://example.com/camera.apk", null, null, null, null));
+
+        List<SplitSelector.Split> selected = SplitSelector.select(splits, new String[] { "x86_64" }, 160, Arrays.asList("en"));
+
+        assertEquals(Arrays.asList("base", "config.x86_64", "config.hdpi", "config.en", "feature_camera"), names(selected));
+    }
+
+    @Test(expected = Exception.class)
+    public void parse_rejectsSplitWithoutUrl() throws Exception {
+        SplitSelector.parse(new JSONArray("[{\"name\":\"base\"}]"));
+    }
+}
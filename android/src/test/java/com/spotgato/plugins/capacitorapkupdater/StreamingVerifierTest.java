@@ -0,0 +1,78 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StreamingVerifierTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void catchUp_hashesGrowingFileIncrementally() throws Exception {
+        byte[] payload = TestHttpServer.randomPayload(300 * 1024, 3);
+        String expected = sha256(payload);
+        File file = temp.newFile("update.apk");
+        StreamingVerifier verifier = new StreamingVerifier(expected.toUpperCase());
+
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            for (int offset = 0; offset < payload.length; offset += 70000) {
+                int length = Math.min(70000, payload.length - offset);
+                out.write(payload, offset, length);
+                verifier.catchUp(file, offset + length);
+                assertEquals(offset + length, verifier.getHashedBytes());
+            }
+        }
+
+        assertTrue(verifier.matches(verifier.finish(file)));
+    }
+
+    @Test
+    public void catchUp_startsOverWhenWriterRestarts() throws Exception {
+        byte[] payload = TestHttpServer.randomPayload(100 * 1024, 4);
+        File file = temp.newFile("update.apk");
+        write(file, TestHttpServer.randomPayload(80 * 1024, 5));
+        StreamingVerifier verifier = new StreamingVerifier(sha256(payload));
+        verifier.catchUp(file, 80 * 1024);
+
+        write(file, payload);
+        verifier.catchUp(file, 1024);
+
+        assertTrue(verifier.matches(verifier.finish(file)));
+    }
+
+    @Test
+    public void finish_detectsCorruption() throws Exception {
+        byte[] payload = TestHttpServer.randomPayload(10 * 1024, 6);
+        String expected = sha256(payload);
+        payload[5000] ^= 1;
+        File file = temp.newFile("update.apk");
+        write(file, payload);
+
+        StreamingVerifier verifier = new StreamingVerifier(expected);
+        assertFalse(verifier.matches(verifier.finish(file)));
+    }
+
+    @Test
+    public void normalizeHex_acceptsKeytoolFormat() {
+        assertEquals("ab01ff", StreamingVerifier.normalizeHex("AB:01:FF"));
+        assertEquals("ab01ff", StreamingVerifier.normalizeHex(" ab01FF "));
+    }
+
+    private static void write(File file, byte[] data) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        return StreamingVerifier.toHex(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+}
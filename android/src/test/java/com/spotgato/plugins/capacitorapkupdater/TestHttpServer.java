@@ -0,0 +1,189 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local HTTP stand-in for a CDN serving a single file, with knobs for the conditions the
+ * downloaders have to cope with.
+ */
+class TestHttpServer implements HttpHandler {
+    private final HttpServer server;
+    private final byte[] payload;
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicLong bytesServed = new AtomicLong();
+    volatile boolean supportRanges = true;
+    // Per-connection bandwidth limit, 0 for unlimited
+    volatile long bytesPerSecond = 0;
+    volatile String etag = "\"v1\"";
+    // Cut the next droppedRequests bodies that are longer than this many bytes short
+    volatile long dropAfterBytes = -1;
+    final AtomicInteger droppedRequests = new AtomicInteger();
+    // Answer this many upcoming requests with 503 and the given Retry-After
+    final AtomicInteger unavailableRequests = new AtomicInteger();
+    volatile String retryAfter = "0";
+    // Sent instead of the payload, with this Content-Encoding, to clients that accept it
+    volatile String contentEncoding;
+    volatile byte[] encodedPayload;
+    // Hold back the response headers of every request after the first delayAfterRequests
+    volatile long firstByteDelayMillis = 0;
+    volatile int delayAfterRequests = 0;
+    // Flip the byte at this offset in the first response that carries it
+    final AtomicLong corruptOffset = new AtomicLong(-1);
+    // Send bodies chunked, without Content-Length, the way some dynamic endpoints do
+    volatile boolean omitContentLength = false;
+
+    TestHttpServer(byte[] payload) throws IOException {
+        this.payload = payload;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    static byte[] randomPayload(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    int getRequestCount() {
+        return requestCount.get();
+    }
+
+    long getBytesServed() {
+        return bytesServed.get();
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        int request = requestCount.incrementAndGet();
+        try {
+            if (firstByteDelayMillis > 0 && request > delayAfterRequests) {
+                try {
+                    Thread.sleep(firstByteDelayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (unavailableRequests.getAndDecrement() > 0) {
+                exchange.getResponseHeaders().set("Retry-After", retryAfter);
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            unavailableRequests.set(0);
+
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (contentEncoding != null && acceptEncoding != null && acceptEncoding.contains(contentEncoding)) {
+                exchange.getResponseHeaders().set("Content-Encoding", contentEncoding);
+                exchange.sendResponseHeaders(200, encodedPayload.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    bytesServed.addAndGet(encodedPayload.length);
+                    out.write(encodedPayload);
+                }
+                return;
+            }
+
+            long start = 0;
+            long end = payload.length - 1;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            if (ifRange != null && !ifRange.equals(etag)) {
+                // Validator no longer matches, send the whole current file
+                range = null;
+            }
+            if (etag != null) {
+                exchange.getResponseHeaders().set("ETag", etag);
+                if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+            }
+            int status = 200;
+            if (range != null && supportRanges && range.startsWith("bytes=")) {
+                String[] parts = range.substring(6).split("-", -1);
+                start = Long.parseLong(parts[0]);
+                if (!parts[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(parts[1]));
+                }
+                if (start > end) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + payload.length);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                status = 206;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + payload.length);
+            }
+            if (supportRanges) {
+                exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            }
+
+            long length = end - start + 1;
+            if (dropAfterBytes >= 0 && length > dropAfterBytes && droppedRequests.getAndDecrement() > 0) {
+                // HttpServer keeps a short fixed-length response open, end a chunked one early instead
+                exchange.sendResponseHeaders(status, 0);
+                length = dropAfterBytes;
+            } else {
+                exchange.sendResponseHeaders(status, omitContentLength ? 0 : length);
+            }
+            try (OutputStream out = exchange.getResponseBody()) {
+                writeThrottled(out, (int) start, (int) length);
+            }
+        } catch (IOException e) {
+            // Client went away mid-transfer
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void writeThrottled(OutputStream out, int offset, int length) throws IOException {
+        int chunk = 16 * 1024;
+        long started = System.nanoTime();
+        int written = 0;
+        while (written < length) {
+            int count = Math.min(chunk, length - written);
+            // Counted first, the client may have the bytes before write() returns
+            bytesServed.addAndGet(count);
+            long corrupt = corruptOffset.get();
+            if (corrupt >= offset + written && corrupt < offset + written + count && corruptOffset.compareAndSet(corrupt, -1)) {
+                byte[] copy = Arrays.copyOfRange(payload, offset + written, offset + written + count);
+                copy[(int) (corrupt - offset - written)] ^= 0xff;
+                out.write(copy);
+            } else {
+                out.write(payload, offset + written, count);
+            }
+            written += count;
+            long limit = bytesPerSecond;
+            if (limit > 0) {
+                long dueNanos = written * 1000000000L / limit;
+                long sleepMillis = (dueNanos - (System.nanoTime() - started)) / 1000000;
+                if (sleepMillis > 0) {
+                    try {
+                        Thread.sleep(sleepMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
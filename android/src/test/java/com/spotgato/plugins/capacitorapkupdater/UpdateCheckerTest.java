@@ -0,0 +1,84 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UpdateCheckerTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private static byte[] manifest(long versionCode) {
+        return ("{\"versionCode\":" + versionCode + ",\"versionName\":\"1." + versionCode + "\",\"url\":\"https://example.com/app.apk\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void fetch_unchangedManifestCostsOnlyA304() throws Exception {
+        TestHttpServer server = new TestHttpServer(manifest(42));
+        try {
+            UpdateChecker checker = new UpdateChecker(temp.getRoot());
+
+            UpdateChecker.Manifest first = checker.fetch(server.url("/manifest.json"));
+            assertFalse(first.fromCache);
+            assertEquals(42, first.versionCode);
+            assertEquals("1.42", first.versionName);
+            long served = server.getBytesServed();
+
+            UpdateChecker.Manifest second = new UpdateChecker(temp.getRoot()).fetch(server.url("/manifest.json"));
+            assertTrue(second.fromCache);
+            assertEquals(42, second.versionCode);
+            assertEquals("https://example.com/app.apk", second.json.getString("url"));
+            assertEquals(served, server.getBytesServed());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void fetch_downloadsAgainWhenValidatorChanges() throws Exception {
+        TestHttpServer server = new TestHttpServer(manifest(1));
+        UpdateChecker checker = new UpdateChecker(temp.getRoot());
+        try {
+            checker.fetch(server.url("/manifest.json"));
+            server.etag = "\"v2\"";
+            assertFalse(checker.fetch(server.url("/manifest.json")).fromCache);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void fetch_fallsBackToCacheWhenOffline() throws Exception {
+        TestHttpServer server = new TestHttpServer(manifest(7));
+        String url = server.url("/manifest.json");
+        UpdateChecker checker = new UpdateChecker(temp.getRoot());
+        checker.fetch(url);
+        server.stop();
+
+        UpdateChecker.Manifest offline = checker.fetch(url);
+        assertTrue(offline.fromCache);
+        assertEquals(7, offline.versionCode);
+
+        checker.clear();
+        try {
+            checker.fetch(url);
+            fail("Expected the fetch to fail without a cached manifest");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().startsWith("Unable to fetch update manifest"));
+        }
+    }
+
+    @Test(expected = Exception.class)
+    public void fetch_rejectsManifestWithoutVersionCode() throws Exception {
+        TestHttpServer server = new TestHttpServer("{\"versionName\":\"2.0\"}".getBytes(StandardCharsets.UTF_8));
+        try {
+            new UpdateChecker(temp.getRoot()).fetch(server.url("/manifest.json"));
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.app.ActivityManager;
+import android.app.Application;
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.os.Looper;
+import android.os.Process;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class UpdateFlowTest {
+    private static final long NEW_VERSION = 1000;
+
+    private Application context;
+    private CapacitorApkUpdater updater;
+    private UpdateFlow flow;
+    private final List<UpdateFlow.State> states = new CopyOnWriteArrayList<>();
+    private TestHttpServer apkServer;
+    private TestHttpServer manifestServer;
+    private byte[] payload;
+
+    @Before
+    public void setUp() throws Exception {
+        context = RuntimeEnvironment.getApplication();
+        payload = TestHttpServer.randomPayload(1024 * 1024, 1);
+        apkServer = new TestHttpServer(payload);
+        shadowOf(context.getPackageManager()).setCanRequestPackageInstalls(true);
+        start();
+    }
+
+    @After
+    public void tearDown() {
+        updater.cleanup();
+        apkServer.stop();
+        if (manifestServer != null) {
+            manifestServer.stop();
+        }
+    }
+
+    @Test
+    public void run_stopsWhenNoNewerVersionIsPublished() throws Exception {
+        serveManifest(0);
+
+        flow.run(manifestServer.url("/manifest.json"), options());
+
+        awaitState(UpdateFlow.STATE_UP_TO_DATE);
+        assertEquals(UpdateFlow.STATE_CHECKING, states.get(0).state);
+        assertEquals(0, flow.getState().downloadId);
+    }
+
+    @Test
+    public void run_checksDownloadsVerifiesAndHandsOffWithoutJs() throws Exception {
+        serveManifest(NEW_VERSION);
+
+        UpdateFlow.State started = flow.run(manifestServer.url("/manifest.json"), options());
+
+        assertEquals(UpdateFlow.STATE_CHECKING, started.state);
+        awaitState(UpdateFlow.STATE_INSTALLING);
+        assertEquals(
+            stateNames(UpdateFlow.STATE_CHECKING, UpdateFlow.STATE_DOWNLOADING, UpdateFlow.STATE_VERIFYING, UpdateFlow.STATE_READY_TO_INSTALL, UpdateFlow.STATE_INSTALLING),
+            transitions().subList(0, 5)
+        );
+        UpdateFlow.State installing = find(UpdateFlow.STATE_INSTALLING);
+        assertEquals(NEW_VERSION, installing.versionCode);
+        assertEquals("9.9", installing.versionName);
+        assertTrue(installing.downloadId > 0);
+        assertEquals(100, installing.progress);
+        assertNotNull(installing.filePath);
+    }
+
+    @Test
+    public void restore_waitsForThePermissionAndContinuesOnResume() throws Exception {
+        serveManifest(NEW_VERSION);
+        shadowOf(context.getPackageManager()).setCanRequestPackageInstalls(false);
+        flow.run(manifestServer.url("/manifest.json"), options());
+        awaitState(UpdateFlow.STATE_WAITING_FOR_PERMISSION);
+
+        restart();
+        flow.restore();
+        awaitState(UpdateFlow.STATE_WAITING_FOR_PERMISSION);
+        assertTrue(flow.getState().restored);
+        flow.onResume();
+        assertEquals(UpdateFlow.STATE_WAITING_FOR_PERMISSION, flow.getState().state);
+
+        shadowOf(context.getPackageManager()).setCanRequestPackageInstalls(true);
+        flow.onResume();
+        awaitState(UpdateFlow.STATE_INSTALLING);
+        // Carried on from the saved step, the manifest wasn't checked again
+        assertEquals(1, manifestServer.getRequestCount());
+    }
+
+    @Test
+    public void run_waitsForTheForegroundBeforeStartingTheInstaller() throws Exception {
+        serveManifest(NEW_VERSION);
+        setImportance(ActivityManager.RunningAppProcessInfo.IMPORTANCE_CACHED);
+        flow.run(manifestServer.url("/manifest.json"), options());
+        awaitState(UpdateFlow.STATE_READY_TO_INSTALL);
+        idle(200);
+        assertNull(find(UpdateFlow.STATE_INSTALLING));
+
+        // Still waiting in a new process started in the background
+        restart();
+        flow.restore();
+        awaitState(UpdateFlow.STATE_READY_TO_INSTALL);
+        assertTrue(flow.getState().restored);
+        assertNotNull(flow.getState().filePath);
+
+        setImportance(ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND);
+        flow.onResume();
+        awaitState(UpdateFlow.STATE_INSTALLING);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void restore_reportsTheInstallOnceTheNewVersionRuns() throws Exception {
+        serveManifest(NEW_VERSION);
+        CapacitorApkUpdater.DownloadOptions options = options();
+        options.installMode = CapacitorApkUpdater.INSTALL_MODE_SESSION;
+        flow.run(manifestServer.url("/manifest.json"), options);
+        awaitState(UpdateFlow.STATE_INSTALLING);
+
+        // Killed by the install, which replaced the app
+        PackageInfo installed = shadowOf(context.getPackageManager()).getInternalMutablePackageInfo(context.getPackageName());
+        installed.versionCode = (int) NEW_VERSION;
+        installed.setLongVersionCode(NEW_VERSION);
+        restart();
+        flow.restore();
+
+        awaitState(UpdateFlow.STATE_INSTALLED);
+        assertTrue(flow.getState().restored);
+
+        restart();
+        flow.restore();
+        assertEquals(UpdateFlow.STATE_IDLE, flow.getState().state);
+    }
+
+    @Test
+    public void cancel_stopsTheDownload() throws Exception {
+        serveManifest(NEW_VERSION);
+        apkServer.bytesPerSecond = 64 * 1024;
+        flow.run(manifestServer.url("/manifest.json"), options());
+        awaitState(UpdateFlow.STATE_DOWNLOADING);
+
+        assertTrue(flow.cancel());
+
+        awaitState(UpdateFlow.STATE_CANCELLED);
+        assertFalse(flow.cancel());
+        idle(500);
+        assertEquals(UpdateFlow.STATE_CANCELLED, states.get(states.size() - 1).state);
+        restart();
+        flow.restore();
+        assertEquals(UpdateFlow.STATE_IDLE, flow.getState().state);
+    }
+
+    private void start() {
+        updater = new CapacitorApkUpdater(context);
+        flow = new UpdateFlow(context, updater);
+        states.clear();
+        flow.setStateListener(new UpdateFlow.StateListener() {
+            @Override
+            public void onStateChanged(UpdateFlow.State state) {
+                states.add(state);
+            }
+        });
+    }
+
+    private void setImportance(int importance) {
+        ActivityManager.RunningAppProcessInfo process = new ActivityManager.RunningAppProcessInfo();
+        process.pid = Process.myPid();
+        process.importance = importance;
+        shadowOf((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE)).setProcesses(Collections.singletonList(process));
+    }
+
+    // A new process: same storage, fresh objects
+    private void restart() {
+        updater.cleanup();
+        start();
+    }
+
+    private void serveManifest(long versionCode) throws Exception {
+        JSONObject manifest = new JSONObject();
+        manifest.put("versionCode", versionCode);
+        manifest.put("versionName", "9.9");
+        manifest.put("url", apkServer.url("/update.apk"));
+        manifest.put("sha256", StreamingVerifier.toHex(MessageDigest.getInstance("SHA-256").digest(payload)));
+        manifestServer = new TestHttpServer(manifest.toString().getBytes("UTF-8"));
+    }
+
+    private static CapacitorApkUpdater.DownloadOptions options() {
+        CapacitorApkUpdater.DownloadOptions options = new CapacitorApkUpdater.DownloadOptions();
+        options.engine = CapacitorApkUpdater.ENGINE_SEGMENTED;
+        options.useCache = false;
+        return options;
+    }
+
+    private void awaitState(String state) throws Exception {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (find(state) == null) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Never reached " + state + ", went through " + transitions());
+            }
+            idle(20);
+        }
+    }
+
+    private void idle(long millis) throws InterruptedException {
+        for (long waited = 0; waited < millis; waited += 20) {
+            shadowOf(Looper.getMainLooper()).idleFor(20, TimeUnit.MILLISECONDS);
+            Thread.sleep(20);
+        }
+    }
+
+    private UpdateFlow.State find(String state) {
+        for (UpdateFlow.State seen : states) {
+            if (seen.state.equals(state)) {
+                return seen;
+            }
+        }
+        return null;
+    }
+
+    // Distinct states in the order they were entered, progress updates left out
+    private List<String> transitions() {
+        List<String> names = new ArrayList<>();
+        for (UpdateFlow.State seen : states) {
+            if (names.isEmpty() || !names.get(names.size() - 1).equals(seen.state)) {
+                names.add(seen.state);
+            }
+        }
+        return names;
+    }
+
+    private static List<String> stateNames(String... names) {
+        List<String> list = new ArrayList<>();
+        for (String name : names) {
+            list.add(name);
+        }
+        return list;
+    }
+}
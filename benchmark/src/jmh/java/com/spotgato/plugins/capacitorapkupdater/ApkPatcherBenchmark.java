@@ -0,0 +1,131 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rebuilding a 16 MB APK from the installed one and a bsdiff patch, with the output hashed on the
+ * way like a delta update does.
+ *
+ * The patch mimics a typical release: long stretches that differ only in a few bytes (shifted
+ * offsets in dex and resources) with some new content in between.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ApkPatcherBenchmark {
+    private static final int OLD_SIZE = 16 * 1024 * 1024;
+    private static final int BLOCK = 512 * 1024;
+    private static final int EXTRA = 32 * 1024;
+
+    @Param({ "false", "true" })
+    public boolean gzip;
+
+    private File dir;
+    private File oldFile;
+    private File patchFile;
+    private File newFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("patcher").toFile();
+        Random random = new Random(3);
+        byte[] old = new byte[OLD_SIZE];
+        random.nextBytes(old);
+        oldFile = write(new File(dir, "old.apk"), old);
+        patchFile = write(new File(dir, "update.patch"), buildPatch(random));
+        newFile = new File(dir, "new.apk");
+    }
+
+    @TearDown
+    public void tearDown() {
+        newFile.delete();
+        patchFile.delete();
+        oldFile.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public byte[] applyPatch() throws Exception {
+        MessageDigest digest = StreamingVerifier.newDigest();
+        ApkPatcher.applyPatch(oldFile, patchFile, newFile, digest);
+        return digest.digest();
+    }
+
+    private byte[] buildPatch(Random random) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        long newSize = 0;
+        byte[] diff = new byte[BLOCK];
+        byte[] extra = new byte[EXTRA];
+        for (int oldPos = 0; oldPos < OLD_SIZE; oldPos += BLOCK) {
+            // Mostly zero deltas with a changed byte every few hundred
+            Arrays.fill(diff, (byte) 0);
+            for (int i = 0; i < BLOCK; i += 200 + random.nextInt(400)) {
+                diff[i] = (byte) (1 + random.nextInt(255));
+            }
+            random.nextBytes(extra);
+            writeOffset(body, BLOCK);
+            writeOffset(body, EXTRA);
+            writeOffset(body, 0);
+            body.write(diff);
+            body.write(extra);
+            newSize += BLOCK + EXTRA;
+        }
+
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        patch.write("ENDSLEY/BSDIFF43".getBytes(StandardCharsets.US_ASCII));
+        writeOffset(patch, newSize);
+        if (gzip) {
+            try (OutputStream out = new GZIPOutputStream(patch)) {
+                body.writeTo(out);
+            }
+        } else {
+            body.writeTo(patch);
+        }
+        return patch.toByteArray();
+    }
+
+    // bsdiff offsets are little endian sign-magnitude
+    private static void writeOffset(OutputStream out, long value) throws IOException {
+        long magnitude = Math.abs(value);
+        for (int i = 0; i < 8; i++) {
+            int b = (int) (magnitude >>> (8 * i)) & 0xff;
+            if (i == 7 && value < 0) {
+                b |= 0x80;
+            }
+            out.write(b);
+        }
+    }
+
+    private static File write(File file, byte[] data) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+}
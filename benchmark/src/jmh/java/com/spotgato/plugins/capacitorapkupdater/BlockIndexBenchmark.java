@@ -0,0 +1,86 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scanning a 16 MB installed APK for the blocks of the new one, which rolls the checksum over
+ * every byte that doesn't match.
+ *
+ * The new APK keeps every other 64 KB stretch of the old one shifted by a few bytes and replaces
+ * the rest, so the scan spends about half its time rolling and half skipping matched blocks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockIndexBenchmark {
+    private static final int SIZE = 16 * 1024 * 1024;
+    private static final int STRETCH = 64 * 1024;
+
+    private File dir;
+    private File installed;
+    private BlockIndex index;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("blocks").toFile();
+        Random random = new Random(5);
+        byte[] old = new byte[SIZE];
+        random.nextBytes(old);
+        byte[] updated = new byte[SIZE];
+        for (int offset = 0; offset < SIZE; offset += STRETCH) {
+            if ((offset / STRETCH) % 2 == 0) {
+                System.arraycopy(old, offset, updated, offset, STRETCH);
+            } else {
+                byte[] fresh = new byte[STRETCH];
+                random.nextBytes(fresh);
+                System.arraycopy(fresh, 0, updated, offset, STRETCH);
+            }
+        }
+        // Shift the installed copy so matches are found off the block grid
+        byte[] shifted = new byte[SIZE + 7];
+        System.arraycopy(old, 0, shifted, 7, SIZE);
+        installed = write(new File(dir, "installed.apk"), shifted);
+        File target = write(new File(dir, "update.apk"), updated);
+        index = BlockIndex.build(target, BlockIndex.DEFAULT_BLOCK_SIZE);
+        target.delete();
+    }
+
+    @TearDown
+    public void tearDown() {
+        installed.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public List<long[]> match() throws IOException {
+        return index.match(installed);
+    }
+
+    private static File write(File file, byte[] data) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,68 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Verifying a 64 MB APK against its chunk manifest on one thread and on every core, to compare
+ * with {@link StreamingVerifierBenchmark#hashFromFile} over the same amount of data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkVerifierBenchmark {
+    private static final int APK_SIZE = 64 * 1024 * 1024;
+
+    @Param({ "1", "0" })
+    public int threads;
+
+    private File file;
+    private ChunkManifest manifest;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] data = new byte[APK_SIZE];
+        new Random(1).nextBytes(data);
+        file = File.createTempFile("chunks", ".apk");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        manifest = ChunkManifest.build(file, ChunkManifest.DEFAULT_CHUNK_SIZE);
+        // 0 is every core
+        pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+        ChunkVerifier.stateFor(file).delete();
+        file.delete();
+    }
+
+    @Benchmark
+    public List<long[]> verify() throws IOException {
+        ChunkVerifier.stateFor(file).delete();
+        return new ChunkVerifier(manifest, pool).verify(file);
+    }
+}
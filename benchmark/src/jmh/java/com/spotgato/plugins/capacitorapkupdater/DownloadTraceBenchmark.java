@@ -0,0 +1,63 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of recording one progress sample in the trace, next to building the log line it replaces.
+ * Run with -prof gc to see that recording allocates nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DownloadTraceBenchmark {
+    private static final long TOTAL_SIZE = 64L * 1024 * 1024;
+
+    private DownloadTrace trace;
+    private long now;
+    private long bytes;
+
+    @Setup
+    public void setUp() {
+        trace = new DownloadTrace(DownloadTrace.DEFAULT_CAPACITY, System.nanoTime(), System.currentTimeMillis());
+        now = 0;
+        bytes = 0;
+        // Full from the start, as after any longer download
+        for (int i = 0; i < DownloadTrace.DEFAULT_CAPACITY; i++) {
+            record();
+        }
+    }
+
+    @Benchmark
+    public void record() {
+        now += 1000;
+        bytes = (bytes + 16 * 1024) % TOTAL_SIZE;
+        trace.record(DownloadTrace.EVENT_PROGRESS, 1, now, bytes, TOTAL_SIZE);
+    }
+
+    @Benchmark
+    public void formatLogLine(Blackhole blackhole) {
+        now += 1000;
+        bytes = (bytes + 16 * 1024) % TOTAL_SIZE;
+        blackhole.consume("Download " + 1 + " progress: " + bytes + "/" + TOTAL_SIZE + " at " + now);
+    }
+
+    // Export of a full ring, done once per dumpTrace call
+    @Benchmark
+    public void toJson(Blackhole blackhole) throws Exception {
+        blackhole.consume(trace.toJson());
+    }
+}
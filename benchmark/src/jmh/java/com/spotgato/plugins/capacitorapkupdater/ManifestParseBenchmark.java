@@ -0,0 +1,52 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing the update manifest, done on every update check whether or not it changed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ManifestParseBenchmark {
+    private String manifest;
+
+    @Setup
+    public void setUp() {
+        StringBuilder changelog = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            changelog.append("Fixed issue #").append(1000 + i).append(" in the sync engine. ");
+        }
+        StringBuilder splits = new StringBuilder();
+        String[] names = { "base", "config.arm64_v8a", "config.armeabi_v7a", "config.x86_64", "config.xxhdpi", "config.en", "config.de" };
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                splits.append(',');
+            }
+            splits.append("{\"name\":\"").append(names[i]).append("\",\"url\":\"https://cdn.example.com/1.4.2/")
+                .append(names[i]).append(".apk\",\"sha256\":\"9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08\"}");
+        }
+        manifest = "{\"versionCode\":10402,\"versionName\":\"1.4.2\",\"url\":\"https://cdn.example.com/1.4.2/app.apk\","
+            + "\"sha256\":\"9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08\",\"size\":48234123,"
+            + "\"patchUrl\":\"https://cdn.example.com/1.4.2/from-10401.patch\",\"minSdk\":23,\"mandatory\":false,"
+            + "\"changelog\":\"" + changelog + "\",\"splits\":[" + splits + "]}";
+    }
+
+    @Benchmark
+    public UpdateChecker.Manifest parse() throws Exception {
+        return UpdateChecker.parse(manifest, false);
+    }
+}
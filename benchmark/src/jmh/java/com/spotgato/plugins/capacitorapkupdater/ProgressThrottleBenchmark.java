@@ -0,0 +1,63 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of feeding one poll sample through the throttle, which happens for every running download
+ * on every tick of the progress poll.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProgressThrottleBenchmark {
+    private static final long TOTAL_SIZE = 64L * 1024 * 1024;
+
+    private ProgressThrottle throttle;
+    private long now;
+    private long bytes;
+
+    @Setup
+    public void setUp() {
+        throttle = new ProgressThrottle(ProgressThrottle.DEFAULT_MIN_INTERVAL, ProgressThrottle.DEFAULT_MIN_PERCENT, 0);
+        now = 0;
+        bytes = 0;
+    }
+
+    // Samples every 10 ms, most of them coalesced
+    @Benchmark
+    public void offerCoalesced(Blackhole blackhole) {
+        now += 10;
+        bytes = (bytes + 16 * 1024) % TOTAL_SIZE;
+        blackhole.consume(throttle.offer(bytes, TOTAL_SIZE, now));
+    }
+
+    // Samples spaced so every one is emitted
+    @Benchmark
+    public void offerEmitted(Blackhole blackhole) {
+        now += ProgressThrottle.DEFAULT_MIN_INTERVAL;
+        bytes = (bytes + TOTAL_SIZE / 50) % TOTAL_SIZE;
+        blackhole.consume(throttle.offer(bytes, TOTAL_SIZE, now));
+    }
+
+    @Benchmark
+    public void offerAndFlush(Blackhole blackhole) {
+        now += 100;
+        bytes = (bytes + 256 * 1024) % TOTAL_SIZE;
+        blackhole.consume(throttle.offer(bytes, TOTAL_SIZE, now));
+        blackhole.consume(throttle.flush(now + ProgressThrottle.DEFAULT_MIN_INTERVAL));
+    }
+}
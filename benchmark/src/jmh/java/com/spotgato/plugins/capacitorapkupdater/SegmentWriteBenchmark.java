@@ -0,0 +1,124 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The disk side of a segmented download: reads landing at their offsets in the target file, and
+ * the journal merging completed ranges that arrive out of order and checkpointing them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentWriteBenchmark {
+    private static final int FILE_SIZE = 32 * 1024 * 1024;
+    // What one read from the socket typically hands over on a slow connection
+    private static final int READ_SIZE = 16 * 1024;
+
+    @Param({ "262144", "4194304" })
+    public int segmentSize;
+
+    private byte[] buffer;
+    private List<long[]> segments;
+    private File target;
+    private File journalFile;
+    private RandomAccessFile file;
+    private ApkFileWriter writer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        buffer = new byte[READ_SIZE];
+        new Random(5).nextBytes(buffer);
+        // Parallel connections finish their segments in no particular order
+        segments = new ArrayList<>();
+        for (long start = 0; start < FILE_SIZE; start += segmentSize) {
+            segments.add(new long[] { start, Math.min(FILE_SIZE, start + segmentSize) });
+        }
+        Collections.shuffle(segments, new Random(7));
+        target = File.createTempFile("segments", ".apk");
+        journalFile = DownloadJournal.journalFor(target);
+        file = new RandomAccessFile(target, "rw");
+        file.setLength(FILE_SIZE);
+        writer = new ApkFileWriter(target);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        file.close();
+        writer.close();
+        target.delete();
+        journalFile.delete();
+    }
+
+    // Every read written as it arrives, how segments were written before ApkFileWriter
+    @Benchmark
+    public long writeSegmentsUnbuffered() throws IOException {
+        FileChannel channel = file.getChannel();
+        for (long[] segment : segments) {
+            for (long position = segment[0]; position < segment[1]; position += READ_SIZE) {
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, (int) Math.min(READ_SIZE, segment[1] - position));
+                long offset = position;
+                while (data.hasRemaining()) {
+                    offset += channel.write(data, offset);
+                }
+            }
+        }
+        return channel.size();
+    }
+
+    @Benchmark
+    public long writeSegmentsBlocked() throws IOException {
+        ApkFileWriter.Block block = writer.newBlock();
+        for (long[] segment : segments) {
+            for (long position = segment[0]; position < segment[1]; position += READ_SIZE) {
+                block.write(buffer, 0, (int) Math.min(READ_SIZE, segment[1] - position), position);
+            }
+            block.flush();
+        }
+        return target.length();
+    }
+
+    @Benchmark
+    public long mergeRanges() {
+        DownloadJournal journal = new DownloadJournal(journalFile, "https://example.com/app.apk", "\"v1\"", null, FILE_SIZE);
+        for (long[] segment : segments) {
+            journal.markCompleted(segment[0], segment[1]);
+        }
+        return journal.getBytesCompleted();
+    }
+
+    // Checkpoint after every segment, what the workers do between segments
+    @Benchmark
+    public long mergeAndCheckpoint() throws IOException {
+        DownloadJournal journal = new DownloadJournal(journalFile, "https://example.com/app.apk", "\"v1\"", null, FILE_SIZE);
+        for (long[] segment : segments) {
+            journal.markCompleted(segment[0], segment[1]);
+            journal.save();
+        }
+        return journal.getBytesCompleted();
+    }
+}
@@ -0,0 +1,72 @@
+package com.spotgato.plugins.capacitorapkupdater;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SHA-256 throughput of the verifier, fed from memory the way the in-process engine does and
+ * caught up from a file the way DownloadManager downloads are.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamingVerifierBenchmark {
+    private static final int APK_SIZE = 16 * 1024 * 1024;
+
+    private byte[] data;
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        data = new byte[APK_SIZE];
+        new Random(1).nextBytes(data);
+        file = File.createTempFile("verifier", ".apk");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    // Size of the reads handed to the verifier, only matters for the streamed variant
+    @State(Scope.Thread)
+    public static class Chunks {
+        @Param({ "8192", "65536" })
+        public int size;
+    }
+
+    @Benchmark
+    public String hashStreamed(Chunks chunks) {
+        StreamingVerifier verifier = new StreamingVerifier(null);
+        for (int offset = 0; offset < data.length; offset += chunks.size) {
+            verifier.update(data, offset, Math.min(chunks.size, data.length - offset));
+        }
+        return verifier.finish();
+    }
+
+    @Benchmark
+    public String hashFromFile() throws IOException {
+        return new StreamingVerifier(null).finish(file);
+    }
+}
@@ -0,0 +1,104 @@
+package com.spotgato.plugins.capacitorapkupdater.benchmark;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Compares a JMH JSON result file with a baseline and exits with 1 if any benchmark got slower by
+ * more than the threshold (10 percent unless given). Benchmarks missing from either side are listed
+ * but don't fail the comparison.
+ */
+public class JmhCompare {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: JmhCompare <baseline.json> <current.json> [thresholdPercent]");
+            System.exit(2);
+        }
+        Map<String, JSONObject> baseline = load(new File(args[0]));
+        Map<String, JSONObject> current = load(new File(args[1]));
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+
+        boolean regressed = false;
+        System.out.printf(Locale.US, "%-70s %16s %16s %9s%n", "benchmark (ns/op or ops/s)", "baseline", "current", "change");
+        for (Map.Entry<String, JSONObject> entry : current.entrySet()) {
+            JSONObject before = baseline.get(entry.getKey());
+            double now = normalizedScore(entry.getValue());
+            if (before == null) {
+                System.out.printf(Locale.US, "%-70s %16s %16.1f %9s%n", entry.getKey(), "-", now, "new");
+                continue;
+            }
+            double old = normalizedScore(before);
+            // Throughput is better when higher, everything else when lower
+            boolean higherIsBetter = "thrpt".equals(entry.getValue().getString("mode"));
+            double change = (now - old) / old * 100;
+            double slowdown = higherIsBetter ? -change : change;
+            boolean worse = slowdown > threshold;
+            regressed |= worse;
+            System.out.printf(Locale.US, "%-70s %16.1f %16.1f %+8.1f%%%s%n", entry.getKey(), old, now, change, worse ? "  REGRESSION" : "");
+        }
+        for (String name : baseline.keySet()) {
+            if (!current.containsKey(name)) {
+                System.out.printf(Locale.US, "%-70s %16.1f %16s %9s%n", name, normalizedScore(baseline.get(name)), "-", "missing");
+            }
+        }
+        System.exit(regressed ? 1 : 0);
+    }
+
+    // Runs may use different units, compare times in ns/op and rates in ops/s
+    private static double normalizedScore(JSONObject result) {
+        JSONObject metric = result.getJSONObject("primaryMetric");
+        double score = metric.getDouble("score");
+        String unit = metric.getString("scoreUnit");
+        int slash = unit.indexOf('/');
+        if (unit.startsWith("ops/")) {
+            return score / nanos(unit.substring(slash + 1)) * 1e9;
+        }
+        return score * nanos(unit.substring(0, slash));
+    }
+
+    private static double nanos(String unit) {
+        switch (unit) {
+            case "ns":
+                return 1;
+            case "us":
+                return 1e3;
+            case "ms":
+                return 1e6;
+            case "s":
+                return 1e9;
+            case "min":
+                return 60e9;
+            default:
+                throw new IllegalArgumentException("Unknown time unit " + unit);
+        }
+    }
+
+    // Keyed by benchmark name plus its parameters, e.g. "...applyPatch(gzip=true)"
+    private static Map<String, JSONObject> load(File file) throws Exception {
+        JSONArray results = new JSONArray(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        Map<String, JSONObject> byName = new TreeMap<>();
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject result = results.getJSONObject(i);
+            StringBuilder name = new StringBuilder(result.getString("benchmark").replace("com.spotgato.plugins.capacitorapkupdater.", ""));
+            JSONObject params = result.optJSONObject("params");
+            if (params != null) {
+                Map<String, String> sorted = new TreeMap<>();
+                Iterator<String> keys = params.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    sorted.put(key, params.getString(key));
+                }
+                name.append(sorted.toString().replace('{', '(').replace('}', ')').replace(" ", ""));
+            }
+            byName.put(name.toString(), result);
+        }
+        return byName;
+    }
+}
@@ -0,0 +1,28 @@
+package com.spotgato.plugins.capacitorapkupdater.benchmark;
+
+import com.spotgato.plugins.capacitorapkupdater.BlockIndex;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes the block index of an APK, for the server side: {@code BlockIndexTool app.apk
+ * app.apk.blocks [blockSize]}. Run it with {@code gradle blockIndex -Papk=path/to/app.apk}.
+ */
+public class BlockIndexTool {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: BlockIndexTool <apk> <index> [blockSize]");
+            System.exit(2);
+        }
+        int blockSize = args.length > 2 ? Integer.parseInt(args[2]) : BlockIndex.DEFAULT_BLOCK_SIZE;
+        BlockIndex index = BlockIndex.build(new File(args[0]), blockSize);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(args[1]))) {
+            index.write(out);
+        }
+        System.out.println(index.getBlockCount() + " blocks of " + blockSize + " bytes, sha256 " + index.sha256);
+    }
+}
@@ -0,0 +1,28 @@
+package com.spotgato.plugins.capacitorapkupdater.benchmark;
+
+import com.spotgato.plugins.capacitorapkupdater.ChunkManifest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the chunk manifest of an APK, for the server side: {@code ChunkManifestTool app.apk
+ * app.apk.chunks [chunkSize]}. Run it with {@code gradle chunkManifest -Papk=path/to/app.apk}.
+ */
+public class ChunkManifestTool {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: ChunkManifestTool <apk> <manifest> [chunkSize]");
+            System.exit(2);
+        }
+        int chunkSize = args.length > 2 ? Integer.parseInt(args[2]) : ChunkManifest.DEFAULT_CHUNK_SIZE;
+        ChunkManifest manifest = ChunkManifest.build(new File(args[0]), chunkSize);
+        try (OutputStream out = new FileOutputStream(args[1])) {
+            out.write(manifest.toJson().getBytes(StandardCharsets.UTF_8));
+        }
+        System.out.println(manifest.getChunkCount() + " chunks of " + chunkSize + " bytes, root " + manifest.root);
+    }
+}
@@ -0,0 +1,156 @@
+package com.spotgato.plugins.capacitorapkupdater.benchmark;
+
+import com.aayushatharva.brotli4j.Brotli4jLoader;
+import com.aayushatharva.brotli4j.encoder.Encoder;
+import com.github.luben.zstd.Zstd;
+import com.spotgato.plugins.capacitorapkupdater.PayloadCodec;
+import com.spotgato.plugins.capacitorapkupdater.SegmentedDownloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares how long an APK takes to arrive over a bandwidth-limited link when sent plain (with one
+ * and with several connections) or compressed with gzip, brotli and zstd, and how many bytes each
+ * puts on the wire.
+ *
+ * The APK is a real one passed as the first argument, or a synthetic one shaped like a typical
+ * release build. Results are printed as a table and written to build/codec-results.json.
+ */
+public class CodecBenchmark {
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        long bandwidth = Long.parseLong(System.getProperty("benchmark.bandwidth", String.valueOf(8L * 1024 * 1024)));
+        byte[] apk = args.length > 0 ? Files.readAllBytes(new File(args[0]).toPath()) : SyntheticApk.build(24 * 1024 * 1024, 42);
+        System.out.printf(Locale.US, "APK: %s, %d bytes, link %.1f Mbit/s%n", args.length > 0 ? args[0] : "synthetic", apk.length, bandwidth * 8 / 1e6);
+
+        List<Variant> variants = new ArrayList<>();
+        variants.add(new Variant("identity x1", ".apk", apk, 0, 1));
+        variants.add(new Variant("identity x4", ".apk", apk, 0, 4));
+        variants.add(encode("gzip -9", ".apk.gz", apk, new Encoding() {
+            @Override
+            public byte[] encode(byte[] data) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (GZIPOutputStream out = new GZIPOutputStream(bytes) {
+                    {
+                        def.setLevel(9);
+                    }
+                }) {
+                    out.write(data);
+                }
+                return bytes.toByteArray();
+            }
+        }));
+        Brotli4jLoader.ensureAvailability();
+        variants.add(encode("brotli 11", ".apk.br", apk, new Encoding() {
+            @Override
+            public byte[] encode(byte[] data) throws IOException {
+                return Encoder.compress(data, new Encoder.Parameters().setQuality(11).setWindow(24));
+            }
+        }));
+        variants.add(encode("zstd 19", ".apk.zst", apk, new Encoding() {
+            @Override
+            public byte[] encode(byte[] data) {
+                return Zstd.compress(data, 19);
+            }
+        }));
+
+        File workDir = Files.createTempDirectory("codec-benchmark").toFile();
+        List<String> json = new ArrayList<>();
+        System.out.printf(Locale.US, "%-12s %12s %7s %10s %10s %12s%n", "variant", "wire bytes", "ratio", "encode ms", "decode ms", "download ms");
+        for (Variant variant : variants) {
+            long decodeMillis = variant.name.startsWith("identity") ? 0 : decodeMillis(variant, apk.length);
+            ThrottledServer server = new ThrottledServer(variant.payload, bandwidth);
+            long[] runs = new long[RUNS];
+            try {
+                for (int i = 0; i < RUNS; i++) {
+                    File target = new File(workDir, "update-" + i + ".apk");
+                    SegmentedDownloader downloader = new SegmentedDownloader(server.url("/app" + variant.suffix), target, variant.connections);
+                    long started = System.nanoTime();
+                    downloader.download();
+                    runs[i] = (System.nanoTime() - started) / 1000000;
+                    if (target.length() != apk.length) {
+                        throw new IllegalStateException(variant.name + " produced " + target.length() + " bytes");
+                    }
+                    target.delete();
+                }
+            } finally {
+                server.stop();
+            }
+            Arrays.sort(runs);
+            long median = runs[RUNS / 2];
+            double ratio = (double) variant.payload.length / apk.length;
+            System.out.printf(Locale.US, "%-12s %12d %7.3f %10d %10d %12d%n", variant.name, variant.payload.length, ratio, variant.encodeMillis, decodeMillis, median);
+            json.add(String.format(Locale.US,
+                "{\"variant\":\"%s\",\"wireBytes\":%d,\"ratio\":%.4f,\"encodeMillis\":%d,\"decodeMillis\":%d,\"downloadMillis\":%d}",
+                variant.name, variant.payload.length, ratio, variant.encodeMillis, decodeMillis, median));
+        }
+        workDir.delete();
+
+        File results = new File("build/codec-results.json");
+        results.getParentFile().mkdirs();
+        String report = String.format(Locale.US, "{\"apkBytes\":%d,\"bandwidth\":%d,\"results\":[%s]}%n", apk.length, bandwidth, String.join(",", json));
+        Files.write(results.toPath(), report.getBytes(StandardCharsets.UTF_8));
+        System.out.println("Wrote " + results.getPath());
+        System.exit(0);
+    }
+
+    private static Variant encode(String name, String suffix, byte[] apk, Encoding encoding) throws IOException {
+        long started = System.nanoTime();
+        byte[] payload = encoding.encode(apk);
+        return new Variant(name, suffix, payload, (System.nanoTime() - started) / 1000000, 1);
+    }
+
+    // Decoding alone, from memory, to separate CPU cost from transfer time
+    private static long decodeMillis(Variant variant, int expectedLength) throws IOException {
+        String encoding = PayloadCodec.fromUrl("app" + variant.suffix);
+        byte[] buffer = new byte[64 * 1024];
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long started = System.nanoTime();
+            long total = 0;
+            try (InputStream in = PayloadCodec.decode(encoding, new ByteArrayInputStream(variant.payload))) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    total += read;
+                }
+            }
+            if (total != expectedLength) {
+                throw new IllegalStateException(variant.name + " decoded to " + total + " bytes");
+            }
+            best = Math.min(best, (System.nanoTime() - started) / 1000000);
+        }
+        return best;
+    }
+
+    private interface Encoding {
+        byte[] encode(byte[] data) throws IOException;
+    }
+
+    private static class Variant {
+        final String name;
+        final String suffix;
+        final byte[] payload;
+        final long encodeMillis;
+        final int connections;
+
+        Variant(String name, String suffix, byte[] payload, long encodeMillis, int connections) {
+            this.name = name;
+            this.suffix = suffix;
+            this.payload = payload;
+            this.encodeMillis = encodeMillis;
+            this.connections = connections;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.spotgato.plugins.capacitorapkupdater.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Builds a zip laid out like a release APK: deflated dex, a stored resource table, an uncompressed
+ * native library, stored PNGs that are already compressed and some deflated assets. The stored
+ * parts are what a transfer codec can still shrink.
+ */
+class SyntheticApk {
+
+    static byte[] build(int size, long seed) throws IOException {
+        Random random = new Random(seed);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size);
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            add(zip, "classes.dex", bytecode(random, size * 35 / 100), true);
+            add(zip, "resources.arsc", resourceTable(random, size * 10 / 100), false);
+            add(zip, "lib/arm64-v8a/libapp.so", machineCode(random, size * 30 / 100), false);
+            for (int i = 0; i < 20; i++) {
+                add(zip, "res/drawable-xxhdpi/image_" + i + ".png", noise(random, size / 100), false);
+            }
+            add(zip, "assets/config.json", json(random, size * 5 / 100), true);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void add(ZipOutputStream zip, String name, byte[] data, boolean deflate) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        if (!deflate) {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
+        }
+        zip.putNextEntry(entry);
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    // Opcodes from a small, skewed set with register and index operands
+    private static byte[] bytecode(Random random, int size) {
+        byte[] data = new byte[size];
+        int i = 0;
+        while (i < size) {
+            int opcode = (int) Math.abs(random.nextGaussian() * 24) & 0xff;
+            data[i++] = (byte) opcode;
+            int operands = 1 + (opcode & 3);
+            for (int j = 0; j < operands && i < size; j++) {
+                data[i++] = (byte) (j == 0 ? random.nextInt(16) : random.nextInt(256));
+            }
+        }
+        return data;
+    }
+
+    // Fixed-size entries and a string pool full of similar names
+    private static byte[] resourceTable(Random random, int size) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        int id = 0x7f010000;
+        while (out.size() < size) {
+            byte[] entry = { 0x08, 0x00, 0x00, 0x00, (byte) id, (byte) (id >> 8), (byte) (id >> 16), (byte) (id >> 24) };
+            out.write(entry, 0, entry.length);
+            byte[] name = ("layout_item_" + random.nextInt(4000) + "_title\0").getBytes(StandardCharsets.UTF_8);
+            out.write(name, 0, name.length);
+            id++;
+        }
+        return trim(out.toByteArray(), size);
+    }
+
+    // 32-bit instruction words, most of them from a few hundred common encodings
+    private static byte[] machineCode(Random random, int size) {
+        int[] common = new int[512];
+        for (int i = 0; i < common.length; i++) {
+            common[i] = random.nextInt();
+        }
+        byte[] data = new byte[size - size % 4];
+        for (int i = 0; i < data.length; i += 4) {
+            int word = random.nextInt(10) < 7 ? common[(int) Math.abs(random.nextGaussian() * 80) % common.length] : random.nextInt();
+            data[i] = (byte) word;
+            data[i + 1] = (byte) (word >> 8);
+            data[i + 2] = (byte) (word >> 16);
+            data[i + 3] = (byte) (word >> 24);
+        }
+        return data;
+    }
+
+    private static byte[] noise(Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] json(Random random, int size) {
+        StringBuilder out = new StringBuilder(size);
+        out.append('[');
+        while (out.length() < size) {
+            out.append("{\"id\":").append(random.nextInt(100000)).append(",\"enabled\":").append(random.nextBoolean()).append(",\"label\":\"feature_").append(random.nextInt(300)).append("\"},");
+        }
+        return trim(out.toString().getBytes(StandardCharsets.UTF_8), size);
+    }
+
+    private static byte[] trim(byte[] data, int size) {
+        byte[] trimmed = new byte[Math.min(size, data.length)];
+        System.arraycopy(data, 0, trimmed, 0, trimmed.length);
+        return trimmed;
+    }
+}
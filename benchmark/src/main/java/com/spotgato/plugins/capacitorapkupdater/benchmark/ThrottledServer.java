@@ -0,0 +1,96 @@
+package com.spotgato.plugins.capacitorapkupdater.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves one payload with range support behind a single shared bandwidth limit, so parallel
+ * connections compete for the same link like they would on a phone.
+ */
+class ThrottledServer implements HttpHandler {
+    private static final int CHUNK = 16 * 1024;
+
+    private final HttpServer server;
+    private final byte[] payload;
+    private final long bytesPerSecond;
+    private final long started = System.nanoTime();
+    private long scheduledBytes = 0;
+
+    ThrottledServer(byte[] payload, long bytesPerSecond) throws IOException {
+        this.payload = payload;
+        this.bytesPerSecond = bytesPerSecond;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            long start = 0;
+            long end = payload.length - 1;
+            int status = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null && range.startsWith("bytes=")) {
+                String[] parts = range.substring(6).split("-", -1);
+                start = Long.parseLong(parts[0]);
+                if (!parts[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(parts[1]));
+                }
+                status = 206;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + payload.length);
+            }
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().set("ETag", "\"benchmark\"");
+            exchange.sendResponseHeaders(status, end - start + 1);
+            try (OutputStream out = exchange.getResponseBody()) {
+                long position = start;
+                while (position <= end) {
+                    int count = (int) Math.min(CHUNK, end - position + 1);
+                    awaitBandwidth(count);
+                    out.write(payload, (int) position, count);
+                    position += count;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // Client went away
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // Every chunk books its slot on the shared link, then waits for it
+    private void awaitBandwidth(int count) throws InterruptedException {
+        long dueNanos;
+        synchronized (this) {
+            long now = System.nanoTime() - started;
+            long earliest = scheduledBytes * 1000000000L / bytesPerSecond;
+            if (earliest < now) {
+                // The link was idle, don't let it bank unused bandwidth
+                scheduledBytes = now * bytesPerSecond / 1000000000L;
+            }
+            scheduledBytes += count;
+            dueNanos = scheduledBytes * 1000000000L / bytesPerSecond;
+        }
+        long sleepMillis = (dueNanos - (System.nanoTime() - started)) / 1000000;
+        if (sleepMillis > 0) {
+            Thread.sleep(sleepMillis);
+        }
+    }
+}
@@ -4,9 +4,30 @@ export interface CapacitorApkUpdaterPlugin {
      */
     startApkDownload(options: DownloadApkOptions): Promise<DownloadApkResult>;
     /**
-     * Get the current download status and progress
+     * Download the splits of a split APK set that match this device (ABI, screen density and
+     * languages) in parallel and install them together in one session
      */
-    getDownloadStatus(): Promise<DownloadStatusResult>;
+    startSplitApkDownload(options: SplitApkDownloadOptions): Promise<DownloadApkResult>;
+    /**
+     * Schedule a background download that only runs under the given constraints (by default an
+     * unmetered network, charging and storage not low). The verified APK stays staged, and a later
+     * startApkDownload of the same URL completes immediately from it.
+     */
+    prefetchApk(options: PrefetchApkOptions): Promise<PrefetchApkResult>;
+    /**
+     * Get the state of the background prefetch
+     */
+    getPrefetchStatus(): Promise<PrefetchStatusResult>;
+    /**
+     * Cancel the background prefetch and remove anything it downloaded
+     */
+    cancelPrefetch(): Promise<void>;
+    /**
+     * Get the status and progress of a download, the most recently started one when no ID is given
+     */
+    getDownloadStatus(options?: {
+        downloadId?: number;
+    }): Promise<DownloadStatusResult>;
     /**
      * Check if the app can install APKs (has necessary permissions)
      */
@@ -16,19 +37,97 @@ export interface CapacitorApkUpdaterPlugin {
      */
     requestInstallPermission(): Promise<PermissionResult>;
     /**
-     * Cancel ongoing download
+     * Cancel a download, or every unfinished download when no ID is given
+     */
+    cancelDownload(options?: {
+        downloadId?: number;
+    }): Promise<CancelDownloadResult>;
+    /**
+     * Set how many downloads may run at the same time, further ones wait in a queue.
+     * Default: 3
      */
-    cancelDownload(): Promise<CancelDownloadResult>;
+    setMaxConcurrentDownloads(options: {
+        max: number;
+    }): Promise<void>;
+    /**
+     * Set how much space finished APKs may take in the cache. The least recently used ones are
+     * removed first.
+     * Default: 209715200 (200 MB)
+     */
+    setApkCacheSize(options: {
+        maxBytes: number;
+    }): Promise<void>;
+    /**
+     * Remove every APK kept in the cache
+     */
+    clearApkCache(): Promise<void>;
+    /**
+     * Serve verified APKs from the cache to other devices on the local network and fetch from
+     * them before the origin. Only downloads with expectedSha256 use peers, and anything a peer
+     * serves is checked against it. The server only listens on the Wi-Fi or Ethernet address, so
+     * this rejects on other networks.
+     */
+    enablePeerSharing(options?: PeerSharingOptions): Promise<PeerSharingResult>;
+    /**
+     * Stop serving and announcing, and stop fetching from peers
+     */
+    disablePeerSharing(): Promise<void>;
+    /**
+     * Timing of the downloads that can still be queried (running ones and the last finished ones),
+     * or of one download. The result is plain JSON, ready to be sent to a dashboard.
+     */
+    getMetrics(options?: {
+        downloadId?: number;
+    }): Promise<MetricsResult>;
+    /**
+     * Export the recent trace events of all downloads, oldest first. Recording them builds no
+     * strings, so the buffer is always on. Pass clear to start over after exporting.
+     */
+    dumpTrace(options?: {
+        clear?: boolean;
+    }): Promise<TraceResult>;
+    /**
+     * Log fallbacks, install outcomes and a summary of each finished download as text. Off by
+     * default. A prefetch keeps the setting from when it was scheduled.
+     */
+    setDebugLogging(options: {
+        enabled: boolean;
+    }): Promise<void>;
     /**
      * Install APK from a specific file path
      */
     installApk(options: {
         filePath: string;
+        installMode?: 'intent' | 'session';
     }): Promise<InstallApkResult>;
     /**
      * Get current app information (version, package name, etc.)
      */
     getAppInfo(): Promise<AppInfoResult>;
+    /**
+     * Fetch the update manifest and compare it with the installed version. The manifest is cached
+     * with its ETag/Last-Modified, so an unchanged manifest only costs a 304 response.
+     */
+    checkForUpdate(options: {
+        url: string;
+    }): Promise<CheckForUpdateResult>;
+    /**
+     * Run a whole update natively: check the manifest, wait for the install permission, download
+     * and verify the APK and hand it to the installer. Resolves with the first state; follow the
+     * rest with the 'updateState' event. The update is saved at every step and continues after the
+     * app restarts.
+     */
+    runUpdate(options: RunUpdateOptions): Promise<UpdateState>;
+    /**
+     * Get the state of the update started with runUpdate
+     */
+    getUpdateState(): Promise<UpdateState>;
+    /**
+     * Stop the update started with runUpdate, and its download
+     */
+    cancelUpdate(): Promise<{
+        cancelled: boolean;
+    }>;
     /**
      * Add listener for download progress events
      */
@@ -37,6 +136,14 @@ export interface CapacitorApkUpdaterPlugin {
      * Add listener for download completion events
      */
     addListener(eventName: 'downloadComplete', listenerFunc: (event: DownloadCompleteEvent) => void): Promise<PluginListenerHandle>;
+    /**
+     * Add listener for the outcome of installs done with installMode 'session'
+     */
+    addListener(eventName: 'installStatus', listenerFunc: (event: InstallStatusEvent) => void): Promise<PluginListenerHandle>;
+    /**
+     * Add listener for the state of the update started with runUpdate
+     */
+    addListener(eventName: 'updateState', listenerFunc: (event: UpdateState) => void): Promise<PluginListenerHandle>;
     /**
      * Remove all listeners for this plugin
      */
@@ -65,6 +172,232 @@ export interface DownloadApkOptions {
      * Default: 'Downloading Update...'
      */
     notificationTitle?: string;
+    /**
+     * Optional URL of a bsdiff patch (ENDSLEY/BSDIFF43, gzip compressed body)
+     * from the installed APK to the new one. The new APK is rebuilt on the
+     * device and `url` is only downloaded if the patch can't be applied.
+     */
+    patchUrl?: string;
+    /**
+     * Optional URL of the block index of the APK at `url`, see the README on
+     * block sync. Blocks the installed APK already has are copied from it and
+     * only the rest is downloaded with range requests. Falls back to a normal
+     * download if the index can't be used or the server doesn't support ranges.
+     * Tried after `patchUrl`. Ignored with installMode 'session'.
+     */
+    blockIndexUrl?: string;
+    /**
+     * URL of a chunk manifest for the APK: the SHA-256 of every chunk and the Merkle root over
+     * them. The finished file is checked chunk by chunk on all cores, and chunks that don't match
+     * are downloaded again instead of the whole APK. Uses the in-process engine. Ignored with
+     * installMode 'session' and with splits.
+     */
+    chunkManifestUrl?: string;
+    /**
+     * Expected Merkle root of the chunk manifest as hex. A manifest with another root fails the
+     * download, so the manifest can be served from a less trusted host than this value.
+     */
+    expectedRootHash?: string;
+    /**
+     * Download engine to use. 'downloadManager' hands the transfer to the
+     * system DownloadManager, 'segmented' downloads in-process over several
+     * parallel connections using HTTP range requests. The 'segmented' engine
+     * shows no system notification and resumes an interrupted download of the
+     * same url and filename.
+     * Default: 'downloadManager'
+     */
+    engine?: 'downloadManager' | 'segmented';
+    /**
+     * Let the server compress the APK with Content-Encoding (zstd, br, gzip or deflate). A compressed
+     * body comes over a single connection and can't resume, so this pays off on slow or metered
+     * links. URLs ending in .apk.gz, .apk.br or .apk.zst are always decompressed, whatever this is
+     * set to. zstd needs com.github.luben:zstd-jni in the app.
+     * Default: false
+     */
+    acceptCompressed?: boolean;
+    /**
+     * Number of parallel connections for the 'segmented' engine
+     * Default: 4
+     */
+    connections?: number;
+    /**
+     * Other URLs serving the same APK, ranked after url. Each one gets a small ranged probe and the
+     * fastest is used. Slow requests are repeated on the next best mirror, and segments running far
+     * below another mirror's speed move there. Downloads with mirrors use the in-process engine.
+     * Not used with installMode 'session' or for the patch of a delta update.
+     */
+    mirrors?: string[];
+    /**
+     * How long a request to a mirror may go without an answer before the same range is also
+     * requested from the next best mirror, in milliseconds. 0 turns hedging off.
+     * Default: 1000
+     */
+    hedgeDelay?: number;
+    /**
+     * Expected SHA-256 of the APK as hex. The hash is computed while the file
+     * downloads, and a mismatch fails the download with errorCode
+     * 'CHECKSUM_MISMATCH' before the APK is installed.
+     */
+    expectedSha256?: string;
+    /**
+     * Expected SHA-256 of the APK signing certificate as hex (colons allowed,
+     * as printed by keytool). A mismatch fails the download with errorCode
+     * 'SIGNATURE_MISMATCH' before the APK is installed.
+     */
+    expectedCertSha256?: string;
+    /**
+     * How the APK is installed. 'intent' downloads to a file and opens the
+     * system installer on it. 'session' streams the download straight into a
+     * PackageInstaller session over one in-process connection, so the APK is
+     * never stored twice. On Android 12+ 'session' updates can skip the
+     * confirmation dialog. 'session' does not check expectedCertSha256; Android
+     * already requires an update to be signed like the installed app.
+     * Default: 'intent'
+     */
+    installMode?: 'intent' | 'session';
+    /**
+     * Minimum time between downloadProgress events in milliseconds. Updates arriving sooner are
+     * coalesced and only the latest one is sent.
+     * Default: 250
+     */
+    progressInterval?: number;
+    /**
+     * Minimum change in percent before another downloadProgress event is sent.
+     * Set to 0 to only use progressMinBytes.
+     * Default: 1
+     */
+    progressMinPercent?: number;
+    /**
+     * Minimum change in bytes before another downloadProgress event is sent. Also used when the
+     * total size is unknown.
+     * Default: 0 (disabled)
+     */
+    progressMinBytes?: number;
+    /**
+     * Keep a copy of the finished APK in the cache, only done when expectedSha256 is set. When
+     * expectedSha256 matches a cached APK, the download completes from the cache without using the
+     * network.
+     * Default: true
+     */
+    useCache?: boolean;
+}
+export interface SplitApk {
+    /**
+     * Split name, e.g. 'base' or 'config.arm64_v8a'. The set must contain a split named 'base'.
+     */
+    name: string;
+    /**
+     * URL of the split APK
+     */
+    url: string;
+    /**
+     * ABI this split is for, e.g. 'arm64-v8a'. Only the best match for the device is installed.
+     */
+    abi?: string;
+    /**
+     * Screen density this split is for, as a bucket name ('xxhdpi') or in dpi ('480')
+     */
+    density?: string;
+    /**
+     * Language this split is for, e.g. 'en'
+     */
+    locale?: string;
+    /**
+     * Expected SHA-256 of this split as hex
+     */
+    sha256?: string;
+}
+export interface SplitApkDownloadOptions {
+    /**
+     * All splits of the set. Splits without abi, density or locale are always installed.
+     */
+    splits: SplitApk[];
+    /**
+     * Number of parallel connections per split
+     * Default: 4
+     */
+    connections?: number;
+    /**
+     * Minimum time between downloadProgress events in milliseconds
+     * Default: 250
+     */
+    progressInterval?: number;
+    /**
+     * Minimum change in percent before another downloadProgress event is sent
+     * Default: 1
+     */
+    progressMinPercent?: number;
+    /**
+     * Minimum change in bytes before another downloadProgress event is sent
+     * Default: 0 (disabled)
+     */
+    progressMinBytes?: number;
+}
+export interface PrefetchApkOptions {
+    /**
+     * URL of the APK to prefetch
+     */
+    url: string;
+    /**
+     * Filename of the staged APK
+     * Default: 'update.apk'
+     */
+    filename?: string;
+    /**
+     * Only download on an unmetered network. When false any connection is used.
+     * Default: true
+     */
+    requireUnmetered?: boolean;
+    /**
+     * Only download while the device is charging
+     * Default: true
+     */
+    requireCharging?: boolean;
+    /**
+     * Number of parallel connections
+     * Default: 4
+     */
+    connections?: number;
+    /**
+     * Expected SHA-256 of the APK as hex. A mismatch discards the download.
+     */
+    expectedSha256?: string;
+    /**
+     * Expected SHA-256 of the signing certificate as hex
+     */
+    expectedCertSha256?: string;
+}
+export interface PrefetchApkResult {
+    /**
+     * Whether the prefetch was scheduled. False when a download of the URL is already running.
+     */
+    scheduled: boolean;
+    /**
+     * Why the prefetch was not scheduled
+     */
+    message?: string;
+    /**
+     * Error message if scheduling failed
+     */
+    error?: string;
+}
+export interface PrefetchStatusResult {
+    /**
+     * Current prefetch state
+     */
+    state: 'none' | 'scheduled' | 'downloading' | 'staged' | 'failed';
+    /**
+     * URL being prefetched
+     */
+    url?: string;
+    /**
+     * Path of the verified APK once staged, ready for installApk
+     */
+    filePath?: string;
+    /**
+     * Last error. While scheduled, this is why the previous attempt will be retried.
+     */
+    error?: string;
 }
 export interface DownloadApkResult {
     /**
@@ -79,6 +412,11 @@ export interface DownloadApkResult {
      * Error message if download failed to start
      */
     error?: string;
+    /**
+     * ID of the download, included in its events. Starting a URL that is already downloading
+     * returns the ID of the running download, also when it was started before the app restarted.
+     */
+    downloadId?: number;
 }
 export interface DownloadStatusResult {
     /**
@@ -128,6 +466,28 @@ export interface CancelDownloadResult {
      */
     cancelled: boolean;
 }
+export interface PeerSharingOptions {
+    /**
+     * Port to serve on, 0 picks a free one.
+     * Default: 0
+     */
+    port?: number;
+    /**
+     * Announce this device and find others with NSD (mDNS).
+     * Default: true
+     */
+    discover?: boolean;
+    /**
+     * Peers to fetch from whether or not they are discovered, as 'host:port'
+     */
+    peers?: string[];
+}
+export interface PeerSharingResult {
+    /**
+     * Port this device serves on
+     */
+    port: number;
+}
 export interface InstallApkResult {
     /**
      * Whether the installation intent was successfully launched
@@ -164,6 +524,93 @@ export interface AppInfoResult {
      */
     error?: string;
 }
+export interface CheckForUpdateResult {
+    /**
+     * Whether the check completed
+     */
+    success: boolean;
+    /**
+     * Whether the manifest versionCode is higher than the installed one
+     */
+    updateAvailable?: boolean;
+    /**
+     * Installed version code
+     */
+    currentVersionCode?: number;
+    /**
+     * Installed version name
+     */
+    currentVersionName?: string;
+    /**
+     * Version code from the manifest
+     */
+    availableVersionCode?: number;
+    /**
+     * Version name from the manifest, if it has one
+     */
+    availableVersionName?: string;
+    /**
+     * Whether the manifest came from the on-disk cache, because it was unchanged or the server
+     * could not be reached
+     */
+    fromCache?: boolean;
+    /**
+     * The full manifest. It must contain a numeric versionCode; other fields are passed through.
+     */
+    manifest?: Record<string, any>;
+    /**
+     * Error message if the check failed
+     */
+    error?: string;
+}
+export interface RunUpdateOptions extends Omit<DownloadApkOptions, 'url'> {
+    /**
+     * URL of the update manifest, as for checkForUpdate. Its url is downloaded, and its sha256,
+     * blockIndexUrl and chunkManifestUrl are used unless given here.
+     */
+    manifestUrl: string;
+}
+export interface UpdateState {
+    /**
+     * Step the update is at. 'waitingForPermission' continues by itself once the permission was
+     * granted and the app is back in the foreground, 'readyToInstall' once the app is back in the
+     * foreground. 'upToDate', 'installed', 'failed' and 'cancelled' are final.
+     */
+    state: 'idle' | 'checking' | 'upToDate' | 'waitingForPermission' | 'downloading' | 'verifying' | 'readyToInstall' | 'installing' | 'installed' | 'failed' | 'cancelled';
+    /**
+     * Version code from the manifest
+     */
+    versionCode?: number;
+    /**
+     * Version name from the manifest, if it has one
+     */
+    versionName?: string;
+    /**
+     * ID of the download, once it started
+     */
+    downloadId?: number;
+    /**
+     * Download progress percentage (0-100), once the download started
+     */
+    progress?: number;
+    /**
+     * Path of the APK handed to the installer
+     */
+    filePath?: string;
+    /**
+     * Error message when the update failed
+     */
+    error?: string;
+    /**
+     * 'CHECK_FAILED', 'INSTALL_FAILED', 'INSTALL_ABORTED' when the installer was left without
+     * installing, or the errorCode of the failed download
+     */
+    errorCode?: string;
+    /**
+     * Whether the update was started before the app restarted
+     */
+    restored?: boolean;
+}
 export interface UpdateRequiredResult {
     /**
      * Whether an update is required
@@ -179,6 +626,10 @@ export interface UpdateRequiredResult {
     availableVersion: string;
 }
 export interface DownloadProgressEvent {
+    /**
+     * ID of the download this event belongs to
+     */
+    downloadId: number;
     /**
      * Download progress percentage (0-100)
      */
@@ -191,8 +642,35 @@ export interface DownloadProgressEvent {
      * Total bytes to download
      */
     totalSize: number;
+    /**
+     * Smoothed download rate in bytes per second
+     */
+    bytesPerSecond: number;
+    /**
+     * Estimated seconds until the download completes, -1 while unknown
+     */
+    etaSeconds: number;
+    /**
+     * Bytes written to the APK after decompression. Equal to bytesDownloaded unless the APK
+     * arrives compressed, in which case bytesDownloaded and totalSize count compressed bytes.
+     */
+    bytesWritten: number;
+}
+export interface InstallStatusEvent {
+    /**
+     * Whether the package was installed
+     */
+    success: boolean;
+    /**
+     * Status message from the package installer
+     */
+    message?: string;
 }
 export interface DownloadCompleteEvent {
+    /**
+     * ID of the download this event belongs to
+     */
+    downloadId: number;
     /**
      * Whether the download was successful
      */
@@ -209,4 +687,178 @@ export interface DownloadCompleteEvent {
      * Error message if download failed
      */
     error?: string;
+    /**
+     * Machine readable reason if download failed:
+     * 'DOWNLOAD_FAILED', 'CHECKSUM_MISMATCH', 'SIGNATURE_MISMATCH' or
+     * 'INSUFFICIENT_STORAGE' (an in-process download found too little free space)
+     */
+    errorCode?: string;
+    /**
+     * Mirror most of the APK came from, when mirrors were given
+     */
+    mirror?: string;
+    /**
+     * What was measured about url and each mirror, when mirrors were given
+     */
+    mirrorTimings?: MirrorTiming[];
+    /**
+     * Set when the download was started before the app was last restarted. These events are kept
+     * until a downloadComplete listener is added.
+     */
+    restored?: boolean;
+    /**
+     * Bytes copied from the installed APK, when blockIndexUrl was used
+     */
+    bytesReused?: number;
+    /**
+     * Bytes of the APK that had to be downloaded, when blockIndexUrl was used
+     */
+    bytesDownloaded?: number;
+}
+export interface MetricsResult {
+    /**
+     * One entry per download, oldest first
+     */
+    downloads: DownloadMetrics[];
+}
+/**
+ * Where the time of one download went. Durations are in milliseconds, -1 when the step didn't
+ * happen (yet). Progress is sampled as often as downloads are polled, so first byte, throughput
+ * and stalls have that resolution.
+ */
+export interface DownloadMetrics {
+    downloadId: number;
+    url: string;
+    /**
+     * Engine requested for the download
+     */
+    engine: 'downloadManager' | 'segmented';
+    /**
+     * Where the APK came from
+     */
+    source: 'network' | 'cache' | 'prefetch';
+    /**
+     * When the download was requested, as epoch milliseconds
+     */
+    startedAt: number;
+    /**
+     * Time spent waiting for a free download slot
+     */
+    queueMillis: number;
+    /**
+     * From handing the download to the engine until the first bytes were seen
+     */
+    timeToFirstByteMillis: number;
+    /**
+     * Bytes received over the network, including a patch and a full APK after it
+     */
+    bytesTransferred: number;
+    averageBytesPerSecond: number;
+    /**
+     * Best throughput over any one second window
+     */
+    peakBytesPerSecond: number;
+    /**
+     * Total time of gaps longer than 2 seconds without new bytes
+     */
+    stallMillis: number;
+    /**
+     * Number of such gaps
+     */
+    stalls: number;
+    /**
+     * What noticed the end of the transfer: the DownloadManager broadcast, the progress poll or the
+     * in-process engine itself
+     */
+    completionDetectedBy: 'receiver' | 'poll' | 'transfer' | null;
+    /**
+     * From the end of the transfer (or the last progress seen) until it was noticed
+     */
+    completionDetectMillis: number;
+    /**
+     * Completion signals that arrived after the download was already handled
+     */
+    duplicateCompletions: number;
+    /**
+     * Time spent checking the hash and signing certificate after the transfer
+     */
+    verifyMillis: number;
+    /**
+     * From the downloadComplete event until the installer was handed the APK
+     */
+    installHandoffMillis: number;
+    /**
+     * From the request until the downloadComplete event
+     */
+    totalMillis: number;
+    finished: boolean;
+    success: boolean;
+    errorCode: string | null;
+}
+export interface TraceResult {
+    /**
+     * When the trace started, as epoch milliseconds
+     */
+    startedAt: number;
+    /**
+     * Events the buffer holds before the oldest are overwritten
+     */
+    capacity: number;
+    /**
+     * Events recorded since the start or the last clear
+     */
+    recorded: number;
+    /**
+     * Events overwritten since then
+     */
+    dropped: number;
+    events: TraceEvent[];
+}
+/**
+ * One step of a download. Besides the fields below an event carries the numbers of its type:
+ * enqueued has engine (1 if DownloadManager was requested), poll has active and moved, progress has
+ * bytesDownloaded and totalSize, broadcast has managerId, completion has detectedBy (0 receiver,
+ * 1 poll, 2 transfer), verifyFinished and delivered have success (1 or 0).
+ */
+export interface TraceEvent {
+    type: 'enqueued' | 'poll' | 'progress' | 'broadcast' | 'completion' | 'verifyStarted' | 'verifyFinished' | 'delivered' | 'cancelled';
+    /**
+     * 0 for events that aren't about one download
+     */
+    downloadId: number;
+    /**
+     * Nanoseconds since startedAt
+     */
+    atNanos: number;
+    [field: string]: string | number;
+}
+export interface MirrorTiming {
+    /**
+     * URL of the mirror
+     */
+    url: string;
+    /**
+     * Time to the first byte of the probe in milliseconds, -1 if none arrived
+     */
+    firstByteMillis: number;
+    /**
+     * Measured throughput in bytes per second
+     */
+    bytesPerSecond: number;
+    /**
+     * Bytes of the APK that came from this mirror
+     */
+    bytesDownloaded: number;
+    /**
+     * Number of failed requests
+     */
+    failures: number;
+    /**
+     * Number of requests that were slow enough to be repeated on another mirror
+     */
+    hedges: number;
+    /**
+     * Last error, if any
+     */
+    error?: string;
 }
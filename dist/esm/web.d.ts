@@ -1,15 +1,50 @@
 import { WebPlugin } from '@capacitor/core';
-import type { CapacitorApkUpdaterPlugin, DownloadApkOptions, DownloadApkResult, DownloadStatusResult, CanInstallResult, PermissionResult, CancelDownloadResult, InstallApkResult, AppInfoResult, PluginListenerHandle } from './definitions';
+import type { CapacitorApkUpdaterPlugin, DownloadApkOptions, DownloadApkResult, SplitApkDownloadOptions, PrefetchApkOptions, PrefetchApkResult, PrefetchStatusResult, DownloadStatusResult, CanInstallResult, PermissionResult, CancelDownloadResult, MetricsResult, TraceResult, PeerSharingOptions, PeerSharingResult, InstallApkResult, AppInfoResult, CheckForUpdateResult, RunUpdateOptions, UpdateState, PluginListenerHandle } from './definitions';
 export declare class CapacitorApkUpdaterWeb extends WebPlugin implements CapacitorApkUpdaterPlugin {
     startApkDownload(_options: DownloadApkOptions): Promise<DownloadApkResult>;
-    getDownloadStatus(): Promise<DownloadStatusResult>;
+    startSplitApkDownload(_options: SplitApkDownloadOptions): Promise<DownloadApkResult>;
+    prefetchApk(_options: PrefetchApkOptions): Promise<PrefetchApkResult>;
+    getPrefetchStatus(): Promise<PrefetchStatusResult>;
+    cancelPrefetch(): Promise<void>;
+    getDownloadStatus(_options?: {
+        downloadId?: number;
+    }): Promise<DownloadStatusResult>;
     canInstallApks(): Promise<CanInstallResult>;
     requestInstallPermission(): Promise<PermissionResult>;
-    cancelDownload(): Promise<CancelDownloadResult>;
+    cancelDownload(_options?: {
+        downloadId?: number;
+    }): Promise<CancelDownloadResult>;
+    setMaxConcurrentDownloads(_options: {
+        max: number;
+    }): Promise<void>;
+    setApkCacheSize(_options: {
+        maxBytes: number;
+    }): Promise<void>;
+    clearApkCache(): Promise<void>;
+    enablePeerSharing(_options?: PeerSharingOptions): Promise<PeerSharingResult>;
+    disablePeerSharing(): Promise<void>;
+    getMetrics(_options?: {
+        downloadId?: number;
+    }): Promise<MetricsResult>;
+    dumpTrace(_options?: {
+        clear?: boolean;
+    }): Promise<TraceResult>;
+    setDebugLogging(_options: {
+        enabled: boolean;
+    }): Promise<void>;
     installApk(_options: {
         filePath: string;
+        installMode?: 'intent' | 'session';
     }): Promise<InstallApkResult>;
     getAppInfo(): Promise<AppInfoResult>;
+    checkForUpdate(_options: {
+        url: string;
+    }): Promise<CheckForUpdateResult>;
+    runUpdate(_options: RunUpdateOptions): Promise<UpdateState>;
+    getUpdateState(): Promise<UpdateState>;
+    cancelUpdate(): Promise<{
+        cancelled: boolean;
+    }>;
     addListener(_: any, __: (event: any) => void): Promise<PluginListenerHandle>;
     removeAllListeners(): Promise<void>;
 }
@@ -11,12 +11,28 @@ public class CapacitorApkUpdaterPlugin: CAPPlugin, CAPBridgedPlugin {
     public let jsName = "CapacitorApkUpdater"
     public let pluginMethods: [CAPPluginMethod] = [
         CAPPluginMethod(name: "startApkDownload", returnType: CAPPluginReturnPromise),
+        CAPPluginMethod(name: "startSplitApkDownload", returnType: CAPPluginReturnPromise),
+        CAPPluginMethod(name: "prefetchApk", returnType: CAPPluginReturnPromise),
+        CAPPluginMethod(name: "getPrefetchStatus", returnType: CAPPluginReturnPromise),
+        CAPPluginMethod(name: "cancelPrefetch", returnType: CAPPluginReturnPromise),
         CAPPluginMethod(name: "getDownloadStatus", returnType: CAPPluginReturnPromise),
         CAPPluginMethod(name: "canInstallApks", returnType: CAPPluginReturnPromise),
         CAPPluginMethod(name: "requestInstallPermission", returnType: CAPPluginReturnPromise),
         CAPPluginMethod(name: "cancelDownload", returnType: CAPPluginReturnPromise),
+        CAPPluginMethod(name: "setMaxConcurrentDownloads", returnType: CAPPluginReturnPromise),
+        CAPPluginMethod(name: "setApkCacheSize", returnType: CAPPluginReturnPromise),
+        CAPPluginMethod(name: "clearApkCache", returnType: CAPPluginReturnPromise),
+        CAPPluginMethod(name: "enablePeerSharing", returnType: CAPPluginReturnPromise),
+        CAPPluginMethod(name: "disablePeerSharing", returnType: CAPPluginReturnPromise),
+        CAPPluginMethod(name: "getMetrics", returnType: CAPPluginReturnPromise),
+        CAPPluginMethod(name: "dumpTrace", returnType: CAPPluginReturnPromise),
+        CAPPluginMethod(name: "setDebugLogging", returnType: CAPPluginReturnPromise),
         CAPPluginMethod(name: "installApk", returnType: CAPPluginReturnPromise),
-        CAPPluginMethod(name: "getAppInfo", returnType: CAPPluginReturnPromise)
+        CAPPluginMethod(name: "getAppInfo", returnType: CAPPluginReturnPromise),
+        CAPPluginMethod(name: "checkForUpdate", returnType: CAPPluginReturnPromise),
+        CAPPluginMethod(name: "runUpdate", returnType: CAPPluginReturnPromise),
+        CAPPluginMethod(name: "getUpdateState", returnType: CAPPluginReturnPromise),
+        CAPPluginMethod(name: "cancelUpdate", returnType: CAPPluginReturnPromise)
     ]
     private let implementation = CapacitorApkUpdater()
 
@@ -27,6 +43,30 @@ public class CapacitorApkUpdaterPlugin: CAPPlugin, CAPBridgedPlugin {
         ])
     }
     
+    @objc func startSplitApkDownload(_ call: CAPPluginCall) {
+        call.resolve([
+            "success": false,
+            "error": "APK installation is not supported on iOS"
+        ])
+    }
+    
+    @objc func prefetchApk(_ call: CAPPluginCall) {
+        call.resolve([
+            "scheduled": false,
+            "error": "APK installation is not supported on iOS"
+        ])
+    }
+    
+    @objc func getPrefetchStatus(_ call: CAPPluginCall) {
+        call.resolve([
+            "state": "none"
+        ])
+    }
+    
+    @objc func cancelPrefetch(_ call: CAPPluginCall) {
+        call.resolve()
+    }
+    
     @objc func getDownloadStatus(_ call: CAPPluginCall) {
         call.resolve([
             "success": false,
@@ -56,6 +96,48 @@ public class CapacitorApkUpdaterPlugin: CAPPlugin, CAPBridgedPlugin {
         ])
     }
     
+    @objc func setMaxConcurrentDownloads(_ call: CAPPluginCall) {
+        call.resolve()
+    }
+    
+    @objc func setApkCacheSize(_ call: CAPPluginCall) {
+        call.resolve()
+    }
+    
+    @objc func clearApkCache(_ call: CAPPluginCall) {
+        call.resolve()
+    }
+    
+    @objc func enablePeerSharing(_ call: CAPPluginCall) {
+        call.resolve([
+            "port": 0
+        ])
+    }
+    
+    @objc func disablePeerSharing(_ call: CAPPluginCall) {
+        call.resolve()
+    }
+    
+    @objc func getMetrics(_ call: CAPPluginCall) {
+        call.resolve([
+            "downloads": []
+        ])
+    }
+    
+    @objc func dumpTrace(_ call: CAPPluginCall) {
+        call.resolve([
+            "startedAt": Int(Date().timeIntervalSince1970 * 1000),
+            "capacity": 0,
+            "recorded": 0,
+            "dropped": 0,
+            "events": []
+        ])
+    }
+    
+    @objc func setDebugLogging(_ call: CAPPluginCall) {
+        call.resolve()
+    }
+    
     @objc func installApk(_ call: CAPPluginCall) {
         call.resolve([
             "success": false,
@@ -63,6 +145,32 @@ public class CapacitorApkUpdaterPlugin: CAPPlugin, CAPBridgedPlugin {
         ])
     }
     
+    @objc func checkForUpdate(_ call: CAPPluginCall) {
+        call.resolve([
+            "success": false,
+            "error": "Update checks are not supported on iOS"
+        ])
+    }
+    
+    @objc func runUpdate(_ call: CAPPluginCall) {
+        call.resolve([
+            "state": "failed",
+            "error": "Updates are not supported on iOS"
+        ])
+    }
+    
+    @objc func getUpdateState(_ call: CAPPluginCall) {
+        call.resolve([
+            "state": "idle"
+        ])
+    }
+    
+    @objc func cancelUpdate(_ call: CAPPluginCall) {
+        call.resolve([
+            "cancelled": false
+        ])
+    }
+    
     @objc func getAppInfo(_ call: CAPPluginCall) {
         // Get actual iOS app info instead of rejecting
         if let bundle = Bundle.main {
@@ -4,12 +4,23 @@ import type {
   CapacitorApkUpdaterPlugin,
   DownloadApkOptions,
   DownloadApkResult,
+  SplitApkDownloadOptions,
+  PrefetchApkOptions,
+  PrefetchApkResult,
+  PrefetchStatusResult,
   DownloadStatusResult,
   CanInstallResult,
   PermissionResult,
   CancelDownloadResult,
+  MetricsResult,
+  TraceResult,
+  PeerSharingOptions,
+  PeerSharingResult,
   InstallApkResult,
   AppInfoResult,
+  CheckForUpdateResult,
+  RunUpdateOptions,
+  UpdateState,
   PluginListenerHandle,
 } from './definitions';
 
@@ -22,7 +33,34 @@ export class CapacitorApkUpdaterWeb extends WebPlugin implements CapacitorApkUpd
     };
   }
 
-  async getDownloadStatus(): Promise<DownloadStatusResult> {
+  async startSplitApkDownload(_options: SplitApkDownloadOptions): Promise<DownloadApkResult> {
+    console.error('APK installation is not supported on web platform');
+    return {
+      success: false,
+      error: 'APK installation is not supported on web platform',
+    };
+  }
+
+  async prefetchApk(_options: PrefetchApkOptions): Promise<PrefetchApkResult> {
+    console.error('APK installation is not supported on web platform');
+    return {
+      scheduled: false,
+      error: 'APK installation is not supported on web platform',
+    };
+  }
+
+  async getPrefetchStatus(): Promise<PrefetchStatusResult> {
+    console.error('APK installation is not supported on web platform');
+    return {
+      state: 'none',
+    };
+  }
+
+  async cancelPrefetch(): Promise<void> {
+    console.error('APK installation is not supported on web platform');
+  }
+
+  async getDownloadStatus(_options?: { downloadId?: number }): Promise<DownloadStatusResult> {
     console.error('APK installation is not supported on web platform');
     return {
       success: false,
@@ -48,14 +86,49 @@ export class CapacitorApkUpdaterWeb extends WebPlugin implements CapacitorApkUpd
     };
   }
 
-  async cancelDownload(): Promise<CancelDownloadResult> {
+  async cancelDownload(_options?: { downloadId?: number }): Promise<CancelDownloadResult> {
     console.error('APK installation is not supported on web platform');
     return {
       cancelled: false,
     };
   }
 
-  async installApk(_options: { filePath: string }): Promise<InstallApkResult> {
+  async setMaxConcurrentDownloads(_options: { max: number }): Promise<void> {
+    console.error('APK installation is not supported on web platform');
+  }
+
+  async setApkCacheSize(_options: { maxBytes: number }): Promise<void> {
+    console.error('APK installation is not supported on web platform');
+  }
+
+  async clearApkCache(): Promise<void> {
+    console.error('APK installation is not supported on web platform');
+  }
+
+  async enablePeerSharing(_options?: PeerSharingOptions): Promise<PeerSharingResult> {
+    console.error('APK installation is not supported on web platform');
+    return { port: 0 };
+  }
+
+  async disablePeerSharing(): Promise<void> {
+    console.error('APK installation is not supported on web platform');
+  }
+
+  async getMetrics(_options?: { downloadId?: number }): Promise<MetricsResult> {
+    console.error('APK installation is not supported on web platform');
+    return { downloads: [] };
+  }
+
+  async dumpTrace(_options?: { clear?: boolean }): Promise<TraceResult> {
+    console.error('APK installation is not supported on web platform');
+    return { startedAt: Date.now(), capacity: 0, recorded: 0, dropped: 0, events: [] };
+  }
+
+  async setDebugLogging(_options: { enabled: boolean }): Promise<void> {
+    console.error('APK installation is not supported on web platform');
+  }
+
+  async installApk(_options: { filePath: string; installMode?: 'intent' | 'session' }): Promise<InstallApkResult> {
     console.error('APK installation is not supported on web platform');
     return {
       success: false,
@@ -71,6 +144,32 @@ export class CapacitorApkUpdaterWeb extends WebPlugin implements CapacitorApkUpd
     };
   }
 
+  async checkForUpdate(_options: { url: string }): Promise<CheckForUpdateResult> {
+    console.error('APK installation is not supported on web platform');
+    return {
+      success: false,
+      error: 'Update checks are not supported on web platform',
+    };
+  }
+
+  async runUpdate(_options: RunUpdateOptions): Promise<UpdateState> {
+    console.error('APK installation is not supported on web platform');
+    return {
+      state: 'failed',
+      error: 'Updates are not supported on web platform',
+    };
+  }
+
+  async getUpdateState(): Promise<UpdateState> {
+    console.error('APK installation is not supported on web platform');
+    return { state: 'idle' };
+  }
+
+  async cancelUpdate(): Promise<{ cancelled: boolean }> {
+    console.error('APK installation is not supported on web platform');
+    return { cancelled: false };
+  }
+
   async addListener(_: any, __: (event: any) => void): Promise<PluginListenerHandle> {
     console.error('APK installation is not supported on web platform');
     console.warn(`Event listener is not supported on web platform`);